@@ -0,0 +1,1007 @@
+package org.classilist.knime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.classilist.knime.ClassilistColumnPlan.Role;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.IntValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.container.filter.TableFilter;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.RowInput;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+
+/**
+ * Writes the exported columns (A-, Predicted, P-, F-) as an Arrow IPC file
+ * (format version 5), so the frontend can map the columns directly instead of
+ * parsing text. Double columns (the probabilities) are written as float64,
+ * int and long columns as int32/int64 and all others as UTF-8 strings. The
+ * role of every column is stored in the field metadata
+ * (<code>classilist.role</code>). Quantized probabilities are written as
+ * float16 or unsigned int16/int8 codes. Sparse probabilities are written as
+ * int32 class codes and probability columns like in the CSV file, the class
+ * names (indexed by code) are stored in the schema metadata
+ * (<code>classilist.classes</code>, JSON array). Encoded class labels are
+ * dictionary encoded (int32 indices, one dictionary shared by the actual and
+ * predicted column), labels first seen in a batch are written as delta
+ * dictionary batch before it.
+ *
+ * <p>The rows are collected column-wise into record batches of a bounded
+ * size; only the current batch is held in memory.
+ */
+final class ArrowIpcWriter implements Closeable {
+
+    /** approximate size of the column data of one record batch. */
+    private static final int TARGET_BATCH_BYTES = 1 << 24;
+
+    private static final int MIN_BATCH_ROWS = 1024;
+
+    private static final int MAX_BATCH_ROWS = 1 << 16;
+
+    private static final byte[] MAGIC =
+            "ARROW1".getBytes(StandardCharsets.US_ASCII);
+
+    /** Arrow metadata version V5. */
+    private static final short METADATA_V5 = 4;
+
+    /** message header union types. */
+    private static final byte HEADER_SCHEMA = 1;
+
+    private static final byte HEADER_DICTIONARY_BATCH = 2;
+
+    private static final byte HEADER_RECORD_BATCH = 3;
+
+    /** the id of the dictionary of the class labels. */
+    private static final long LABEL_DICTIONARY_ID = 0;
+
+    /** type union types. */
+    private static final byte TYPE_INT = 2;
+
+    private static final byte TYPE_FLOATING_POINT = 3;
+
+    private static final byte TYPE_UTF8 = 5;
+
+    private static final short PRECISION_HALF = 0;
+
+    private static final short PRECISION_DOUBLE = 2;
+
+    private static final int ALIGNMENT = 8;
+
+    private static final String ROLE_KEY = "classilist.role";
+
+    private static final String QUANTIZATION_KEY = "classilist.quantization";
+
+    private static final String SCALE_KEY = "classilist.scale";
+
+    private static final String CLASSES_KEY = "classilist.classes";
+
+    private final ClassilistColumnPlan m_plan;
+
+    private final WritableByteChannel m_out;
+
+    private final List<Column> m_columns = new ArrayList<Column>();
+
+    private final int[] m_cellColumns;
+
+    /** the written columns, see {@link TopKSelector#layout}. */
+    private final int[] m_layout;
+
+    /** selects the probabilities in sparse output, null otherwise. */
+    private final TopKSelector m_topK;
+
+    /** the codes of encoded class labels, null if written as text. */
+    private final ClassDictionary m_dictionary;
+
+    /** the number of dictionary entries written. */
+    private int m_dictionaryEntries;
+
+    private final boolean m_writeRowID;
+
+    private final int m_batchRows;
+
+    private int m_rows;
+
+    private long m_position;
+
+    /** file offset, metadata length and body length of the batches. */
+    private final List<long[]> m_blocks = new ArrayList<long[]>();
+
+    /** the same of the dictionary batches. */
+    private final List<long[]> m_dictionaryBlocks = new ArrayList<long[]>();
+
+    private boolean m_closed;
+
+    /**
+     * Writes the file header and schema.
+     *
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     * @param out the channel to write the file to, closed with this writer
+     * @throws IOException if writing fails
+     */
+    ArrowIpcWriter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings, final WritableByteChannel out)
+            throws IOException {
+        m_plan = plan;
+        m_out = out;
+        m_writeRowID = settings.writeRowID();
+        m_cellColumns = plan.getExportedColumns();
+        m_dictionary = plan.getDictionary();
+        if (settings.sparseProbabilities()) {
+            m_layout = TopKSelector.layout(plan);
+            m_topK = new TopKSelector(plan, settings);
+        } else {
+            m_layout = m_cellColumns;
+            m_topK = null;
+        }
+        int rowBytes = 0;
+        ProbabilityQuantizer quantizer = ProbabilityQuantizer.of(settings);
+        if (m_writeRowID) {
+            m_columns.add(new Utf8Column("row ID", null));
+        }
+        for (int c : m_layout) {
+            if (c == TopKSelector.SPARSE_COLUMNS) {
+                int slots = m_topK.getSlots();
+                String[] headers = TopKSelector.headers(slots, "");
+                for (int i = 0; i < headers.length; i++) {
+                    // class code and probability pairs, then the residual
+                    m_columns.add(i % 2 == 0 && i < 2 * slots
+                            ? new IntColumn(headers[i], null)
+                            : Column.create(DoubleCell.TYPE, headers[i],
+                                    Role.PROBABILITY, quantizer));
+                }
+                continue;
+            }
+            Column column;
+            if (m_dictionary != null && (plan.getRole(c) == Role.ACTUAL
+                    || plan.getRole(c) == Role.PREDICTED)) {
+                column = new LabelColumn(plan.getHeader(c), plan.getRole(c),
+                        m_dictionary);
+            } else {
+                column = Column.create(plan.getSpec().getColumnSpec(c)
+                        .getType(), plan.getHeader(c), plan.getRole(c), quantizer);
+            }
+            m_columns.add(column);
+        }
+        for (Column column : m_columns) {
+            rowBytes += column.estimatedBytesPerRow();
+        }
+        m_batchRows = Math.max(MIN_BATCH_ROWS, Math.min(MAX_BATCH_ROWS,
+                TARGET_BATCH_BYTES / Math.max(1, rowBytes)));
+        for (Column column : m_columns) {
+            column.allocate(m_batchRows);
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(ALIGNMENT);
+        head.put(MAGIC);
+        head.flip().limit(ALIGNMENT);
+        write(head);
+        FlatBufferBuilder fb = new FlatBufferBuilder(1024);
+        int schema = addSchema(fb);
+        writeMessage(fb, HEADER_SCHEMA, schema, 0);
+    }
+
+    /**
+     * Writes all rows of the table, reading only the exported columns.
+     *
+     * @param table the table to write
+     * @param exec the monitor for progress and cancellation
+     * @throws IOException if writing fails
+     * @throws CanceledExecutionException if the user canceled
+     */
+    void write(final BufferedDataTable table, final ExecutionMonitor exec)
+            throws IOException, CanceledExecutionException {
+        RowInput input = m_plan.isProjected()
+                ? new FilteredRowInput(table,
+                        TableFilter.materializeCols(m_cellColumns))
+                : new DataTableRowInput(table);
+        ProgressSampler progress = new ProgressSampler(table.size());
+        try {
+            long i = 0;
+            DataRow row;
+            while ((row = input.poll()) != null) {
+                progress.rowStarted(exec, i++, row);
+                addRow(row);
+            }
+        } catch (InterruptedException e) {
+            CanceledExecutionException cce = new CanceledExecutionException();
+            cce.initCause(e);
+            throw cce;
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Adds a row, writing a record batch when it is full.
+     *
+     * @param row the row to add
+     * @throws IOException if writing the batch fails
+     */
+    void addRow(final DataRow row) throws IOException {
+        int col = 0;
+        if (m_writeRowID) {
+            ((Utf8Column)m_columns.get(col++)).add(row.getKey().getString(),
+                    m_rows);
+        }
+        for (int c : m_layout) {
+            if (c == TopKSelector.SPARSE_COLUMNS) {
+                col = addTopK(row, col);
+                continue;
+            }
+            DataCell cell = row.getCell(c);
+            Column column = m_columns.get(col++);
+            if (cell.isMissing()) {
+                column.addMissing(m_rows);
+            } else {
+                column.add(cell, m_rows);
+            }
+        }
+        m_rows++;
+        if (m_rows == m_batchRows) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Adds the pairs of class code and probability and the residual.
+     *
+     * @return the index of the next column
+     */
+    private int addTopK(final DataRow row, final int firstColumn) {
+        int col = firstColumn;
+        final int count = m_topK.select(row);
+        for (int s = 0; s < m_topK.getSlots(); s++) {
+            IntColumn codes = (IntColumn)m_columns.get(col++);
+            DoubleValueColumn values = (DoubleValueColumn)m_columns.get(col++);
+            if (s < count) {
+                codes.add(m_topK.getCode(s), m_rows);
+                values.add(m_topK.getValue(s), m_rows);
+            } else {
+                codes.addMissing(m_rows);
+                values.addMissing(m_rows);
+            }
+        }
+        ((DoubleValueColumn)m_columns.get(col++)).add(m_topK.getResidual(),
+                m_rows);
+        return col;
+    }
+
+    /**
+     * Writes the last batch and the footer and closes the channel.
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        m_closed = true;
+        try {
+            if (m_rows > 0) {
+                writeBatch();
+            }
+            if (m_dictionary != null) {
+                // the dictionary exists even without rows
+                writeDictionaryDelta();
+            }
+            // end of stream marker
+            ByteBuffer eos = ByteBuffer.allocate(ALIGNMENT)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            eos.putInt(-1).putInt(0).flip();
+            write(eos);
+
+            FlatBufferBuilder fb = new FlatBufferBuilder(1024);
+            int schema = addSchema(fb);
+            int batches = addBlocks(fb, m_blocks);
+            int dictionaries = addBlocks(fb, m_dictionaryBlocks);
+            fb.startTable(5);
+            fb.addOffset(3, batches);
+            fb.addOffset(2, dictionaries);
+            fb.addOffset(1, schema);
+            fb.addShort(0, METADATA_V5);
+            ByteBuffer footer = fb.finish(fb.endTable());
+            int footerLength = footer.remaining();
+            write(footer);
+            ByteBuffer tail = ByteBuffer.allocate(4 + MAGIC.length)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            tail.putInt(footerLength).put(MAGIC).flip();
+            write(tail);
+        } finally {
+            m_out.close();
+        }
+    }
+
+    /** Adds the vector of Block structs of the footer. */
+    private static int addBlocks(final FlatBufferBuilder fb,
+            final List<long[]> blocks) {
+        fb.startVector(24, blocks.size(), 8);
+        for (int i = blocks.size() - 1; i >= 0; i--) {
+            long[] block = blocks.get(i);
+            fb.prep(8, 24);
+            fb.putLong(block[2]);
+            fb.pad(4);
+            fb.putInt((int)block[1]);
+            fb.putLong(block[0]);
+        }
+        return fb.endVector(blocks.size());
+    }
+
+    /** Writes the collected rows as record batch and resets the columns. */
+    private void writeBatch() throws IOException {
+        if (m_dictionary != null) {
+            // the labels of the batch are in the dictionary by now
+            writeDictionaryDelta();
+        }
+        m_blocks.add(writeRecordBatch(m_columns, m_rows, null));
+        for (Column column : m_columns) {
+            column.reset();
+        }
+        m_rows = 0;
+    }
+
+    /**
+     * Writes the dictionary entries added since the last call, the first
+     * call writes the initial dictionary (even if empty).
+     */
+    private void writeDictionaryDelta() throws IOException {
+        int size = m_dictionary.size();
+        if (size == m_dictionaryEntries && !m_dictionaryBlocks.isEmpty()) {
+            return;
+        }
+        int rows = size - m_dictionaryEntries;
+        Utf8Column entries = new Utf8Column(null, null);
+        entries.allocate(rows);
+        for (int r = 0; r < rows; r++) {
+            entries.add(m_dictionary.getName(m_dictionaryEntries + r), r);
+        }
+        List<Column> columns = new ArrayList<Column>();
+        columns.add(entries);
+        m_dictionaryBlocks.add(writeRecordBatch(columns, rows,
+                !m_dictionaryBlocks.isEmpty()));
+        m_dictionaryEntries = size;
+    }
+
+    /**
+     * Writes a record batch or dictionary batch message and its body.
+     *
+     * @param isDelta null for a record batch, otherwise whether the
+     *            dictionary batch adds to the entries written before
+     * @return file offset, metadata length and body length of the block
+     */
+    private long[] writeRecordBatch(final List<Column> columns, final int rows,
+            final Boolean isDelta) throws IOException {
+        List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        for (Column column : columns) {
+            column.buffers(rows, buffers);
+        }
+        long bodyLength = 0;
+        for (ByteBuffer buffer : buffers) {
+            bodyLength += padded(buffer.remaining());
+        }
+
+        FlatBufferBuilder fb = new FlatBufferBuilder(256 + 48 * buffers.size());
+        fb.startVector(16, buffers.size(), 8);
+        long offset = bodyLength;
+        for (int i = buffers.size() - 1; i >= 0; i--) {
+            int length = buffers.get(i).remaining();
+            offset -= padded(length);
+            fb.prep(8, 16);
+            fb.putLong(length);
+            fb.putLong(offset);
+        }
+        int bufferVector = fb.endVector(buffers.size());
+        fb.startVector(16, columns.size(), 8);
+        for (int i = columns.size() - 1; i >= 0; i--) {
+            fb.prep(8, 16);
+            fb.putLong(columns.get(i).nullCount());
+            fb.putLong(rows);
+        }
+        int nodes = fb.endVector(columns.size());
+        fb.startTable(4);
+        fb.addLong(0, rows);
+        fb.addOffset(2, bufferVector);
+        fb.addOffset(1, nodes);
+        int batch = fb.endTable();
+        byte headerType = HEADER_RECORD_BATCH;
+        if (isDelta != null) {
+            fb.startTable(3);
+            fb.addLong(0, LABEL_DICTIONARY_ID);
+            fb.addOffset(1, batch);
+            fb.addByte(2, isDelta ? 1 : 0);
+            batch = fb.endTable();
+            headerType = HEADER_DICTIONARY_BATCH;
+        }
+
+        long blockOffset = m_position;
+        int metadataLength = writeMessage(fb, headerType, batch, bodyLength);
+        ByteBuffer padding = ByteBuffer.allocate(ALIGNMENT);
+        for (ByteBuffer buffer : buffers) {
+            int length = buffer.remaining();
+            write(buffer);
+            padding.clear().limit((int)padded(length) - length);
+            write(padding);
+        }
+        return new long[]{blockOffset, metadataLength, bodyLength};
+    }
+
+    /**
+     * Writes an encapsulated message: continuation marker, length and the
+     * flatbuffer padded to the alignment.
+     *
+     * @return the number of bytes written
+     */
+    private int writeMessage(final FlatBufferBuilder fb, final byte headerType,
+            final int header, final long bodyLength) throws IOException {
+        fb.startTable(5);
+        fb.addLong(3, bodyLength);
+        fb.addOffset(2, header);
+        fb.addShort(0, METADATA_V5);
+        fb.addByte(1, headerType);
+        ByteBuffer message = fb.finish(fb.endTable());
+        int length = (int)padded(8 + message.remaining()) - 8;
+        ByteBuffer prefix = ByteBuffer.allocate(8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        prefix.putInt(-1).putInt(length).flip();
+        write(prefix);
+        int padding = length - message.remaining();
+        write(message);
+        write(ByteBuffer.allocate(padding));
+        return 8 + length;
+    }
+
+    /** Adds the schema table (fields and their metadata). */
+    private int addSchema(final FlatBufferBuilder fb) {
+        int[] fields = new int[m_columns.size()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = m_columns.get(i).addField(fb);
+        }
+        int fieldVector = fb.createOffsetVector(fields);
+        int classColumn = keyValue(fb, "classilist.classColumn",
+                m_plan.getClassColumn());
+        int metadata;
+        if (m_topK != null) {
+            int classes = keyValue(fb, CLASSES_KEY,
+                    ClassDictionary.of(m_plan).toJson());
+            metadata = fb.createOffsetVector(new int[]{classColumn, classes});
+        } else {
+            metadata = fb.createOffsetVector(new int[]{classColumn});
+        }
+        fb.startTable(4);
+        fb.addOffset(2, metadata);
+        fb.addOffset(1, fieldVector);
+        fb.addShort(0, 0); // little endian
+        return fb.endTable();
+    }
+
+    private static int keyValue(final FlatBufferBuilder fb, final String key,
+            final String value) {
+        int k = fb.createString(key);
+        int v = fb.createString(value);
+        fb.startTable(2);
+        fb.addOffset(1, v);
+        fb.addOffset(0, k);
+        return fb.endTable();
+    }
+
+    private static long padded(final long length) {
+        return (length + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private void write(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            m_position += m_out.write(buffer);
+        }
+    }
+
+    /** The values of one column of the current batch. */
+    private abstract static class Column {
+
+        private final String m_name;
+
+        private final Role m_role;
+
+        private int m_batchRows;
+
+        /** null until the first missing value of the batch. */
+        private byte[] m_validity;
+
+        private int m_nullCount;
+
+        Column(final String name, final Role role) {
+            m_name = name;
+            m_role = role;
+        }
+
+        static Column create(final DataType type, final String name,
+                final Role role, final ProbabilityQuantizer quantizer) {
+            if (quantizer != null
+                    && ProbabilityQuantizer.appliesTo(type, role)) {
+                return new QuantizedColumn(name, role, quantizer);
+            }
+            if (DoubleCell.TYPE.equals(type)) {
+                return new DoubleColumn(name, role);
+            }
+            if (IntCell.TYPE.equals(type) && type.isCompatible(IntValue.class)) {
+                return new IntColumn(name, role);
+            }
+            if (LongCell.TYPE.equals(type)
+                    && type.isCompatible(LongValue.class)) {
+                return new LongColumn(name, role);
+            }
+            return new Utf8Column(name, role);
+        }
+
+        abstract int estimatedBytesPerRow();
+
+        /** Allocates the buffers for a batch of the given size. */
+        void allocate(final int rows) {
+            m_batchRows = rows;
+        }
+
+        /** Adds a non-missing cell as the given row of the batch. */
+        abstract void add(DataCell cell, int row);
+
+        /** Adds a placeholder value for a missing cell. */
+        abstract void addEmpty();
+
+        /** Adds the type union of the field. */
+        abstract int addType(FlatBufferBuilder fb);
+
+        /**
+         * Adds the dictionary encoding of the field.
+         *
+         * @return its offset, 0 if the field isn't dictionary encoded
+         */
+        int addDictionaryEncoding(final FlatBufferBuilder fb) {
+            return 0;
+        }
+
+        abstract byte typeType();
+
+        /** Adds the value buffers after the validity buffer. */
+        abstract void valueBuffers(int rows, List<ByteBuffer> buffers);
+
+        void reset() {
+            m_validity = null;
+            m_nullCount = 0;
+        }
+
+        /** Adds a missing cell as the given row of the batch. */
+        void addMissing(final int row) {
+            if (m_validity == null) {
+                // all rows before were valid
+                m_validity = new byte[(m_batchRows + 7) / 8];
+                for (int r = 0; r < row; r++) {
+                    m_validity[r >> 3] |= 1 << (r & 7);
+                }
+            }
+            m_nullCount++;
+            addEmpty();
+        }
+
+        /** Marks the row valid, called for every non-missing value. */
+        void valid(final int row) {
+            if (m_validity != null) {
+                m_validity[row >> 3] |= 1 << (row & 7);
+            }
+        }
+
+        int nullCount() {
+            return m_nullCount;
+        }
+
+        void buffers(final int rows, final List<ByteBuffer> buffers) {
+            if (m_validity == null) {
+                buffers.add(ByteBuffer.allocate(0));
+            } else {
+                buffers.add(ByteBuffer.wrap(m_validity, 0, (rows + 7) / 8));
+            }
+            valueBuffers(rows, buffers);
+        }
+
+        /** @return the key value pairs of the field metadata */
+        List<String[]> metadata() {
+            List<String[]> entries = new ArrayList<String[]>();
+            if (m_role != null) {
+                entries.add(new String[]{ROLE_KEY, m_role.name()});
+            }
+            return entries;
+        }
+
+        int addField(final FlatBufferBuilder fb) {
+            int name = fb.createString(m_name);
+            int type = addType(fb);
+            fb.startVector(4, 0, 4);
+            int children = fb.endVector(0);
+            List<String[]> entries = metadata();
+            int metadata = 0;
+            if (!entries.isEmpty()) {
+                int[] keyValues = new int[entries.size()];
+                for (int i = 0; i < keyValues.length; i++) {
+                    keyValues[i] = keyValue(fb, entries.get(i)[0],
+                            entries.get(i)[1]);
+                }
+                metadata = fb.createOffsetVector(keyValues);
+            }
+            int dictionary = addDictionaryEncoding(fb);
+            fb.startTable(7);
+            if (metadata != 0) {
+                fb.addOffset(6, metadata);
+            }
+            if (dictionary != 0) {
+                fb.addOffset(4, dictionary);
+            }
+            fb.addOffset(5, children);
+            fb.addOffset(3, type);
+            fb.addOffset(0, name);
+            fb.addByte(2, typeType());
+            fb.addByte(1, 1); // nullable
+            return fb.endTable();
+        }
+    }
+
+    /** Column of fixed width values. */
+    private abstract static class FixedColumn extends Column {
+
+        private final int m_width;
+
+        ByteBuffer m_values;
+
+        FixedColumn(final String name, final Role role, final int width) {
+            super(name, role);
+            m_width = width;
+        }
+
+        @Override
+        int estimatedBytesPerRow() {
+            return m_width;
+        }
+
+        @Override
+        void allocate(final int rows) {
+            super.allocate(rows);
+            m_values = ByteBuffer.allocate(rows * m_width)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        void valueBuffers(final int rows, final List<ByteBuffer> buffers) {
+            ByteBuffer values = m_values.duplicate();
+            values.flip();
+            buffers.add(values);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            m_values.clear();
+        }
+    }
+
+    /** Column of double values, also from other sources than cells. */
+    private abstract static class DoubleValueColumn extends FixedColumn {
+
+        DoubleValueColumn(final String name, final Role role,
+                final int width) {
+            super(name, role, width);
+        }
+
+        /** Adds a value as the given row of the batch. */
+        abstract void add(double value, int row);
+
+        @Override
+        final void add(final DataCell cell, final int row) {
+            add(((DoubleValue)cell).getDoubleValue(), row);
+        }
+    }
+
+    /** float64 column. */
+    private static final class DoubleColumn extends DoubleValueColumn {
+
+        DoubleColumn(final String name, final Role role) {
+            super(name, role, 8);
+        }
+
+        @Override
+        void add(final double value, final int row) {
+            valid(row);
+            m_values.putDouble(value);
+        }
+
+        @Override
+        void addEmpty() {
+            m_values.putDouble(0);
+        }
+
+        @Override
+        byte typeType() {
+            return TYPE_FLOATING_POINT;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            fb.startTable(1);
+            fb.addShort(0, PRECISION_DOUBLE);
+            return fb.endTable();
+        }
+    }
+
+    /** int32 column. */
+    private static final class IntColumn extends FixedColumn {
+
+        IntColumn(final String name, final Role role) {
+            super(name, role, 4);
+        }
+
+        @Override
+        void add(final DataCell cell, final int row) {
+            add(((IntValue)cell).getIntValue(), row);
+        }
+
+        /** Adds a value as the given row of the batch. */
+        void add(final int value, final int row) {
+            valid(row);
+            m_values.putInt(value);
+        }
+
+        @Override
+        void addEmpty() {
+            m_values.putInt(0);
+        }
+
+        @Override
+        byte typeType() {
+            return TYPE_INT;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            return addIntType(fb, 32, true);
+        }
+    }
+
+    /** int64 column. */
+    private static final class LongColumn extends FixedColumn {
+
+        LongColumn(final String name, final Role role) {
+            super(name, role, 8);
+        }
+
+        @Override
+        void add(final DataCell cell, final int row) {
+            valid(row);
+            m_values.putLong(((LongValue)cell).getLongValue());
+        }
+
+        @Override
+        void addEmpty() {
+            m_values.putLong(0);
+        }
+
+        @Override
+        byte typeType() {
+            return TYPE_INT;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            return addIntType(fb, 64, true);
+        }
+    }
+
+    /**
+     * Quantized probabilities: half precision floats or unsigned fixed point
+     * codes, the scale is stored in the field metadata
+     * (<code>classilist.scale</code>, value = code / scale). NaN is stored
+     * as null.
+     */
+    private static final class QuantizedColumn extends DoubleValueColumn {
+
+        private final ProbabilityQuantizer m_quantizer;
+
+        QuantizedColumn(final String name, final Role role,
+                final ProbabilityQuantizer quantizer) {
+            super(name, role, quantizer.getBitWidth() / 8);
+            m_quantizer = quantizer;
+        }
+
+        @Override
+        void add(final double value, final int row) {
+            if (Double.isNaN(value)) {
+                addMissing(row);
+                return;
+            }
+            valid(row);
+            int code = m_quantizer.quantize(value);
+            if (m_quantizer.getBitWidth() == 8) {
+                m_values.put((byte)code);
+            } else {
+                m_values.putShort((short)code);
+            }
+        }
+
+        @Override
+        void addEmpty() {
+            if (m_quantizer.getBitWidth() == 8) {
+                m_values.put((byte)0);
+            } else {
+                m_values.putShort((short)0);
+            }
+        }
+
+        @Override
+        byte typeType() {
+            return m_quantizer.getScale() == 0 ? TYPE_FLOATING_POINT : TYPE_INT;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            if (m_quantizer.getScale() == 0) {
+                fb.startTable(1);
+                fb.addShort(0, PRECISION_HALF);
+                return fb.endTable();
+            }
+            return addIntType(fb, m_quantizer.getBitWidth(), false);
+        }
+
+        @Override
+        List<String[]> metadata() {
+            List<String[]> entries = super.metadata();
+            entries.add(new String[]{QUANTIZATION_KEY,
+                    m_quantizer.getMode().name()});
+            if (m_quantizer.getScale() > 0) {
+                entries.add(new String[]{SCALE_KEY,
+                        Integer.toString(m_quantizer.getScale())});
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Encoded class labels: int32 indices into the label dictionary, the
+     * field type is the type of the dictionary values (utf8).
+     */
+    private static final class LabelColumn extends FixedColumn {
+
+        private final ClassDictionary m_dictionary;
+
+        LabelColumn(final String name, final Role role,
+                final ClassDictionary dictionary) {
+            super(name, role, 4);
+            m_dictionary = dictionary;
+        }
+
+        @Override
+        void add(final DataCell cell, final int row) {
+            valid(row);
+            m_values.putInt(m_dictionary.code(cell.toString()));
+        }
+
+        @Override
+        void addEmpty() {
+            m_values.putInt(0);
+        }
+
+        @Override
+        byte typeType() {
+            return TYPE_UTF8;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        @Override
+        int addDictionaryEncoding(final FlatBufferBuilder fb) {
+            int indexType = addIntType(fb, 32, true);
+            fb.startTable(2);
+            fb.addOffset(1, indexType);
+            fb.addLong(0, LABEL_DICTIONARY_ID);
+            return fb.endTable();
+        }
+    }
+
+    private static int addIntType(final FlatBufferBuilder fb,
+            final int bitWidth, final boolean signed) {
+        fb.startTable(2);
+        fb.addInt(0, bitWidth);
+        fb.addByte(1, signed ? 1 : 0);
+        return fb.endTable();
+    }
+
+    /** UTF-8 string column: offsets and data. */
+    private static final class Utf8Column extends Column {
+
+        private ByteBuffer m_offsets;
+
+        private ByteBuffer m_data;
+
+        Utf8Column(final String name, final Role role) {
+            super(name, role);
+        }
+
+        @Override
+        int estimatedBytesPerRow() {
+            return 20;
+        }
+
+        @Override
+        void allocate(final int rows) {
+            super.allocate(rows);
+            m_offsets = ByteBuffer.allocate(4 * (rows + 1))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            m_offsets.putInt(0);
+            m_data = ByteBuffer.allocate(16 * rows);
+        }
+
+        @Override
+        void add(final DataCell cell, final int row) {
+            add(cell.toString(), row);
+        }
+
+        void add(final String value, final int row) {
+            valid(row);
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            if (m_data.remaining() < bytes.length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(
+                        2 * m_data.capacity(), m_data.position() + bytes.length));
+                m_data.flip();
+                grown.put(m_data);
+                m_data = grown;
+            }
+            m_data.put(bytes);
+            m_offsets.putInt(m_data.position());
+        }
+
+        @Override
+        void addEmpty() {
+            m_offsets.putInt(m_data.position());
+        }
+
+        @Override
+        byte typeType() {
+            return TYPE_UTF8;
+        }
+
+        @Override
+        int addType(final FlatBufferBuilder fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        @Override
+        void valueBuffers(final int rows, final List<ByteBuffer> buffers) {
+            ByteBuffer offsets = m_offsets.duplicate();
+            offsets.flip();
+            buffers.add(offsets);
+            ByteBuffer data = m_data.duplicate();
+            data.flip();
+            buffers.add(data);
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            m_offsets.clear();
+            m_offsets.putInt(0);
+            m_data.clear();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveTask;
+
+import org.knime.core.data.DataRow;
+
+/**
+ * Formats batches of rows into reusable {@link RowBuffer}s on whatever thread
+ * runs the batch, and writes the formatted batches. Used by the writers that
+ * encode rows off the polling thread; batches must be written in the order
+ * of their rows, then the output (and the first warning) is identical to the
+ * serial writer.
+ */
+final class BatchFormatter {
+
+    /** rows of the first batches, later batches are sized from the output. */
+    private static final int INITIAL_BATCH_ROWS = 256;
+
+    private static final int MIN_BATCH_ROWS = 16;
+
+    private static final int MAX_BATCH_ROWS = 8192;
+
+    /** approximate number of characters a batch is formatted into. */
+    static final int TARGET_BATCH_CHARS = 1 << 18;
+
+    private final FileWriterSettings m_settings;
+
+    private final String m_newLine;
+
+    /** one formatter (with its encoders) per formatting thread. */
+    private final ThreadLocal<RowFormatter> m_formatters;
+
+    /** buffers already written, reused by later batches. */
+    private final ConcurrentLinkedQueue<RowBuffer> m_freeBuffers =
+            new ConcurrentLinkedQueue<RowBuffer>();
+
+    /** written by the writing thread, read by the polling thread. */
+    private volatile int m_batchRows = INITIAL_BATCH_ROWS;
+
+    private String m_warning;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     * @param newLine the line ending to write
+     */
+    BatchFormatter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings, final String newLine) {
+        m_settings = settings;
+        m_newLine = newLine;
+        m_formatters = new ThreadLocal<RowFormatter>() {
+            @Override
+            protected RowFormatter initialValue() {
+                return new RowFormatter(plan, settings);
+            }
+        };
+    }
+
+    /** @return an array for the rows of the next batch */
+    DataRow[] newRowArray() {
+        return new DataRow[m_batchRows];
+    }
+
+    /**
+     * @param rows the rows of the batch
+     * @param count the number of rows used in the array
+     * @param firstRow the index of the first row in the table
+     * @return a (not yet started) task formatting the rows
+     */
+    RowBatch newBatch(final DataRow[] rows, final int count,
+            final long firstRow) {
+        return new RowBatch(rows, count, firstRow);
+    }
+
+    /**
+     * Waits for the batch to be formatted and writes it. Also sizes the next
+     * batches, so they format into about {@link #TARGET_BATCH_CHARS}
+     * characters. Batches must be written in row order by a single thread.
+     *
+     * @param batch the batch to write
+     * @param out the writer to write to
+     * @throws IOException if writing fails
+     */
+    void write(final RowBatch batch, final Writer out) throws IOException {
+        RowBuffer buffer = batch.join();
+        if (buffer == null) {
+            // the batch has labels without code, they get the next codes here
+            // in row order
+            buffer = batch.format();
+        }
+        String warning = buffer.takeWarning();
+        if (m_warning == null) {
+            m_warning = warning;
+        }
+        int charsPerRow = Math.max(1, buffer.length() / batch.m_count);
+        m_batchRows = Math.max(MIN_BATCH_ROWS,
+                Math.min(MAX_BATCH_ROWS, TARGET_BATCH_CHARS / charsPerRow));
+        buffer.writeTo(out);
+        m_freeBuffers.add(buffer);
+    }
+
+    /** @return the formatter of the calling thread */
+    RowFormatter formatter() {
+        return m_formatters.get();
+    }
+
+    /**
+     * @return an empty buffer with room for about
+     *         {@link #TARGET_BATCH_CHARS}, a recycled one if available
+     */
+    RowBuffer obtainBuffer() {
+        RowBuffer buffer = m_freeBuffers.poll();
+        if (buffer == null) {
+            buffer = new RowBuffer(m_settings, m_newLine,
+                    TARGET_BATCH_CHARS + TARGET_BATCH_CHARS / 4);
+        }
+        return buffer;
+    }
+
+    /**
+     * @param buffer a buffer that is written, emptied and reused by later
+     *            batches
+     */
+    void recycle(final RowBuffer buffer) {
+        buffer.clear();
+        m_freeBuffers.add(buffer);
+    }
+
+    /**
+     * @return the first warning raised in the written batches (in row
+     *         order), or null
+     */
+    String getWarning() {
+        return m_warning;
+    }
+
+    /** Formats one batch of rows into a (reused) buffer. */
+    final class RowBatch extends RecursiveTask<RowBuffer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DataRow[] m_rows;
+
+        private final int m_count;
+
+        private final long m_firstRow;
+
+        private RowBatch(final DataRow[] rows, final int count,
+                final long firstRow) {
+            m_rows = rows;
+            m_count = count;
+            m_firstRow = firstRow;
+        }
+
+        /**
+         * {@inheritDoc}
+         *
+         * @return the formatted rows, null if a label written as code has no
+         *         code yet, then the writing thread formats the batch
+         */
+        @Override
+        protected RowBuffer compute() {
+            RowFormatter formatter = m_formatters.get();
+            for (int r = 0; r < m_count; r++) {
+                if (!formatter.hasCodes(m_rows[r])) {
+                    return null;
+                }
+            }
+            return format();
+        }
+
+        /** @return the rows formatted on the calling thread */
+        private RowBuffer format() {
+            RowFormatter formatter = m_formatters.get();
+            RowBuffer buffer = obtainBuffer();
+            for (int r = 0; r < m_count; r++) {
+                formatter.format(m_rows[r], m_firstRow + r, buffer);
+            }
+            return buffer;
+        }
+    }
+}
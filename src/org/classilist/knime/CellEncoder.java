@@ -0,0 +1,335 @@
+package org.classilist.knime;
+
+import org.classilist.knime.ClassilistColumnPlan.Role;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataType;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.LongCell;
+
+/**
+ * Appends the non-missing cells of one column to a {@link RowBuffer}. An
+ * encoder is created once per column and write call from the column type and
+ * the writer settings, the row loop then only dispatches through the array
+ * of encoders.
+ */
+abstract class CellEncoder {
+
+    /**
+     * Appends the (non-missing) cell to the row buffer.
+     *
+     * @param cell the cell to write, never missing
+     * @param out the buffer of the row
+     */
+    abstract void encode(DataCell cell, RowBuffer out);
+
+    /**
+     * Creates the encoder for a column. Double, int and long columns are
+     * formatted from their primitive value, all other columns are written
+     * with the string representation of their cells. Double probability
+     * columns are quantized if configured, class labels are written as
+     * codes if there is a dictionary.
+     *
+     * @param type the type of the column
+     * @param role the role of the column in the export
+     * @param column the index of the column (used in warnings)
+     * @param settings the writer settings
+     * @param dictionary the codes of the class labels, null to write them
+     *            as text
+     * @return a new encoder for the cells of the column
+     */
+    static CellEncoder create(final DataType type, final Role role,
+            final int column, final FileWriterSettings settings,
+            final ClassDictionary dictionary) {
+        if (dictionary != null
+                && (role == Role.ACTUAL || role == Role.PREDICTED)) {
+            return new LabelEncoder(QuotePolicy.of(settings, true), column,
+                    settings.getDecimalSeparator(), dictionary);
+        }
+        boolean isNumerical = type.isCompatible(DoubleValue.class);
+        QuotePolicy policy = QuotePolicy.of(settings, isNumerical);
+        if (DoubleCell.TYPE.equals(type)) {
+            if (role == Role.PROBABILITY) {
+                return createProbability(column, settings);
+            }
+            return new DoubleEncoder(policy, column,
+                    settings.getDecimalSeparator(), -1);
+        }
+        if (IntCell.TYPE.equals(type) || LongCell.TYPE.equals(type)) {
+            return new LongEncoder(policy, column,
+                    settings.getDecimalSeparator());
+        }
+        if (isNumerical && settings.getDecimalSeparator() != '.') {
+            return new DecimalSeparatorEncoder(policy, column,
+                    settings.getDecimalSeparator());
+        }
+        return new TextEncoder(policy);
+    }
+
+    /**
+     * Creates the encoder of probability values, quantized or rounded to the
+     * configured digits.
+     *
+     * @param column the index of the column (used in warnings)
+     * @param settings the writer settings
+     * @return a new encoder for probabilities
+     */
+    static DoubleValueEncoder createProbability(final int column,
+            final FileWriterSettings settings) {
+        QuotePolicy policy = QuotePolicy.of(settings, true);
+        ProbabilityQuantizer quantizer = ProbabilityQuantizer.of(settings);
+        if (quantizer != null) {
+            return new QuantizedEncoder(policy, column,
+                    settings.getDecimalSeparator(), quantizer);
+        }
+        return new DoubleEncoder(policy, column,
+                settings.getDecimalSeparator(),
+                settings.getProbabilityPrecision());
+    }
+
+    /**
+     * Encoder of double values, also used for values that don't come from a
+     * cell.
+     */
+    abstract static class DoubleValueEncoder extends CellEncoder {
+
+        /**
+         * Appends the value to the row buffer.
+         *
+         * @param value the value to write
+         * @param out the buffer of the row
+         */
+        abstract void encode(double value, RowBuffer out);
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        final void encode(final DataCell cell, final RowBuffer out) {
+            encode(((DoubleValue)cell).getDoubleValue(), out);
+        }
+    }
+
+    /**
+     * Writes the string representation of the cell. The quoted and escaped
+     * characters of repeated values are taken from a cache, until it turns
+     * itself off.
+     */
+    static final class TextEncoder extends CellEncoder {
+
+        private final QuotePolicy m_policy;
+
+        /** null if values are copied as they are or the hit rate was low. */
+        private EncodedValueCache m_cache;
+
+        TextEncoder(final QuotePolicy policy) {
+            m_policy = policy;
+            if (policy != QuotePolicy.NONE) {
+                m_cache = new EncodedValueCache();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final DataCell cell, final RowBuffer out) {
+            String data = cell.toString();
+            final EncodedValueCache cache = m_cache;
+            if (cache == null) {
+                out.appendQuoted(data, m_policy);
+                return;
+            }
+            char[] encoded = cache.get(data);
+            if (encoded != null) {
+                out.append(encoded, 0, encoded.length);
+                return;
+            }
+            int start = out.length();
+            out.appendQuoted(data, m_policy);
+            if (cache.isEnabled()) {
+                cache.put(data, out.chars(), start, out.length());
+            } else {
+                m_cache = null;
+            }
+        }
+    }
+
+    /**
+     * Writes numerical cells with the dot replaced by the configured decimal
+     * separator.
+     */
+    static final class DecimalSeparatorEncoder extends CellEncoder {
+
+        private final QuotePolicy m_policy;
+
+        private final int m_column;
+
+        private final char m_separator;
+
+        DecimalSeparatorEncoder(final QuotePolicy policy, final int column,
+                final char separator) {
+            m_policy = policy;
+            m_column = column;
+            m_separator = separator;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final DataCell cell, final RowBuffer out) {
+            String strVal = cell.toString();
+            // use the new separator only if it is not already
+            // contained in the value.
+            if (strVal.indexOf(m_separator) < 0) {
+                strVal = Classilist.replaceDecimalSeparator(strVal,
+                        m_separator);
+            } else {
+                out.warnDecimalSeparator(m_separator, m_column);
+            }
+            out.appendQuoted(strVal, m_policy);
+        }
+    }
+
+    /**
+     * Writes double cells from their primitive value, with the shortest
+     * representation or a fixed number of fraction digits.
+     */
+    static final class DoubleEncoder extends DoubleValueEncoder {
+
+        private final QuotePolicy m_policy;
+
+        private final int m_column;
+
+        private final char m_separator;
+
+        private final int m_decimals;
+
+        DoubleEncoder(final QuotePolicy policy, final int column,
+                final char separator, final int decimals) {
+            m_policy = policy;
+            m_column = column;
+            m_separator = separator;
+            m_decimals = decimals;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final double value, final RowBuffer out) {
+            out.appendDouble(value, m_decimals, m_separator, m_policy,
+                    m_column);
+        }
+    }
+
+    /**
+     * Writes probabilities as fixed point codes or as half precision
+     * decimals. NaN is written as missing value.
+     */
+    static final class QuantizedEncoder extends DoubleValueEncoder {
+
+        private final QuotePolicy m_policy;
+
+        private final int m_column;
+
+        private final char m_separator;
+
+        private final ProbabilityQuantizer m_quantizer;
+
+        private final boolean m_half;
+
+        QuantizedEncoder(final QuotePolicy policy, final int column,
+                final char separator, final ProbabilityQuantizer quantizer) {
+            m_policy = policy;
+            m_column = column;
+            m_separator = separator;
+            m_quantizer = quantizer;
+            m_half = quantizer.getScale() == 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final double value, final RowBuffer out) {
+            if (Double.isNaN(value)) {
+                out.appendMissing();
+                return;
+            }
+            if (value < 0 || value > 1) {
+                out.warnClamped(value, m_column);
+            }
+            int code = m_quantizer.quantize(value);
+            if (m_half) {
+                out.appendNumber(ProbabilityQuantizer.halfDecimal(code),
+                        m_separator, m_policy, m_column);
+            } else {
+                out.appendLong(code, m_separator, m_policy, m_column);
+            }
+        }
+    }
+
+    /**
+     * Writes class labels as their code in the dictionary, new labels are
+     * added to it.
+     */
+    static final class LabelEncoder extends CellEncoder {
+
+        private final QuotePolicy m_policy;
+
+        private final int m_column;
+
+        private final char m_separator;
+
+        private final ClassDictionary m_dictionary;
+
+        LabelEncoder(final QuotePolicy policy, final int column,
+                final char separator, final ClassDictionary dictionary) {
+            m_policy = policy;
+            m_column = column;
+            m_separator = separator;
+            m_dictionary = dictionary;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final DataCell cell, final RowBuffer out) {
+            out.appendLong(m_dictionary.code(cell.toString()), m_separator,
+                    m_policy, m_column);
+        }
+    }
+
+    /**
+     * Writes int and long cells from their primitive value.
+     */
+    static final class LongEncoder extends CellEncoder {
+
+        private final QuotePolicy m_policy;
+
+        private final int m_column;
+
+        private final char m_separator;
+
+        LongEncoder(final QuotePolicy policy, final int column,
+                final char separator) {
+            m_policy = policy;
+            m_column = column;
+            m_separator = separator;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void encode(final DataCell cell, final RowBuffer out) {
+            out.appendLong(((LongValue)cell).getLongValue(), m_separator,
+                    m_policy, m_column);
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+
+/**
+ * The rows of every cell of the confusion matrix as compressed bitmaps of
+ * the row indices, gathered while the rows are formatted and written next to
+ * the CSV file (<code>cells.json</code>). The index of a row is its position
+ * among the written data rows, starting with 0.
+ *
+ * <p>The bitmaps are Roaring bitmaps: the indices are split by their upper
+ * 16 bits into containers holding the lower 16 bits as sorted array (up to
+ * {@link #MAX_ARRAY} values) or as bitset. They are written in the portable
+ * Roaring format, base 64 encoded, with run containers where these are
+ * smaller. As the format has 32 bit values, rows from index 2^32 on are not
+ * indexed. Rows with missing actual or predicted class are left out. The
+ * file also holds the number of rows, so a reader can tell an index of
+ * other rows of the file; it is not written when rows are appended.
+ *
+ * <p>Every formatter adds its rows to its own bitmaps, those of a cell are
+ * or-ed when written. {@link RowQueries} reads the bitmaps back to look up
+ * the rows of a cell.
+ */
+final class CellIndex implements RowStatistics {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "cells.json";
+
+    /** the most values of an array container. */
+    static final int MAX_ARRAY = 4096;
+
+    /** the classes whose cells are kept in an array. */
+    private static final int DENSE = 64;
+
+    /** the first row index not indexed. */
+    private static final long MAX_ROWS = 1L << 32;
+
+    private static final int SERIAL_COOKIE_NO_RUNCONTAINER = 12346;
+
+    private static final int SERIAL_COOKIE = 12347;
+
+    /** with runs, offsets are written from this number of containers on. */
+    private static final int NO_OFFSET_THRESHOLD = 4;
+
+    private final ClassDictionary m_classes;
+
+    private final int m_actualColumn;
+
+    private final int m_predictedColumn;
+
+    /** the bitmaps of all formatters, guarded by this. */
+    private final List<Bitmaps> m_bitmaps = new ArrayList<Bitmaps>();
+
+    /**
+     * @param plan the column plan of the table
+     */
+    CellIndex(final ClassilistColumnPlan plan) {
+        m_classes = ClassDictionary.of(plan);
+        int actual = -1;
+        for (int c = 0; c < plan.getNumColumns(); c++) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            }
+        }
+        m_actualColumn = actual;
+        m_predictedColumn = plan.getPredictedIndex();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Bitmaps newAccumulator() {
+        Bitmaps bitmaps = new Bitmaps();
+        m_bitmaps.add(bitmaps);
+        return bitmaps;
+    }
+
+    /** The bitmaps of the cells of the rows of one thread. */
+    final class Bitmaps implements Accumulator {
+
+        /** the bitmaps of codes less than DENSE, actual * DENSE + predicted. */
+        private final Bitmap[] m_dense = new Bitmap[DENSE * DENSE];
+
+        /** the bitmaps of cells with larger codes. */
+        private final Map<Long, Bitmap> m_sparse = new HashMap<Long, Bitmap>();
+
+        private boolean m_truncated;
+
+        /** all rows added, indexed or not. */
+        private long m_rows;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            m_rows++;
+            if (rowIndex >= MAX_ROWS) {
+                m_truncated = true;
+                return;
+            }
+            DataCell actual = row.getCell(m_actualColumn);
+            DataCell predicted = row.getCell(m_predictedColumn);
+            if (actual.isMissing() || predicted.isMissing()) {
+                return;
+            }
+            int a = m_classes.code(actual.toString());
+            int p = m_classes.code(predicted.toString());
+            Bitmap bitmap;
+            if (a < DENSE && p < DENSE) {
+                bitmap = m_dense[a * DENSE + p];
+                if (bitmap == null) {
+                    bitmap = new Bitmap();
+                    m_dense[a * DENSE + p] = bitmap;
+                }
+            } else {
+                Long key = ((long)a << 32) | p;
+                bitmap = m_sparse.get(key);
+                if (bitmap == null) {
+                    bitmap = new Bitmap();
+                    m_sparse.put(key, bitmap);
+                }
+            }
+            bitmap.add((int)rowIndex);
+        }
+
+        /** Adds the bitmaps by cell to the map. */
+        private void collect(final Map<Long, List<Bitmap>> cells) {
+            for (int i = 0; i < m_dense.length; i++) {
+                if (m_dense[i] != null) {
+                    collect(cells, ((long)(i / DENSE) << 32) | (i % DENSE),
+                            m_dense[i]);
+                }
+            }
+            for (Map.Entry<Long, Bitmap> e : m_sparse.entrySet()) {
+                collect(cells, e.getKey(), e.getValue());
+            }
+        }
+
+        private void collect(final Map<Long, List<Bitmap>> cells,
+                final long cell, final Bitmap bitmap) {
+            List<Bitmap> bitmaps = cells.get(cell);
+            if (bitmaps == null) {
+                bitmaps = new ArrayList<Bitmap>();
+                cells.put(cell, bitmaps);
+            }
+            bitmaps.add(bitmap);
+        }
+    }
+
+    /**
+     * A bitmap of 32 bit values, the containers ordered by their key (the
+     * upper 16 bits).
+     */
+    static final class Bitmap {
+
+        private char[] m_keys = new char[1];
+
+        private Container[] m_containers = new Container[1];
+
+        private int m_size;
+
+        /** @param value the value to add, as unsigned int */
+        void add(final int value) {
+            container((char)(value >>> 16)).add((char)value);
+        }
+
+        /** @return the container of the key, created if not yet there */
+        private Container container(final char key) {
+            // rows mostly come in ascending order
+            if (m_size > 0 && m_keys[m_size - 1] == key) {
+                return m_containers[m_size - 1];
+            }
+            int i = Arrays.binarySearch(m_keys, 0, m_size, key);
+            if (i >= 0) {
+                return m_containers[i];
+            }
+            i = -i - 1;
+            if (m_size == m_keys.length) {
+                m_keys = Arrays.copyOf(m_keys, m_size * 2);
+                m_containers = Arrays.copyOf(m_containers, m_size * 2);
+            }
+            System.arraycopy(m_keys, i, m_keys, i + 1, m_size - i);
+            System.arraycopy(m_containers, i, m_containers, i + 1,
+                    m_size - i);
+            m_keys[i] = key;
+            m_containers[i] = new Container();
+            m_size++;
+            return m_containers[i];
+        }
+
+        /** Adds all values of the other bitmap. */
+        void or(final Bitmap other) {
+            for (int i = 0; i < other.m_size; i++) {
+                container(other.m_keys[i]).or(other.m_containers[i]);
+            }
+        }
+
+        /** @return the number of values */
+        long cardinality() {
+            long n = 0;
+            for (int i = 0; i < m_size; i++) {
+                n += m_containers[i].m_cardinality;
+            }
+            return n;
+        }
+
+        /**
+         * @param from an unsigned value
+         * @return the smallest value at least from, -1 if there is none
+         */
+        long next(final long from) {
+            if (from >= MAX_ROWS) {
+                return -1;
+            }
+            long start = Math.max(0, from);
+            char key = (char)(start >>> 16);
+            int i = Arrays.binarySearch(m_keys, 0, m_size, key);
+            if (i >= 0) {
+                int low = m_containers[i].next((int)(start & 0xFFFF));
+                if (low >= 0) {
+                    return ((long)key << 16) | low;
+                }
+                i++;
+            } else {
+                i = -i - 1;
+            }
+            for (; i < m_size; i++) {
+                int low = m_containers[i].next(0);
+                if (low >= 0) {
+                    return ((long)m_keys[i] << 16) | low;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @param bytes a bitmap in the portable Roaring format
+         * @return the bitmap
+         * @throws IllegalArgumentException if the bytes are no such bitmap
+         */
+        static Bitmap deserialize(final byte[] bytes) {
+            ByteBuffer in = ByteBuffer.wrap(bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                int cookie = in.getInt();
+                int size;
+                byte[] runFlags = null;
+                if ((cookie & 0xFFFF) == SERIAL_COOKIE) {
+                    size = (cookie >>> 16) + 1;
+                    runFlags = new byte[(size + 7) / 8];
+                    in.get(runFlags);
+                } else if (cookie == SERIAL_COOKIE_NO_RUNCONTAINER) {
+                    size = in.getInt();
+                } else {
+                    throw new IllegalArgumentException(
+                            "Not a Roaring bitmap");
+                }
+                char[] keys = new char[size];
+                int[] cardinalities = new int[size];
+                for (int i = 0; i < size; i++) {
+                    keys[i] = in.getChar();
+                    cardinalities[i] = in.getChar() + 1;
+                }
+                if (runFlags == null || size >= NO_OFFSET_THRESHOLD) {
+                    in.position(in.position() + 4 * size);
+                }
+                Bitmap bitmap = new Bitmap();
+                for (int i = 0; i < size; i++) {
+                    Container c = bitmap.container(keys[i]);
+                    if (runFlags != null
+                            && (runFlags[i / 8] & (1 << (i % 8))) != 0) {
+                        int runs = in.getChar();
+                        for (int r = 0; r < runs; r++) {
+                            int start = in.getChar();
+                            int end = start + in.getChar();
+                            for (int v = start; v <= end; v++) {
+                                c.add((char)v);
+                            }
+                        }
+                    } else if (cardinalities[i] > MAX_ARRAY) {
+                        c.m_bits = new long[1 << 10];
+                        in.asLongBuffer().get(c.m_bits);
+                        in.position(in.position() + (8 << 10));
+                        c.m_values = null;
+                        c.m_cardinality = cardinalities[i];
+                    } else {
+                        for (int v = 0; v < cardinalities[i]; v++) {
+                            c.add(in.getChar());
+                        }
+                    }
+                }
+                return bitmap;
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException(
+                        "Truncated Roaring bitmap", e);
+            }
+        }
+
+        /**
+         * @return the bitmap in the portable Roaring format, with run
+         *         containers where they are smaller
+         */
+        byte[] serialize() {
+            int[] runs = new int[m_size];
+            boolean hasRuns = false;
+            int bytes = 0;
+            for (int i = 0; i < m_size; i++) {
+                Container c = m_containers[i];
+                int runBytes = 2 + 4 * c.runs();
+                if (runBytes < c.serializedSize()) {
+                    runs[i] = runBytes;
+                    hasRuns = true;
+                    bytes += runBytes;
+                } else {
+                    runs[i] = -1;
+                    bytes += c.serializedSize();
+                }
+            }
+            boolean offsets = !hasRuns || m_size >= NO_OFFSET_THRESHOLD;
+            int header = hasRuns ? 4 + (m_size + 7) / 8 : 8;
+            header += 4 * m_size + (offsets ? 4 * m_size : 0);
+            ByteBuffer out = ByteBuffer.allocate(header + bytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (hasRuns) {
+                out.putInt(SERIAL_COOKIE | ((m_size - 1) << 16));
+                byte[] flags = new byte[(m_size + 7) / 8];
+                for (int i = 0; i < m_size; i++) {
+                    if (runs[i] >= 0) {
+                        flags[i / 8] |= 1 << (i % 8);
+                    }
+                }
+                out.put(flags);
+            } else {
+                out.putInt(SERIAL_COOKIE_NO_RUNCONTAINER);
+                out.putInt(m_size);
+            }
+            for (int i = 0; i < m_size; i++) {
+                out.putChar(m_keys[i]);
+                out.putChar((char)(m_containers[i].m_cardinality - 1));
+            }
+            if (offsets) {
+                int offset = header;
+                for (int i = 0; i < m_size; i++) {
+                    out.putInt(offset);
+                    offset += runs[i] >= 0 ? runs[i]
+                            : m_containers[i].serializedSize();
+                }
+            }
+            for (int i = 0; i < m_size; i++) {
+                if (runs[i] >= 0) {
+                    m_containers[i].writeRuns(out);
+                } else {
+                    m_containers[i].write(out);
+                }
+            }
+            return out.array();
+        }
+    }
+
+    /**
+     * The lower 16 bits of the values of one key, a sorted array up to
+     * {@link #MAX_ARRAY} values, a bitset of 2^16 bits above.
+     */
+    static final class Container {
+
+        private char[] m_values = new char[4];
+
+        private long[] m_bits;
+
+        private int m_cardinality;
+
+        void add(final char value) {
+            if (m_bits != null) {
+                long bit = 1L << value;
+                if ((m_bits[value >>> 6] & bit) == 0) {
+                    m_bits[value >>> 6] |= bit;
+                    m_cardinality++;
+                }
+                return;
+            }
+            int i = m_cardinality;
+            if (i > 0 && m_values[i - 1] >= value) {
+                i = Arrays.binarySearch(m_values, 0, m_cardinality, value);
+                if (i >= 0) {
+                    return;
+                }
+                i = -i - 1;
+            }
+            if (m_cardinality == MAX_ARRAY) {
+                toBits();
+                add(value);
+                return;
+            }
+            if (m_cardinality == m_values.length) {
+                m_values = Arrays.copyOf(m_values,
+                        Math.min(m_cardinality * 2, MAX_ARRAY));
+            }
+            System.arraycopy(m_values, i, m_values, i + 1, m_cardinality - i);
+            m_values[i] = value;
+            m_cardinality++;
+        }
+
+        private void toBits() {
+            m_bits = new long[1 << 10];
+            for (int i = 0; i < m_cardinality; i++) {
+                m_bits[m_values[i] >>> 6] |= 1L << m_values[i];
+            }
+            m_values = null;
+        }
+
+        void or(final Container other) {
+            if (other.m_bits == null) {
+                for (int i = 0; i < other.m_cardinality; i++) {
+                    add(other.m_values[i]);
+                }
+                return;
+            }
+            if (m_bits == null) {
+                toBits();
+            }
+            int n = 0;
+            for (int w = 0; w < m_bits.length; w++) {
+                m_bits[w] |= other.m_bits[w];
+                n += Long.bitCount(m_bits[w]);
+            }
+            m_cardinality = n;
+        }
+
+        /** @return the bytes of the array or bitset */
+        int serializedSize() {
+            return m_bits == null ? 2 * m_cardinality : 8 << 10;
+        }
+
+        /** @return the number of runs of consecutive values */
+        int runs() {
+            int runs = 0;
+            if (m_bits == null) {
+                for (int i = 0; i < m_cardinality; i++) {
+                    if (i == 0 || m_values[i] != m_values[i - 1] + 1) {
+                        runs++;
+                    }
+                }
+                return runs;
+            }
+            for (int w = 0; w < m_bits.length; w++) {
+                long word = m_bits[w];
+                // the bits starting a run, carrying the last bit before
+                long previous = w == 0 ? 0 : m_bits[w - 1] >>> 63;
+                runs += Long.bitCount(word & ~((word << 1) | previous));
+            }
+            return runs;
+        }
+
+        void write(final ByteBuffer out) {
+            if (m_bits == null) {
+                for (int i = 0; i < m_cardinality; i++) {
+                    out.putChar(m_values[i]);
+                }
+            } else {
+                for (long word : m_bits) {
+                    out.putLong(word);
+                }
+            }
+        }
+
+        /** Writes the number of runs and the start and length - 1 of each. */
+        void writeRuns(final ByteBuffer out) {
+            out.putChar((char)runs());
+            int start = -1;
+            int last = -2;
+            for (int v = next(0); v >= 0; v = next(v + 1)) {
+                if (v != last + 1) {
+                    if (start >= 0) {
+                        out.putChar((char)start).putChar((char)(last - start));
+                    }
+                    start = v;
+                }
+                last = v;
+            }
+            if (start >= 0) {
+                out.putChar((char)start).putChar((char)(last - start));
+            }
+        }
+
+        /** @return the smallest value at least from, -1 if there is none */
+        private int next(final int from) {
+            if (m_bits == null) {
+                int i = Arrays.binarySearch(m_values, 0, m_cardinality,
+                        (char)Math.min(from, 0xFFFF));
+                i = i >= 0 ? i : -i - 1;
+                return from > 0xFFFF || i == m_cardinality ? -1
+                        : m_values[i];
+            }
+            int w = from >>> 6;
+            if (w >= m_bits.length) {
+                return -1;
+            }
+            long word = m_bits[w] & (-1L << from);
+            while (word == 0) {
+                if (++w == m_bits.length) {
+                    return -1;
+                }
+                word = m_bits[w];
+            }
+            return (w << 6) + Long.numberOfTrailingZeros(word);
+        }
+    }
+
+    /**
+     * Writes the format, the number of rows written and per non-empty cell
+     * the actual and predicted class, its number of rows and their bitmap,
+     * ordered by actual and predicted class (the classes of the probability
+     * columns first, then the other labels by name).
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        Map<Long, List<Bitmap>> cells = new HashMap<Long, List<Bitmap>>();
+        boolean truncated = false;
+        long rows = 0;
+        for (Bitmaps bitmaps : m_bitmaps) {
+            bitmaps.collect(cells);
+            truncated |= bitmaps.m_truncated;
+            rows += bitmaps.m_rows;
+        }
+        // codes of labels depend on the order the threads saw them, the
+        // cells are written by their position
+        final String[] names = new String[m_classes.size()];
+        for (int c = 0; c < names.length; c++) {
+            names[c] = m_classes.getName(c);
+        }
+        final int[] rank = m_classes.sortedPositions();
+        List<Long> keys = new ArrayList<Long>(cells.keySet());
+        Collections.sort(keys, new Comparator<Long>() {
+            @Override
+            public int compare(final Long a, final Long b) {
+                return Long.compare(
+                        ((long)rank[(int)(a >>> 32)] << 32) | rank[(int)(long)a],
+                        ((long)rank[(int)(b >>> 32)] << 32) | rank[(int)(long)b]);
+            }
+        });
+        Base64.Encoder base64 = Base64.getEncoder();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("format").value("roaring");
+        json.name("rows").value(rows);
+        json.name("truncated").value(truncated);
+        json.name("cells").beginArray();
+        for (Long key : keys) {
+            List<Bitmap> parts = cells.get(key);
+            Bitmap bitmap = parts.get(0);
+            for (int i = 1; i < parts.size(); i++) {
+                bitmap.or(parts.get(i));
+            }
+            json.beginObject();
+            json.name("actual").value(names[(int)(key >>> 32)]);
+            json.name("predicted").value(names[(int)(long)key]);
+            json.name("rows").value(bitmap.cardinality());
+            json.name("bitmap").value(base64.encodeToString(
+                    bitmap.serialize()));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
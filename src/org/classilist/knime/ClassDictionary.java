@@ -0,0 +1,166 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The classes and labels referred to by code in sparse output and in encoded
+ * label columns. The classes of the probability columns get the codes of
+ * their position, labels without probability column are added with the
+ * next free code when they are first seen. The writers add labels in the
+ * order of the rows (encoding threads {@link #find(String) look up} codes
+ * and leave new labels to the writing thread), so the codes don't depend on
+ * the number of threads. Written next to the CSV file
+ * (<code>out.classes.csv</code>, columns <code>code</code> and
+ * <code>class</code>) and into the Arrow file.
+ *
+ * <p>Looking up codes and adding labels is thread-safe.
+ */
+final class ClassDictionary {
+
+    /** Replaces ".csv" in the file name of the dictionary. */
+    static final String SUFFIX = ".classes.csv";
+
+    private final Map<String, Integer> m_codes =
+            new ConcurrentHashMap<String, Integer>();
+
+    /** the names by code, guarded by this. */
+    private final List<String> m_names = new ArrayList<String>();
+
+    /** the number of classes of the probability columns. */
+    private final int m_classCount;
+
+    private ClassDictionary(final String[] classes) {
+        for (String name : classes) {
+            m_codes.putIfAbsent(name, m_names.size());
+            m_names.add(name);
+        }
+        m_classCount = classes.length;
+    }
+
+    /**
+     * @param plan the column plan of the table
+     * @return the dictionary holding the classes of the probability columns
+     */
+    static ClassDictionary of(final ClassilistColumnPlan plan) {
+        int[] columns = plan.getProbabilityColumns();
+        String[] classes = new String[columns.length];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = plan.getClassName(columns[i]);
+        }
+        return new ClassDictionary(classes);
+    }
+
+    /**
+     * @param label a class label
+     * @return the code of the label, added if it is new
+     */
+    int code(final String label) {
+        Integer code = m_codes.get(label);
+        if (code != null) {
+            return code;
+        }
+        synchronized (this) {
+            code = m_codes.get(label);
+            if (code == null) {
+                code = m_names.size();
+                // the name is there before the code is handed out
+                m_names.add(label);
+                m_codes.put(label, code);
+            }
+            return code;
+        }
+    }
+
+    /**
+     * @param label a class label
+     * @return the code of the label, -1 if it has none yet
+     */
+    int find(final String label) {
+        Integer code = m_codes.get(label);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     * Orders the codes independently of the order the labels were added in,
+     * for dictionaries filled by several threads that are only written when
+     * all rows are added.
+     *
+     * @return the position of every code if the labels without probability
+     *         column follow the classes sorted by name, indexed by code
+     */
+    synchronized int[] sortedPositions() {
+        final int size = m_names.size();
+        Integer[] labels = new Integer[size - m_classCount];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = m_classCount + i;
+        }
+        Arrays.sort(labels, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer a, final Integer b) {
+                return m_names.get(a).compareTo(m_names.get(b));
+            }
+        });
+        int[] positions = new int[size];
+        for (int code = 0; code < m_classCount; code++) {
+            positions[code] = code;
+        }
+        for (int i = 0; i < labels.length; i++) {
+            positions[labels[i]] = m_classCount + i;
+        }
+        return positions;
+    }
+
+    /** @return the number of classes and labels */
+    synchronized int size() {
+        return m_names.size();
+    }
+
+    /**
+     * @param code a code
+     * @return the name of the class or label
+     */
+    synchronized String getName(final int code) {
+        return m_names.get(code);
+    }
+
+    /**
+     * Writes the dictionary as table with the settings of the writer.
+     *
+     * @param out the writer of the dictionary file
+     * @throws IOException if writing fails
+     */
+    void write(final Classilist out) throws IOException {
+        String separator = out.getSettings().getColSeparator();
+        out.write(out.quoteString("code", false));
+        out.write(separator);
+        out.write(out.quoteString("class", false));
+        out.newLine();
+        for (int code = 0; code < size(); code++) {
+            out.write(out.quoteString(Integer.toString(code), true));
+            out.write(separator);
+            out.write(out.quoteString(getName(code), false));
+            out.newLine();
+        }
+    }
+
+    /**
+     * @return the classes of the probability columns as JSON array, indexed
+     *         by code
+     */
+    String toJson() {
+        StringBuilder json = new StringBuilder("[");
+        for (int code = 0; code < m_classCount; code++) {
+            if (code > 0) {
+                json.append(',');
+            }
+            json.append(JsonWriter.quote(getName(code)));
+        }
+        return json.append(']').toString();
+    }
+}
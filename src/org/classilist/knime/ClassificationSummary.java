@@ -0,0 +1,297 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+
+/**
+ * The confusion matrix of actual and predicted class and the precision,
+ * recall and F1 score per class, counted while the rows are formatted and
+ * written next to the CSV file (<code>summary.json</code>). Classes are
+ * indexed by the codes of an own {@link ClassDictionary}, so the classes of
+ * the probability columns come first, other labels are added when a thread
+ * first sees them and written sorted by name. Rows with missing actual or
+ * predicted class are only counted as such.
+ *
+ * <p>Every formatter counts into its own {@link Counter}, they are added up
+ * when the summary is written.
+ */
+final class ClassificationSummary implements RowStatistics {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "summary.json";
+
+    /** the most classes counted and written as dense matrix. */
+    static final int MAX_DENSE = 512;
+
+    private final ClassDictionary m_classes;
+
+    private final int m_actualColumn;
+
+    private final int m_predictedColumn;
+
+    /** the counters of all formatters, guarded by this. */
+    private final List<Counter> m_counters = new ArrayList<Counter>();
+
+    /**
+     * @param plan the column plan of the table
+     */
+    ClassificationSummary(final ClassilistColumnPlan plan) {
+        m_classes = ClassDictionary.of(plan);
+        int actual = -1;
+        for (int c = 0; c < plan.getNumColumns(); c++) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            }
+        }
+        m_actualColumn = actual;
+        m_predictedColumn = plan.getPredictedIndex();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Counter newAccumulator() {
+        Counter counter = new Counter();
+        m_counters.add(counter);
+        return counter;
+    }
+
+    /**
+     * Counts the rows of one thread. <code>m_counts[a * m_stride + p]</code>
+     * holds the rows of actual class a predicted as p for codes less than
+     * the stride, which doubles up to {@link #MAX_DENSE}; pairs with larger
+     * codes are counted in a map.
+     */
+    final class Counter implements Accumulator {
+
+        private int[] m_counts = new int[0];
+
+        private int m_stride;
+
+        /** the counts of pairs with a code of at least MAX_DENSE. */
+        private Map<Long, int[]> m_sparse;
+
+        private int m_missing;
+
+        private Counter() {
+            grow(m_classes.size());
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            DataCell actual = row.getCell(m_actualColumn);
+            DataCell predicted = row.getCell(m_predictedColumn);
+            if (actual.isMissing() || predicted.isMissing()) {
+                m_missing++;
+                return;
+            }
+            int a = m_classes.code(actual.toString());
+            int p = m_classes.code(predicted.toString());
+            int max = Math.max(a, p);
+            if (max >= m_stride) {
+                if (max >= MAX_DENSE) {
+                    addSparse(a, p);
+                    return;
+                }
+                grow(max + 1);
+            }
+            m_counts[a * m_stride + p]++;
+        }
+
+        private void addSparse(final int a, final int p) {
+            if (m_sparse == null) {
+                m_sparse = new HashMap<Long, int[]>();
+            }
+            Long key = cell(a, p);
+            int[] count = m_sparse.get(key);
+            if (count == null) {
+                m_sparse.put(key, new int[]{1});
+            } else {
+                count[0]++;
+            }
+        }
+
+        private void grow(final int size) {
+            int stride = Math.max(m_stride, 16);
+            while (stride < size) {
+                stride *= 2;
+            }
+            stride = Math.min(stride, MAX_DENSE);
+            int[] counts = new int[stride * stride];
+            for (int a = 0; a < m_stride; a++) {
+                System.arraycopy(m_counts, a * m_stride, counts, a * stride,
+                        m_stride);
+            }
+            m_counts = counts;
+            m_stride = stride;
+        }
+    }
+
+    /**
+     * Writes the summary of all counted rows as JSON: the classes indexed by
+     * code, the confusion matrix, the metrics per class and the accuracy.
+     * Undefined ratios are null. With at most {@link #MAX_DENSE} classes the
+     * matrix is written as <code>confusion</code> (rows actual, columns
+     * predicted), otherwise the non-zero cells are written as
+     * <code>confusionCells</code>, triples of actual, predicted and count.
+     *
+     * @param out the writer of the summary file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        final int size = m_classes.size();
+        // the codes of labels depend on the order the threads saw them, they
+        // are written by position
+        final int[] positions = m_classes.sortedPositions();
+        final String[] names = new String[size];
+        for (int c = 0; c < size; c++) {
+            names[positions[c]] = m_classes.getName(c);
+        }
+        // add up the counters
+        Map<Long, long[]> cells = new TreeMap<Long, long[]>();
+        long missing = 0;
+        for (Counter counter : m_counters) {
+            int stride = counter.m_stride;
+            int codes = Math.min(stride, size);
+            for (int a = 0; a < codes; a++) {
+                for (int p = 0; p < codes; p++) {
+                    add(cells, cell(positions, a, p),
+                        counter.m_counts[a * stride + p]);
+                }
+            }
+            if (counter.m_sparse != null) {
+                for (Map.Entry<Long, int[]> e : counter.m_sparse.entrySet()) {
+                    long key = e.getKey();
+                    add(cells, cell(positions, actualCode(key), predictedCode(key)),
+                        e.getValue()[0]);
+                }
+            }
+            missing += counter.m_missing;
+        }
+        long[] actual = new long[size];
+        long[] predicted = new long[size];
+        long[] correct = new long[size];
+        long rows = 0;
+        long hits = 0;
+        for (Map.Entry<Long, long[]> e : cells.entrySet()) {
+            int a = actualCode(e.getKey());
+            int p = predictedCode(e.getKey());
+            long n = e.getValue()[0];
+            actual[a] += n;
+            predicted[p] += n;
+            rows += n;
+            if (a == p) {
+                correct[a] = n;
+                hits += n;
+            }
+        }
+
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("rows").value(rows + missing);
+        json.name("missing").value(missing);
+        json.name("accuracy").value(ratio(hits, rows));
+        json.name("classes").beginArray();
+        for (int c = 0; c < size; c++) {
+            json.value(names[c]);
+        }
+        json.endArray();
+        if (size <= MAX_DENSE) {
+            long[] matrix = new long[size * size];
+            for (Map.Entry<Long, long[]> e : cells.entrySet()) {
+                matrix[actualCode(e.getKey()) * size
+                        + predictedCode(e.getKey())] = e.getValue()[0];
+            }
+            json.name("confusion").beginArray();
+            for (int a = 0; a < size; a++) {
+                json.beginArray();
+                for (int p = 0; p < size; p++) {
+                    json.value(matrix[a * size + p]);
+                }
+                json.endArray();
+            }
+            json.endArray();
+        } else {
+            json.name("confusionCells").beginArray();
+            for (Map.Entry<Long, long[]> e : cells.entrySet()) {
+                json.beginArray();
+                json.value(actualCode(e.getKey()));
+                json.value(predictedCode(e.getKey()));
+                json.value(e.getValue()[0]);
+                json.endArray();
+            }
+            json.endArray();
+        }
+        json.name("metrics").beginArray();
+        for (int c = 0; c < size; c++) {
+            json.beginObject();
+            json.name("class").value(names[c]);
+            json.name("support").value(actual[c]);
+            json.name("predicted").value(predicted[c]);
+            json.name("precision").value(ratio(correct[c], predicted[c]));
+            json.name("recall").value(ratio(correct[c], actual[c]));
+            json.name("f1").value(ratio(2 * correct[c], actual[c] + predicted[c]));
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void add(final Map<Long, long[]> cells, final Long cell,
+            final long n) {
+        if (n == 0) {
+            return;
+        }
+        long[] count = cells.get(cell);
+        if (count == null) {
+            cells.put(cell, new long[]{n});
+        } else {
+            count[0] += n;
+        }
+    }
+
+    /** @return the key of a cell, ordered by the positions of the codes */
+    private static Long cell(final int[] positions, final int actual,
+            final int predicted) {
+        return cell(positions[actual], positions[predicted]);
+    }
+
+    /** @return the key of a cell, ordered by actual and predicted code */
+    private static Long cell(final int actual, final int predicted) {
+        return ((long)actual << 32) | predicted;
+    }
+
+    private static int actualCode(final long cell) {
+        return (int)(cell >>> 32);
+    }
+
+    private static int predictedCode(final long cell) {
+        return (int)cell;
+    }
+
+    /** @return n / d, NaN (null in JSON) if d is 0 */
+    private static double ratio(final long n, final long d) {
+        return d == 0 ? Double.NaN : (double)n / d;
+    }
+}
@@ -3,13 +3,14 @@ package org.classilist.knime;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.knime.core.data.DataCell;
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTable;
 import org.knime.core.data.DataTableSpec;
-import org.knime.core.data.DataType;
-import org.knime.core.data.DoubleValue;
+import org.knime.core.data.container.filter.TableFilter;
+import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.streamable.DataTableRowInput;
@@ -18,12 +19,26 @@ import org.classilist.knime.FileWriterSettings;
 
 public class Classilist extends BufferedWriter {
 
+    /**
+     * Number of buffered characters after which rows are handed to the
+     * writer. Not smaller than the buffer of the {@link BufferedWriter}, so
+     * the rows are passed on without another copy.
+     */
+    private static final int FLUSH_THRESHOLD = 8192;
+
     private final FileWriterSettings m_settings;
 
     private String m_lastWarning;
 
     private String m_newLine;
 
+    /** codes of the class labels, created on demand if not set. */
+    private ClassDictionary m_dictionary;
+
+    /** gathered from the written rows. */
+    private final List<RowStatistics> m_statistics =
+            new ArrayList<RowStatistics>();
+
     public Classilist(final Writer writer) {
         this(writer, new FileWriterSettings());
         m_lastWarning = null;
@@ -96,7 +111,30 @@ public class Classilist extends BufferedWriter {
     public void write(final DataTable table, final ExecutionMonitor exec)
             throws IOException, CanceledExecutionException {
         try {
-            write(new DataTableRowInput(table), exec);
+            if (!(table instanceof BufferedDataTable)) {
+                write(new DataTableRowInput(table), exec);
+                return;
+            }
+            BufferedDataTable data = (BufferedDataTable)table;
+            ClassilistColumnPlan plan = createPlan(data.getDataTableSpec());
+            // ranges read ahead would add the codes of new labels out of
+            // row order
+            if (m_settings.getParallelism() > 1 && plan.getDictionary() == null
+                    && data.size() >= RangePartitionedWriter.MIN_PARTITIONED_ROWS) {
+                writePartitioned(plan, data, exec);
+            } else if (plan.isProjected()) {
+                // only decode the exported columns
+                RowInput input = new FilteredRowInput(data,
+                        TableFilter.materializeCols(plan.getExportedColumns()));
+                try {
+                    writeRows(plan, input, data.size(), false, exec);
+                } finally {
+                    input.close();
+                }
+            } else {
+                writeRows(plan, new DataTableRowInput(data), data.size(), false,
+                        exec);
+            }
         } catch (InterruptedException e) {
             CanceledExecutionException cce = new CanceledExecutionException();
             cce.initCause(e);
@@ -109,174 +147,182 @@ public class Classilist extends BufferedWriter {
     */
     public void write(final RowInput input, final ExecutionMonitor exec)
             throws IOException, CanceledExecutionException, InterruptedException {
+        long rowCnt = -1;
+        boolean streamed = true;
+        if (input instanceof DataTableRowInput) {
+            rowCnt = ((DataTableRowInput)input).getRowCount();
+            streamed = false;
+        }
+        writeRows(createPlan(input.getDataTableSpec()), input, rowCnt, streamed,
+                exec);
+    }
+
+    /**
+     * @param dictionary the codes the class labels are written with if they
+     *            are encoded, labels not contained are added
+     */
+    void setClassDictionary(final ClassDictionary dictionary) {
+        m_dictionary = dictionary;
+    }
+
+    /**
+     * @return the codes of the encoded class labels, null if they are
+     *         written as text
+     */
+    ClassDictionary getClassDictionary() {
+        return m_dictionary;
+    }
+
+    /**
+     * @param statistics gathered from the rows written from now on
+     */
+    void addStatistics(final RowStatistics statistics) {
+        m_statistics.add(statistics);
+    }
+
+    /**
+     * Works out the role, header and encoder of every column once and
+     * selects the exported columns.
+     */
+    private ClassilistColumnPlan createPlan(final DataTableSpec spec)
+            throws CanceledExecutionException {
+        ClassilistColumnPlan plan = ClassilistColumnPlan.create(spec).select(
+                m_settings.exportFeatures());
+        if (m_settings.encodeLabels()) {
+            if (m_dictionary == null) {
+                m_dictionary = ClassDictionary.of(plan);
+            }
+            plan = plan.withDictionary(m_dictionary);
+        }
+        for (RowStatistics statistics : m_statistics) {
+            plan = plan.withStatistics(statistics);
+        }
+        return plan;
+    }
+
+    /**
+     * Writes the table by reading row ranges in parallel, see
+     * {@link RangePartitionedWriter}.
+     */
+    private void writePartitioned(final ClassilistColumnPlan plan,
+            final BufferedDataTable table, final ExecutionMonitor exec)
+            throws IOException, CanceledExecutionException,
+            InterruptedException {
+
+        m_lastWarning = null; // reset any previous warning
+
+        if (m_settings.writeColumnHeader()) {
+            writeHeader(plan);
+        }
+        RangePartitionedWriter ranges = new RangePartitionedWriter(plan,
+                m_settings, m_newLine, m_settings.getParallelism());
+        ranges.write(table, this, exec);
+        if (m_lastWarning == null) {
+            m_lastWarning = ranges.getWarning();
+        }
+    }
+
+    /**
+     * Writes the header and all rows of the input.
+     *
+     * @param rowCnt the number of rows for the progress, -1 if unknown
+     * @param streamed true if the rows come from a streamed upstream node,
+     *            only then they are polled in a pipeline
+     */
+    private void writeRows(final ClassilistColumnPlan plan,
+            final RowInput input, final long rowCnt, final boolean streamed,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException, InterruptedException {
 
-        DataTableSpec inSpec = input.getDataTableSpec();
-        final int colCount = inSpec.getNumColumns();
-        boolean first; // if first entry in the row (skip separator then)
         m_lastWarning = null; // reset any previous warning
-        boolean correct = false; // if predicted column names are correctly set
-        boolean classCorr = false;
-        boolean fcorr = false , prcorr = false;
-        int predInd = colCount-1;
-        String classCol = "";
 
         // write column names
         if (m_settings.writeColumnHeader()) {
+            writeHeader(plan);
+        }
 
-            if (m_settings.writeRowID()) {
-                write(quoteString("row ID", false)); // RowHeader header
-                first = false;
-            } else {
-                first = true;
-            }
-            // check is predicted column name is correct or not else throw exception
-            for (int i = colCount-1; i >= 0; i--) {
-            	String clnm = inSpec.getColumnSpec(i).getName();
-            	int j = clnm.indexOf("Prediction (");
-            	int k = clnm.indexOf(")");
-            	if(j != -1 && k != -1 ) 
-            		{
-            		correct = true;
-            		predInd = i;
-            		//get the actual class column name
-            		for(j += 12;j<k;j++) classCol = classCol.concat(clnm.charAt(j)+"");
-            		
-            		break;
-            		}
-            	
+        // write each row of the data
+        ProgressSampler progress = new ProgressSampler(rowCnt);
+
+        if (streamed && m_settings.usePipelinedOutput()) {
+            PipelinedRowWriter pipeline = new PipelinedRowWriter(plan,
+                    m_settings, m_newLine, m_settings.getParallelism());
+            pipeline.write(input, this, exec, progress);
+            if (m_lastWarning == null) {
+                m_lastWarning = pipeline.getWarning();
             }
-            if (!correct) throw new CanceledExecutionException("Predicted column name not correct");
-//            if(!correct) System.out.println("Predicted column name not correct");
-            
-                      
-            // Change column names as per following scheme
-            // Actual Class column - A-<colName> : having column name same as classCol
-            // Predicted Class Column - Predicted : column at index predInd
-            // Class Probabilities Column - P-<className> : having format "P (<classCol>=className)"
-            // Features - F-<attributeName> : all others
-            for (int i = 0; i < colCount; i++) {
-                String cName = inSpec.getColumnSpec(i).getName();
-                String newC="";
-                // assign new column names to newC
-//                System.out.print(cName + "-");
-                
-                if(cName.equals(classCol)) //class column
-                {
-                	newC = "A-"+classCol;
-                	classCorr = true;
-                }
-                else if(i == predInd) //predicted column
-                	newC = "Predicted";
-                else if(cName.contains("P ("+classCol+"=")) //probability column
-                {
-                	prcorr = true;
-                	newC = "";
-                	int j = cName.indexOf('=');
-                	int k = cName.indexOf(')');
-                	for(j += 1; j<k ;j++)
-                		newC = newC.concat(cName.charAt(j)+"");
-                	
-                	newC = "P-"+newC;
-                }
-                else // feature column
-                {
-                	fcorr = true;
-                	newC = "F-"+cName;
-                }
-                		
-//                System.out.println(newC); 
-                // Done with column name changes
-                
-                if (!first) {
-                    write(m_settings.getColSeparator());
-                }
-                first = false;
-                write(quoteString(newC, false));
+            return;
+        }
+        if (m_settings.getParallelism() > 1) {
+            ParallelRowWriter parallel = new ParallelRowWriter(plan,
+                    m_settings, m_newLine, m_settings.getParallelism());
+            parallel.write(input, this, exec, progress);
+            if (m_lastWarning == null) {
+                m_lastWarning = parallel.getWarning();
             }
-            newLine();
-        } // end of if write column names
-        if(!classCorr) throw new CanceledExecutionException("Actual classified column does not exist");
-        if(!fcorr) throw new CanceledExecutionException("Features do not exist");
-        if(!prcorr) throw new CanceledExecutionException("Class Probabilities do not exist");
-
-        // write each row of the data
-        int i = 0;
-        long rowCnt = -1;
-        if (input instanceof DataTableRowInput) {
-            rowCnt = ((DataTableRowInput)input).getRowCount();
+            return;
         }
 
+        final RowFormatter formatter = new RowFormatter(plan, m_settings);
+        final RowBuffer buffer =
+                new RowBuffer(m_settings, m_newLine, 2 * FLUSH_THRESHOLD);
+        long i = 0;
         DataRow row;
         while ((row = input.poll()) != null) {
 
-            String rowKey = row.getKey().toString();
-            String msg;
+            // set the progress and check for cancellation now and then
+            progress.rowStarted(exec, i, row);
 
-            // set the progress
-            if (rowCnt <= 0) {
-                msg = "Writing row " + (i + 1) + " (\"" + rowKey + "\")";
-            } else {
-                msg =
-                        "Writing row " + (i + 1) + " (\"" + rowKey + "\") of "
-                                + rowCnt;
-                exec.setProgress(i / (double)rowCnt, msg);
+            formatter.format(row, i, buffer);
+            i++;
+            // hand over larger blocks, they bypass the BufferedWriter copy
+            if (buffer.length() >= FLUSH_THRESHOLD) {
+                buffer.writeTo(this);
             }
-            // Check if execution was canceled !
-            exec.checkCanceled();
+        }
+        buffer.writeTo(this);
+        if (m_lastWarning == null) {
+            m_lastWarning = buffer.getWarning();
+        }
+    }
 
-            // write the columns
+    /**
+     * Writes the renamed column names (A-, Predicted, P-, F-) of the plan, or
+     * the sparse probability columns in place of the P- columns.
+     */
+    private void writeHeader(final ClassilistColumnPlan plan)
+            throws IOException {
+        boolean first;
+        if (m_settings.writeRowID()) {
+            write(quoteString("row ID", false)); // RowHeader header
+            first = false;
+        } else {
             first = true;
-            // first, the row id
-            if (m_settings.writeRowID()) {
-                write(quoteString(row.getKey().getString(), false));
-                first = false;
+        }
+        // quantized probabilities carry their scale in the header
+        ProbabilityQuantizer quantizer = ProbabilityQuantizer.of(m_settings);
+        String suffix = quantizer == null ? "" : quantizer.headerSuffix();
+        boolean sparse = m_settings.sparseProbabilities();
+        for (int c : sparse ? TopKSelector.layout(plan) : plan.getExportedColumns()) {
+            String[] headers;
+            if (c == TopKSelector.SPARSE_COLUMNS) {
+                headers = TopKSelector.headers(
+                        new TopKSelector(plan, m_settings).getSlots(), suffix);
+            } else if (ProbabilityQuantizer.appliesTo(
+                    plan.getSpec().getColumnSpec(c).getType(), plan.getRole(c))) {
+                headers = new String[]{plan.getHeader(c) + suffix};
+            } else {
+                headers = new String[]{plan.getHeader(c)};
             }
-            // now all data cells
-            for (int c = 0; c < colCount; c++) {
-
-                DataCell colValue = row.getCell(c);
+            for (String header : headers) {
                 if (!first) {
                     write(m_settings.getColSeparator());
                 }
                 first = false;
-
-                if (colValue.isMissing()) {
-                    // never quote missing patterns.
-                    write(m_settings.getMissValuePattern());
-                } else {
-                    boolean isNumerical = false;
-                    DataType type = inSpec.getColumnSpec(c).getType();
-                    String strVal = colValue.toString();
-
-                    if (type.isCompatible(DoubleValue.class)) {
-                        isNumerical = true;
-                    }
-                    if (isNumerical
-                            && (m_settings.getDecimalSeparator() != '.')) {
-                        // use the new separator only if it is not already
-                        // contained in the value.
-                        if (strVal.indexOf(m_settings.getDecimalSeparator())
-                                < 0) {
-                            strVal =
-                                    replaceDecimalSeparator(strVal, m_settings
-                                            .getDecimalSeparator());
-                        } else {
-                            if (m_lastWarning == null) {
-                                m_lastWarning = "Specified decimal separator ('"
-                                    + m_settings.getDecimalSeparator() + "') is"
-                                    + " contained in the numerical value. "
-                                    + "Not replacing decimal separator (e.g. "
-                                    + "in row #" + i + " column #" + c + ").";
-                            }
-                        }
-                    }
-                    write(quoteString(strVal, isNumerical));
-
-                }
+                write(quoteString(header, false));
             }
-            newLine();
-            i++;
         }
+        newLine();
     }
 
     /**
@@ -284,7 +330,7 @@ public class Classilist extends BufferedWriter {
      * specified character.
      *
      */
-    private String replaceDecimalSeparator(final String val,
+    static String replaceDecimalSeparator(final String val,
             final char newSeparator) {
 
         int dotIdx = val.indexOf('.');
@@ -0,0 +1,299 @@
+package org.classilist.knime;
+
+import java.util.Arrays;
+
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.CanceledExecutionException;
+
+/**
+ * The role of every input column in the Classilist export, worked out once
+ * from the table spec.
+ * <ul>
+ * <li>Actual Class column - A-&lt;colName&gt; : having column name same as the
+ * class column named in the prediction column</li>
+ * <li>Predicted Class Column - Predicted : the last column named
+ * "Prediction (&lt;classCol&gt;)"</li>
+ * <li>Class Probabilities Column - P-&lt;className&gt; : having format
+ * "P (&lt;classCol&gt;=className)"</li>
+ * <li>Features - F-&lt;attributeName&gt; : all others</li>
+ * </ul>
+ */
+final class ClassilistColumnPlan {
+
+    /** Role of a column in the export. */
+    enum Role {
+        /** the actual (true) class. */
+        ACTUAL,
+        /** the predicted class. */
+        PREDICTED,
+        /** the probability of one class. */
+        PROBABILITY,
+        /** any other attribute. */
+        FEATURE
+    }
+
+    private final DataTableSpec m_spec;
+
+    private final Role[] m_roles;
+
+    private final String[] m_headers;
+
+    private final String m_classColumn;
+
+    private final int m_predictedIndex;
+
+    /** indices of the columns written, in output order. */
+    private final int[] m_exported;
+
+    /** codes of the class labels if they are encoded, otherwise null. */
+    private final ClassDictionary m_dictionary;
+
+    /** gathered from the written rows, not modified. */
+    private final RowStatistics[] m_statistics;
+
+    private ClassilistColumnPlan(final DataTableSpec spec, final Role[] roles,
+            final String[] headers, final String classColumn,
+            final int predictedIndex, final int[] exported,
+            final ClassDictionary dictionary,
+            final RowStatistics[] statistics) {
+        m_spec = spec;
+        m_roles = roles;
+        m_headers = headers;
+        m_classColumn = classColumn;
+        m_predictedIndex = predictedIndex;
+        m_exported = exported;
+        m_dictionary = dictionary;
+        m_statistics = statistics;
+    }
+
+    /**
+     * Detects the role of all columns of the spec.
+     *
+     * @param spec the spec of the table to write
+     * @return the plan
+     * @throws CanceledExecutionException if the spec has no prediction column,
+     *             no actual class column, no features or no class
+     *             probabilities
+     */
+    static ClassilistColumnPlan create(final DataTableSpec spec)
+            throws CanceledExecutionException {
+        final int colCount = spec.getNumColumns();
+        boolean correct = false; // if predicted column names are correctly set
+        boolean classCorr = false;
+        boolean fcorr = false, prcorr = false;
+        int predInd = colCount - 1;
+        String classCol = "";
+
+        // check is predicted column name is correct or not else throw exception
+        for (int i = colCount - 1; i >= 0; i--) {
+            String clnm = spec.getColumnSpec(i).getName();
+            int j = clnm.indexOf("Prediction (");
+            int k = clnm.indexOf(")");
+            if (j != -1 && k != -1) {
+                correct = true;
+                predInd = i;
+                //get the actual class column name
+                if (j + 12 < k) {
+                    classCol = clnm.substring(j + 12, k);
+                }
+                break;
+            }
+        }
+        if (!correct) {
+            throw new CanceledExecutionException(
+                    "Predicted column name not correct");
+        }
+
+        Role[] roles = new Role[colCount];
+        String[] headers = new String[colCount];
+        for (int i = 0; i < colCount; i++) {
+            String cName = spec.getColumnSpec(i).getName();
+            if (cName.equals(classCol)) { //class column
+                roles[i] = Role.ACTUAL;
+                headers[i] = "A-" + classCol;
+                classCorr = true;
+            } else if (i == predInd) { //predicted column
+                roles[i] = Role.PREDICTED;
+                headers[i] = "Predicted";
+            } else if (cName.contains("P (" + classCol + "=")) { //probability column
+                prcorr = true;
+                int j = cName.indexOf('=');
+                int k = cName.indexOf(')');
+                roles[i] = Role.PROBABILITY;
+                headers[i] = "P-" + (j + 1 < k ? cName.substring(j + 1, k) : "");
+            } else { // feature column
+                fcorr = true;
+                roles[i] = Role.FEATURE;
+                headers[i] = "F-" + cName;
+            }
+        }
+        if (!classCorr) {
+            throw new CanceledExecutionException(
+                    "Actual classified column does not exist");
+        }
+        if (!fcorr) {
+            throw new CanceledExecutionException("Features do not exist");
+        }
+        if (!prcorr) {
+            throw new CanceledExecutionException(
+                    "Class Probabilities do not exist");
+        }
+        int[] all = new int[colCount];
+        for (int i = 0; i < colCount; i++) {
+            all[i] = i;
+        }
+        return new ClassilistColumnPlan(spec, roles, headers, classCol,
+                predInd, all, null, new RowStatistics[0]);
+    }
+
+    /**
+     * Selects the columns to write. Actual, predicted and probability
+     * columns are always written.
+     *
+     * @param exportFeatures false to leave out the feature columns
+     * @return a plan writing the selected columns (this if all are)
+     */
+    ClassilistColumnPlan select(final boolean exportFeatures) {
+        if (exportFeatures) {
+            return this;
+        }
+        int count = 0;
+        int[] exported = new int[m_roles.length];
+        for (int c = 0; c < m_roles.length; c++) {
+            if (m_roles[c] != Role.FEATURE) {
+                exported[count++] = c;
+            }
+        }
+        return new ClassilistColumnPlan(m_spec, m_roles, m_headers,
+                m_classColumn, m_predictedIndex, Arrays.copyOf(exported, count),
+                m_dictionary, m_statistics);
+    }
+
+    /**
+     * @param dictionary the codes of the class labels
+     * @return a plan writing the actual and predicted class labels as codes
+     */
+    ClassilistColumnPlan withDictionary(final ClassDictionary dictionary) {
+        return new ClassilistColumnPlan(m_spec, m_roles, m_headers,
+                m_classColumn, m_predictedIndex, m_exported, dictionary,
+                m_statistics);
+    }
+
+    /**
+     * @param statistics gathered from the written rows
+     * @return a plan whose formatters also add their rows to the statistics
+     */
+    ClassilistColumnPlan withStatistics(final RowStatistics statistics) {
+        RowStatistics[] all = Arrays.copyOf(m_statistics,
+                m_statistics.length + 1);
+        all[m_statistics.length] = statistics;
+        return new ClassilistColumnPlan(m_spec, m_roles, m_headers,
+                m_classColumn, m_predictedIndex, m_exported, m_dictionary, all);
+    }
+
+    /**
+     * Creates one encoder per written column.
+     *
+     * @param columns the written columns, negative entries (placeholders)
+     *            get no encoder
+     * @param settings the writer settings
+     * @return a new array of encoders, indexed like the columns
+     */
+    CellEncoder[] createEncoders(final int[] columns,
+            final FileWriterSettings settings) {
+        CellEncoder[] encoders = new CellEncoder[columns.length];
+        for (int i = 0; i < encoders.length; i++) {
+            int c = columns[i];
+            if (c >= 0) {
+                encoders[i] = CellEncoder.create(m_spec.getColumnSpec(c)
+                        .getType(), m_roles[c], c, settings, m_dictionary);
+            }
+        }
+        return encoders;
+    }
+
+    /**
+     * @return the codes of the class labels, null if the labels are written
+     *         as text
+     */
+    ClassDictionary getDictionary() {
+        return m_dictionary;
+    }
+
+    /** @return the statistics gathered from the written rows, don't modify */
+    RowStatistics[] getStatistics() {
+        return m_statistics;
+    }
+
+    /** @return the spec the plan was created from */
+    DataTableSpec getSpec() {
+        return m_spec;
+    }
+
+    /** @return the number of columns of the table */
+    int getNumColumns() {
+        return m_roles.length;
+    }
+
+    /**
+     * @return the indices of the written columns in output order, don't
+     *         modify
+     */
+    int[] getExportedColumns() {
+        return m_exported;
+    }
+
+    /** @return true if some columns of the table are not written */
+    boolean isProjected() {
+        return m_exported.length < m_roles.length;
+    }
+
+    /**
+     * @param column the column index
+     * @return the role of the column
+     */
+    Role getRole(final int column) {
+        return m_roles[column];
+    }
+
+    /**
+     * @param column the column index
+     * @return the column name written to the header (A-, Predicted, P-, F-)
+     */
+    String getHeader(final int column) {
+        return m_headers[column];
+    }
+
+    /**
+     * @return the indices of the probability columns in table order, their
+     *         position is the code of the class in sparse output
+     */
+    int[] getProbabilityColumns() {
+        int count = 0;
+        int[] columns = new int[m_roles.length];
+        for (int c = 0; c < m_roles.length; c++) {
+            if (m_roles[c] == Role.PROBABILITY) {
+                columns[count++] = c;
+            }
+        }
+        return Arrays.copyOf(columns, count);
+    }
+
+    /**
+     * @param column the index of a probability column
+     * @return the name of its class (the header without "P-")
+     */
+    String getClassName(final int column) {
+        return m_headers[column].substring(2);
+    }
+
+    /** @return the name of the actual class column */
+    String getClassColumn() {
+        return m_classColumn;
+    }
+
+    /** @return the index of the predicted class column */
+    int getPredictedIndex() {
+        return m_predictedIndex;
+    }
+}
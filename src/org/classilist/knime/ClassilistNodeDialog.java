@@ -1,5 +1,8 @@
 package org.classilist.knime;
 
+import java.awt.FlowLayout;
+import java.awt.event.ItemEvent;
+import java.awt.event.ItemListener;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -9,7 +12,13 @@ import java.nio.file.Path;
 import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
+import javax.swing.JComponent;
+import javax.swing.JLabel;
 import javax.swing.JPanel;
+import javax.swing.JSpinner;
+import javax.swing.SpinnerNumberModel;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -25,6 +34,7 @@ import org.knime.core.util.FileUtil;
 import org.classilist.knime.ClassilistHistoryPanel;
 import org.classilist.knime.FileWriterNodeSettings;
 import org.classilist.knime.FileWriterNodeSettings.FileOverwritePolicy;
+import org.classilist.knime.FileWriterSettings.ProbabilityQuantization;
 
 /**
  * <code>NodeDialog</code> for the "Classilist" Node.
@@ -46,6 +56,102 @@ public class ClassilistNodeDialog extends NodeDialogPane {
 
     boolean m_isLocalDestination;
 
+    /** fraction digits of the probabilities, -1 for full precision. */
+    private final JSpinner m_probabilityPrecision;
+
+    /** encode UTF-8/ASCII directly into a channel. */
+    private final JCheckBox m_byteOutput;
+
+    /** size of the byte output buffer in KB. */
+    private final JSpinner m_outputBufferSize;
+
+    /** number of threads encoding rows. */
+    private final JSpinner m_parallelism;
+
+    /** poll, encode and write in separate threads. */
+    private final JCheckBox m_pipelinedOutput;
+
+    /** write the feature columns. */
+    private final JCheckBox m_exportFeatures;
+
+    /** how the probabilities are stored. */
+    private final JComboBox<ProbabilityQuantization> m_quantization;
+
+    /** error bound of 8 bit probabilities. */
+    private final JSpinner m_errorBound;
+
+    /** write the top K probabilities per row. */
+    private final JCheckBox m_sparseProbabilities;
+
+    /** probabilities per row in sparse output. */
+    private final JSpinner m_topK;
+
+    /** smallest probability written in sparse output. */
+    private final JSpinner m_threshold;
+
+    /** write the class labels as codes. */
+    private final JCheckBox m_encodeLabels;
+
+    /** write summary.json. */
+    private final JCheckBox m_writeSummary;
+
+    /** write distributions.json. */
+    private final JCheckBox m_writeDistributions;
+
+    /** write features.json. */
+    private final JCheckBox m_writeFeatureHistograms;
+
+    /** write cells.json. */
+    private final JCheckBox m_writeCellIndex;
+
+    /** write offsets.json. */
+    private final JCheckBox m_writeRowOffsets;
+
+    /** rows per offset. */
+    private final JSpinner m_rowOffsetInterval;
+
+    /** write rows.bin. */
+    private final JCheckBox m_writeRowStore;
+
+    /** port of the view's HTTP server. */
+    private final JSpinner m_serverPort;
+
+    /** publish the rows while writing. */
+    private final JCheckBox m_publishRows;
+
+    /** write curves.json. */
+    private final JCheckBox m_writeCurves;
+
+    /** memory for the scores of the curves in MB. */
+    private final JSpinner m_scoreMemory;
+
+    /** don't write unchanged output again. */
+    private final JCheckBox m_skipUnchanged;
+
+    /** also write out.arrow. */
+    private final JCheckBox m_arrowOutput;
+
+    /** write out.csv.gz. */
+    private final JCheckBox m_compressOutput;
+
+    /** deflate level of the compressed output. */
+    private final JSpinner m_compressionLevel;
+
+    /** uncompressed size of a gzip member in KB. */
+    private final JSpinner m_compressionBlockSize;
+
+    /** upload remote targets in ranged, retried chunks. */
+    private final JCheckBox m_resumableUpload;
+
+    /** bytes per upload request in KB. */
+    private final JSpinner m_uploadChunkSize;
+
+    /** retries of a failed upload chunk. */
+    private final JSpinner m_uploadRetries;
+
+    /** send remote uploads gzip encoded. */
+    private final JCheckBox m_compressUpload;
+
 
     /**
      * Creates a new CSV writer dialog.
@@ -79,16 +185,190 @@ public class ClassilistNodeDialog extends NodeDialogPane {
         filePanel.add(Box.createHorizontalGlue());
 
 
+        final JPanel optionsPanel = new JPanel();
+        optionsPanel.setLayout(new BoxLayout(optionsPanel, BoxLayout.Y_AXIS));
+        optionsPanel.setBorder(BorderFactory.createTitledBorder(BorderFactory
+                .createEtchedBorder(), "Export options:"));
+        m_exportFeatures = new JCheckBox("Export feature columns (F-)");
+        addOption(optionsPanel, "", m_exportFeatures);
+        m_arrowOutput = new JCheckBox("Also write Arrow IPC file (out.arrow)");
+        addOption(optionsPanel, "", m_arrowOutput);
+        m_probabilityPrecision = new JSpinner(new SpinnerNumberModel(-1, -1,
+                DoubleFormatter.MAX_DECIMALS, 1));
+        addOption(optionsPanel, "Probability digits (-1 = full precision):",
+                m_probabilityPrecision);
+        m_quantization = new JComboBox<ProbabilityQuantization>(
+                ProbabilityQuantization.values());
+        m_errorBound = new JSpinner(new SpinnerNumberModel(
+                ProbabilityQuantizer.DEFAULT_ERROR_BOUND,
+                ProbabilityQuantizer.MIN_FIXED8_ERROR, 0.5, 0.001));
+        m_quantization.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(final ItemEvent e) {
+                updateQuantizationEnabled();
+            }
+        });
+        addOption(optionsPanel, "Probability storage:", m_quantization);
+        addOption(optionsPanel, "8 bit error bound:", m_errorBound);
+        m_sparseProbabilities = new JCheckBox(
+                "Write only the top K probabilities per row (sparse)");
+        m_topK = new JSpinner(new SpinnerNumberModel(TopKSelector.DEFAULT_K,
+                1, Integer.MAX_VALUE, 1));
+        m_threshold = new JSpinner(new SpinnerNumberModel(0.0, 0.0, 1.0, 0.01));
+        m_sparseProbabilities.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                m_topK.setEnabled(m_sparseProbabilities.isSelected());
+                m_threshold.setEnabled(m_sparseProbabilities.isSelected());
+            }
+        });
+        addOption(optionsPanel, "", m_sparseProbabilities);
+        addOption(optionsPanel, "Top K:", m_topK);
+        addOption(optionsPanel, "Probability threshold:", m_threshold);
+        m_encodeLabels = new JCheckBox(
+                "Write class labels as codes (out.classes.csv)");
+        addOption(optionsPanel, "", m_encodeLabels);
+        m_writeSummary = new JCheckBox(
+                "Write confusion matrix and class metrics (summary.json)");
+        addOption(optionsPanel, "", m_writeSummary);
+        m_writeDistributions = new JCheckBox(
+                "Write probability distributions and calibration (distributions.json)");
+        addOption(optionsPanel, "", m_writeDistributions);
+        m_writeFeatureHistograms = new JCheckBox(
+                "Write feature histograms per class (features.json)");
+        addOption(optionsPanel, "", m_writeFeatureHistograms);
+        m_writeCellIndex = new JCheckBox(
+                "Write rows of confusion matrix cells (cells.json)");
+        addOption(optionsPanel, "", m_writeCellIndex);
+        m_writeRowOffsets = new JCheckBox(
+                "Write byte offsets of the rows (offsets.json)");
+        m_rowOffsetInterval = new JSpinner(new SpinnerNumberModel(
+                RowOffsets.DEFAULT_INTERVAL, 1, Integer.MAX_VALUE, 256));
+        m_writeRowStore = new JCheckBox(
+                "Write row store for queries (rows.bin)");
+        m_writeRowOffsets.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                m_rowOffsetInterval.setEnabled(m_writeRowOffsets.isSelected());
+                m_writeRowStore.setEnabled(m_writeRowOffsets.isSelected());
+            }
+        });
+        addOption(optionsPanel, "", m_writeRowOffsets);
+        addOption(optionsPanel, "Rows per offset:", m_rowOffsetInterval);
+        addOption(optionsPanel, "", m_writeRowStore);
+        m_serverPort = new JSpinner(new SpinnerNumberModel(0, 0, 65535, 1));
+        addOption(optionsPanel, "HTTP server port (0 = any):", m_serverPort);
+        m_publishRows = new JCheckBox(
+                "Stream rows to open Classilist views while writing");
+        addOption(optionsPanel, "", m_publishRows);
+        m_writeCurves = new JCheckBox("Write ROC and PR curves (curves.json)");
+        m_scoreMemory = new JSpinner(new SpinnerNumberModel(
+                ScoreCurves.DEFAULT_MEMORY_MB, 1, 1024 * 1024, 64));
+        m_writeCurves.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                m_scoreMemory.setEnabled(m_writeCurves.isSelected());
+            }
+        });
+        addOption(optionsPanel, "", m_writeCurves);
+        addOption(optionsPanel, "Score memory (MB):", m_scoreMemory);
+        m_skipUnchanged = new JCheckBox("Skip writing if table, settings and "
+                + "files are unchanged (reads the table twice)");
+        addOption(optionsPanel, "", m_skipUnchanged);
+        m_byteOutput = new JCheckBox("Encode UTF-8/ASCII output directly");
+        m_outputBufferSize = new JSpinner(new SpinnerNumberModel(
+                Utf8ChannelWriter.DEFAULT_BUFFER_SIZE / 1024,
+                Utf8ChannelWriter.MIN_BUFFER_SIZE / 1024, 1024 * 1024, 256));
+        m_byteOutput.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                m_outputBufferSize.setEnabled(m_byteOutput.isSelected());
+            }
+        });
+        addOption(optionsPanel, "", m_byteOutput);
+        addOption(optionsPanel, "Output buffer (KB):", m_outputBufferSize);
+        m_parallelism = new JSpinner(new SpinnerNumberModel(1, 1, 256, 1));
+        addOption(optionsPanel, "Encoding threads:", m_parallelism);
+        m_pipelinedOutput = new JCheckBox(
+                "Pipelined streaming (poll, encode and write concurrently)");
+        addOption(optionsPanel, "", m_pipelinedOutput);
+        m_compressOutput = new JCheckBox("Compress output (out.csv.gz)");
+        m_compressionLevel = new JSpinner(new SpinnerNumberModel(
+                ParallelGzipOutputStream.DEFAULT_LEVEL, 0, 9, 1));
+        m_compressionBlockSize = new JSpinner(new SpinnerNumberModel(
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE / 1024,
+                ParallelGzipOutputStream.MIN_BLOCK_SIZE / 1024, 64 * 1024, 128));
+        m_compressUpload = new JCheckBox(
+                "Compress remote uploads (Content-Encoding: gzip)");
+        ChangeListener compressionListener = new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                updateCompressionEnabled();
+            }
+        };
+        m_compressOutput.addChangeListener(compressionListener);
+        m_compressUpload.addChangeListener(compressionListener);
+        addOption(optionsPanel, "", m_compressOutput);
+        addOption(optionsPanel, "Compression level:", m_compressionLevel);
+        addOption(optionsPanel, "Compression block (KB):", m_compressionBlockSize);
+        m_resumableUpload = new JCheckBox(
+                "Resumable upload (remote targets, in ranged chunks)");
+        m_uploadChunkSize = new JSpinner(new SpinnerNumberModel(
+                ResumableUploadOutputStream.DEFAULT_CHUNK_SIZE / 1024,
+                ResumableUploadOutputStream.MIN_CHUNK_SIZE / 1024,
+                1024 * 1024, 1024));
+        m_uploadRetries = new JSpinner(new SpinnerNumberModel(
+                ResumableUploadOutputStream.DEFAULT_RETRIES, 0, 100, 1));
+        m_resumableUpload.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent e) {
+                m_uploadChunkSize.setEnabled(m_resumableUpload.isSelected());
+                m_uploadRetries.setEnabled(m_resumableUpload.isSelected());
+            }
+        });
+        addOption(optionsPanel, "", m_compressUpload);
+        addOption(optionsPanel, "", m_resumableUpload);
+        addOption(optionsPanel, "Upload chunk (KB):", m_uploadChunkSize);
+        addOption(optionsPanel, "Upload retries:", m_uploadRetries);
+
         final JPanel panel = new JPanel();
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
         panel.add(filePanel);
         panel.add(Box.createVerticalStrut(5));
+        panel.add(optionsPanel);
         panel.add(Box.createVerticalGlue());
 
         addTab("Settings", panel);
 
     }
 
+    /** The digits and the error bound depend on the quantization. */
+    private void updateQuantizationEnabled() {
+        Object quantization = m_quantization.getSelectedItem();
+        m_probabilityPrecision.setEnabled(
+                quantization == ProbabilityQuantization.NONE);
+        m_errorBound.setEnabled(quantization == ProbabilityQuantization.FIXED8);
+    }
+
+    /** The compression options apply to compressed files and uploads. */
+    private void updateCompressionEnabled() {
+        boolean enabled = m_compressOutput.isSelected()
+                || m_compressUpload.isSelected();
+        m_compressionLevel.setEnabled(enabled);
+        m_compressionBlockSize.setEnabled(enabled);
+    }
+
+    /**
+     * Adds a labeled component as a new line to the panel.
+     */
+    private static void addOption(final JPanel panel, final String label,
+            final JComponent comp) {
+        final JPanel line = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        line.add(new JLabel(label));
+        line.add(comp);
+        panel.add(line);
+    }
+
     @Override
     protected void loadSettingsFrom(final NodeSettingsRO settings,
             final DataTableSpec[] specs) throws NotConfigurableException {
@@ -103,6 +383,53 @@ public class ClassilistNodeDialog extends NodeDialogPane {
 
         m_textBox.updateHistory();
         m_textBox.setSelectedFile(newValues.getFileName());
+        m_exportFeatures.setSelected(newValues.exportFeatures());
+        m_arrowOutput.setSelected(newValues.arrowOutput());
+        m_probabilityPrecision.setValue(newValues.getProbabilityPrecision());
+        m_quantization.setSelectedItem(newValues.getProbabilityQuantization());
+        m_errorBound.setValue(Math.max(ProbabilityQuantizer.MIN_FIXED8_ERROR,
+                newValues.getProbabilityErrorBound()));
+        updateQuantizationEnabled();
+        m_sparseProbabilities.setSelected(newValues.sparseProbabilities());
+        m_topK.setValue(Math.max(1, newValues.getProbabilityTopK()));
+        m_threshold.setValue(Math.max(0, Math.min(1,
+                newValues.getProbabilityThreshold())));
+        m_topK.setEnabled(newValues.sparseProbabilities());
+        m_threshold.setEnabled(newValues.sparseProbabilities());
+        m_encodeLabels.setSelected(newValues.encodeLabels());
+        m_writeSummary.setSelected(newValues.writeSummary());
+        m_writeDistributions.setSelected(newValues.writeDistributions());
+        m_writeFeatureHistograms.setSelected(
+                newValues.writeFeatureHistograms());
+        m_writeCellIndex.setSelected(newValues.writeCellIndex());
+        m_writeRowOffsets.setSelected(newValues.writeRowOffsets());
+        m_rowOffsetInterval.setValue(
+                Math.max(1, newValues.getRowOffsetInterval()));
+        m_rowOffsetInterval.setEnabled(newValues.writeRowOffsets());
+        m_writeRowStore.setSelected(newValues.writeRowStore());
+        m_writeRowStore.setEnabled(newValues.writeRowOffsets());
+        m_serverPort.setValue(Math.max(0, Math.min(65535,
+                newValues.getServerPort())));
+        m_publishRows.setSelected(newValues.publishRows());
+        m_writeCurves.setSelected(newValues.writeCurves());
+        m_scoreMemory.setValue(Math.max(1, newValues.getScoreMemory()));
+        m_scoreMemory.setEnabled(newValues.writeCurves());
+        m_skipUnchanged.setSelected(newValues.skipUnchanged());
+        m_byteOutput.setSelected(newValues.useByteOutput());
+        m_outputBufferSize.setValue(newValues.getOutputBufferSize() / 1024);
+        m_outputBufferSize.setEnabled(newValues.useByteOutput());
+        m_parallelism.setValue(Math.max(1, newValues.getParallelism()));
+        m_pipelinedOutput.setSelected(newValues.usePipelinedOutput());
+        m_compressOutput.setSelected(newValues.compressOutput());
+        m_compressionLevel.setValue(newValues.getCompressionLevel());
+        m_compressionBlockSize.setValue(newValues.getCompressionBlockSize() / 1024);
+        m_compressUpload.setSelected(newValues.compressUpload());
+        updateCompressionEnabled();
+        m_resumableUpload.setSelected(newValues.useResumableUpload());
+        m_uploadChunkSize.setValue(newValues.getUploadChunkSize() / 1024);
+        m_uploadRetries.setValue(newValues.getUploadRetries());
+        m_uploadChunkSize.setEnabled(newValues.useResumableUpload());
+        m_uploadRetries.setEnabled(newValues.useResumableUpload());
     }
 
     @Override
@@ -115,6 +442,43 @@ public class ClassilistNodeDialog extends NodeDialogPane {
 
         FileOverwritePolicy overwritePolicy = FileOverwritePolicy.Overwrite;
         values.setFileOverwritePolicy(overwritePolicy);
+        values.setExportFeatures(m_exportFeatures.isSelected());
+        values.setArrowOutput(m_arrowOutput.isSelected());
+        values.setProbabilityPrecision(
+                (Integer)m_probabilityPrecision.getValue());
+        values.setProbabilityQuantization(
+                (ProbabilityQuantization)m_quantization.getSelectedItem());
+        values.setProbabilityErrorBound((Double)m_errorBound.getValue());
+        values.setSparseProbabilities(m_sparseProbabilities.isSelected());
+        values.setProbabilityTopK((Integer)m_topK.getValue());
+        values.setProbabilityThreshold((Double)m_threshold.getValue());
+        values.setEncodeLabels(m_encodeLabels.isSelected());
+        values.setWriteSummary(m_writeSummary.isSelected());
+        values.setWriteDistributions(m_writeDistributions.isSelected());
+        values.setWriteFeatureHistograms(
+                m_writeFeatureHistograms.isSelected());
+        values.setWriteCellIndex(m_writeCellIndex.isSelected());
+        values.setWriteRowOffsets(m_writeRowOffsets.isSelected());
+        values.setRowOffsetInterval((Integer)m_rowOffsetInterval.getValue());
+        values.setWriteRowStore(m_writeRowStore.isSelected());
+        values.setServerPort((Integer)m_serverPort.getValue());
+        values.setPublishRows(m_publishRows.isSelected());
+        values.setWriteCurves(m_writeCurves.isSelected());
+        values.setScoreMemory((Integer)m_scoreMemory.getValue());
+        values.setSkipUnchanged(m_skipUnchanged.isSelected());
+        values.setByteOutput(m_byteOutput.isSelected());
+        values.setOutputBufferSize(
+                (Integer)m_outputBufferSize.getValue() * 1024);
+        values.setParallelism((Integer)m_parallelism.getValue());
+        values.setPipelinedOutput(m_pipelinedOutput.isSelected());
+        values.setCompressOutput(m_compressOutput.isSelected());
+        values.setCompressionLevel((Integer)m_compressionLevel.getValue());
+        values.setCompressionBlockSize(
+                (Integer)m_compressionBlockSize.getValue() * 1024);
+        values.setCompressUpload(m_compressUpload.isSelected());
+        values.setResumableUpload(m_resumableUpload.isSelected());
+        values.setUploadChunkSize((Integer)m_uploadChunkSize.getValue() * 1024);
+        values.setUploadRetries((Integer)m_uploadRetries.getValue());
         values.saveSettingsTo(settings);
     }
 }
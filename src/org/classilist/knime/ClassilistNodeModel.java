@@ -1,18 +1,29 @@
 package org.classilist.knime;
 
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.net.MalformedURLException;
+import java.net.URISyntaxException;
 import java.net.URL;
-import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
 
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.data.DataType;
@@ -36,6 +47,7 @@ import org.classilist.knime.ClassilistNodeModel;
 import org.classilist.knime.FileWriterNodeSettings;
 import org.classilist.knime.FileWriterSettings;
 import org.classilist.knime.FileWriterNodeSettings.FileOverwritePolicy;
+import org.classilist.knime.FileWriterSettings.ProbabilityQuantization;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
 import org.knime.core.node.InvalidSettingsException;
@@ -61,11 +73,20 @@ public class ClassilistNodeModel extends NodeModel {
 
     private FileWriterNodeSettings m_settings;
 
+    /** the fingerprint of the last written files, null if there is none. */
+    private TableFingerprint.Snapshot m_written;
+
     /**
      * Identifier for StringHistory.
      */
     public static final String FILE_HISTORY_ID = "csvwrite";
 
+    /** Appended to the file name of compressed output. */
+    static final String GZIP_SUFFIX = ".gz";
+
+    /** Replaces ".csv" in the file name of the Arrow output. */
+    static final String ARROW_SUFFIX = ".arrow";
+
     /**
      * Constructor, sets port count.
      */
@@ -122,6 +143,86 @@ public class ClassilistNodeModel extends NodeModel {
             }
 
         }
+
+        if (fws.getOutputBufferSize() < Utf8ChannelWriter.MIN_BUFFER_SIZE) {
+            throw new InvalidSettingsException("The output buffer must have at least "
+                    + Utf8ChannelWriter.MIN_BUFFER_SIZE + " bytes.");
+        }
+
+        if (fws.getProbabilityPrecision() < -1
+                || fws.getProbabilityPrecision() > DoubleFormatter.MAX_DECIMALS) {
+            throw new InvalidSettingsException("The number of probability "
+                    + "digits must be between -1 (full precision) and "
+                    + DoubleFormatter.MAX_DECIMALS + ".");
+        }
+
+        if (fws.getParallelism() < 1) {
+            throw new InvalidSettingsException(
+                    "The number of encoding threads must be at least 1.");
+        }
+
+        if (fws.getCompressionLevel() < Deflater.NO_COMPRESSION
+                || fws.getCompressionLevel() > Deflater.BEST_COMPRESSION) {
+            throw new InvalidSettingsException(
+                    "The compression level must be between 0 and 9.");
+        }
+
+        if (fws.getCompressionBlockSize() < ParallelGzipOutputStream.MIN_BLOCK_SIZE) {
+            throw new InvalidSettingsException("The compression block size must be at least "
+                    + ParallelGzipOutputStream.MIN_BLOCK_SIZE + " bytes.");
+        }
+
+        if (fws.getUploadChunkSize() < ResumableUploadOutputStream.MIN_CHUNK_SIZE) {
+            throw new InvalidSettingsException("The upload chunk size must be at least "
+                    + ResumableUploadOutputStream.MIN_CHUNK_SIZE + " bytes.");
+        }
+
+        if (fws.getProbabilityQuantization() == ProbabilityQuantization.FIXED8
+                && !(fws.getProbabilityErrorBound() >= ProbabilityQuantizer.MIN_FIXED8_ERROR)) {
+            throw new InvalidSettingsException("The error bound of 8 bit probabilities must be at least "
+                    + ProbabilityQuantizer.MIN_FIXED8_ERROR + ".");
+        }
+
+        if (fws.getProbabilityTopK() < 1) {
+            throw new InvalidSettingsException(
+                    "The number of probabilities per row must be at least 1.");
+        }
+
+        if (!(fws.getProbabilityThreshold() >= 0 && fws.getProbabilityThreshold() <= 1)) {
+            throw new InvalidSettingsException(
+                    "The probability threshold must be between 0 and 1.");
+        }
+
+        if (fws.getUploadRetries() < 0) {
+            throw new InvalidSettingsException(
+                    "The number of upload retries must not be negative.");
+        }
+
+        if (fws.getRowOffsetInterval() < 1) {
+            throw new InvalidSettingsException(
+                    "The number of rows per offset must be at least 1.");
+        }
+
+        if (fws.getServerPort() < 0 || fws.getServerPort() > 65535) {
+            throw new InvalidSettingsException(
+                    "The port of the HTTP server must be between 0 and 65535.");
+        }
+
+        if (fws.getScoreMemory() < 1) {
+            throw new InvalidSettingsException(
+                    "The memory for the curve scores must be at least 1 MB.");
+        }
+
+        if (fws.arrowOutput() && fws.getFileOverwritePolicy() == FileOverwritePolicy.Append) {
+            throw new InvalidSettingsException("The Arrow file cannot be appended to, "
+                    + "choose to overwrite the files or don't write the Arrow file.");
+        }
+
+        if ((fws.sparseProbabilities() || fws.encodeLabels())
+                && fws.getFileOverwritePolicy() == FileOverwritePolicy.Append) {
+            throw new InvalidSettingsException("The class dictionary cannot be appended to, "
+                    + "choose to overwrite the files or write probabilities and labels as text.");
+        }
     }
 
     /**
@@ -170,16 +271,77 @@ public class ClassilistNodeModel extends NodeModel {
     private BufferedDataTable[] doIt(final BufferedDataTable data, final RowInput input, final ExecutionContext exec)
             throws Exception {
 
-        CheckUtils.checkDestinationFile(m_settings.getFileName(),
+        // make a copy of the settings with the modified value
+        FileWriterSettings writerSettings = new FileWriterSettings(m_settings);
+        boolean compress = writerSettings.compressOutput();
+        String fileName = m_settings.getFileName();
+        if (compress) {
+            fileName += GZIP_SUFFIX;
+        }
+
+        CheckUtils.checkDestinationFile(fileName,
             m_settings.getFileOverwritePolicy() != FileOverwritePolicy.Abort);
+        if (writerSettings.arrowOutput()) {
+            CheckUtils.checkDestinationFile(arrowFileName(m_settings.getFileName()),
+                m_settings.getFileOverwritePolicy() != FileOverwritePolicy.Abort);
+        }
 
-        URL url = FileUtil.toURL(m_settings.getFileName());
+        URL url = FileUtil.toURL(fileName);
         Path localPath = FileUtil.resolveToPath(url);
 
+        Charset charSet = Charset.defaultCharset();
+        String encoding = writerSettings.getCharacterEncoding();
+        if (encoding != null) {
+            charSet = Charset.forName(encoding);
+        }
+        // encode UTF-8 and ASCII ourselves, others go through the JDK encoder
+        boolean byteOutput = writerSettings.useByteOutput()
+                && Utf8ChannelWriter.supports(charSet);
+
+        for (URL sidecar : sidecarFiles(writerSettings, localPath != null, charSet)) {
+            CheckUtils.checkDestinationFile(sidecar.toString(),
+                m_settings.getFileOverwritePolicy() != FileOverwritePolicy.Abort);
+        }
+
+        // if enabled, nothing is written if the local files still hold the
+        // same rows written with the same settings; that costs hashing the
+        // rows while they are written and, if no file changed, reading the
+        // table once more before deciding; streamed rows cannot be read
+        // twice, so they are only fingerprinted for the next execution
+        DataTableSpec spec = input == null ? data.getDataTableSpec() : input.getDataTableSpec();
+        // the roles of the columns, worked out once for all outputs
+        ClassilistColumnPlan plan = ClassilistColumnPlan.create(spec);
+        ClassilistColumnPlan exported = plan.select(writerSettings.exportFeatures());
+        long settingsHash = 0;
+        List<Path> outputFiles = null;
+        TableFingerprint fingerprint = null;
+        if (writerSettings.skipUnchanged() && localPath != null
+                && m_settings.getFileOverwritePolicy() == FileOverwritePolicy.Overwrite) {
+            settingsHash = TableFingerprint.settingsHash(m_settings, spec);
+            outputFiles = outputFiles(writerSettings, localPath, charSet);
+            if (input == null && m_written != null
+                    && m_written.matches(outputFiles, settingsHash, data.size())) {
+                exec.setMessage("Comparing with the written files");
+                TableFingerprint unchanged = new TableFingerprint(exported);
+                unchanged.addAll(data, exec);
+                if (m_written.matches(unchanged)) {
+                    LOGGER.info("File '" + fileName + "' not written again, "
+                            + "the table, the settings and the written files are unchanged.");
+                    return new BufferedDataTable[0];
+                }
+            }
+            fingerprint = new TableFingerprint(exported);
+        }
+        m_written = null;
+
         boolean writeColHeader = m_settings.writeColumnHeader();
-        OutputStream tempOut;
-        URLConnection urlConnection = null;
+        OutputStream tempOut = null;
+        WritableByteChannel channel = null;
         boolean appendToFile;
+        // the length of the file appended to, it is cut back to it on failure
+        long appendedFrom = -1;
+        // set if the statistics files are left out as the file is appended to
+        String appendWarning = null;
         if (localPath != null) {
             // figure out if the writer is actually supposed to write col headers
             if (Files.exists(localPath)) {
@@ -189,45 +351,179 @@ public class ClassilistNodeModel extends NodeModel {
                 appendToFile = false;
             }
             if (appendToFile) {
+                appendedFrom = Files.size(localPath);
+            }
+            if (appendToFile && !statisticsFiles(writerSettings, true, charSet).isEmpty()) {
+                // they would only count the appended rows
+                appendWarning = "The statistics files are not written when appending to a file.";
+                writerSettings.setWriteSummary(false);
+                writerSettings.setWriteDistributions(false);
+                writerSettings.setWriteFeatureHistograms(false);
+                writerSettings.setWriteCellIndex(false);
+                writerSettings.setWriteRowOffsets(false);
+                // the records would be truncated to the appended rows
+                writerSettings.setWriteRowStore(false);
+                writerSettings.setWriteCurves(false);
+            }
+            if (byteOutput && !compress) {
+                if (appendToFile) {
+                    channel = FileChannel.open(localPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                } else {
+                    channel = FileChannel.open(localPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                }
+            } else if (appendToFile) {
                 tempOut = Files.newOutputStream(localPath, StandardOpenOption.APPEND);
             } else {
                 tempOut = Files.newOutputStream(localPath);
             }
         } else {
-            urlConnection = FileUtil.openOutputConnection(url, "PUT");
-            tempOut = urlConnection.getOutputStream();
+            tempOut = RemoteOutput.open(url, writerSettings);
+            if (byteOutput && !compress) {
+                channel = Channels.newChannel(tempOut);
+            }
             appendToFile = false;
         }
+        if (compress) {
+            // appending a member to a gzip file gives a valid gzip file
+            ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(
+                    tempOut, writerSettings.getCompressionLevel(),
+                    writerSettings.getCompressionBlockSize(),
+                    writerSettings.getParallelism());
+            tempOut = gzip;
+            channel = gzip;
+        }
 
-        // make a copy of the settings with the modified value
-        FileWriterSettings writerSettings = new FileWriterSettings(m_settings);
         writerSettings.setWriteColumnHeader(writeColHeader);
 
-        tempOut = new BufferedOutputStream(tempOut);
-        Charset charSet = Charset.defaultCharset();
-        String encoding = writerSettings.getCharacterEncoding();
-        if (encoding != null) {
-            charSet = Charset.forName(encoding);
-        }
-        Classilist tableWriter = new Classilist(new OutputStreamWriter(tempOut, charSet), writerSettings);
-        // write the comment header, if we are supposed to
-        String tableName;
-        if (input == null) {
-            tableName = data.getDataTableSpec().getName();
+        Writer out;
+        if (byteOutput) {
+            out = new Utf8ChannelWriter(channel, charSet, writerSettings.getOutputBufferSize());
         } else {
-            tableName = input.getDataTableSpec().getName();
+            out = new OutputStreamWriter(new BufferedOutputStream(tempOut), charSet);
         }
-
+        Classilist tableWriter = new Classilist(out, writerSettings);
+        LiveRows live = null;
+        RowStore rowStore = null;
+        ArrowIpcWriter arrowWriter = null;
+        String arrowName = null;
+        Path arrowPath = null;
+        boolean complete = false;
         try {
-            if (input == null) {
+            // the class codes of sparse probabilities and encoded labels, shared
+            // by the CSV and the Arrow output and written next to them
+            ClassDictionary dictionary = null;
+            if (writerSettings.sparseProbabilities() || writerSettings.encodeLabels()) {
+                dictionary = ClassDictionary.of(plan);
+                tableWriter.setClassDictionary(dictionary);
+            }
+            // gathered while the CSV rows are formatted
+            List<RowStatistics> statistics = new ArrayList<RowStatistics>();
+            if (writerSettings.writeSummary()) {
+                statistics.add(new ClassificationSummary(plan));
+            }
+            if (writerSettings.writeDistributions()) {
+                statistics.add(new ProbabilityDistributions(plan));
+            }
+            if (writerSettings.writeFeatureHistograms()) {
+                statistics.add(new FeatureHistograms(exported));
+            }
+            if (writerSettings.writeCellIndex()) {
+                statistics.add(new CellIndex(plan));
+            }
+            // the offsets follow from the length of the file
+            RowOffsets offsets = null;
+            RowOffsets.Encoding rowEncoding = RowOffsets.Encoding.of(charSet);
+            if (writerSettings.writeRowOffsets()) {
+                if (localPath == null || compress || rowEncoding == null) {
+                    LOGGER.debug("The row offsets are only written for "
+                        + "uncompressed local files in UTF-8, UTF-16 or a single byte encoding.");
+                } else {
+                    offsets = new RowOffsets(writerSettings.getRowOffsetInterval(), rowEncoding);
+                    statistics.add(offsets);
+                    if (writerSettings.writeRowStore()) {
+                        rowStore = new RowStore(plan,
+                            localPath.resolveSibling(RowStore.DATA_FILE_NAME), charSet, rowEncoding);
+                        statistics.add(rowStore);
+                    }
+                }
+            }
+            if (writerSettings.writeCurves()) {
+                statistics.add(new ScoreCurves(plan, writerSettings.getScoreMemory() * (1L << 20)));
+            }
+            for (RowStatistics s : statistics) {
+                tableWriter.addStatistics(s);
+            }
+            // streamed rows are published to the pages opened from the node
+            // view, a table is written too fast to watch
+            ClassilistNodePlugin plugin = ClassilistNodePlugin.getDefault();
+            Path installation = input == null ? null : getInstallation();
+            if (writerSettings.publishRows() && plugin != null && installation != null
+                    && localPath != null) {
+                StringBuilder file = new StringBuilder();
+                for (Path name : installation.relativize(localPath)) {
+                    file.append(file.length() > 0 ? "/" : "").append(name);
+                }
+                live = new LiveRows(plan, plugin.getFeed(installation), file.toString());
+                tableWriter.addStatistics(live);
+            }
+            if (fingerprint != null) {
+                tableWriter.addStatistics(fingerprint);
+            }
+
+            // the Arrow file is written from the same rows, streamed input in
+            // the same pass
+            RowInput rows = input;
+            if (writerSettings.arrowOutput()) {
+                arrowName = arrowFileName(m_settings.getFileName());
+                URL arrowUrl = FileUtil.toURL(arrowName);
+                arrowPath = FileUtil.resolveToPath(arrowUrl);
+                WritableByteChannel arrowOut;
+                if (arrowPath != null) {
+                    arrowOut = FileChannel.open(arrowPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                } else {
+                    arrowOut = Channels.newChannel(RemoteOutput.open(arrowUrl, writerSettings));
+                }
+                arrowWriter = new ArrowIpcWriter(writerSettings.encodeLabels()
+                    ? exported.withDictionary(dictionary) : exported, writerSettings, arrowOut);
+                if (input != null) {
+                    rows = new TeeRowInput(input, arrowWriter);
+                }
+            }
+
+            if (input == null && arrowWriter != null) {
+                tableWriter.write(data, exec.createSubProgress(0.5));
+                arrowWriter.write(data, exec.createSubProgress(0.5));
+            } else if (input == null) {
                 tableWriter.write(data, exec);
             } else {
-                tableWriter.write(input, exec);
+                tableWriter.write(rows, exec);
+            }
+            tableWriter.close();
+            if (arrowWriter != null) {
+                arrowWriter.close();
+            }
+            if (offsets != null) {
+                offsets.setFileLength(Files.size(localPath));
+            }
+            if (dictionary != null) {
+                writeClassDictionary(dictionary, writerSettings, charSet);
+            }
+            for (RowStatistics s : statistics) {
+                writeStatistics(s, writerSettings);
+            }
+            complete = true;
+            if (fingerprint != null) {
+                m_written = new TableFingerprint.Snapshot(outputFiles, settingsHash, fingerprint);
             }
-            tableWriter.close();            
 
             if (tableWriter.hasWarningMessage()) {
-                setWarningMessage(tableWriter.getLastWarningMessage());
+                setWarningMessage(appendWarning == null ? tableWriter.getLastWarningMessage()
+                        : appendWarning + "\n" + tableWriter.getLastWarningMessage());
+            } else if (appendWarning != null) {
+                setWarningMessage(appendWarning);
             }
 
             // execution successful
@@ -237,27 +533,271 @@ public class ClassilistNodeModel extends NodeModel {
                 return null;
             }
         } catch (CanceledExecutionException cee) {
-            try {
-                tableWriter.close();                  
-            } catch (IOException ex) {
-                // may happen if the stream is already closed by the interrupted thread
-            }
-            if (localPath != null) {
-                LOGGER.info("Table FileWriter canceled.");
-                try {
-                    Files.delete(localPath);
-                    LOGGER.debug("File '" + m_settings.getFileName() + "' deleted after node has been canceled.");
-                } catch (IOException ex) {
-                    LOGGER.warn("Unable to delete file '"
-                            + m_settings.getFileName() + "' after cancellation: " + ex.getMessage(), ex);
+            LOGGER.info("Table FileWriter canceled.");
+            throw cee;
+        } catch (UncheckedIOException e) {
+            // the Arrow output failed while streaming
+            throw e.getCause();
+        } finally {
+            if (live != null) {
+                live.finish(complete);
+            }
+            // the records are closed already if they are written
+            closeQuietly(rowStore);
+            if (!complete) {
+                // the writers are closed already if only the statistics failed
+                closeQuietly(tableWriter);
+                closeQuietly(arrowWriter);
+                if (appendedFrom >= 0) {
+                    truncatePartial(localPath, fileName, appendedFrom);
+                } else {
+                    deletePartial(localPath, fileName);
+                }
+                deletePartial(arrowPath, arrowName);
+                if (rowStore != null) {
+                    deletePartial(rowStore.getDataFile(), RowStore.DATA_FILE_NAME);
                 }
             }
-            throw cee;
         }
 
     }
+
+    /**
+     * Closes the writer of a failed or canceled execution.
+     */
+    private static void closeQuietly(final Closeable writer) {
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException | RuntimeException ex) {
+            // may happen if the stream is already closed by the interrupted
+            // thread, the file is deleted anyway
+        }
+    }
+
+    /**
+     * Deletes a local output file of a failed or canceled execution.
+     *
+     * @param path the file, null if it is not local
+     * @param fileName the name of the file for the log
+     */
+    private static void deletePartial(final Path path, final String fileName) {
+        if (path == null) {
+            return;
+        }
+        try {
+            if (Files.deleteIfExists(path)) {
+                LOGGER.debug("File '" + fileName + "' deleted after the node failed or has been canceled.");
+            }
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to delete file '" + fileName
+                    + "' after the node failed or has been canceled: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Cuts the rows appended by a failed or canceled execution off a local
+     * output file.
+     *
+     * @param path the file appended to
+     * @param fileName the name of the file for the log
+     * @param length the length of the file before the rows were appended
+     */
+    private static void truncatePartial(final Path path, final String fileName, final long length) {
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.truncate(length);
+            LOGGER.debug("Rows appended to file '" + fileName
+                    + "' removed after the node failed or has been canceled.");
+        } catch (IOException ex) {
+            LOGGER.warn("Unable to remove the rows appended to file '" + fileName
+                    + "' after the node failed or has been canceled: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Writes the class codes of sparse probabilities and encoded labels next
+     * to the CSV file.
+     */
+    private void writeClassDictionary(final ClassDictionary dictionary,
+            final FileWriterSettings writerSettings, final Charset charSet)
+            throws IOException, URISyntaxException {
+        URL url = dictionaryFile();
+        Path path = FileUtil.resolveToPath(url);
+        OutputStream out = path != null ? Files.newOutputStream(path)
+                : RemoteOutput.open(url, writerSettings);
+        FileWriterSettings settings = new FileWriterSettings(writerSettings);
+        try (Classilist writer = new Classilist(new OutputStreamWriter(
+                new BufferedOutputStream(out), charSet), settings)) {
+            dictionary.write(writer);
+        }
+    }
+
+    /**
+     * Writes statistics of the rows into the folder of the CSV file.
+     */
+    private void writeStatistics(final RowStatistics statistics,
+            final FileWriterSettings writerSettings)
+            throws IOException, URISyntaxException {
+        URL url = statisticsFile(statistics.getFileName());
+        Path path = FileUtil.resolveToPath(url);
+        OutputStream out = path != null ? Files.newOutputStream(path)
+                : RemoteOutput.open(url, writerSettings);
+        try (Writer writer = new OutputStreamWriter(
+                new BufferedOutputStream(out), StandardCharsets.UTF_8)) {
+            statistics.write(writer);
+        }
+    }
+
+    /**
+     * @param writerSettings the settings of the execution
+     * @param localPath the local CSV file
+     * @param charSet the character set of the CSV file
+     * @return the CSV file and all other files written with it, in the
+     *         order they are written
+     */
+    private List<Path> outputFiles(final FileWriterSettings writerSettings,
+            final Path localPath, final Charset charSet)
+            throws IOException, URISyntaxException {
+        List<Path> files = new ArrayList<Path>();
+        files.add(localPath);
+        if (writerSettings.arrowOutput()) {
+            files.add(FileUtil.resolveToPath(FileUtil.toURL(
+                arrowFileName(m_settings.getFileName()))));
+        }
+        for (URL sidecar : sidecarFiles(writerSettings, true, charSet)) {
+            files.add(FileUtil.resolveToPath(sidecar));
+        }
+        return files;
+    }
+
+    /**
+     * @param writerSettings the settings of the execution
+     * @param local true if the CSV file is a local file
+     * @param charSet the character set of the CSV file
+     * @return the class dictionary and the statistics files written next to
+     *         the CSV file, in the order they are written
+     */
+    private List<URL> sidecarFiles(final FileWriterSettings writerSettings,
+            final boolean local, final Charset charSet)
+            throws IOException, URISyntaxException {
+        List<URL> files = new ArrayList<URL>();
+        if (writerSettings.sparseProbabilities() || writerSettings.encodeLabels()) {
+            files.add(dictionaryFile());
+        }
+        files.addAll(statisticsFiles(writerSettings, local, charSet));
+        return files;
+    }
+
+    /**
+     * @param writerSettings the settings of the execution
+     * @param local true if the CSV file is a local file
+     * @param charSet the character set of the CSV file
+     * @return the statistics files written into the folder of the CSV file,
+     *         in the order they are written
+     */
+    private List<URL> statisticsFiles(final FileWriterSettings writerSettings,
+            final boolean local, final Charset charSet)
+            throws IOException, URISyntaxException {
+        List<URL> files = new ArrayList<URL>();
+        if (writerSettings.writeSummary()) {
+            files.add(statisticsFile(ClassificationSummary.FILE_NAME));
+        }
+        if (writerSettings.writeDistributions()) {
+            files.add(statisticsFile(ProbabilityDistributions.FILE_NAME));
+        }
+        if (writerSettings.writeFeatureHistograms()) {
+            files.add(statisticsFile(FeatureHistograms.FILE_NAME));
+        }
+        if (writerSettings.writeCellIndex()) {
+            files.add(statisticsFile(CellIndex.FILE_NAME));
+        }
+        if (writerSettings.writeRowOffsets() && local && !writerSettings.compressOutput()
+                && RowOffsets.Encoding.of(charSet) != null) {
+            files.add(statisticsFile(RowOffsets.FILE_NAME));
+            if (writerSettings.writeRowStore()) {
+                files.add(statisticsFile(RowStore.DATA_FILE_NAME));
+                files.add(statisticsFile(RowStore.FILE_NAME));
+            }
+        }
+        if (writerSettings.writeCurves()) {
+            files.add(statisticsFile(ScoreCurves.FILE_NAME));
+        }
+        return files;
+    }
+
+    /**
+     * @return the class dictionary next to the CSV file
+     */
+    private URL dictionaryFile() throws IOException, URISyntaxException {
+        return FileUtil.toURL(sidecarFileName(m_settings.getFileName(),
+            ClassDictionary.SUFFIX));
+    }
+
+    /**
+     * @param name the name of a statistics file
+     * @return the file in the folder of the CSV file
+     */
+    private URL statisticsFile(final String name)
+            throws IOException, URISyntaxException {
+        return new URL(FileUtil.toURL(m_settings.getFileName()), name);
+    }
+
+    /**
+     * @param fileName the name of the CSV file
+     * @return the name of the Arrow file next to it
+     */
+    static String arrowFileName(final String fileName) {
+        return sidecarFileName(fileName, ARROW_SUFFIX);
+    }
+
+    /**
+     * @param fileName the name of the CSV file
+     * @param suffix the suffix of the file next to it
+     * @return the file name with ".csv" replaced by the suffix
+     */
+    static String sidecarFileName(final String fileName, final String suffix) {
+        if (fileName.toLowerCase().endsWith(".csv")) {
+            return fileName.substring(0, fileName.length() - 4) + suffix;
+        }
+        return fileName + suffix;
+    }
+
+    /**
+     * @return the local installation directory the table is written to (the
+     *         folder of data/out.csv), null if there is none
+     */
+    Path getInstallation() {
+        String fileName = m_settings.getFileName();
+        if (isEmpty(fileName)) {
+            return null;
+        }
+        try {
+            Path file = FileUtil.resolveToPath(FileUtil.toURL(fileName));
+            Path data = file == null ? null : file.getParent();
+            if (data == null) {
+                return null;
+            }
+            Path installation = data.getFileName().toString().equals("data")
+                    ? data.getParent() : data;
+            return installation != null && Files.isDirectory(installation)
+                    ? installation : null;
+        } catch (IOException | URISyntaxException | InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the port of the view's HTTP server, 0 for any free one
+     */
+    int getServerPort() {
+        return m_settings.getServerPort();
+    }
+
     protected void reset() {
-        // empty
+        // the fingerprint of the written files is kept, it is compared with
+        // the files before it is used
     }
 
     /**
@@ -267,7 +807,7 @@ public class ClassilistNodeModel extends NodeModel {
     protected void loadInternals(final File nodeInternDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
-        // no internals to save
+        m_written = TableFingerprint.Snapshot.load(nodeInternDir);
     }
 
     /**
@@ -277,7 +817,9 @@ public class ClassilistNodeModel extends NodeModel {
     protected void saveInternals(final File nodeInternDir,
             final ExecutionMonitor exec) throws IOException,
             CanceledExecutionException {
-        // nothing to save.
+        if (m_written != null) {
+            m_written.save(nodeInternDir);
+        }
     }
 
     /**
@@ -297,9 +839,22 @@ public class ClassilistNodeModel extends NodeModel {
         if (fileCheckWarning != null) {
             if (m_settings.getFileOverwritePolicy() == FileOverwritePolicy.Append) {
                 fileCheckWarning = fileCheckWarning.replace("overwritten", "appended");
+                if (m_settings.writeSummary() || m_settings.writeDistributions()
+                        || m_settings.writeFeatureHistograms() || m_settings.writeCellIndex()
+                        || m_settings.writeRowOffsets() || m_settings.writeCurves()) {
+                    fileCheckWarning += "\nThe statistics files are not written when appending to a file.";
+                }
             }
             warnMsg = fileCheckWarning + "\n";
         }
+        if (m_settings.arrowOutput()) {
+            String arrowCheckWarning = CheckUtils.checkDestinationFile(
+                arrowFileName(m_settings.getFileName()),
+                m_settings.getFileOverwritePolicy() != FileOverwritePolicy.Abort);
+            if (arrowCheckWarning != null) {
+                warnMsg += arrowCheckWarning + "\n";
+            }
+        }
 
 
         /*
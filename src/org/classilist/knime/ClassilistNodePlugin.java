@@ -4,7 +4,14 @@
  */
 package org.classilist.knime;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
 import org.eclipse.core.runtime.Plugin;
+import org.knime.core.node.NodeLogger;
 import org.osgi.framework.BundleContext;
 
 /**
@@ -17,9 +24,19 @@ import org.osgi.framework.BundleContext;
  * @author Medha Katehara
  */
 public class ClassilistNodePlugin extends Plugin {
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(ClassilistNodePlugin.class);
+
     // The shared instance.
     private static ClassilistNodePlugin plugin;
 
+    /** the running servers by installation directory. */
+    private final Map<Path, InstallationServer> m_servers =
+            new HashMap<Path, InstallationServer>();
+
+    /** the feeds of the rows being written by installation directory. */
+    private final Map<Path, LiveFeed> m_feeds = new HashMap<Path, LiveFeed>();
+
     /**
      * The constructor.
      */
@@ -48,10 +65,66 @@ public class ClassilistNodePlugin extends Plugin {
      */
     @Override
     public void stop(final BundleContext context) throws Exception {
+        stopServers();
         super.stop(context);
         plugin = null;
     }
 
+    /**
+     * Serves the installation over HTTP on the loopback address, see
+     * {@link InstallationServer}. The server keeps running until the plugin
+     * is stopped; it is started again if the port is different.
+     *
+     * @param installation the installation directory
+     * @param port the port, 0 for any free one
+     * @return the address of the installation's start page
+     * @throws IOException if the server can't be started
+     */
+    public synchronized URI serve(final Path installation, final int port)
+            throws IOException {
+        Path root = installation.toAbsolutePath().normalize();
+        InstallationServer server = m_servers.get(root);
+        if (server != null && server.isOpen()
+                && (port == 0 || port == server.getPort())) {
+            return server.getUri();
+        }
+        if (server != null) {
+            server.close();
+        }
+        server = new InstallationServer(root, port, getFeed(root));
+        m_servers.put(root, server);
+        LOGGER.info("Serving " + root + " at " + server.getUri());
+        return server.getUri();
+    }
+
+    /**
+     * @param installation the installation directory
+     * @return the feed the rows written to the installation are published
+     *         to, served by its server
+     */
+    synchronized LiveFeed getFeed(final Path installation) {
+        Path root = installation.toAbsolutePath().normalize();
+        LiveFeed feed = m_feeds.get(root);
+        if (feed == null) {
+            feed = new LiveFeed();
+            m_feeds.put(root, feed);
+        }
+        return feed;
+    }
+
+    /** Stops all servers started by {@link #serve(Path, int)}. */
+    synchronized void stopServers() {
+        for (InstallationServer server : m_servers.values()) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                LOGGER.debug("Closing the server of " + server.getRoot()
+                        + " failed: " + e.getMessage(), e);
+            }
+        }
+        m_servers.clear();
+    }
+
     /**
      * Returns the shared instance.
      * 
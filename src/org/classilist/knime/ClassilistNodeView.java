@@ -1,25 +1,55 @@
 package org.classilist.knime;
 
+import java.awt.BorderLayout;
+import java.awt.Desktop;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+
+import javax.swing.BorderFactory;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
 import org.knime.core.node.NodeView;
 
 /**
  * <code>NodeView</code> for the "Classilist" Node.
  * Connector Node for KNIME and classilist application for probabilistic classification results.
+ * Serves the installation the node writes to with the HTTP server of the
+ * plugin and opens it in the web browser.
  *
  * @author Medha Katehara
  */
 public class ClassilistNodeView extends NodeView<ClassilistNodeModel> {
 
+    private final JLabel m_status = new JLabel();
+
+    private final JButton m_open = new JButton("Open in browser");
+
+    /** the address of the served installation, null if not served. */
+    private URI m_uri;
+
     /**
      * Creates a new view.
-     * 
+     *
      * @param nodeModel The model (class: {@link ClassilistNodeModel})
      */
     protected ClassilistNodeView(final ClassilistNodeModel nodeModel) {
         super(nodeModel);
-
-        // TODO instantiate the components of the view here.
-
+        m_open.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent e) {
+                browse();
+            }
+        });
+        JPanel panel = new JPanel(new BorderLayout(5, 5));
+        panel.setBorder(BorderFactory.createEmptyBorder(10, 10, 10, 10));
+        panel.add(m_status, BorderLayout.CENTER);
+        panel.add(m_open, BorderLayout.SOUTH);
+        setComponent(panel);
     }
 
     /**
@@ -27,16 +57,8 @@ public class ClassilistNodeView extends NodeView<ClassilistNodeModel> {
      */
     @Override
     protected void modelChanged() {
-
-        // TODO retrieve the new model from your nodemodel and 
-        // update the view.
-        ClassilistNodeModel nodeModel = 
-            (ClassilistNodeModel)getNodeModel();
-        assert nodeModel != null;
-        
-        // be aware of a possibly not executed nodeModel! The data you retrieve
-        // from your nodemodel could be null, emtpy, or invalid in any kind.
-        
+        // the installation or port may have changed
+        serve();
     }
 
     /**
@@ -44,8 +66,7 @@ public class ClassilistNodeView extends NodeView<ClassilistNodeModel> {
      */
     @Override
     protected void onClose() {
-    
-        // TODO things to do when closing the view
+        // the server keeps running for other views and the browser
     }
 
     /**
@@ -53,9 +74,48 @@ public class ClassilistNodeView extends NodeView<ClassilistNodeModel> {
      */
     @Override
     protected void onOpen() {
+        serve();
+        browse();
+    }
 
-        // TODO things to do when opening the view
+    /** Starts the server of the installation if not yet running. */
+    private void serve() {
+        m_uri = null;
+        m_open.setEnabled(false);
+        ClassilistNodeModel nodeModel = getNodeModel();
+        Path installation = nodeModel == null ? null
+                : nodeModel.getInstallation();
+        ClassilistNodePlugin plugin = ClassilistNodePlugin.getDefault();
+        if (installation == null) {
+            m_status.setText("No local Classilist installation is configured.");
+        } else if (plugin == null) {
+            m_status.setText("The Classilist plugin is not active.");
+        } else {
+            try {
+                m_uri = plugin.serve(installation, nodeModel.getServerPort());
+                m_status.setText("Serving " + installation + " at " + m_uri);
+                m_open.setEnabled(true);
+            } catch (IOException e) {
+                m_status.setText("The HTTP server could not be started: "
+                        + e.getMessage());
+            }
+        }
     }
 
+    /** Opens the served installation in the web browser. */
+    private void browse() {
+        if (m_uri == null) {
+            return;
+        }
+        if (Desktop.isDesktopSupported()
+                && Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
+            try {
+                Desktop.getDesktop().browse(m_uri);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // ask the user below
+            }
+        }
+        m_status.setText("Open " + m_uri + " in your web browser.");
+    }
 }
-
@@ -0,0 +1,416 @@
+package org.classilist.knime;
+
+import java.math.BigInteger;
+
+/**
+ * Formats numbers straight into a char array, without creating strings.
+ *
+ * <p>Doubles are written with the shortest decimal that reads back as the
+ * same double (following Ulf Adams' Ryu algorithm), laid out like
+ * {@link Double#toString(double)}: plain notation for magnitudes in
+ * [10<sup>-3</sup>, 10<sup>7</sup>), computerized scientific notation
+ * otherwise, and always at least one digit after the decimal point. The
+ * result is the one of {@code Double.toString} of Java 19 and later; older
+ * JREs sometimes print more digits than needed.
+ */
+final class DoubleFormatter {
+
+    /** Maximum number of characters written by any of the methods with a
+     * precision of at most {@link #MAX_DECIMALS}. */
+    static final int MAX_LENGTH = 40;
+
+    /** Maximum number of fraction digits supported for fixed formatting. */
+    static final int MAX_DECIMALS = 17;
+
+    private static final int DOUBLE_MANTISSA_BITS = 52;
+
+    private static final long DOUBLE_MANTISSA_MASK =
+            (1L << DOUBLE_MANTISSA_BITS) - 1;
+
+    private static final int DOUBLE_EXPONENT_MASK = (1 << 11) - 1;
+
+    private static final int DOUBLE_EXPONENT_BIAS = 1023;
+
+    private static final int POS_TABLE_SIZE = 326;
+
+    private static final int NEG_TABLE_SIZE = 291;
+
+    private static final int POW5_BITCOUNT = 121;
+
+    private static final int POW5_INV_BITCOUNT = 122;
+
+    private static final int QUARTER_BITCOUNT = 31;
+
+    /** top 121 bits of 5^i, in four parts (28 + 3 * 31 bits). */
+    private static final int[][] POW5_SPLIT = new int[POS_TABLE_SIZE][4];
+
+    /** 122 bits of 2^(bitlength(5^i) - 1 + 122) / 5^i + 1, in four parts. */
+    private static final int[][] POW5_INV_SPLIT = new int[NEG_TABLE_SIZE][4];
+
+    private static final long[] POW10 = new long[MAX_DECIMALS + 2];
+
+    static {
+        BigInteger mask = BigInteger.ONE.shiftLeft(QUARTER_BITCOUNT)
+                .subtract(BigInteger.ONE);
+        for (int i = 0; i < POS_TABLE_SIZE; i++) {
+            BigInteger pow = BigInteger.valueOf(5).pow(i);
+            int pow5len = pow.bitLength();
+            for (int j = 0; j < 4; j++) {
+                POW5_SPLIT[i][j] = pow.shiftRight(pow5len - POW5_BITCOUNT
+                        + (3 - j) * QUARTER_BITCOUNT).and(mask).intValue();
+            }
+            if (i < NEG_TABLE_SIZE) {
+                BigInteger inv = BigInteger.ONE
+                        .shiftLeft(pow5len - 1 + POW5_INV_BITCOUNT)
+                        .divide(pow).add(BigInteger.ONE);
+                for (int k = 0; k < 4; k++) {
+                    BigInteger part =
+                            inv.shiftRight((3 - k) * QUARTER_BITCOUNT);
+                    POW5_INV_SPLIT[i][k] =
+                            (k == 0 ? part : part.and(mask)).intValue();
+                }
+            }
+        }
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = 10 * POW10[i - 1];
+        }
+    }
+
+    private DoubleFormatter() {
+        // utility class
+    }
+
+    /**
+     * Writes the shortest representation of the double that reads back as
+     * the same value, in the layout of {@link Double#toString(double)}.
+     *
+     * @param value the value to format
+     * @param buf the array to write to, with at least {@link #MAX_LENGTH}
+     *            free characters from pos on
+     * @param pos the index of the first character to write
+     * @return the index after the last character written
+     */
+    static int format(final double value, final char[] buf, final int pos) {
+        if (Double.isNaN(value)) {
+            return put("NaN", buf, pos);
+        }
+        if (value == Double.POSITIVE_INFINITY) {
+            return put("Infinity", buf, pos);
+        }
+        if (value == Double.NEGATIVE_INFINITY) {
+            return put("-Infinity", buf, pos);
+        }
+        long bits = Double.doubleToLongBits(value);
+        if (bits == 0) {
+            return put("0.0", buf, pos);
+        }
+        if (bits == 0x8000000000000000L) {
+            return put("-0.0", buf, pos);
+        }
+
+        // Step 1: decode the double, unify normalized and subnormal cases
+        int ieeeExponent = (int)((bits >>> DOUBLE_MANTISSA_BITS)
+                & DOUBLE_EXPONENT_MASK);
+        long ieeeMantissa = bits & DOUBLE_MANTISSA_MASK;
+        int e2;
+        long m2;
+        if (ieeeExponent == 0) {
+            e2 = 1 - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS;
+            m2 = ieeeMantissa;
+        } else {
+            e2 = ieeeExponent - DOUBLE_EXPONENT_BIAS - DOUBLE_MANTISSA_BITS;
+            m2 = ieeeMantissa | (1L << DOUBLE_MANTISSA_BITS);
+        }
+
+        // Step 2: determine the interval of valid decimal representations
+        final boolean acceptBounds = (m2 & 1) == 0;
+        final long mv = 4 * m2;
+        final int mmShift = (m2 != (1L << DOUBLE_MANTISSA_BITS))
+                || (ieeeExponent <= 1) ? 1 : 0;
+        e2 -= 2;
+
+        // Step 3: convert the interval to a decimal power base
+        long dv;
+        long dp;
+        long dm;
+        final int e10;
+        boolean dmIsTrailingZeros = false;
+        boolean dvIsTrailingZeros = false;
+        if (e2 >= 0) {
+            final int q = Math.max(0, ((e2 * 78913) >>> 18) - 1);
+            final int k = POW5_INV_BITCOUNT + pow5bits(q) - 1;
+            final int i = -e2 + q + k;
+            dv = mulPow5InvDivPow2(mv, q, i);
+            dp = mulPow5InvDivPow2(mv + 2, q, i);
+            dm = mulPow5InvDivPow2(mv - 1 - mmShift, q, i);
+            e10 = q;
+            if (q <= 21) {
+                if (mv % 5 == 0) {
+                    dvIsTrailingZeros = pow5Factor(mv) >= q;
+                } else if (acceptBounds) {
+                    dmIsTrailingZeros = pow5Factor(mv - 1 - mmShift) >= q;
+                } else if (pow5Factor(mv + 2) >= q) {
+                    dp--;
+                }
+            }
+        } else {
+            final int q = Math.max(0, ((-e2 * 732923) >>> 20) - 1);
+            final int i = -e2 - q;
+            final int k = pow5bits(i) - POW5_BITCOUNT;
+            final int j = q - k;
+            dv = mulPow5DivPow2(mv, i, j);
+            dp = mulPow5DivPow2(mv + 2, i, j);
+            dm = mulPow5DivPow2(mv - 1 - mmShift, i, j);
+            e10 = q + e2;
+            if (q <= 1) {
+                dvIsTrailingZeros = true;
+                if (acceptBounds) {
+                    dmIsTrailingZeros = mmShift == 1;
+                } else {
+                    dp--;
+                }
+            } else if (q < 63) {
+                dvIsTrailingZeros = (mv & ((1L << q) - 1)) == 0;
+            }
+        }
+
+        // Step 4: find the shortest representation in the interval. Like
+        // Double.toString (since Java 19) keep two digits in scientific
+        // notation, the closest of them is more accurate than d.0
+        final double abs = Math.abs(value);
+        final boolean scientific = !(abs >= 1e-3 && abs < 1e7);
+        int removed = 0;
+        long output;
+        if (dmIsTrailingZeros || dvIsTrailingZeros) {
+            int lastRemovedDigit = 0;
+            while (dp / 10 > dm / 10 && !(scientific && dp < 100)) {
+                dmIsTrailingZeros &= dm % 10 == 0;
+                dvIsTrailingZeros &= lastRemovedDigit == 0;
+                lastRemovedDigit = (int)(dv % 10);
+                dp /= 10;
+                dv /= 10;
+                dm /= 10;
+                removed++;
+            }
+            if (dmIsTrailingZeros) {
+                while (dm % 10 == 0 && !(scientific && dp < 100)) {
+                    dvIsTrailingZeros &= lastRemovedDigit == 0;
+                    lastRemovedDigit = (int)(dv % 10);
+                    dp /= 10;
+                    dv /= 10;
+                    dm /= 10;
+                    removed++;
+                }
+            }
+            if (dvIsTrailingZeros && lastRemovedDigit == 5 && dv % 2 == 0) {
+                // exactly in the middle, round to even
+                lastRemovedDigit = 4;
+            }
+            output = dv + ((dv == dm && !(acceptBounds && dmIsTrailingZeros))
+                    || lastRemovedDigit >= 5 ? 1 : 0);
+        } else {
+            boolean roundUp = false;
+            while (dp / 10 > dm / 10 && !(scientific && dp < 100)) {
+                roundUp = dv % 10 >= 5;
+                dp /= 10;
+                dv /= 10;
+                dm /= 10;
+                removed++;
+            }
+            output = dv + (dv == dm || roundUp ? 1 : 0);
+        }
+
+        // Step 5: print digits * 10^(e10 + removed)
+        int p = pos;
+        if (bits < 0) {
+            buf[p++] = '-';
+        }
+        int olength = decimalLength(output);
+        int exp = e10 + removed + olength - 1; // exponent of the first digit
+        if (!scientific) {
+            if (exp >= 0) {
+                int intDigits = exp + 1;
+                if (olength <= intDigits) {
+                    p = putDigits(output, olength, buf, p);
+                    for (int z = olength; z < intDigits; z++) {
+                        buf[p++] = '0';
+                    }
+                    buf[p++] = '.';
+                    buf[p++] = '0';
+                } else {
+                    // digits with the point after intDigits of them
+                    putDigits(output, olength, buf, p + 1);
+                    System.arraycopy(buf, p + 1, buf, p, intDigits);
+                    buf[p + intDigits] = '.';
+                    p += olength + 1;
+                }
+            } else {
+                buf[p++] = '0';
+                buf[p++] = '.';
+                for (int z = -1; z > exp; z--) {
+                    buf[p++] = '0';
+                }
+                p = putDigits(output, olength, buf, p);
+            }
+        } else {
+            // d.dddE[-]x
+            putDigits(output, olength, buf, p + 1);
+            buf[p] = buf[p + 1];
+            buf[p + 1] = '.';
+            if (olength == 1) {
+                buf[p + 2] = '0';
+                p += 3;
+            } else {
+                p += olength + 1;
+            }
+            buf[p++] = 'E';
+            p = formatLong(exp, buf, p);
+        }
+        return p;
+    }
+
+    /**
+     * Writes the value rounded to the given number of fraction digits, with
+     * trailing zeros removed (but at least one fraction digit). Values that
+     * can't be scaled exactly enough are written as by
+     * {@link #format(double, char[], int)}.
+     *
+     * @param value the value to format
+     * @param decimals the number of fraction digits, 0 to
+     *            {@link #MAX_DECIMALS}
+     * @param buf the array to write to, with at least {@link #MAX_LENGTH}
+     *            free characters from pos on
+     * @param pos the index of the first character to write
+     * @return the index after the last character written
+     */
+    static int formatFixed(final double value, final int decimals,
+            final char[] buf, final int pos) {
+        double scaledValue = Math.abs(value) * POW10[decimals];
+        if (!(scaledValue < 0x1p53)) {
+            // NaN, infinite, or too large to round on a long
+            return format(value, buf, pos);
+        }
+        long scaled = Math.round(scaledValue);
+        int p = pos;
+        if (value < 0 && scaled != 0) {
+            buf[p++] = '-';
+        }
+        p = formatLong(scaled / POW10[decimals], buf, p);
+        buf[p++] = '.';
+        long fraction = scaled % POW10[decimals];
+        if (fraction == 0) {
+            buf[p++] = '0';
+            return p;
+        }
+        int digits = decimals;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            digits--;
+        }
+        int olength = decimalLength(fraction);
+        for (int z = olength; z < digits; z++) {
+            buf[p++] = '0';
+        }
+        return putDigits(fraction, olength, buf, p);
+    }
+
+    /**
+     * Writes the value like {@link Long#toString(long)}.
+     *
+     * @param value the value to format
+     * @param buf the array to write to, with at least 20 free characters
+     *            from pos on
+     * @param pos the index of the first character to write
+     * @return the index after the last character written
+     */
+    static int formatLong(final long value, final char[] buf, final int pos) {
+        if (value == Long.MIN_VALUE) {
+            return put("-9223372036854775808", buf, pos);
+        }
+        int p = pos;
+        long v = value;
+        if (v < 0) {
+            buf[p++] = '-';
+            v = -v;
+        }
+        return putDigits(v, decimalLength(v), buf, p);
+    }
+
+    private static int put(final String s, final char[] buf, final int pos) {
+        s.getChars(0, s.length(), buf, pos);
+        return pos + s.length();
+    }
+
+    /** writes the olength decimal digits of the non-negative value. */
+    private static int putDigits(final long value, final int olength,
+            final char[] buf, final int pos) {
+        long v = value;
+        for (int i = pos + olength - 1; i >= pos; i--) {
+            buf[i] = (char)('0' + (int)(v % 10));
+            v /= 10;
+        }
+        return pos + olength;
+    }
+
+    private static int decimalLength(final long v) {
+        int length = 1;
+        long limit = 10;
+        while (length < 19 && v >= limit) {
+            length++;
+            limit *= 10;
+        }
+        return length;
+    }
+
+    /** @return bit length of 5^e, for e &gt;= 0 */
+    private static int pow5bits(final int e) {
+        return ((e * 1217359) >>> 19) + 1;
+    }
+
+    /** @return the largest p with 5^p dividing the (positive) value */
+    private static int pow5Factor(final long value) {
+        long v = value;
+        int count = 0;
+        while (v % 5 == 0) {
+            v /= 5;
+            count++;
+        }
+        return count;
+    }
+
+    /** @return m * 5^i / 2^j, for j large enough to drop the low bits */
+    private static long mulPow5DivPow2(final long m, final int i,
+            final int j) {
+        return mulShift(m, POW5_SPLIT[i], j);
+    }
+
+    /** @return m / 5^i / 2^j, scaled by the inverse table */
+    private static long mulPow5InvDivPow2(final long m, final int i,
+            final int j) {
+        return mulShift(m, POW5_INV_SPLIT[i], j);
+    }
+
+    /**
+     * Multiplies the (at most 55 bit) m with the 124 bit factor given in
+     * four parts and shifts the product right by j bits.
+     */
+    private static long mulShift(final long m, final int[] factor,
+            final int j) {
+        long mHigh = m >>> 31;
+        long mLow = m & 0x7fffffff;
+        long bits13 = mHigh * factor[0];
+        long bits03 = mLow * factor[0];
+        long bits12 = mHigh * factor[1];
+        long bits02 = mLow * factor[1];
+        long bits11 = mHigh * factor[2];
+        long bits01 = mLow * factor[2];
+        long bits10 = mHigh * factor[3];
+        long bits00 = mLow * factor[3];
+        int actualShift = j - 3 * 31 - 21;
+        return ((((((((bits00 >>> 31) + bits01 + bits10) >>> 31)
+                + bits02 + bits11) >>> 31)
+                + bits03 + bits12) >>> 21)
+                + (bits13 << 10)) >>> actualShift;
+    }
+}
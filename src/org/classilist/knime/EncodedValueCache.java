@@ -0,0 +1,81 @@
+package org.classilist.knime;
+
+import java.util.Arrays;
+
+/**
+ * Small cache of the quoted and escaped characters of recently written
+ * values of one column, for nominal columns whose values repeat (class
+ * labels, categorical features). The cache is direct mapped: a value
+ * replaces the one in its slot. It turns itself off if fewer than half of
+ * the lookups in a window hit, high cardinality columns then only pay for
+ * the first window. Not thread-safe, every encoder has its own.
+ */
+final class EncodedValueCache {
+
+    private static final int CAPACITY = 256;
+
+    /** number of lookups after which the hit rate is checked. */
+    private static final int WINDOW = 4096;
+
+    /** the smallest number of hits per window keeping the cache on. */
+    private static final int MIN_HITS = WINDOW / 2;
+
+    /** longer values are not cached. */
+    private static final int MAX_LENGTH = 128;
+
+    private final String[] m_values = new String[CAPACITY];
+
+    private final char[][] m_encoded = new char[CAPACITY][];
+
+    private int m_lookups;
+
+    private int m_hits;
+
+    private boolean m_enabled = true;
+
+    /**
+     * @param value the value of a cell
+     * @return its encoded characters, null if not in the cache
+     */
+    char[] get(final String value) {
+        if (++m_lookups == WINDOW) {
+            m_enabled = m_hits >= MIN_HITS;
+            m_lookups = 0;
+            m_hits = 0;
+        }
+        int slot = slot(value);
+        String cached = m_values[slot];
+        if (cached != null && (cached == value || cached.equals(value))) {
+            m_hits++;
+            return m_encoded[slot];
+        }
+        return null;
+    }
+
+    /**
+     * Remembers the encoded characters of a value.
+     *
+     * @param value the value of a cell
+     * @param chars the buffer holding the encoded value
+     * @param from the start of the encoded value
+     * @param to the end of the encoded value (exclusive)
+     */
+    void put(final String value, final char[] chars, final int from,
+            final int to) {
+        if (value.length() <= MAX_LENGTH && to - from <= MAX_LENGTH) {
+            int slot = slot(value);
+            m_values[slot] = value;
+            m_encoded[slot] = Arrays.copyOfRange(chars, from, to);
+        }
+    }
+
+    /** @return false once the hit rate of a window was too low */
+    boolean isEnabled() {
+        return m_enabled;
+    }
+
+    private static int slot(final String value) {
+        int h = value.hashCode();
+        return (h ^ (h >>> 16)) & (CAPACITY - 1);
+    }
+}
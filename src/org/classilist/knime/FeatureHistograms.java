@@ -0,0 +1,457 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+
+/**
+ * Histograms of every written feature column per actual and per predicted
+ * class, gathered while the rows are formatted and written next to the CSV
+ * file (<code>features.json</code>).
+ *
+ * <p>The bins are worked out from the first {@link #SAMPLE_ROWS} rows of
+ * the table: numeric features get up to {@link #BINS} bins holding about
+ * the same number of sample values, open towards both ends, other features
+ * one bin per category among the most frequent of the sample and one for
+ * all others. Every feature has a last bin for missing values. The sample
+ * is taken by row index, so the bins do not depend on the threads; rows a
+ * formatter gets before the bins are known are kept until they are.
+ * Afterwards counting a row only updates the primitive arrays of the
+ * formatter, which are added up when written.
+ *
+ * <p>Classes are those of the probability columns, labels without
+ * probability column are counted as one more class.
+ */
+final class FeatureHistograms implements RowStatistics {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "features.json";
+
+    /** the number of rows the bins are worked out from. */
+    static final int SAMPLE_ROWS = 2048;
+
+    /** the most bins of a numeric feature and categories of a nominal one. */
+    static final int BINS = 20;
+
+    private final String[] m_classes;
+
+    /** the index of the class by name, not modified. */
+    private final Map<String, Integer> m_classIndex =
+            new HashMap<String, Integer>();
+
+    private final int m_actualColumn;
+
+    private final int m_predictedColumn;
+
+    /** the feature columns. */
+    private final int[] m_features;
+
+    private final String[] m_names;
+
+    /** true for features with double values. */
+    private final boolean[] m_numeric;
+
+    // the sample, guarded by this
+
+    private final double[][] m_sampleValues;
+
+    private final String[][] m_sampleCategories;
+
+    private final boolean[] m_sampled = new boolean[SAMPLE_ROWS];
+
+    private int m_sampleCount;
+
+    /** the bins, once known. */
+    private volatile Binning m_binning;
+
+    /** the accumulators of all formatters, guarded by this. */
+    private final List<Counts> m_counts = new ArrayList<Counts>();
+
+    /**
+     * @param plan the column plan of the table
+     */
+    FeatureHistograms(final ClassilistColumnPlan plan) {
+        int[] probabilities = plan.getProbabilityColumns();
+        m_classes = new String[probabilities.length];
+        for (int c = 0; c < probabilities.length; c++) {
+            m_classes[c] = plan.getClassName(probabilities[c]);
+            if (!m_classIndex.containsKey(m_classes[c])) {
+                m_classIndex.put(m_classes[c], c);
+            }
+        }
+        int actual = -1;
+        int count = 0;
+        int[] features = new int[plan.getNumColumns()];
+        for (int c : plan.getExportedColumns()) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            } else if (plan.getRole(c) == ClassilistColumnPlan.Role.FEATURE) {
+                features[count++] = c;
+            }
+        }
+        m_actualColumn = actual;
+        m_predictedColumn = plan.getPredictedIndex();
+        m_features = Arrays.copyOf(features, count);
+        m_names = new String[count];
+        m_numeric = new boolean[count];
+        for (int f = 0; f < count; f++) {
+            m_names[f] = plan.getHeader(m_features[f]);
+            m_numeric[f] = plan.getSpec().getColumnSpec(m_features[f])
+                    .getType().isCompatible(DoubleValue.class);
+        }
+        m_sampleValues = new double[count][];
+        m_sampleCategories = new String[count][];
+        for (int f = 0; f < count; f++) {
+            if (m_numeric[f]) {
+                m_sampleValues[f] = new double[SAMPLE_ROWS];
+            } else {
+                m_sampleCategories[f] = new String[SAMPLE_ROWS];
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Counts newAccumulator() {
+        Counts counts = new Counts();
+        m_counts.add(counts);
+        return counts;
+    }
+
+    /** Adds a row of the sample, works out the bins with the last one. */
+    private synchronized void sample(final DataRow row, final int rowIndex) {
+        if (m_sampled[rowIndex] || m_binning != null) {
+            return;
+        }
+        m_sampled[rowIndex] = true;
+        for (int f = 0; f < m_features.length; f++) {
+            DataCell cell = row.getCell(m_features[f]);
+            if (m_numeric[f]) {
+                m_sampleValues[f][rowIndex] = cell.isMissing()
+                        || !(cell instanceof DoubleValue) ? Double.NaN
+                        : ((DoubleValue)cell).getDoubleValue();
+            } else {
+                m_sampleCategories[f][rowIndex] = cell.isMissing() ? null
+                        : cell.toString();
+            }
+        }
+        if (++m_sampleCount == SAMPLE_ROWS) {
+            m_binning = new Binning();
+        }
+    }
+
+    /**
+     * The bins of all features, worked out from the sample rows seen.
+     * Not modified once created.
+     */
+    private final class Binning {
+
+        /** per numeric feature the ascending lower bounds of bins 1.. */
+        private final double[][] m_edges = new double[m_features.length][];
+
+        /** per nominal feature the categories by bin. */
+        private final String[][] m_categories =
+                new String[m_features.length][];
+
+        private final List<Map<String, Integer>> m_categoryBins =
+                new ArrayList<Map<String, Integer>>();
+
+        /** per feature the number of bins, including the missing one. */
+        private final int[] m_bins = new int[m_features.length];
+
+        Binning() {
+            for (int f = 0; f < m_features.length; f++) {
+                Map<String, Integer> categoryBins = null;
+                if (m_numeric[f]) {
+                    m_edges[f] = edges(m_sampleValues[f]);
+                    m_bins[f] = m_edges[f].length + 2;
+                } else {
+                    m_categories[f] = categories(m_sampleCategories[f]);
+                    categoryBins = new HashMap<String, Integer>();
+                    for (int b = 0; b < m_categories[f].length; b++) {
+                        categoryBins.put(m_categories[f][b], b);
+                    }
+                    m_bins[f] = m_categories[f].length + 2;
+                }
+                m_categoryBins.add(categoryBins);
+            }
+        }
+
+        /** @return the distinct values at the quantiles k / BINS */
+        private double[] edges(final double[] sample) {
+            double[] values = new double[SAMPLE_ROWS];
+            int n = 0;
+            for (int r = 0; r < SAMPLE_ROWS; r++) {
+                if (m_sampled[r] && !Double.isNaN(sample[r])) {
+                    values[n++] = sample[r];
+                }
+            }
+            Arrays.sort(values, 0, n);
+            double[] edges = new double[BINS - 1];
+            int count = 0;
+            for (int k = 1; k < BINS && n > 0; k++) {
+                double edge = values[(int)((long)k * n / BINS)];
+                if (count == 0 || edge > edges[count - 1]) {
+                    edges[count++] = edge;
+                }
+            }
+            return Arrays.copyOf(edges, count);
+        }
+
+        /** @return the most frequent categories, ties in order of name */
+        private String[] categories(final String[] sample) {
+            final Map<String, int[]> frequency = new HashMap<String, int[]>();
+            for (int r = 0; r < SAMPLE_ROWS; r++) {
+                if (m_sampled[r] && sample[r] != null) {
+                    int[] n = frequency.get(sample[r]);
+                    if (n == null) {
+                        frequency.put(sample[r], new int[]{1});
+                    } else {
+                        n[0]++;
+                    }
+                }
+            }
+            List<String> categories = new ArrayList<String>(frequency.keySet());
+            Collections.sort(categories, new Comparator<String>() {
+                @Override
+                public int compare(final String a, final String b) {
+                    int byCount = Integer.compare(frequency.get(b)[0],
+                            frequency.get(a)[0]);
+                    return byCount != 0 ? byCount : a.compareTo(b);
+                }
+            });
+            return categories.subList(0, Math.min(BINS, categories.size()))
+                    .toArray(new String[0]);
+        }
+
+        /** @return the bin of the cell of a feature */
+        int bin(final int f, final DataCell cell) {
+            int missing = m_bins[f] - 1;
+            if (cell.isMissing()) {
+                return missing;
+            }
+            if (!m_numeric[f]) {
+                Integer b = m_categoryBins.get(f).get(cell.toString());
+                // the bin after the categories holds all others
+                return b == null ? missing - 1 : b;
+            }
+            if (!(cell instanceof DoubleValue)) {
+                return missing;
+            }
+            double value = ((DoubleValue)cell).getDoubleValue();
+            if (Double.isNaN(value)) {
+                return missing;
+            }
+            // the number of edges at most the value
+            final double[] edges = m_edges[f];
+            int low = 0;
+            int high = edges.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (edges[mid] <= value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+
+    /** The histograms of the rows of one thread. */
+    final class Counts implements Accumulator {
+
+        /** rows seen before the bins were known. */
+        private final List<DataRow> m_pending = new ArrayList<DataRow>();
+
+        /** per feature the bins of all classes, class after class. */
+        private int[][] m_byActual;
+
+        private int[][] m_byPredicted;
+
+        /** per numeric feature the smallest and largest value. */
+        private double[] m_min;
+
+        private double[] m_max;
+
+        private Binning m_binning;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            if (rowIndex < SAMPLE_ROWS && m_binning == null) {
+                sample(row, (int)rowIndex);
+            }
+            if (m_binning == null) {
+                Binning binning = FeatureHistograms.this.m_binning;
+                if (binning == null) {
+                    m_pending.add(row);
+                    return;
+                }
+                start(binning);
+            }
+            count(row);
+        }
+
+        /** Creates the arrays and counts the pending rows. */
+        private void start(final Binning binning) {
+            m_binning = binning;
+            final int classes = m_classes.length + 1;
+            m_byActual = new int[m_features.length][];
+            m_byPredicted = new int[m_features.length][];
+            for (int f = 0; f < m_features.length; f++) {
+                m_byActual[f] = new int[classes * binning.m_bins[f]];
+                m_byPredicted[f] = new int[classes * binning.m_bins[f]];
+            }
+            m_min = new double[m_features.length];
+            m_max = new double[m_features.length];
+            Arrays.fill(m_min, Double.POSITIVE_INFINITY);
+            Arrays.fill(m_max, Double.NEGATIVE_INFINITY);
+            for (DataRow row : m_pending) {
+                count(row);
+            }
+            m_pending.clear();
+        }
+
+        private void count(final DataRow row) {
+            final Binning binning = m_binning;
+            int actual = classIndex(row.getCell(m_actualColumn));
+            int predicted = classIndex(row.getCell(m_predictedColumn));
+            for (int f = 0; f < m_features.length; f++) {
+                DataCell cell = row.getCell(m_features[f]);
+                int bin = binning.bin(f, cell);
+                final int bins = binning.m_bins[f];
+                if (actual >= 0) {
+                    m_byActual[f][actual * bins + bin]++;
+                }
+                if (predicted >= 0) {
+                    m_byPredicted[f][predicted * bins + bin]++;
+                }
+                if (m_numeric[f] && bin < bins - 1) {
+                    double value = ((DoubleValue)cell).getDoubleValue();
+                    m_min[f] = Math.min(m_min[f], value);
+                    m_max[f] = Math.max(m_max[f], value);
+                }
+            }
+        }
+
+        /** @return the index of the class, -1 if missing */
+        private int classIndex(final DataCell cell) {
+            if (cell.isMissing()) {
+                return -1;
+            }
+            Integer c = m_classIndex.get(cell.toString());
+            return c == null ? m_classes.length : c;
+        }
+    }
+
+    /**
+     * Writes the classes (the last index stands for other labels) and per
+     * feature its name, its bins (the lower bounds of all but the first
+     * bin of numeric features, with minimum and maximum, or the categories
+     * of the others, followed by the bin of other categories) and the
+     * counts per bin of every actual and predicted class. The last bin of
+     * every feature counts the missing values.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        if (m_binning == null) {
+            // fewer rows than the sample
+            m_binning = new Binning();
+        }
+        final Binning binning = m_binning;
+        for (Counts counts : m_counts) {
+            if (counts.m_binning == null) {
+                counts.start(binning);
+            }
+        }
+        final int classes = m_classes.length + 1;
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("sampleRows").value(m_sampleCount);
+        json.name("classes").beginArray();
+        for (String name : m_classes) {
+            json.value(name);
+        }
+        json.endArray();
+        json.name("features").beginArray();
+        for (int f = 0; f < m_features.length; f++) {
+            final int bins = binning.m_bins[f];
+            long[] byActual = new long[classes * bins];
+            long[] byPredicted = new long[classes * bins];
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            for (Counts counts : m_counts) {
+                for (int i = 0; i < byActual.length; i++) {
+                    byActual[i] += counts.m_byActual[f][i];
+                    byPredicted[i] += counts.m_byPredicted[f][i];
+                }
+                min = Math.min(min, counts.m_min[f]);
+                max = Math.max(max, counts.m_max[f]);
+            }
+            json.beginObject();
+            json.name("name").value(m_names[f]);
+            if (m_numeric[f]) {
+                json.name("type").value("numeric");
+                json.name("min").value(min);
+                json.name("max").value(max);
+                json.name("edges").beginArray();
+                for (double edge : binning.m_edges[f]) {
+                    json.value(edge);
+                }
+                json.endArray();
+            } else {
+                json.name("type").value("nominal");
+                json.name("categories").beginArray();
+                for (String category : binning.m_categories[f]) {
+                    json.value(category);
+                }
+                json.endArray();
+            }
+            writeCounts(json, "actual", byActual, classes, bins);
+            writeCounts(json, "predicted", byPredicted, classes, bins);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private static void writeCounts(final JsonWriter json, final String name,
+            final long[] counts, final int classes, final int bins)
+            throws IOException {
+        json.name(name).beginArray();
+        for (int c = 0; c < classes; c++) {
+            json.beginArray();
+            for (int b = 0; b < bins; b++) {
+                json.value(counts[c * bins + b]);
+            }
+            json.endArray();
+        }
+        json.endArray();
+    }
+}
@@ -24,6 +24,18 @@ public class FileWriterSettings {
         REPLACE
     }
 
+    /** How the class probabilities are stored. */
+    public enum ProbabilityQuantization {
+        /** full precision decimals (or rounded to the configured digits). */
+        NONE,
+        /** IEEE half precision (16 bit) floats. */
+        FLOAT16,
+        /** 16 bit fixed point codes of the unit interval. */
+        FIXED16,
+        /** 8 bit fixed point codes, scaled to keep the error bound. */
+        FIXED8
+    }
+
     /**
      * Mode specifying how to end a line in the file written.
      */
@@ -73,6 +85,71 @@ public class FileWriterSettings {
 
     private static final String CFGKEY_CHARENCODING = "charSet";
 
+    private static final String CFGKEY_PROB_PRECISION = "probabilityPrecision";
+
+    private static final String CFGKEY_BYTE_OUTPUT = "byteOutput";
+
+    private static final String CFGKEY_OUTPUT_BUFFER = "outputBufferSize";
+
+    private static final String CFGKEY_PARALLELISM = "parallelism";
+
+    private static final String CFGKEY_PIPELINED = "pipelinedOutput";
+
+    private static final String CFGKEY_EXPORT_FEATURES = "exportFeatures";
+
+    private static final String CFGKEY_COMPRESS = "compressOutput";
+
+    private static final String CFGKEY_COMPRESSION_LEVEL = "compressionLevel";
+
+    private static final String CFGKEY_COMPRESSION_BLOCK = "compressionBlockSize";
+
+    private static final String CFGKEY_RESUMABLE_UPLOAD = "resumableUpload";
+
+    private static final String CFGKEY_UPLOAD_CHUNK = "uploadChunkSize";
+
+    private static final String CFGKEY_UPLOAD_RETRIES = "uploadRetries";
+
+    private static final String CFGKEY_COMPRESS_UPLOAD = "compressUpload";
+
+    private static final String CFGKEY_ARROW_OUTPUT = "arrowOutput";
+
+    private static final String CFGKEY_QUANTIZATION = "probabilityQuantization";
+
+    private static final String CFGKEY_ERROR_BOUND = "probabilityErrorBound";
+
+    private static final String CFGKEY_SPARSE = "sparseProbabilities";
+
+    private static final String CFGKEY_TOP_K = "probabilityTopK";
+
+    private static final String CFGKEY_THRESHOLD = "probabilityThreshold";
+
+    private static final String CFGKEY_ENCODE_LABELS = "encodeLabels";
+
+    private static final String CFGKEY_WRITE_SUMMARY = "writeSummary";
+
+    private static final String CFGKEY_WRITE_DISTRIBUTIONS = "writeDistributions";
+
+    private static final String CFGKEY_WRITE_FEATURE_HISTOGRAMS =
+            "writeFeatureHistograms";
+
+    private static final String CFGKEY_WRITE_CELL_INDEX = "writeCellIndex";
+
+    private static final String CFGKEY_WRITE_ROW_OFFSETS = "writeRowOffsets";
+
+    private static final String CFGKEY_ROW_OFFSET_INTERVAL = "rowOffsetInterval";
+
+    private static final String CFGKEY_WRITE_ROW_STORE = "writeRowStore";
+
+    private static final String CFGKEY_SERVER_PORT = "serverPort";
+
+    private static final String CFGKEY_PUBLISH_ROWS = "publishRows";
+
+    private static final String CFGKEY_WRITE_CURVES = "writeCurves";
+
+    private static final String CFGKEY_SCORE_MEMORY = "scoreMemory";
+
+    private static final String CFGKEY_SKIP_UNCHANGED = "skipUnchanged";
+
     private String m_colSeparator;
 
     private String m_missValuePattern;
@@ -100,6 +177,88 @@ public class FileWriterSettings {
 
     private String m_encoding; // if null, default encoding is used
 
+    // fraction digits of probabilities, -1 for the shortest exact value
+    private int m_probabilityPrecision;
+
+    // encode UTF-8/ASCII ourselves and write through a channel
+    private boolean m_byteOutput;
+
+    private int m_outputBufferSize; // bytes, only used with m_byteOutput
+
+    private int m_parallelism; // threads encoding rows, 1 writes serially
+
+    // poll, encode and write in separate threads
+    private boolean m_pipelinedOutput;
+
+    private boolean m_exportFeatures; // false writes only A-, Predicted, P-
+
+    // write a multi-member gzip file (out.csv.gz)
+    private boolean m_compressOutput;
+
+    private int m_compressionLevel;
+
+    private int m_compressionBlockSize; // uncompressed bytes per gzip member
+
+    // upload to remote URLs in ranged chunks, resuming failed chunks
+    private boolean m_resumableUpload;
+
+    private int m_uploadChunkSize;
+
+    private int m_uploadRetries;
+
+    // send remote uploads with Content-Encoding: gzip
+    private boolean m_compressUpload;
+
+    // also write the columns as Arrow IPC file (out.arrow)
+    private boolean m_arrowOutput;
+
+    private ProbabilityQuantization m_quantization;
+
+    private double m_errorBound; // of 8 bit probability codes
+
+    // write the top K probabilities per row instead of one column per class
+    private boolean m_sparseProbabilities;
+
+    private int m_topK;
+
+    private double m_threshold; // smallest probability written in sparse mode
+
+    // write the actual and predicted labels as codes of the class dictionary
+    private boolean m_encodeLabels;
+
+    // write the confusion matrix and class metrics to summary.json
+    private boolean m_writeSummary;
+
+    // write the probability sketches and reliability bins to distributions.json
+    private boolean m_writeDistributions;
+
+    // write the histograms of the features per class to features.json
+    private boolean m_writeFeatureHistograms;
+
+    // write the rows of every confusion matrix cell to cells.json
+    private boolean m_writeCellIndex;
+
+    // write the byte offset of every n-th row to offsets.json
+    private boolean m_writeRowOffsets;
+
+    private int m_rowOffsetInterval; // the rows per offset
+
+    // write the length and probabilities of every row to rows.bin
+    private boolean m_writeRowStore;
+
+    private int m_serverPort; // of the view's HTTP server, 0 for any
+
+    // publish the rows to the frontends connected to the view's server
+    private boolean m_publishRows;
+
+    // write the ROC and precision-recall curves to curves.json
+    private boolean m_writeCurves;
+
+    private int m_scoreMemory; // in MB, off-heap memory of the curve scores
+
+    // don't write again if the table, the settings and the outputs are unchanged
+    private boolean m_skipUnchanged;
+
     /**
      * Creates a settings object with default settings (backward compatible to
      * the old CSV writer). I. e. Comma as separator, always quote with double
@@ -122,6 +281,38 @@ public class FileWriterSettings {
 
         m_lineEnding = LineEnding.SYST;
         m_encoding = null; // uses the default
+        m_probabilityPrecision = -1;
+        m_byteOutput = true;
+        m_outputBufferSize = Utf8ChannelWriter.DEFAULT_BUFFER_SIZE;
+        m_parallelism = 1;
+        m_pipelinedOutput = false;
+        m_exportFeatures = true;
+        m_compressOutput = false;
+        m_compressionLevel = ParallelGzipOutputStream.DEFAULT_LEVEL;
+        m_compressionBlockSize = ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE;
+        m_resumableUpload = false;
+        m_uploadChunkSize = ResumableUploadOutputStream.DEFAULT_CHUNK_SIZE;
+        m_uploadRetries = ResumableUploadOutputStream.DEFAULT_RETRIES;
+        m_compressUpload = false;
+        m_arrowOutput = false;
+        m_quantization = ProbabilityQuantization.NONE;
+        m_errorBound = ProbabilityQuantizer.DEFAULT_ERROR_BOUND;
+        m_sparseProbabilities = false;
+        m_topK = TopKSelector.DEFAULT_K;
+        m_threshold = 0;
+        m_encodeLabels = false;
+        m_writeSummary = false;
+        m_writeDistributions = false;
+        m_writeFeatureHistograms = false;
+        m_writeCellIndex = false;
+        m_writeRowOffsets = false;
+        m_rowOffsetInterval = RowOffsets.DEFAULT_INTERVAL;
+        m_writeRowStore = false;
+        m_serverPort = 0;
+        m_publishRows = false;
+        m_writeCurves = false;
+        m_scoreMemory = ScoreCurves.DEFAULT_MEMORY_MB;
+        m_skipUnchanged = false;
     }
 
     /**
@@ -143,6 +334,38 @@ public class FileWriterSettings {
         m_decimalSeparator = settings.m_decimalSeparator;
         m_lineEnding = settings.m_lineEnding;
         m_encoding = settings.m_encoding;
+        m_probabilityPrecision = settings.m_probabilityPrecision;
+        m_byteOutput = settings.m_byteOutput;
+        m_outputBufferSize = settings.m_outputBufferSize;
+        m_parallelism = settings.m_parallelism;
+        m_pipelinedOutput = settings.m_pipelinedOutput;
+        m_exportFeatures = settings.m_exportFeatures;
+        m_compressOutput = settings.m_compressOutput;
+        m_compressionLevel = settings.m_compressionLevel;
+        m_compressionBlockSize = settings.m_compressionBlockSize;
+        m_resumableUpload = settings.m_resumableUpload;
+        m_uploadChunkSize = settings.m_uploadChunkSize;
+        m_uploadRetries = settings.m_uploadRetries;
+        m_compressUpload = settings.m_compressUpload;
+        m_arrowOutput = settings.m_arrowOutput;
+        m_quantization = settings.m_quantization;
+        m_errorBound = settings.m_errorBound;
+        m_sparseProbabilities = settings.m_sparseProbabilities;
+        m_topK = settings.m_topK;
+        m_threshold = settings.m_threshold;
+        m_encodeLabels = settings.m_encodeLabels;
+        m_writeSummary = settings.m_writeSummary;
+        m_writeDistributions = settings.m_writeDistributions;
+        m_writeFeatureHistograms = settings.m_writeFeatureHistograms;
+        m_writeCellIndex = settings.m_writeCellIndex;
+        m_writeRowOffsets = settings.m_writeRowOffsets;
+        m_rowOffsetInterval = settings.m_rowOffsetInterval;
+        m_writeRowStore = settings.m_writeRowStore;
+        m_serverPort = settings.m_serverPort;
+        m_publishRows = settings.m_publishRows;
+        m_writeCurves = settings.m_writeCurves;
+        m_scoreMemory = settings.m_scoreMemory;
+        m_skipUnchanged = settings.m_skipUnchanged;
     }
 
     /**
@@ -185,6 +408,56 @@ public class FileWriterSettings {
         }
         // since 3.1
         m_encoding = settings.getString(CFGKEY_CHARENCODING, null);
+        // Classilist options
+        m_probabilityPrecision = settings.getInt(CFGKEY_PROB_PRECISION, -1);
+        m_byteOutput = settings.getBoolean(CFGKEY_BYTE_OUTPUT, true);
+        m_outputBufferSize = settings.getInt(CFGKEY_OUTPUT_BUFFER,
+                Utf8ChannelWriter.DEFAULT_BUFFER_SIZE);
+        m_parallelism = settings.getInt(CFGKEY_PARALLELISM, 1);
+        m_pipelinedOutput = settings.getBoolean(CFGKEY_PIPELINED, false);
+        m_exportFeatures = settings.getBoolean(CFGKEY_EXPORT_FEATURES, true);
+        m_compressOutput = settings.getBoolean(CFGKEY_COMPRESS, false);
+        m_compressionLevel = settings.getInt(CFGKEY_COMPRESSION_LEVEL,
+                ParallelGzipOutputStream.DEFAULT_LEVEL);
+        m_compressionBlockSize = settings.getInt(CFGKEY_COMPRESSION_BLOCK,
+                ParallelGzipOutputStream.DEFAULT_BLOCK_SIZE);
+        m_resumableUpload = settings.getBoolean(CFGKEY_RESUMABLE_UPLOAD, false);
+        m_uploadChunkSize = settings.getInt(CFGKEY_UPLOAD_CHUNK,
+                ResumableUploadOutputStream.DEFAULT_CHUNK_SIZE);
+        m_uploadRetries = settings.getInt(CFGKEY_UPLOAD_RETRIES,
+                ResumableUploadOutputStream.DEFAULT_RETRIES);
+        m_compressUpload = settings.getBoolean(CFGKEY_COMPRESS_UPLOAD, false);
+        m_arrowOutput = settings.getBoolean(CFGKEY_ARROW_OUTPUT, false);
+        String quantization = settings.getString(CFGKEY_QUANTIZATION,
+                ProbabilityQuantization.NONE.name());
+        try {
+            m_quantization = Enum.valueOf(ProbabilityQuantization.class,
+                    quantization);
+        } catch (IllegalArgumentException iae) {
+            throw new InvalidSettingsException("Specified probability "
+                    + "quantization ('" + quantization + "') is unknown.");
+        }
+        m_errorBound = settings.getDouble(CFGKEY_ERROR_BOUND,
+                ProbabilityQuantizer.DEFAULT_ERROR_BOUND);
+        m_sparseProbabilities = settings.getBoolean(CFGKEY_SPARSE, false);
+        m_topK = settings.getInt(CFGKEY_TOP_K, TopKSelector.DEFAULT_K);
+        m_threshold = settings.getDouble(CFGKEY_THRESHOLD, 0);
+        m_encodeLabels = settings.getBoolean(CFGKEY_ENCODE_LABELS, false);
+        m_writeSummary = settings.getBoolean(CFGKEY_WRITE_SUMMARY, false);
+        m_writeDistributions = settings.getBoolean(CFGKEY_WRITE_DISTRIBUTIONS, false);
+        m_writeFeatureHistograms =
+                settings.getBoolean(CFGKEY_WRITE_FEATURE_HISTOGRAMS, false);
+        m_writeCellIndex = settings.getBoolean(CFGKEY_WRITE_CELL_INDEX, false);
+        m_writeRowOffsets = settings.getBoolean(CFGKEY_WRITE_ROW_OFFSETS, false);
+        m_rowOffsetInterval = settings.getInt(CFGKEY_ROW_OFFSET_INTERVAL,
+                RowOffsets.DEFAULT_INTERVAL);
+        m_writeRowStore = settings.getBoolean(CFGKEY_WRITE_ROW_STORE, false);
+        m_serverPort = settings.getInt(CFGKEY_SERVER_PORT, 0);
+        m_publishRows = settings.getBoolean(CFGKEY_PUBLISH_ROWS, false);
+        m_writeCurves = settings.getBoolean(CFGKEY_WRITE_CURVES, false);
+        m_scoreMemory = settings.getInt(CFGKEY_SCORE_MEMORY,
+                ScoreCurves.DEFAULT_MEMORY_MB);
+        m_skipUnchanged = settings.getBoolean(CFGKEY_SKIP_UNCHANGED, false);
     }
 
     /**
@@ -210,6 +483,39 @@ public class FileWriterSettings {
         settings.addChar(CFGKEY_DEC_SEPARATOR, m_decimalSeparator);
         settings.addString(CFGKEY_LINEENDING, m_lineEnding.name());
         settings.addString(CFGKEY_CHARENCODING, m_encoding);
+        settings.addInt(CFGKEY_PROB_PRECISION, m_probabilityPrecision);
+        settings.addBoolean(CFGKEY_BYTE_OUTPUT, m_byteOutput);
+        settings.addInt(CFGKEY_OUTPUT_BUFFER, m_outputBufferSize);
+        settings.addInt(CFGKEY_PARALLELISM, m_parallelism);
+        settings.addBoolean(CFGKEY_PIPELINED, m_pipelinedOutput);
+        settings.addBoolean(CFGKEY_EXPORT_FEATURES, m_exportFeatures);
+        settings.addBoolean(CFGKEY_COMPRESS, m_compressOutput);
+        settings.addInt(CFGKEY_COMPRESSION_LEVEL, m_compressionLevel);
+        settings.addInt(CFGKEY_COMPRESSION_BLOCK, m_compressionBlockSize);
+        settings.addBoolean(CFGKEY_RESUMABLE_UPLOAD, m_resumableUpload);
+        settings.addInt(CFGKEY_UPLOAD_CHUNK, m_uploadChunkSize);
+        settings.addInt(CFGKEY_UPLOAD_RETRIES, m_uploadRetries);
+        settings.addBoolean(CFGKEY_COMPRESS_UPLOAD, m_compressUpload);
+        settings.addBoolean(CFGKEY_ARROW_OUTPUT, m_arrowOutput);
+        settings.addString(CFGKEY_QUANTIZATION, m_quantization.name());
+        settings.addDouble(CFGKEY_ERROR_BOUND, m_errorBound);
+        settings.addBoolean(CFGKEY_SPARSE, m_sparseProbabilities);
+        settings.addInt(CFGKEY_TOP_K, m_topK);
+        settings.addDouble(CFGKEY_THRESHOLD, m_threshold);
+        settings.addBoolean(CFGKEY_ENCODE_LABELS, m_encodeLabels);
+        settings.addBoolean(CFGKEY_WRITE_SUMMARY, m_writeSummary);
+        settings.addBoolean(CFGKEY_WRITE_DISTRIBUTIONS, m_writeDistributions);
+        settings.addBoolean(CFGKEY_WRITE_FEATURE_HISTOGRAMS,
+                m_writeFeatureHistograms);
+        settings.addBoolean(CFGKEY_WRITE_CELL_INDEX, m_writeCellIndex);
+        settings.addBoolean(CFGKEY_WRITE_ROW_OFFSETS, m_writeRowOffsets);
+        settings.addInt(CFGKEY_ROW_OFFSET_INTERVAL, m_rowOffsetInterval);
+        settings.addBoolean(CFGKEY_WRITE_ROW_STORE, m_writeRowStore);
+        settings.addInt(CFGKEY_SERVER_PORT, m_serverPort);
+        settings.addBoolean(CFGKEY_PUBLISH_ROWS, m_publishRows);
+        settings.addBoolean(CFGKEY_WRITE_CURVES, m_writeCurves);
+        settings.addInt(CFGKEY_SCORE_MEMORY, m_scoreMemory);
+        settings.addBoolean(CFGKEY_SKIP_UNCHANGED, m_skipUnchanged);
     }
 
     /*
@@ -412,6 +718,490 @@ public class FileWriterSettings {
         m_encoding = charSet;
     }
 
+    /**
+     * @return the number of fraction digits probabilities are rounded to, or
+     *         -1 if they are written with the shortest representation that
+     *         reads back as the same double
+     */
+    public int getProbabilityPrecision() {
+        return m_probabilityPrecision;
+    }
+
+    /**
+     * @param precision the number of fraction digits probabilities are
+     *            rounded to, -1 for full precision
+     */
+    public void setProbabilityPrecision(final int precision) {
+        m_probabilityPrecision = precision;
+    }
+
+    /**
+     * @return true if UTF-8 and US-ASCII output is encoded by the writer
+     *         itself and written through a channel (other encodings always
+     *         use the JDK encoder)
+     */
+    public boolean useByteOutput() {
+        return m_byteOutput;
+    }
+
+    /**
+     * @param byteOutput true to encode UTF-8 and US-ASCII output directly
+     */
+    public void setByteOutput(final boolean byteOutput) {
+        m_byteOutput = byteOutput;
+    }
+
+    /**
+     * @return the size of the direct byte buffer of the byte output in bytes
+     */
+    public int getOutputBufferSize() {
+        return m_outputBufferSize;
+    }
+
+    /**
+     * @param bufferSize the size of the direct byte buffer of the byte output
+     *            in bytes
+     */
+    public void setOutputBufferSize(final int bufferSize) {
+        m_outputBufferSize = bufferSize;
+    }
+
+    /**
+     * @return the number of threads encoding rows in parallel, 1 to encode
+     *         all rows in the writing thread
+     */
+    public int getParallelism() {
+        return m_parallelism;
+    }
+
+    /**
+     * @param parallelism the number of threads encoding rows in parallel
+     */
+    public void setParallelism(final int parallelism) {
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * @return true if streamed input is polled, encoded and written by
+     *         separate threads connected by bounded queues
+     */
+    public boolean usePipelinedOutput() {
+        return m_pipelinedOutput;
+    }
+
+    /**
+     * @param pipelinedOutput true to poll, encode and write in separate
+     *            threads
+     */
+    public void setPipelinedOutput(final boolean pipelinedOutput) {
+        m_pipelinedOutput = pipelinedOutput;
+    }
+
+    /**
+     * @return true if the feature columns (F-) are written, false to write
+     *         only the actual, predicted and probability columns
+     */
+    public boolean exportFeatures() {
+        return m_exportFeatures;
+    }
+
+    /**
+     * @param exportFeatures false to leave out the feature columns
+     */
+    public void setExportFeatures(final boolean exportFeatures) {
+        m_exportFeatures = exportFeatures;
+    }
+
+    /**
+     * @return true if the output is written gzip compressed, to the file
+     *         name with ".gz" appended
+     */
+    public boolean compressOutput() {
+        return m_compressOutput;
+    }
+
+    /**
+     * @param compressOutput true to write a gzip compressed file
+     */
+    public void setCompressOutput(final boolean compressOutput) {
+        m_compressOutput = compressOutput;
+    }
+
+    /**
+     * @return the deflate compression level (0-9) of the compressed output
+     */
+    public int getCompressionLevel() {
+        return m_compressionLevel;
+    }
+
+    /**
+     * @param level the deflate compression level (0-9)
+     */
+    public void setCompressionLevel(final int level) {
+        m_compressionLevel = level;
+    }
+
+    /**
+     * @return the number of uncompressed bytes compressed into one gzip
+     *         member, independently of the others
+     */
+    public int getCompressionBlockSize() {
+        return m_compressionBlockSize;
+    }
+
+    /**
+     * @param blockSize the number of uncompressed bytes per gzip member
+     */
+    public void setCompressionBlockSize(final int blockSize) {
+        m_compressionBlockSize = blockSize;
+    }
+
+    /**
+     * @return true if remote (http) targets are uploaded in chunks, each in a
+     *         request of its own, so a failed chunk can be sent again
+     */
+    public boolean useResumableUpload() {
+        return m_resumableUpload;
+    }
+
+    /**
+     * @param resumableUpload true to upload remote targets in chunks
+     */
+    public void setResumableUpload(final boolean resumableUpload) {
+        m_resumableUpload = resumableUpload;
+    }
+
+    /**
+     * @return the number of bytes per upload request
+     */
+    public int getUploadChunkSize() {
+        return m_uploadChunkSize;
+    }
+
+    /**
+     * @param chunkSize the number of bytes per upload request
+     */
+    public void setUploadChunkSize(final int chunkSize) {
+        m_uploadChunkSize = chunkSize;
+    }
+
+    /**
+     * @return the number of times a failed upload chunk is sent again
+     */
+    public int getUploadRetries() {
+        return m_uploadRetries;
+    }
+
+    /**
+     * @param retries the number of times a failed upload chunk is sent again
+     */
+    public void setUploadRetries(final int retries) {
+        m_uploadRetries = retries;
+    }
+
+    /**
+     * @return true if uploads to remote targets are gzip compressed and sent
+     *         with <code>Content-Encoding: gzip</code>
+     */
+    public boolean compressUpload() {
+        return m_compressUpload;
+    }
+
+    /**
+     * @param compressUpload true to send remote uploads gzip encoded
+     */
+    public void setCompressUpload(final boolean compressUpload) {
+        m_compressUpload = compressUpload;
+    }
+
+    /**
+     * @return true if the exported columns are also written as Arrow IPC
+     *         file, next to the CSV file
+     */
+    public boolean arrowOutput() {
+        return m_arrowOutput;
+    }
+
+    /**
+     * @param arrowOutput true to also write an Arrow IPC file
+     */
+    public void setArrowOutput(final boolean arrowOutput) {
+        m_arrowOutput = arrowOutput;
+    }
+
+    /**
+     * @return how the class probabilities are stored
+     */
+    public ProbabilityQuantization getProbabilityQuantization() {
+        return m_quantization;
+    }
+
+    /**
+     * @param quantization how the class probabilities are stored
+     */
+    public void setProbabilityQuantization(
+            final ProbabilityQuantization quantization) {
+        m_quantization = quantization;
+    }
+
+    /**
+     * @return the largest error of 8 bit probability codes
+     */
+    public double getProbabilityErrorBound() {
+        return m_errorBound;
+    }
+
+    /**
+     * @param errorBound the largest error of 8 bit probability codes
+     */
+    public void setProbabilityErrorBound(final double errorBound) {
+        m_errorBound = errorBound;
+    }
+
+    /**
+     * @return true if only the K largest probabilities of a row are written
+     *         (with their class codes and the residual mass)
+     */
+    public boolean sparseProbabilities() {
+        return m_sparseProbabilities;
+    }
+
+    /**
+     * @param sparse true to write only the K largest probabilities of a row
+     */
+    public void setSparseProbabilities(final boolean sparse) {
+        m_sparseProbabilities = sparse;
+    }
+
+    /**
+     * @return the number of probabilities written per row in sparse mode
+     */
+    public int getProbabilityTopK() {
+        return m_topK;
+    }
+
+    /**
+     * @param topK the number of probabilities written per row in sparse mode
+     */
+    public void setProbabilityTopK(final int topK) {
+        m_topK = topK;
+    }
+
+    /**
+     * @return the smallest probability written in sparse mode, smaller ones
+     *         only count to the residual mass
+     */
+    public double getProbabilityThreshold() {
+        return m_threshold;
+    }
+
+    /**
+     * @param threshold the smallest probability written in sparse mode
+     */
+    public void setProbabilityThreshold(final double threshold) {
+        m_threshold = threshold;
+    }
+
+    /**
+     * @return true if the actual and predicted class labels are written as
+     *         codes of the class dictionary
+     */
+    public boolean encodeLabels() {
+        return m_encodeLabels;
+    }
+
+    /**
+     * @param encodeLabels true to write the class labels as codes
+     */
+    public void setEncodeLabels(final boolean encodeLabels) {
+        m_encodeLabels = encodeLabels;
+    }
+
+    /**
+     * @return true if the confusion matrix and the metrics per class are
+     *         written to summary.json next to the output file
+     */
+    public boolean writeSummary() {
+        return m_writeSummary;
+    }
+
+    /**
+     * @param writeSummary true to write summary.json
+     */
+    public void setWriteSummary(final boolean writeSummary) {
+        m_writeSummary = writeSummary;
+    }
+
+    /**
+     * @return true if the distribution and reliability bins of every
+     *         probability column are written to distributions.json next to
+     *         the output file
+     */
+    public boolean writeDistributions() {
+        return m_writeDistributions;
+    }
+
+    /**
+     * @param writeDistributions true to write distributions.json
+     */
+    public void setWriteDistributions(final boolean writeDistributions) {
+        m_writeDistributions = writeDistributions;
+    }
+
+    /**
+     * @return true if the histograms of the written feature columns per
+     *         actual and predicted class are written to features.json next
+     *         to the output file
+     */
+    public boolean writeFeatureHistograms() {
+        return m_writeFeatureHistograms;
+    }
+
+    /**
+     * @param writeFeatureHistograms true to write features.json
+     */
+    public void setWriteFeatureHistograms(
+            final boolean writeFeatureHistograms) {
+        m_writeFeatureHistograms = writeFeatureHistograms;
+    }
+
+    /**
+     * @return true if the rows of every cell of the confusion matrix are
+     *         written as bitmaps to cells.json next to the output file
+     */
+    public boolean writeCellIndex() {
+        return m_writeCellIndex;
+    }
+
+    /**
+     * @param writeCellIndex true to write cells.json
+     */
+    public void setWriteCellIndex(final boolean writeCellIndex) {
+        m_writeCellIndex = writeCellIndex;
+    }
+
+    /**
+     * @return true if the byte offset of every n-th row is written to
+     *         offsets.json next to the output file
+     */
+    public boolean writeRowOffsets() {
+        return m_writeRowOffsets;
+    }
+
+    /**
+     * @param writeRowOffsets true to write offsets.json
+     */
+    public void setWriteRowOffsets(final boolean writeRowOffsets) {
+        m_writeRowOffsets = writeRowOffsets;
+    }
+
+    /**
+     * @return the number of rows per offset in offsets.json
+     */
+    public int getRowOffsetInterval() {
+        return m_rowOffsetInterval;
+    }
+
+    /**
+     * @param rowOffsetInterval the number of rows per offset
+     */
+    public void setRowOffsetInterval(final int rowOffsetInterval) {
+        m_rowOffsetInterval = rowOffsetInterval;
+    }
+
+    /**
+     * @return true if the length and probabilities of every row are written
+     *         to rows.bin next to the output file (with the row offsets)
+     */
+    public boolean writeRowStore() {
+        return m_writeRowStore;
+    }
+
+    /**
+     * @param writeRowStore true to write rows.bin and rows.json
+     */
+    public void setWriteRowStore(final boolean writeRowStore) {
+        m_writeRowStore = writeRowStore;
+    }
+
+    /**
+     * @return the port of the HTTP server the node view opens the
+     *         installation with, 0 for any free port
+     */
+    public int getServerPort() {
+        return m_serverPort;
+    }
+
+    /**
+     * @param serverPort the port of the view's HTTP server, 0 for any
+     */
+    public void setServerPort(final int serverPort) {
+        m_serverPort = serverPort;
+    }
+
+    /**
+     * @return true if streamed rows are published to the frontends
+     *         connected to the view's HTTP server while they are written
+     */
+    public boolean publishRows() {
+        return m_publishRows;
+    }
+
+    /**
+     * @param publishRows true to publish the rows while they are written
+     */
+    public void setPublishRows(final boolean publishRows) {
+        m_publishRows = publishRows;
+    }
+
+    /**
+     * @return true if the ROC and precision-recall curves of every
+     *         probability column are written to curves.json next to the
+     *         output file
+     */
+    public boolean writeCurves() {
+        return m_writeCurves;
+    }
+
+    /**
+     * @param writeCurves true to write curves.json
+     */
+    public void setWriteCurves(final boolean writeCurves) {
+        m_writeCurves = writeCurves;
+    }
+
+    /**
+     * @return the memory (off the heap) in MB for the scores of the curves,
+     *         more are spilled to disk
+     */
+    public int getScoreMemory() {
+        return m_scoreMemory;
+    }
+
+    /**
+     * @param scoreMemory the memory for the scores of the curves in MB
+     */
+    public void setScoreMemory(final int scoreMemory) {
+        m_scoreMemory = scoreMemory;
+    }
+
+    /**
+     * @return true if an overwritten local file is not written again while
+     *         the table, the settings and all written files are unchanged;
+     *         the rows are hashed while written and the table is read twice
+     *         when the files are unchanged
+     */
+    public boolean skipUnchanged() {
+        return m_skipUnchanged;
+    }
+
+    /**
+     * @param skipUnchanged true to skip writing unchanged output
+     */
+    public void setSkipUnchanged(final boolean skipUnchanged) {
+        m_skipUnchanged = skipUnchanged;
+    }
+
     /**
      * takes a string that could contain "\t", or "\n", or "\\", and returns a
      * corresponding string with these patterns replaced by the characters '\t',
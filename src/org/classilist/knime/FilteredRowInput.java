@@ -0,0 +1,52 @@
+package org.classilist.knime;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.container.filter.TableFilter;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.streamable.RowInput;
+
+/**
+ * Row input over a filtered iterator of a {@link BufferedDataTable}, e.g. to
+ * have only the exported columns materialized.
+ */
+final class FilteredRowInput extends RowInput {
+
+    private final BufferedDataTable m_table;
+
+    private final CloseableRowIterator m_iterator;
+
+    /**
+     * @param table the table to read
+     * @param filter the filter applied while reading
+     */
+    FilteredRowInput(final BufferedDataTable table, final TableFilter filter) {
+        m_table = table;
+        m_iterator = table.filter(filter);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataTableSpec getDataTableSpec() {
+        return m_table.getDataTableSpec();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataRow poll() {
+        return m_iterator.hasNext() ? m_iterator.next() : null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        m_iterator.close();
+    }
+}
@@ -0,0 +1,233 @@
+package org.classilist.knime;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal builder of FlatBuffers, as needed for the Arrow IPC metadata:
+ * tables with scalar, offset and union fields, strings and vectors of
+ * offsets or structs. Like the reference builder it writes back to front,
+ * so objects have to be finished before the objects referring to them;
+ * offsets returned are counted from the end of the buffer.
+ */
+final class FlatBufferBuilder {
+
+    private ByteBuffer m_bb;
+
+    /** free bytes in front of the data written so far. */
+    private int m_space;
+
+    private int m_minAlign = 1;
+
+    /** field positions of the table being built, 0 for absent fields. */
+    private int[] m_vtable;
+
+    private int m_objectStart;
+
+    /**
+     * @param initialSize the initial capacity in bytes, grown as needed
+     */
+    FlatBufferBuilder(final int initialSize) {
+        m_bb = ByteBuffer.allocate(Math.max(initialSize, 64))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        m_space = m_bb.capacity();
+    }
+
+    /** @return the offset of the last object written */
+    int offset() {
+        return m_bb.capacity() - m_space;
+    }
+
+    /**
+     * Pads, so that <code>size</code> bytes can be written aligned after
+     * <code>additional</code> bytes are written.
+     */
+    void prep(final int size, final int additional) {
+        if (size > m_minAlign) {
+            m_minAlign = size;
+        }
+        int alignSize = (~(m_bb.capacity() - m_space + additional) + 1)
+                & (size - 1);
+        while (m_space < alignSize + size + additional) {
+            int oldCapacity = m_bb.capacity();
+            ByteBuffer grown = ByteBuffer.allocate(2 * oldCapacity)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            grown.position(oldCapacity);
+            grown.put(m_bb.array(), 0, oldCapacity);
+            m_bb = grown;
+            m_space += oldCapacity;
+        }
+        pad(alignSize);
+    }
+
+    /** Writes zero bytes. */
+    void pad(final int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            m_bb.put(--m_space, (byte)0);
+        }
+    }
+
+    /** Writes the value, already aligned. */
+    void putByte(final byte value) {
+        m_bb.put(--m_space, value);
+    }
+
+    /** Writes the value, already aligned. */
+    void putShort(final short value) {
+        m_space -= 2;
+        m_bb.putShort(m_space, value);
+    }
+
+    /** Writes the value, already aligned. */
+    void putInt(final int value) {
+        m_space -= 4;
+        m_bb.putInt(m_space, value);
+    }
+
+    /** Writes the value, already aligned. */
+    void putLong(final long value) {
+        m_space -= 8;
+        m_bb.putLong(m_space, value);
+    }
+
+    private void addShort(final short value) {
+        prep(2, 0);
+        putShort(value);
+    }
+
+    private void addInt(final int value) {
+        prep(4, 0);
+        putInt(value);
+    }
+
+    /** Writes an offset to an object written before. */
+    private void addOffset(final int offset) {
+        prep(4, 0);
+        putInt(offset() - offset + 4);
+    }
+
+    /**
+     * @param value the string
+     * @return the offset of the (UTF-8, zero terminated) string
+     */
+    int createString(final String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        prep(4, bytes.length + 1);
+        putByte((byte)0);
+        m_space -= bytes.length;
+        System.arraycopy(bytes, 0, m_bb.array(), m_space, bytes.length);
+        putInt(bytes.length);
+        return offset();
+    }
+
+    /**
+     * @param offsets the offsets of the elements, in order
+     * @return the offset of the vector
+     */
+    int createOffsetVector(final int[] offsets) {
+        startVector(4, offsets.length, 4);
+        for (int i = offsets.length - 1; i >= 0; i--) {
+            addOffset(offsets[i]);
+        }
+        return endVector(offsets.length);
+    }
+
+    /**
+     * Starts a vector, the elements are then written in reverse order.
+     *
+     * @param elementSize the size of an element in bytes
+     * @param count the number of elements
+     * @param alignment the alignment of the elements
+     */
+    void startVector(final int elementSize, final int count,
+            final int alignment) {
+        prep(4, elementSize * count);
+        prep(alignment, elementSize * count);
+    }
+
+    /**
+     * @param count the number of elements written
+     * @return the offset of the vector
+     */
+    int endVector(final int count) {
+        putInt(count);
+        return offset();
+    }
+
+    /**
+     * @param fieldCount the number of fields of the table type
+     */
+    void startTable(final int fieldCount) {
+        m_vtable = new int[fieldCount];
+        m_objectStart = offset();
+    }
+
+    /** Adds a byte field (also bool, ubyte enums and union types). */
+    void addByte(final int field, final int value) {
+        prep(1, 0);
+        putByte((byte)value);
+        m_vtable[field] = offset();
+    }
+
+    /** Adds a short field (also short enums). */
+    void addShort(final int field, final int value) {
+        addShort((short)value);
+        m_vtable[field] = offset();
+    }
+
+    /** Adds an int field. */
+    void addInt(final int field, final int value) {
+        addInt(value);
+        m_vtable[field] = offset();
+    }
+
+    /** Adds a long field. */
+    void addLong(final int field, final long value) {
+        prep(8, 0);
+        putLong(value);
+        m_vtable[field] = offset();
+    }
+
+    /** Adds an offset field (string, vector, table, union value). */
+    void addOffset(final int field, final int offset) {
+        addOffset(offset);
+        m_vtable[field] = offset();
+    }
+
+    /**
+     * Finishes the table with its vtable.
+     *
+     * @return the offset of the table
+     */
+    int endTable() {
+        addInt(0); // replaced by the offset to the vtable
+        final int objectOffset = offset();
+        int fieldCount = m_vtable.length;
+        while (fieldCount > 0 && m_vtable[fieldCount - 1] == 0) {
+            fieldCount--;
+        }
+        for (int i = fieldCount - 1; i >= 0; i--) {
+            addShort((short)(m_vtable[i] != 0 ? objectOffset - m_vtable[i] : 0));
+        }
+        addShort((short)(objectOffset - m_objectStart));
+        addShort((short)((fieldCount + 2) * 2));
+        m_bb.putInt(m_bb.capacity() - objectOffset, offset() - objectOffset);
+        m_vtable = null;
+        return objectOffset;
+    }
+
+    /**
+     * Writes the offset to the root table.
+     *
+     * @param root the offset of the root table
+     * @return the finished buffer, from its position to its limit
+     */
+    ByteBuffer finish(final int root) {
+        prep(m_minAlign, 4);
+        addOffset(root);
+        ByteBuffer result = m_bb.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        result.position(m_space);
+        return result;
+    }
+}
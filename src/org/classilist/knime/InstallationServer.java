@@ -0,0 +1,888 @@
+package org.classilist.knime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * A small HTTP/1.1 server for the files of a Classilist installation, bound
+ * to the loopback address. Only GET and HEAD requests are answered.
+ *
+ * <p>File content is sent with {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}, so the operating system copies it
+ * from the page cache to the socket. Responses carry an ETag of size and
+ * modification time of the file, which answers <code>If-None-Match</code>
+ * with 304 and decides <code>If-Range</code>; a single byte range is served
+ * as 206. If the client accepts gzip and a file <code>name.gz</code> exists
+ * that is not older than <code>name</code> (or <code>name</code> doesn't
+ * exist, like <code>data/out.csv</code> of compressed output), the
+ * compressed file is sent with <code>Content-Encoding: gzip</code>.
+ *
+ * <p>Requests of <code>/api/&lt;query&gt;?file=data/out.csv&amp;...</code>
+ * are answered with JSON by {@link RowQueries}. <code>/api/live</code> is a
+ * stream of server-sent events of the rows being written, see
+ * {@link LiveFeed}; it stays open until the client or the server closes it.
+ *
+ * <p>Requests are only answered if their <code>Host</code> header names the
+ * loopback address or <code>localhost</code> with the server's port, so a
+ * page of another origin can't read the installation through DNS
+ * rebinding. At most {@link #MAX_CONNECTIONS} connections are served at a
+ * time, {@link #MAX_LIVE_STREAMS} of them event streams; further
+ * connections wait in a short queue or are closed.
+ */
+final class InstallationServer implements Closeable {
+
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(InstallationServer.class);
+
+    /** the most bytes of a request line and its headers. */
+    static final int MAX_HEADER = 16 * 1024;
+
+    /** the most connections served at a time. */
+    static final int MAX_CONNECTIONS = 16;
+
+    /** the most accepted connections waiting for a thread. */
+    private static final int MAX_WAITING = 64;
+
+    /** the most event streams open at a time. */
+    static final int MAX_LIVE_STREAMS = 4;
+
+    /** the time an idle connection thread is kept, in seconds. */
+    private static final long THREAD_KEEP_ALIVE = 60;
+
+    /** the time a connection may stay idle, in ms. */
+    private static final int IDLE_TIMEOUT = 30000;
+
+    /** the most bytes per call of transferTo. */
+    private static final long MAX_TRANSFER = 8L << 20;
+
+    private static final String GZIP_SUFFIX = ".gz";
+
+    /** the path of the queries, see {@link RowQueries}. */
+    private static final String API_PATH = "/api/";
+
+    /** the path of the event stream of the rows being written. */
+    private static final String LIVE_PATH = "/api/live";
+
+    /** the time after which an idle event stream gets a comment, in ms. */
+    private static final long PING_INTERVAL = 15000;
+
+    /**
+     * the socket send buffer of an event stream, small so the events of a
+     * slow client pile up in its queue, where they are coalesced.
+     */
+    private static final int LIVE_SEND_BUFFER = 64 * 1024;
+
+    private static final Map<String, String> CONTENT_TYPES =
+            new HashMap<String, String>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("htm", "text/html; charset=utf-8");
+        CONTENT_TYPES.put("js", "text/javascript; charset=utf-8");
+        CONTENT_TYPES.put("mjs", "text/javascript; charset=utf-8");
+        CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("map", "application/json");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("arrow", "application/vnd.apache.arrow.file");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "font/ttf");
+        CONTENT_TYPES.put("gz", "application/gzip");
+    }
+
+    private final Path m_root;
+
+    /** the root with symbolic links resolved. */
+    private final Path m_realRoot;
+
+    private final ServerSocketChannel m_server;
+
+    /** the threads of the connections. */
+    private final ThreadPoolExecutor m_connections;
+
+    /** the permits of the open event streams. */
+    private final Semaphore m_liveStreams = new Semaphore(MAX_LIVE_STREAMS);
+
+    /** the thread accepting connections. */
+    private final Thread m_acceptor;
+
+    private final RowQueries m_queries = new RowQueries();
+
+    private final LiveFeed m_feed;
+
+    /**
+     * Starts the server.
+     *
+     * @param root the directory of the installation
+     * @param port the port, 0 for any free one
+     * @param feed the rows being written to the installation
+     * @throws IOException if the port can't be bound
+     */
+    InstallationServer(final Path root, final int port, final LiveFeed feed)
+            throws IOException {
+        m_root = root.toAbsolutePath().normalize();
+        m_feed = feed;
+        m_realRoot = m_root.toRealPath();
+        m_server = ServerSocketChannel.open();
+        try {
+            m_server.bind(new InetSocketAddress(
+                    InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            m_server.close();
+            throw e;
+        }
+        m_connections = new ThreadPoolExecutor(MAX_CONNECTIONS,
+                MAX_CONNECTIONS, THREAD_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(MAX_WAITING),
+                WriterThreads.platform("Classilist-http-"));
+        m_connections.allowCoreThreadTimeOut(true);
+        m_acceptor = WriterThreads.platform("Classilist-http-accept-")
+                .newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        accept();
+                    }
+                });
+        m_acceptor.start();
+    }
+
+    /** @return the directory served */
+    Path getRoot() {
+        return m_root;
+    }
+
+    /** @return the port the server listens on */
+    int getPort() {
+        return m_server.socket().getLocalPort();
+    }
+
+    /** @return the URI of the installation's start page */
+    URI getUri() {
+        return URI.create("http://127.0.0.1:" + getPort() + "/");
+    }
+
+    /** @return true until closed */
+    boolean isOpen() {
+        return m_server.isOpen();
+    }
+
+    /**
+     * Stops accepting connections and closes the open ones.
+     */
+    @Override
+    public void close() throws IOException {
+        m_server.close();
+        m_acceptor.interrupt();
+        m_connections.shutdownNow();
+    }
+
+    private void accept() {
+        while (m_server.isOpen()) {
+            final SocketChannel socket;
+            try {
+                socket = m_server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                LOGGER.debug("Accepting a connection failed: "
+                        + e.getMessage(), e);
+                continue;
+            }
+            try {
+                m_connections.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // rejected after close or with too many connections
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /** Answers the requests of one connection until it is closed. */
+    private void serve(final SocketChannel socket) {
+        try {
+            socket.socket().setSoTimeout(IDLE_TIMEOUT);
+            socket.socket().setTcpNoDelay(true);
+            RequestReader in = new RequestReader(socket.socket().getInputStream());
+            Request request;
+            while ((request = in.next()) != null) {
+                if (!respond(request, socket)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // closed by the client, timed out or the server stopped
+            LOGGER.debug("HTTP connection closed: " + e.getMessage());
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * @return true to keep the connection open
+     */
+    private boolean respond(final Request request, final SocketChannel socket)
+            throws IOException {
+        boolean keepAlive = request.keepAlive();
+        if (request.m_error != null) {
+            sendError(socket, request.m_error, false);
+            return false;
+        }
+        if (!isLocalHost(request.m_host)) {
+            sendError(socket, "403 Forbidden", false);
+            return false;
+        }
+        boolean head = "HEAD".equals(request.m_method);
+        if (!head && !"GET".equals(request.m_method)) {
+            sendError(socket, "405 Method Not Allowed", false);
+            return false;
+        }
+        if (request.m_path.equals(LIVE_PATH)) {
+            return live(socket, head);
+        }
+        if (request.m_path.startsWith(API_PATH)) {
+            return query(request, socket, head, keepAlive);
+        }
+        Path file = resolve(request.m_path);
+        if (file == null) {
+            return sendError(socket, "404 Not Found", keepAlive);
+        }
+        String contentType = contentType(file.getFileName().toString());
+
+        // a compressed variant if the client takes it and it is current
+        Path gzip = file.resolveSibling(file.getFileName() + GZIP_SUFFIX);
+        BasicFileAttributes plain = attributes(file);
+        BasicFileAttributes compressed = null;
+        boolean variants = !file.getFileName().toString().endsWith(GZIP_SUFFIX);
+        if (variants && request.acceptsGzip()) {
+            compressed = attributes(gzip);
+            if (compressed != null && plain != null && compressed
+                    .lastModifiedTime().compareTo(plain.lastModifiedTime()) < 0) {
+                compressed = null;
+            }
+        }
+        if (plain == null && compressed == null) {
+            return sendError(socket, "404 Not Found", keepAlive);
+        }
+        Path body = compressed != null ? gzip : file;
+        BasicFileAttributes attributes = compressed != null ? compressed : plain;
+        if (!body.toRealPath().startsWith(m_realRoot)) {
+            // a link out of the installation
+            return sendError(socket, "404 Not Found", keepAlive);
+        }
+        long size = attributes.size();
+        String etag = "\"" + Long.toHexString(size) + "-"
+                + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + (compressed != null ? "-gz" : "") + "\"";
+
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: ").append(contentType).append("\r\n");
+        headers.append("ETag: ").append(etag).append("\r\n");
+        headers.append("Last-Modified: ")
+                .append(httpDate(attributes.lastModifiedTime().toMillis()))
+                .append("\r\n");
+        headers.append("Cache-Control: no-cache\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        if (compressed != null) {
+            headers.append("Content-Encoding: gzip\r\n");
+        }
+        if (variants) {
+            headers.append("Vary: Accept-Encoding\r\n");
+        }
+
+        if (request.m_ifNoneMatch != null
+                && matches(request.m_ifNoneMatch, etag)) {
+            sendHead(socket, "304 Not Modified", headers, -1, keepAlive);
+            return keepAlive;
+        }
+        long from = 0;
+        long length = size;
+        String status = "200 OK";
+        if (request.m_range != null && (request.m_ifRange == null
+                || request.m_ifRange.equals(etag))) {
+            long[] range = parseRange(request.m_range, size);
+            if (range == null) {
+                headers.append("Content-Range: bytes */").append(size)
+                        .append("\r\n");
+                sendHead(socket, "416 Range Not Satisfiable", headers, 0,
+                        keepAlive);
+                return keepAlive;
+            }
+            if (range.length == 2) {
+                from = range[0];
+                length = range[1] - range[0] + 1;
+                status = "206 Partial Content";
+                headers.append("Content-Range: bytes ").append(range[0])
+                        .append('-').append(range[1]).append('/').append(size)
+                        .append("\r\n");
+            }
+        }
+        sendHead(socket, status, headers, length, keepAlive);
+        if (!head && length > 0) {
+            return transfer(body, from, length, socket) && keepAlive;
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Answers a query on the CSV file of the parameter <code>file</code>,
+     * a path relative to the root.
+     *
+     * @return true to keep the connection open
+     */
+    private boolean query(final Request request, final SocketChannel socket,
+            final boolean head, final boolean keepAlive) throws IOException {
+        Map<String, String> parameters = parseQuery(request.m_query);
+        String name = parameters == null ? null : parameters.get("file");
+        Path csv = name == null ? null : resolveDecoded("/" + name);
+        if (csv == null) {
+            return sendError(socket, "400 Bad Request", keepAlive);
+        }
+        byte[] body;
+        String status = "200 OK";
+        try {
+            if (!csv.toRealPath().startsWith(m_realRoot)) {
+                throw new FileNotFoundException(name);
+            }
+            body = m_queries.answer(
+                    request.m_path.substring(API_PATH.length()), csv,
+                    parameters);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            status = "404 Not Found";
+            body = errorJson(e.getMessage());
+        } catch (IllegalArgumentException e) {
+            status = "400 Bad Request";
+            body = errorJson(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Query " + request.m_path + " failed: "
+                    + e.getMessage(), e);
+            status = "500 Internal Server Error";
+            body = errorJson(e.getMessage());
+        }
+        StringBuilder headers = new StringBuilder();
+        headers.append("Content-Type: application/json\r\n");
+        headers.append("Cache-Control: no-store\r\n");
+        sendHead(socket, status, headers, body.length, keepAlive);
+        if (!head) {
+            write(socket, body);
+        }
+        return keepAlive;
+    }
+
+    /**
+     * Sends the events of the feed until the connection is closed, or 503 if
+     * {@link #MAX_LIVE_STREAMS} streams are open already.
+     *
+     * @return false, the connection is closed
+     */
+    private boolean live(final SocketChannel socket, final boolean head)
+            throws IOException {
+        if (!head && !m_liveStreams.tryAcquire()) {
+            StringBuilder headers = new StringBuilder("Retry-After: 10\r\n");
+            sendHead(socket, "503 Service Unavailable", headers, 0, false);
+            return false;
+        }
+        try {
+            StringBuilder headers = new StringBuilder();
+            headers.append("Content-Type: text/event-stream\r\n");
+            headers.append("Cache-Control: no-store\r\n");
+            sendHead(socket, "200 OK", headers, -1, false);
+            if (head) {
+                return false;
+            }
+            socket.socket().setSendBufferSize(LIVE_SEND_BUFFER);
+            LiveFeed.Subscriber subscriber = m_feed.subscribe();
+            try {
+                write(socket, "retry: 2000\n\n".getBytes(StandardCharsets.UTF_8));
+                while (true) {
+                    String events = subscriber.take(PING_INTERVAL);
+                    // the comment finds out if the client is gone
+                    write(socket, (events != null ? events : ": ping\n\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (InterruptedException e) {
+                // the server stopped
+                Thread.currentThread().interrupt();
+            } finally {
+                m_feed.unsubscribe(subscriber);
+            }
+            return false;
+        } finally {
+            if (!head) {
+                m_liveStreams.release();
+            }
+        }
+    }
+
+    /**
+     * @param host the Host header of a request, may be null
+     * @return true if it names the loopback address or localhost with the
+     *         port of this server
+     */
+    boolean isLocalHost(final String host) {
+        if (host == null) {
+            return false;
+        }
+        String port = ":" + getPort();
+        String h = host.toLowerCase(Locale.ROOT);
+        return h.equals("127.0.0.1" + port) || h.equals("localhost" + port);
+    }
+
+    private static byte[] errorJson(final String message) {
+        return ("{\"error\":" + JsonWriter.quote(String.valueOf(message))
+                + "}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the file of the request path within the root (not checked for
+     *         existence), null if the path leaves the root or is malformed
+     */
+    private Path resolve(final String path) {
+        String decoded = decodePath(path);
+        return decoded == null ? null : resolveDecoded(decoded);
+    }
+
+    /**
+     * @return the file of the decoded path within the root, null if the
+     *         path leaves the root or is malformed
+     */
+    private Path resolveDecoded(final String decoded) {
+        if (!decoded.startsWith("/")
+                || decoded.indexOf('\0') >= 0 || decoded.indexOf('\\') >= 0) {
+            return null;
+        }
+        String path = decoded.endsWith("/") ? decoded + "index.html"
+                : decoded;
+        Path file;
+        try {
+            file = m_root.resolve(path.substring(1)).normalize();
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return file.startsWith(m_root) && !file.equals(m_root) ? file : null;
+    }
+
+    /**
+     * Writes the file region to the socket.
+     *
+     * @return false if the file got shorter meanwhile
+     */
+    private static boolean transfer(final Path file, final long from,
+            final long length, final SocketChannel socket) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long position = from;
+            long end = from + length;
+            while (position < end) {
+                long n = channel.transferTo(position,
+                        Math.min(end - position, MAX_TRANSFER), socket);
+                if (n <= 0) {
+                    return false;
+                }
+                position += n;
+            }
+        }
+        return true;
+    }
+
+    private static void sendHead(final SocketChannel socket,
+            final String status, final StringBuilder headers,
+            final long contentLength, final boolean keepAlive)
+            throws IOException {
+        StringBuilder head = new StringBuilder(256 + headers.length());
+        head.append("HTTP/1.1 ").append(status).append("\r\n");
+        head.append("Date: ").append(httpDate(System.currentTimeMillis()))
+                .append("\r\n");
+        head.append("Server: Classilist\r\n");
+        head.append(headers);
+        if (contentLength >= 0) {
+            head.append("Content-Length: ").append(contentLength)
+                    .append("\r\n");
+        }
+        head.append(keepAlive ? "Connection: keep-alive\r\n"
+                : "Connection: close\r\n");
+        head.append("\r\n");
+        write(socket, head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** @return keepAlive */
+    private static boolean sendError(final SocketChannel socket,
+            final String status, final boolean keepAlive) throws IOException {
+        byte[] body = (status + "\n").getBytes(StandardCharsets.ISO_8859_1);
+        StringBuilder headers = new StringBuilder(
+                "Content-Type: text/plain\r\n");
+        sendHead(socket, status, headers, body.length, keepAlive);
+        write(socket, body);
+        return keepAlive;
+    }
+
+    private static void write(final SocketChannel socket, final byte[] bytes)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            socket.write(buffer);
+        }
+    }
+
+    /**
+     * @param range the value of the Range header
+     * @param size the size of the file
+     * @return first and last byte of a single satisfiable range, an empty
+     *         array to send the whole file (several or malformed ranges),
+     *         null if the range can't be satisfied
+     */
+    static long[] parseRange(final String range, final long size) {
+        String spec = range.trim();
+        if (!spec.startsWith("bytes=") || spec.indexOf(',') >= 0) {
+            return new long[0];
+        }
+        spec = spec.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return new long[0];
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // the last n bytes
+                long n = Long.parseLong(last);
+                if (n < 0) {
+                    return new long[0];
+                }
+                if (n == 0 || size == 0) {
+                    return null;
+                }
+                return new long[]{Math.max(0, size - n), size - 1};
+            }
+            long from = Long.parseLong(first);
+            long to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (from < 0 || to < from) {
+                return new long[0];
+            }
+            if (from >= size) {
+                return null;
+            }
+            return new long[]{from, Math.min(to, size - 1)};
+        } catch (NumberFormatException e) {
+            return new long[0];
+        }
+    }
+
+    /** @return true if the If-None-Match value lists the ETag */
+    private static boolean matches(final String ifNoneMatch,
+            final String etag) {
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return the attributes of a regular file, null if there is none */
+    private static BasicFileAttributes attributes(final Path file) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file,
+                    BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attributes.isSymbolicLink()) {
+                attributes = Files.readAttributes(file,
+                        BasicFileAttributes.class);
+            }
+            return attributes.isRegularFile() ? attributes : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** @return the content type by the extension of the file name */
+    static String contentType(final String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        String type = dot < 0 ? null : CONTENT_TYPES.get(
+                fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+        return type != null ? type : "application/octet-stream";
+    }
+
+    /**
+     * @param query the query of the request target, may be null
+     * @return the decoded parameters (the first value of each name), null
+     *         if malformed
+     */
+    static Map<String, String> parseQuery(final String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query == null || query.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = decodePath((equals < 0 ? pair
+                    : pair.substring(0, equals)).replace('+', ' '));
+            String value = equals < 0 ? ""
+                    : decodePath(pair.substring(equals + 1).replace('+', ' '));
+            if (name == null || value == null) {
+                return null;
+            }
+            if (!parameters.containsKey(name)) {
+                parameters.put(name, value);
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * @return the path with %-escapes decoded as UTF-8, null if malformed
+     */
+    static String decodePath(final String path) {
+        if (path.indexOf('%') < 0) {
+            return path;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= path.length()) {
+                    return null;
+                }
+                int hi = Character.digit(path.charAt(i + 1), 16);
+                int lo = Character.digit(path.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0) {
+                    return null;
+                }
+                bytes.write(hi << 4 | lo);
+                i += 2;
+            } else if (c < 0x80) {
+                bytes.write(c);
+            } else {
+                return null;
+            }
+        }
+        return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String httpDate(final long millis) {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static void closeQuietly(final SocketChannel socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+    }
+
+    /** The parts of a request the server looks at. */
+    private static final class Request {
+
+        /** the status to answer with if the request is malformed. */
+        private String m_error;
+
+        private String m_method;
+
+        private String m_path;
+
+        /** the part of the target after '?', null if there is none. */
+        private String m_query;
+
+        private boolean m_http10;
+
+        private String m_connection;
+
+        private String m_acceptEncoding;
+
+        private String m_range;
+
+        private String m_ifRange;
+
+        private String m_ifNoneMatch;
+
+        private String m_host;
+
+        boolean keepAlive() {
+            if (m_connection != null) {
+                String c = m_connection.toLowerCase(Locale.ROOT);
+                if (c.contains("close")) {
+                    return false;
+                }
+                if (c.contains("keep-alive")) {
+                    return true;
+                }
+            }
+            return !m_http10;
+        }
+
+        boolean acceptsGzip() {
+            if (m_acceptEncoding == null) {
+                return false;
+            }
+            for (String coding : m_acceptEncoding.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                if (name.equals("gzip") || name.equals("*")) {
+                    for (int i = 1; i < parts.length; i++) {
+                        String p = parts[i].trim().replace(" ", "");
+                        if (p.equals("q=0") || p.matches("q=0\\.0*")) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /** Reads the request heads of a connection. */
+    private static final class RequestReader {
+
+        private final InputStream m_in;
+
+        private final byte[] m_buffer = new byte[MAX_HEADER];
+
+        /** the bytes read but not yet parsed are m_start..m_end. */
+        private int m_start;
+
+        private int m_end;
+
+        RequestReader(final InputStream in) {
+            m_in = in;
+        }
+
+        /** @return the next request, null at the end of the connection */
+        Request next() throws IOException {
+            int headEnd;
+            int scanned = m_start;
+            while ((headEnd = find(scanned)) < 0) {
+                scanned = Math.max(m_start, m_end - 3);
+                if (m_start > 0) {
+                    System.arraycopy(m_buffer, m_start, m_buffer, 0,
+                            m_end - m_start);
+                    scanned -= m_start;
+                    m_end -= m_start;
+                    m_start = 0;
+                }
+                if (m_end == m_buffer.length) {
+                    Request request = new Request();
+                    request.m_error = "431 Request Header Fields Too Large";
+                    return request;
+                }
+                int n = m_in.read(m_buffer, m_end, m_buffer.length - m_end);
+                if (n < 0) {
+                    return null;
+                }
+                m_end += n;
+            }
+            String head = new String(m_buffer, m_start, headEnd - m_start,
+                    StandardCharsets.ISO_8859_1);
+            m_start = headEnd + 4;
+            return parse(head);
+        }
+
+        /** @return the index of the empty line ending the head, or -1 */
+        private int find(final int from) {
+            for (int i = from; i + 3 < m_end; i++) {
+                if (m_buffer[i] == '\r' && m_buffer[i + 1] == '\n'
+                        && m_buffer[i + 2] == '\r' && m_buffer[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static Request parse(final String head) {
+            Request request = new Request();
+            String[] lines = head.split("\r\n");
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3
+                    || !requestLine[2].startsWith("HTTP/1.")) {
+                request.m_error = "400 Bad Request";
+                return request;
+            }
+            request.m_method = requestLine[0];
+            String target = requestLine[1];
+            int query = target.indexOf('?');
+            request.m_path = query < 0 ? target : target.substring(0, query);
+            request.m_query = query < 0 ? null : target.substring(query + 1);
+            request.m_http10 = requestLine[2].equals("HTTP/1.0");
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    request.m_error = "400 Bad Request";
+                    return request;
+                }
+                String name = lines[i].substring(0, colon).trim()
+                        .toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("host")) {
+                    request.m_host = value;
+                } else if (name.equals("connection")) {
+                    request.m_connection = value;
+                } else if (name.equals("accept-encoding")) {
+                    request.m_acceptEncoding = value;
+                } else if (name.equals("range")) {
+                    request.m_range = value;
+                } else if (name.equals("if-range")) {
+                    request.m_ifRange = value;
+                } else if (name.equals("if-none-match")) {
+                    request.m_ifNoneMatch = value;
+                } else if ((name.equals("content-length")
+                        && !value.equals("0"))
+                        || name.equals("transfer-encoding")) {
+                    // GET and HEAD have no body, others are refused
+                    request.m_error = "413 Payload Too Large";
+                }
+            }
+            return request;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package org.classilist.knime;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the JSON files written next to the CSV file back into maps, lists,
+ * strings, numbers (<code>Long</code> for integers, <code>Double</code>
+ * otherwise), booleans and <code>null</code>.
+ */
+final class JsonReader {
+
+    private final String m_json;
+
+    private int m_pos;
+
+    private JsonReader(final String json) {
+        m_json = json;
+    }
+
+    /**
+     * @param json the JSON text
+     * @return the value of the text
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    static Object parse(final String json) {
+        JsonReader reader = new JsonReader(json);
+        Object value = reader.value();
+        reader.skipSpace();
+        if (reader.m_pos < json.length()) {
+            throw reader.error("end of input");
+        }
+        return value;
+    }
+
+    private Object value() {
+        skipSpace();
+        if (m_pos == m_json.length()) {
+            throw error("a value");
+        }
+        char c = m_json.charAt(m_pos);
+        switch (c) {
+        case '{':
+            return object();
+        case '[':
+            return array();
+        case '"':
+            return string();
+        case 't':
+            return literal("true", Boolean.TRUE);
+        case 'f':
+            return literal("false", Boolean.FALSE);
+        case 'n':
+            return literal("null", null);
+        default:
+            return number();
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> object = new LinkedHashMap<String, Object>();
+        m_pos++;
+        skipSpace();
+        if (peek('}')) {
+            return object;
+        }
+        do {
+            skipSpace();
+            if (m_pos == m_json.length() || m_json.charAt(m_pos) != '"') {
+                throw error("a name");
+            }
+            String name = string();
+            skipSpace();
+            expect(':');
+            object.put(name, value());
+            skipSpace();
+        } while (peek(','));
+        expect('}');
+        return object;
+    }
+
+    private List<Object> array() {
+        List<Object> array = new ArrayList<Object>();
+        m_pos++;
+        skipSpace();
+        if (peek(']')) {
+            return array;
+        }
+        do {
+            array.add(value());
+            skipSpace();
+        } while (peek(','));
+        expect(']');
+        return array;
+    }
+
+    private String string() {
+        m_pos++;
+        StringBuilder value = new StringBuilder();
+        while (m_pos < m_json.length()) {
+            char c = m_json.charAt(m_pos++);
+            if (c == '"') {
+                return value.toString();
+            } else if (c != '\\') {
+                value.append(c);
+            } else if (m_pos == m_json.length()) {
+                break;
+            } else {
+                char e = m_json.charAt(m_pos++);
+                switch (e) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (m_pos + 4 > m_json.length()) {
+                        throw error("four hex digits");
+                    }
+                    try {
+                        value.append((char)Integer.parseInt(
+                                m_json.substring(m_pos, m_pos + 4), 16));
+                    } catch (NumberFormatException ex) {
+                        throw error("four hex digits");
+                    }
+                    m_pos += 4;
+                    break;
+                default:
+                    value.append(e);
+                }
+            }
+        }
+        throw error("the end of the string");
+    }
+
+    private Object literal(final String text, final Object value) {
+        if (!m_json.startsWith(text, m_pos)) {
+            throw error(text);
+        }
+        m_pos += text.length();
+        return value;
+    }
+
+    private Object number() {
+        int start = m_pos;
+        boolean integer = true;
+        while (m_pos < m_json.length()) {
+            char c = m_json.charAt(m_pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                integer = false;
+            } else if (c != '-' && c != '+' && (c < '0' || c > '9')) {
+                break;
+            }
+            m_pos++;
+        }
+        String number = m_json.substring(start, m_pos);
+        try {
+            if (integer) {
+                return Long.valueOf(number);
+            }
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            m_pos = start;
+            throw error("a value");
+        }
+    }
+
+    private void skipSpace() {
+        while (m_pos < m_json.length()
+                && Character.isWhitespace(m_json.charAt(m_pos))) {
+            m_pos++;
+        }
+    }
+
+    /** @return true if c is next, and skips it */
+    private boolean peek(final char c) {
+        if (m_pos < m_json.length() && m_json.charAt(m_pos) == c) {
+            m_pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(final char c) {
+        if (!peek(c)) {
+            throw error("'" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(final String expected) {
+        return new IllegalArgumentException("Invalid JSON: expected "
+                + expected + " at " + m_pos);
+    }
+}
@@ -0,0 +1,174 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes JSON to a writer without building a tree: objects and arrays are
+ * opened and closed as they are written, separators are inserted as needed.
+ * Non-finite numbers are written as <code>null</code>.
+ */
+final class JsonWriter {
+
+    private final Writer m_out;
+
+    /** per open object or array, true once it has an element. */
+    private boolean[] m_filled = new boolean[8];
+
+    private int m_depth;
+
+    /** true after a name, the value follows without separator. */
+    private boolean m_named;
+
+    /**
+     * @param out the writer to write to, not closed
+     */
+    JsonWriter(final Writer out) {
+        m_out = out;
+    }
+
+    /** @return this */
+    JsonWriter beginObject() throws IOException {
+        return open('{');
+    }
+
+    /** @return this */
+    JsonWriter endObject() throws IOException {
+        return close('}');
+    }
+
+    /** @return this */
+    JsonWriter beginArray() throws IOException {
+        return open('[');
+    }
+
+    /** @return this */
+    JsonWriter endArray() throws IOException {
+        return close(']');
+    }
+
+    /**
+     * @param name the name of the next member of the current object
+     * @return this
+     */
+    JsonWriter name(final String name) throws IOException {
+        separate();
+        writeString(name);
+        m_out.write(':');
+        m_named = true;
+        return this;
+    }
+
+    /**
+     * @param value a string, null for <code>null</code>
+     * @return this
+     */
+    JsonWriter value(final String value) throws IOException {
+        separate();
+        if (value == null) {
+            m_out.write("null");
+        } else {
+            writeString(value);
+        }
+        return this;
+    }
+
+    /** @return this */
+    JsonWriter value(final long value) throws IOException {
+        separate();
+        m_out.write(Long.toString(value));
+        return this;
+    }
+
+    /** @return this */
+    JsonWriter value(final double value) throws IOException {
+        separate();
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            m_out.write("null");
+        } else {
+            m_out.write(Double.toString(value));
+        }
+        return this;
+    }
+
+    /** @return this */
+    JsonWriter value(final boolean value) throws IOException {
+        separate();
+        m_out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes a value in JSON that is already formatted.
+     *
+     * @param json a JSON value
+     * @return this
+     */
+    JsonWriter rawValue(final String json) throws IOException {
+        separate();
+        m_out.write(json);
+        return this;
+    }
+
+    /**
+     * @param value a string
+     * @return the string as JSON string literal
+     */
+    static String quote(final String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        appendString(json, value);
+        return json.toString();
+    }
+
+    private JsonWriter open(final char c) throws IOException {
+        separate();
+        m_out.write(c);
+        if (m_depth == m_filled.length) {
+            boolean[] filled = new boolean[2 * m_depth];
+            System.arraycopy(m_filled, 0, filled, 0, m_depth);
+            m_filled = filled;
+        }
+        m_filled[m_depth++] = false;
+        return this;
+    }
+
+    private JsonWriter close(final char c) throws IOException {
+        m_depth--;
+        m_out.write(c);
+        return this;
+    }
+
+    /** writes the comma in front of all but the first element. */
+    private void separate() throws IOException {
+        if (m_named) {
+            m_named = false;
+        } else if (m_depth > 0) {
+            if (m_filled[m_depth - 1]) {
+                m_out.write(',');
+            }
+            m_filled[m_depth - 1] = true;
+        }
+    }
+
+    private void writeString(final String value) throws IOException {
+        StringBuilder json = new StringBuilder(value.length() + 2);
+        appendString(json, value);
+        m_out.append(json);
+    }
+
+    private static void appendString(final StringBuilder json,
+            final String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int)c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,182 @@
+package org.classilist.knime;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The events of the rows being written to an installation, passed on to the
+ * connected frontends as server-sent events, see {@link LiveRows} and
+ * {@link InstallationServer}. Every subscriber has its own queue, so a slow
+ * client never holds up the writer or the other clients: the queue keeps at
+ * most {@link #MAX_PENDING_ROWS} rows (older batches are dropped and
+ * announced as skipped, the frontend can query them later), only the latest
+ * counts, and the batches pending when the client is ready are sent as one
+ * event.
+ *
+ * <p>The events are <code>start</code> (the file written, relative to the
+ * installation), <code>rows</code> (an array of row index and text),
+ * <code>skipped</code> (the number of rows dropped for the client),
+ * <code>stats</code> (the running counts) and <code>end</code> (the counts
+ * and whether the file was written completely).
+ */
+final class LiveFeed {
+
+    /** the most rows queued for one subscriber. */
+    static final int MAX_PENDING_ROWS = 10000;
+
+    private final List<Subscriber> m_subscribers =
+            new CopyOnWriteArrayList<Subscriber>();
+
+    /** @return true if a frontend is connected */
+    boolean hasSubscribers() {
+        return !m_subscribers.isEmpty();
+    }
+
+    /** @return a new subscriber getting the events from now on */
+    Subscriber subscribe() {
+        Subscriber subscriber = new Subscriber();
+        m_subscribers.add(subscriber);
+        return subscriber;
+    }
+
+    /** @param subscriber the subscriber to drop */
+    void unsubscribe(final Subscriber subscriber) {
+        m_subscribers.remove(subscriber);
+    }
+
+    /**
+     * @param file the path of the written file, relative to the
+     *            installation
+     */
+    void start(final String file) {
+        publish(new Event("start", "{\"file\":" + JsonWriter.quote(file)
+                + "}", 0));
+    }
+
+    /**
+     * @param rows the JSON objects of the rows, separated by commas
+     * @param count the number of rows
+     */
+    void rows(final String rows, final int count) {
+        publish(new Event("rows", rows, count));
+    }
+
+    /** @param stats the JSON object of the running counts */
+    void stats(final String stats) {
+        publish(new Event("stats", stats, 0));
+    }
+
+    /** @param end the JSON object of the final counts */
+    void end(final String end) {
+        publish(new Event("end", end, 0));
+    }
+
+    private void publish(final Event event) {
+        for (Subscriber subscriber : m_subscribers) {
+            subscriber.offer(event);
+        }
+    }
+
+    /** An event as queued, the data of rows is without brackets. */
+    private static final class Event {
+
+        private final String m_name;
+
+        private final String m_data;
+
+        private final int m_rows;
+
+        Event(final String name, final String data, final int rows) {
+            m_name = name;
+            m_data = data;
+            m_rows = rows;
+        }
+    }
+
+    /** The queue of the events of one frontend. */
+    static final class Subscriber {
+
+        private final ArrayDeque<Event> m_events = new ArrayDeque<Event>();
+
+        private int m_pendingRows;
+
+        private long m_skipped;
+
+        private synchronized void offer(final Event event) {
+            if (event.m_name.equals("stats")) {
+                // only the latest counts matter
+                for (Iterator<Event> it = m_events.iterator(); it.hasNext();) {
+                    if (it.next().m_name.equals("stats")) {
+                        it.remove();
+                    }
+                }
+            }
+            m_events.add(event);
+            m_pendingRows += event.m_rows;
+            for (Iterator<Event> it = m_events.iterator();
+                    m_pendingRows > MAX_PENDING_ROWS && it.hasNext();) {
+                Event e = it.next();
+                if (e.m_rows > 0) {
+                    it.remove();
+                    m_pendingRows -= e.m_rows;
+                    m_skipped += e.m_rows;
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Waits for events and takes all pending ones, consecutive row
+         * batches joined into one event.
+         *
+         * @param timeout the most ms to wait
+         * @return the events in the text/event-stream format, null if there
+         *         were none within the timeout
+         * @throws InterruptedException if interrupted while waiting
+         */
+        synchronized String take(final long timeout)
+                throws InterruptedException {
+            long end = System.currentTimeMillis() + timeout;
+            while (m_events.isEmpty() && m_skipped == 0) {
+                long wait = end - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return null;
+                }
+                wait(wait);
+            }
+            StringBuilder text = new StringBuilder();
+            if (m_skipped > 0) {
+                event(text, "skipped", "{\"rows\":" + m_skipped + "}");
+                m_skipped = 0;
+            }
+            boolean inRows = false;
+            for (Event e : m_events) {
+                if (e.m_rows > 0) {
+                    text.append(inRows ? "," : "event: rows\ndata: [");
+                    text.append(e.m_data);
+                    inRows = true;
+                    continue;
+                }
+                if (inRows) {
+                    text.append("]\n\n");
+                    inRows = false;
+                }
+                event(text, e.m_name, e.m_data);
+            }
+            if (inRows) {
+                text.append("]\n\n");
+            }
+            m_events.clear();
+            m_pendingRows = 0;
+            return text.toString();
+        }
+
+        private static void event(final StringBuilder text, final String name,
+                final String data) {
+            text.append("event: ").append(name).append("\ndata: ")
+                    .append(data).append("\n\n");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package org.classilist.knime;
+
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+
+/**
+ * Publishes the rows to the {@link LiveFeed} of the installation while they
+ * are written, in batches of up to {@link #BATCH_ROWS} rows or
+ * {@link #BATCH_MILLIS} ms, each followed by the running counts: the rows
+ * written, those with actual and predicted class and those predicted
+ * correctly. The text of the rows is only kept while a frontend is
+ * connected. Nothing is written to a file; {@link #finish(boolean)} sends
+ * the remaining rows and the end of the file.
+ */
+final class LiveRows implements RowStatistics {
+
+    /** the most rows per batch. */
+    static final int BATCH_ROWS = 512;
+
+    /** the most time a formatter keeps a batch. */
+    static final long BATCH_MILLIS = 250;
+
+    private final LiveFeed m_feed;
+
+    private final int m_actualColumn;
+
+    private final int m_predictedColumn;
+
+    private final AtomicLong m_rows = new AtomicLong();
+
+    private final AtomicLong m_labeled = new AtomicLong();
+
+    private final AtomicLong m_correct = new AtomicLong();
+
+    /** the accumulators of all formatters, guarded by this. */
+    private final List<Batch> m_batches = new ArrayList<Batch>();
+
+    /**
+     * Announces the file to the connected frontends.
+     *
+     * @param plan the column plan of the table
+     * @param feed the feed of the installation
+     * @param file the path of the file relative to the installation
+     */
+    LiveRows(final ClassilistColumnPlan plan, final LiveFeed feed,
+            final String file) {
+        int actual = -1;
+        for (int c = 0; c < plan.getNumColumns(); c++) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            }
+        }
+        m_actualColumn = actual;
+        m_predictedColumn = plan.getPredictedIndex();
+        m_feed = feed;
+        m_feed.start(file);
+    }
+
+    /**
+     * @return null, the rows are published
+     */
+    @Override
+    public String getFileName() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Batch newAccumulator() {
+        Batch batch = new Batch();
+        m_batches.add(batch);
+        return batch;
+    }
+
+    /**
+     * Not called, the statistics have no file.
+     */
+    @Override
+    public void write(final Writer out) {
+        // published instead
+    }
+
+    /**
+     * Publishes the remaining rows and the end of the file, once all rows
+     * are written.
+     *
+     * @param complete false if writing failed or was canceled
+     */
+    synchronized void finish(final boolean complete) {
+        for (Batch batch : m_batches) {
+            batch.publish();
+        }
+        m_feed.end("{" + counts() + ",\"complete\":" + complete + "}");
+    }
+
+    /** @return the running counts as JSON members */
+    private String counts() {
+        return "\"rows\":" + m_rows.get() + ",\"labeled\":" + m_labeled.get()
+                + ",\"correct\":" + m_correct.get();
+    }
+
+    /** The rows of one formatter not yet published. */
+    final class Batch implements TextAccumulator {
+
+        private final StringBuilder m_text = new StringBuilder();
+
+        private int m_size;
+
+        private long m_rows;
+
+        private long m_labeled;
+
+        private long m_correct;
+
+        private long m_started = System.nanoTime();
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            m_rows++;
+            DataCell actual = row.getCell(m_actualColumn);
+            DataCell predicted = row.getCell(m_predictedColumn);
+            if (!actual.isMissing() && !predicted.isMissing()) {
+                m_labeled++;
+                if (actual.toString().equals(predicted.toString())) {
+                    m_correct++;
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addText(final char[] chars, final int from, final int to,
+                final long rowIndex) {
+            if (m_feed.hasSubscribers()) {
+                int end = to;
+                while (end > from
+                        && (chars[end - 1] == '\n' || chars[end - 1] == '\r')) {
+                    end--;
+                }
+                if (m_size > 0) {
+                    m_text.append(',');
+                }
+                m_text.append("{\"index\":").append(rowIndex)
+                        .append(",\"text\":")
+                        .append(JsonWriter.quote(new String(chars, from,
+                                end - from)))
+                        .append('}');
+                m_size++;
+            }
+            if (m_size >= BATCH_ROWS || m_rows >= BATCH_ROWS
+                    || System.nanoTime() - m_started > TimeUnit.MILLISECONDS
+                            .toNanos(BATCH_MILLIS)) {
+                publish();
+            }
+        }
+
+        /** Publishes the rows and counts. */
+        private void publish() {
+            LiveRows.this.m_rows.addAndGet(m_rows);
+            LiveRows.this.m_labeled.addAndGet(m_labeled);
+            LiveRows.this.m_correct.addAndGet(m_correct);
+            m_rows = 0;
+            m_labeled = 0;
+            m_correct = 0;
+            if (m_size > 0) {
+                m_feed.rows(m_text.toString(), m_size);
+                m_text.setLength(0);
+                m_size = 0;
+            }
+            if (m_feed.hasSubscribers()) {
+                m_feed.stats("{" + counts() + "}");
+            }
+            m_started = System.nanoTime();
+        }
+    }
+}
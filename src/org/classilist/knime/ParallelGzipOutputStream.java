@@ -0,0 +1,319 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a multi-member gzip stream: the data is cut into blocks, every block
+ * is deflated on a worker pool into a complete gzip member of its own and
+ * the members are written in order. Concatenated members are a valid gzip
+ * file (RFC 1952), read by gzip, zcat and {@link java.util.zip.GZIPInputStream}
+ * alike.
+ *
+ * <p>Usable as stream and as channel, by a single thread.
+ */
+final class ParallelGzipOutputStream extends OutputStream
+        implements WritableByteChannel {
+
+    /** Default size of the uncompressed blocks. */
+    static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+    /** Smallest accepted block size. */
+    static final int MIN_BLOCK_SIZE = 1 << 15;
+
+    /** Default compression level. */
+    static final int DEFAULT_LEVEL = 6;
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private static final int TRAILER_SIZE = 8;
+
+    private final OutputStream m_out;
+
+    private final int m_level;
+
+    private final int m_blockSize;
+
+    private final ExecutorService m_pool;
+
+    private final int m_maxInFlight;
+
+    private final ArrayDeque<Future<Member>> m_inFlight =
+            new ArrayDeque<Future<Member>>();
+
+    private final ConcurrentLinkedQueue<Deflater> m_deflaters =
+            new ConcurrentLinkedQueue<Deflater>();
+
+    private final ConcurrentLinkedQueue<byte[]> m_freeBlocks =
+            new ConcurrentLinkedQueue<byte[]>();
+
+    private byte[] m_block;
+
+    private int m_blockLength;
+
+    private boolean m_memberWritten;
+
+    private boolean m_closed;
+
+    /**
+     * @param out the stream the members are written to, closed with this
+     *            stream
+     * @param level the compression level, 0 to 9
+     * @param blockSize the size of the uncompressed blocks in bytes
+     * @param threads the number of threads deflating blocks
+     */
+    ParallelGzipOutputStream(final OutputStream out, final int level,
+            final int blockSize, final int threads) {
+        m_out = out;
+        m_level = level;
+        m_blockSize = Math.max(blockSize, MIN_BLOCK_SIZE);
+        m_pool = Executors.newFixedThreadPool(Math.max(1, threads),
+                WriterThreads.platform("Classilist-gzip-"));
+        m_maxInFlight = 2 * Math.max(1, threads);
+        m_block = new byte[m_blockSize];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        m_block[m_blockLength++] = (byte)b;
+        if (m_blockLength == m_blockSize) {
+            submitBlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+        ensureOpen();
+        int pos = off;
+        final int end = off + len;
+        while (pos < end) {
+            int n = Math.min(end - pos, m_blockSize - m_blockLength);
+            System.arraycopy(b, pos, m_block, m_blockLength, n);
+            m_blockLength += n;
+            pos += n;
+            if (m_blockLength == m_blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int write(final ByteBuffer src) throws IOException {
+        ensureOpen();
+        final int len = src.remaining();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), m_blockSize - m_blockLength);
+            src.get(m_block, m_blockLength, n);
+            m_blockLength += n;
+            if (m_blockLength == m_blockSize) {
+                submitBlock();
+            }
+        }
+        return len;
+    }
+
+    /**
+     * Compresses the buffered data as a member of its own and writes all
+     * pending members.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        submitBlock();
+        while (!m_inFlight.isEmpty()) {
+            writeOldest();
+        }
+        m_out.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOpen() {
+        return !m_closed;
+    }
+
+    /**
+     * Writes the remaining members and closes the underlying stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        try {
+            submitBlock();
+            while (!m_inFlight.isEmpty()) {
+                writeOldest();
+            }
+            if (!m_memberWritten) {
+                // an empty file is no valid gzip file, an empty member is
+                Member empty = deflate(new byte[0], 0);
+                m_out.write(empty.m_data, 0, empty.m_length);
+            }
+        } finally {
+            m_closed = true;
+            m_pool.shutdownNow();
+            try {
+                m_pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Deflater deflater;
+            while ((deflater = m_deflaters.poll()) != null) {
+                deflater.end();
+            }
+            m_out.close();
+        }
+    }
+
+    /** Hands the current block to the pool, writing old members as needed. */
+    private void submitBlock() throws IOException {
+        if (m_blockLength == 0) {
+            return;
+        }
+        if (m_inFlight.size() >= m_maxInFlight) {
+            writeOldest();
+        }
+        final byte[] block = m_block;
+        final int length = m_blockLength;
+        m_inFlight.add(m_pool.submit(new Callable<Member>() {
+            @Override
+            public Member call() {
+                try {
+                    return deflate(block, length);
+                } finally {
+                    m_freeBlocks.add(block);
+                }
+            }
+        }));
+        byte[] free = m_freeBlocks.poll();
+        m_block = free != null ? free : new byte[m_blockSize];
+        m_blockLength = 0;
+    }
+
+    private void writeOldest() throws IOException {
+        Member member;
+        try {
+            member = m_inFlight.poll().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new IOException(cause.getMessage(), cause);
+        }
+        m_out.write(member.m_data, 0, member.m_length);
+        m_memberWritten = true;
+    }
+
+    /** Compresses the block into a complete gzip member. */
+    private Member deflate(final byte[] block, final int length) {
+        Deflater deflater = m_deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(m_level, true);
+        }
+        try {
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, length);
+            // enough for incompressible data, grown if not
+            byte[] data = new byte[length + (length >> 10) + 64];
+            int pos = writeHeader(data);
+            deflater.setInput(block, 0, length);
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (pos == data.length) {
+                    data = Arrays.copyOf(data, 2 * data.length);
+                }
+                pos += deflater.deflate(data, pos, data.length - pos);
+            }
+            if (data.length - pos < TRAILER_SIZE) {
+                data = Arrays.copyOf(data, pos + TRAILER_SIZE);
+            }
+            pos = writeInt(data, pos, (int)crc.getValue());
+            pos = writeInt(data, pos, length);
+            return new Member(data, pos);
+        } finally {
+            deflater.reset();
+            m_deflaters.add(deflater);
+        }
+    }
+
+    /** Writes the 10 byte member header (no name, no time stamp). */
+    private int writeHeader(final byte[] data) {
+        data[0] = (byte)GZIP_MAGIC;
+        data[1] = (byte)(GZIP_MAGIC >> 8);
+        data[2] = Deflater.DEFLATED;
+        data[3] = 0; // flags
+        data[4] = 0; // mtime
+        data[5] = 0;
+        data[6] = 0;
+        data[7] = 0;
+        // extra flags: maximum compression or fastest algorithm
+        data[8] = (byte)(m_level == Deflater.BEST_COMPRESSION ? 2
+                : m_level == Deflater.BEST_SPEED ? 4 : 0);
+        data[9] = (byte)255; // unknown OS
+        return 10;
+    }
+
+    /** Writes the value little endian. */
+    private static int writeInt(final byte[] data, final int pos,
+            final int value) {
+        data[pos] = (byte)value;
+        data[pos + 1] = (byte)(value >> 8);
+        data[pos + 2] = (byte)(value >> 16);
+        data[pos + 3] = (byte)(value >> 24);
+        return pos + 4;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (m_closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /** A compressed member, valid up to its length. */
+    private static final class Member {
+
+        private final byte[] m_data;
+
+        private final int m_length;
+
+        Member(final byte[] data, final int length) {
+            m_data = data;
+            m_length = length;
+        }
+    }
+}
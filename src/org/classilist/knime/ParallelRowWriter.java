@@ -0,0 +1,102 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+
+import org.classilist.knime.BatchFormatter.RowBatch;
+import org.knime.core.data.DataRow;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.streamable.RowInput;
+
+/**
+ * Encodes rows on a fork-join pool. The polled rows are grouped into
+ * batches, every batch is formatted by a pool thread into its own
+ * {@link RowBuffer} and the buffers are written in input order - the output
+ * is identical to the one of the serial writer. The number of batches in
+ * flight is bounded, so the memory used doesn't depend on the table size.
+ */
+final class ParallelRowWriter {
+
+    private final BatchFormatter m_batches;
+
+    private final int m_parallelism;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     * @param newLine the line ending to write
+     * @param parallelism the number of threads formatting rows
+     */
+    ParallelRowWriter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings, final String newLine,
+            final int parallelism) {
+        m_batches = new BatchFormatter(plan, settings, newLine);
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * Writes all rows of the input (not the header).
+     *
+     * @param input the rows to write
+     * @param out the writer to write to
+     * @param exec the monitor for progress and cancellation
+     * @param progress reports the polled rows
+     * @throws IOException if writing fails
+     * @throws CanceledExecutionException if the user canceled
+     * @throws InterruptedException if the input is interrupted
+     */
+    void write(final RowInput input, final Writer out,
+            final ExecutionMonitor exec, final ProgressSampler progress)
+            throws IOException, CanceledExecutionException,
+            InterruptedException {
+        final ForkJoinPool pool = new ForkJoinPool(m_parallelism);
+        final ArrayDeque<RowBatch> inFlight = new ArrayDeque<RowBatch>();
+        final int maxInFlight = 2 * m_parallelism;
+        try {
+            DataRow[] rows = m_batches.newRowArray();
+            int count = 0;
+            long firstRow = 0;
+            long i = 0;
+            DataRow row;
+            while ((row = input.poll()) != null) {
+                // set the progress and check for cancellation now and then
+                progress.rowStarted(exec, i, row);
+                rows[count++] = row;
+                i++;
+                if (count == rows.length) {
+                    if (inFlight.size() >= maxInFlight) {
+                        m_batches.write(inFlight.poll(), out);
+                    }
+                    RowBatch batch = m_batches.newBatch(rows, count, firstRow);
+                    pool.execute(batch);
+                    inFlight.add(batch);
+                    rows = m_batches.newRowArray();
+                    count = 0;
+                    firstRow = i;
+                }
+            }
+            if (count > 0) {
+                RowBatch batch = m_batches.newBatch(rows, count, firstRow);
+                pool.execute(batch);
+                inFlight.add(batch);
+            }
+            while (!inFlight.isEmpty()) {
+                m_batches.write(inFlight.poll(), out);
+            }
+        } finally {
+            // formatting tasks don't block, pending ones are just dropped
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the first warning raised while formatting (in row order), or
+     *         null
+     */
+    String getWarning() {
+        return m_batches.getWarning();
+    }
+}
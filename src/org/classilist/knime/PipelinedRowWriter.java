@@ -0,0 +1,289 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+
+import org.classilist.knime.BatchFormatter.RowBatch;
+import org.knime.core.data.DataRow;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.streamable.RowInput;
+
+/**
+ * Writes rows in three stages: the calling thread polls the input, an encode
+ * stage formats batches of rows and an I/O stage writes them. The stages are
+ * connected by bounded {@link SpscRingBuffer}s, so a slow stage stalls the
+ * ones before it instead of buffering rows without limit. The encode and I/O
+ * stage run on virtual threads if the JVM has them.
+ *
+ * <p>With a parallelism above one the encode stage hands the batches to a
+ * fork-join pool and the I/O stage waits for them in order. The output is
+ * always identical to the serial writer.
+ */
+final class PipelinedRowWriter {
+
+    /** batches polled but not encoded yet. */
+    private static final int POLLED_CAPACITY = 4;
+
+    /** longest wait of a stage before it checks its input again. */
+    private static final long MAX_PARK_NANOS = 1000000L;
+
+    private static final long JOIN_MILLIS = 100;
+
+    private static final ThreadFactory THREADS =
+            WriterThreads.virtualIfAvailable();
+
+    private final BatchFormatter m_batches;
+
+    private final int m_parallelism;
+
+    private final SpscRingBuffer<RowBatch> m_polled;
+
+    private final SpscRingBuffer<RowBatch> m_encoded;
+
+    /** marks the end of the rows in both queues. */
+    private final RowBatch m_end;
+
+    /** set when the pipeline is torn down, stages stop as soon as possible. */
+    private volatile boolean m_aborted;
+
+    /** the first exception of the encode or I/O stage. */
+    private volatile Throwable m_failure;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     * @param newLine the line ending to write
+     * @param parallelism the number of threads formatting rows
+     */
+    PipelinedRowWriter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings, final String newLine,
+            final int parallelism) {
+        m_batches = new BatchFormatter(plan, settings, newLine);
+        m_parallelism = parallelism;
+        m_polled = new SpscRingBuffer<RowBatch>(POLLED_CAPACITY);
+        m_encoded = new SpscRingBuffer<RowBatch>(
+                Math.max(POLLED_CAPACITY, 2 * parallelism));
+        m_end = m_batches.newBatch(new DataRow[0], 0, -1);
+    }
+
+    /**
+     * Writes all rows of the input (not the header). Returns after the last
+     * row is handed to the writer; on cancellation or failure the stages are
+     * stopped (the I/O stage is interrupted) before this method returns.
+     *
+     * @param input the rows to write
+     * @param out the writer to write to, used by the I/O stage only while
+     *            this method runs
+     * @param exec the monitor for progress and cancellation
+     * @param progress reports the polled rows
+     * @throws IOException if writing fails
+     * @throws CanceledExecutionException if the user canceled
+     * @throws InterruptedException if the input is interrupted
+     */
+    void write(final RowInput input, final Writer out,
+            final ExecutionMonitor exec, final ProgressSampler progress)
+            throws IOException, CanceledExecutionException,
+            InterruptedException {
+        final ForkJoinPool pool =
+                m_parallelism > 1 ? new ForkJoinPool(m_parallelism) : null;
+        Thread encoder = THREADS.newThread(new Runnable() {
+            @Override
+            public void run() {
+                encode(pool);
+            }
+        });
+        Thread writer = THREADS.newThread(new Runnable() {
+            @Override
+            public void run() {
+                drain(out);
+            }
+        });
+        boolean success = false;
+        try {
+            encoder.start();
+            writer.start();
+
+            DataRow[] rows = m_batches.newRowArray();
+            int count = 0;
+            long firstRow = 0;
+            long i = 0;
+            DataRow row;
+            while ((row = input.poll()) != null) {
+                // set the progress and check for cancellation now and then
+                progress.rowStarted(exec, i, row);
+                rows[count++] = row;
+                i++;
+                if (count == rows.length) {
+                    put(m_batches.newBatch(rows, count, firstRow), exec);
+                    rows = m_batches.newRowArray();
+                    count = 0;
+                    firstRow = i;
+                }
+            }
+            if (count > 0) {
+                put(m_batches.newBatch(rows, count, firstRow), exec);
+            }
+            put(m_end, exec);
+
+            // wait for the I/O stage, still reacting to a cancel
+            while (writer.isAlive()) {
+                checkFailure();
+                exec.checkCanceled();
+                writer.join(JOIN_MILLIS);
+            }
+            checkFailure();
+            success = true;
+        } finally {
+            if (!success) {
+                m_aborted = true;
+                // unblocks channel writes, the partial file is deleted anyway
+                writer.interrupt();
+            }
+            joinUninterruptibly(encoder);
+            joinUninterruptibly(writer);
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return the first warning raised while formatting (in row order), or
+     *         null
+     */
+    String getWarning() {
+        return m_batches.getWarning();
+    }
+
+    /** The encode stage. */
+    private void encode(final ForkJoinPool pool) {
+        try {
+            RowBatch batch;
+            while ((batch = take(m_polled)) != null) {
+                if (batch != m_end) {
+                    if (pool != null) {
+                        pool.execute(batch);
+                    } else {
+                        batch.invoke();
+                    }
+                }
+                if (!offer(m_encoded, batch) || batch == m_end) {
+                    return;
+                }
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /** The I/O stage. */
+    private void drain(final Writer out) {
+        try {
+            RowBatch batch;
+            while ((batch = take(m_encoded)) != null && batch != m_end) {
+                m_batches.write(batch, out);
+            }
+        } catch (Throwable t) {
+            fail(t);
+        }
+    }
+
+    /**
+     * Hands a polled batch to the encode stage, waiting while the queue is
+     * full.
+     */
+    private void put(final RowBatch batch, final ExecutionMonitor exec)
+            throws IOException, CanceledExecutionException {
+        int idle = 0;
+        while (!m_polled.offer(batch)) {
+            checkFailure();
+            exec.checkCanceled();
+            idle = idle(idle);
+        }
+    }
+
+    /** @return false if the pipeline was aborted while waiting */
+    private boolean offer(final SpscRingBuffer<RowBatch> queue,
+            final RowBatch batch) {
+        int idle = 0;
+        while (!queue.offer(batch)) {
+            if (m_aborted) {
+                return false;
+            }
+            idle = idle(idle);
+        }
+        return true;
+    }
+
+    /** @return the next batch or null if the pipeline was aborted */
+    private RowBatch take(final SpscRingBuffer<RowBatch> queue) {
+        int idle = 0;
+        RowBatch batch;
+        while ((batch = queue.poll()) == null) {
+            if (m_aborted) {
+                return null;
+            }
+            idle = idle(idle);
+        }
+        return batch;
+    }
+
+    /**
+     * Backs off while a queue is full or empty: yields first, then parks for
+     * growing periods up to {@link #MAX_PARK_NANOS}.
+     *
+     * @return the next idle count
+     */
+    private static int idle(final int idle) {
+        if (idle < 16) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(
+                    Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - 16, 10)));
+        }
+        return idle + 1;
+    }
+
+    private void fail(final Throwable t) {
+        if (m_failure == null) {
+            m_failure = t;
+        }
+        m_aborted = true;
+    }
+
+    /** Rethrows the failure of a stage in the calling thread. */
+    private void checkFailure() throws IOException {
+        Throwable t = m_failure;
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException)t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException)t;
+        }
+        if (t instanceof Error) {
+            throw (Error)t;
+        }
+        throw new IOException(t.getMessage(), t);
+    }
+
+    private static void joinUninterruptibly(final Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+
+/**
+ * The distribution of every probability column and its reliability diagram,
+ * gathered while the rows are formatted and written next to the CSV file
+ * (<code>distributions.json</code>).
+ *
+ * <p>The distribution is a sketch with fixed buckets: values up to 0.5 fall
+ * into buckets growing geometrically with the distance to 0, larger values
+ * into buckets growing with the distance to 1, so the quantiles have a
+ * relative error of at most {@link #RELATIVE_ACCURACY} of p respectively
+ * 1 - p. Bucket 0 holds values less than {@link #MIN_DISTANCE}, the last
+ * bucket values closer to 1, bucket <code>b</code> in between covers the
+ * distances <code>0.5 / g^i</code> to <code>0.5 / g^(i-1)</code> with
+ * <code>g = (1 + a) / (1 - a)</code> and <code>i = SIDE + 1 - b</code>
+ * below 0.5, <code>i = b - SIDE</code> above (<code>SIDE = (buckets - 2) /
+ * 2</code>). The reliability diagram has {@link #RELIABILITY_BINS} bins of
+ * equal width with the number of rows, the mean probability and the number
+ * of rows of the class; rows with missing actual class are left out.
+ *
+ * <p>Sketches, bins and sums (in fixed point) are counts and are added up
+ * when written, so the result is the same however the rows were split up
+ * between threads. Values outside [0, 1] are counted as 0 or 1, missing
+ * and NaN values only as missing.
+ */
+final class ProbabilityDistributions implements RowStatistics {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "distributions.json";
+
+    /** the relative error of the quantiles (of p, or 1 - p above 0.5). */
+    static final double RELATIVE_ACCURACY = 0.01;
+
+    /** closer values to 0 or 1 fall into the first or last bucket. */
+    static final double MIN_DISTANCE = 1e-9;
+
+    /** number of bins of the reliability diagram. */
+    static final int RELIABILITY_BINS = 10;
+
+    /** the quantiles written per class. */
+    private static final double[] QUANTILES =
+        {0.01, 0.05, 0.1, 0.25, 0.5, 0.75, 0.9, 0.95, 0.99};
+
+    /** the resolution of the sums, 2^-30. */
+    private static final double FIXED_POINT = 1L << 30;
+
+    private static final double LOG_GAMMA = Math.log(
+            (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY));
+
+    /** the number of buckets between MIN_DISTANCE and 0.5 on each side. */
+    private static final int SIDE = (int)Math.ceil(
+            Math.log(0.5 / MIN_DISTANCE) / LOG_GAMMA);
+
+    /** the number of buckets of a sketch. */
+    static final int BUCKETS = 2 * SIDE + 2;
+
+    private final String[] m_classes;
+
+    /** the probability columns, indexed like the classes. */
+    private final int[] m_columns;
+
+    /** the index of the class by name, not modified. */
+    private final Map<String, Integer> m_classIndex =
+            new HashMap<String, Integer>();
+
+    private final int m_actualColumn;
+
+    /** the accumulators of all formatters, guarded by this. */
+    private final List<Sketches> m_sketches = new ArrayList<Sketches>();
+
+    /**
+     * @param plan the column plan of the table
+     */
+    ProbabilityDistributions(final ClassilistColumnPlan plan) {
+        m_columns = plan.getProbabilityColumns();
+        m_classes = new String[m_columns.length];
+        for (int c = 0; c < m_columns.length; c++) {
+            m_classes[c] = plan.getClassName(m_columns[c]);
+            if (!m_classIndex.containsKey(m_classes[c])) {
+                m_classIndex.put(m_classes[c], c);
+            }
+        }
+        int actual = -1;
+        for (int c = 0; c < plan.getNumColumns(); c++) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            }
+        }
+        m_actualColumn = actual;
+    }
+
+    /**
+     * @param p a probability in [0, 1]
+     * @return the index of its bucket, ascending with p
+     */
+    static int bucket(final double p) {
+        if (p <= 0.5) {
+            return p < MIN_DISTANCE ? 0 : SIDE + 1 - distanceIndex(p);
+        }
+        double d = 1 - p;
+        return d < MIN_DISTANCE ? BUCKETS - 1 : SIDE + distanceIndex(d);
+    }
+
+    /** @return 1 for distances just below 0.5 up to SIDE */
+    private static int distanceIndex(final double d) {
+        return Math.min((int)(Math.log(0.5 / d) / LOG_GAMMA) + 1, SIDE);
+    }
+
+    /**
+     * @param bucket the index of a bucket
+     * @return the value representing the bucket (the middle on log scale)
+     */
+    static double value(final int bucket) {
+        if (bucket == 0) {
+            return 0;
+        } else if (bucket == BUCKETS - 1) {
+            return 1;
+        } else if (bucket <= SIDE) {
+            return 0.5 * Math.exp(-(SIDE + 0.5 - bucket) * LOG_GAMMA);
+        } else {
+            return 1 - 0.5 * Math.exp(-(bucket - SIDE - 0.5) * LOG_GAMMA);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Sketches newAccumulator() {
+        Sketches sketches = new Sketches();
+        m_sketches.add(sketches);
+        return sketches;
+    }
+
+    /** The sketches and reliability bins of the rows of one thread. */
+    final class Sketches implements Accumulator {
+
+        private final int[][] m_buckets =
+                new int[m_classes.length][BUCKETS];
+
+        private final int[] m_missing = new int[m_classes.length];
+
+        private final long[] m_sum = new long[m_classes.length];
+
+        private final double[] m_min = new double[m_classes.length];
+
+        private final double[] m_max = new double[m_classes.length];
+
+        private final int[][] m_binCount =
+                new int[m_classes.length][RELIABILITY_BINS];
+
+        private final long[][] m_binSum =
+                new long[m_classes.length][RELIABILITY_BINS];
+
+        private final int[][] m_binPositives =
+                new int[m_classes.length][RELIABILITY_BINS];
+
+        private Sketches() {
+            Arrays.fill(m_min, Double.POSITIVE_INFINITY);
+            Arrays.fill(m_max, Double.NEGATIVE_INFINITY);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            DataCell actual = row.getCell(m_actualColumn);
+            // -2 if the actual class is missing, -1 if it is a label
+            // without probability column
+            int truth = -2;
+            if (!actual.isMissing()) {
+                Integer c = m_classIndex.get(actual.toString());
+                truth = c == null ? -1 : c;
+            }
+            for (int c = 0; c < m_columns.length; c++) {
+                DataCell cell = row.getCell(m_columns[c]);
+                if (cell.isMissing() || !(cell instanceof DoubleValue)) {
+                    m_missing[c]++;
+                    continue;
+                }
+                double p = ((DoubleValue)cell).getDoubleValue();
+                if (Double.isNaN(p)) {
+                    m_missing[c]++;
+                    continue;
+                }
+                // also maps -0.0 to 0
+                p = p > 0 ? (p < 1 ? p : 1) : 0;
+                long fixed = Math.round(p * FIXED_POINT);
+                m_buckets[c][bucket(p)]++;
+                m_sum[c] += fixed;
+                m_min[c] = Math.min(m_min[c], p);
+                m_max[c] = Math.max(m_max[c], p);
+                if (truth > -2) {
+                    int bin = Math.min((int)(p * RELIABILITY_BINS),
+                            RELIABILITY_BINS - 1);
+                    m_binCount[c][bin]++;
+                    m_binSum[c][bin] += fixed;
+                    if (truth == c) {
+                        m_binPositives[c][bin]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the parameters of the sketches and, per class, the number of
+     * values, the missing ones, minimum, maximum, mean, the quantiles, the
+     * non-empty buckets as pairs of index and count and the reliability
+     * bins.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("relativeAccuracy").value(RELATIVE_ACCURACY);
+        json.name("minDistance").value(MIN_DISTANCE);
+        json.name("buckets").value(BUCKETS);
+        json.name("quantiles").beginArray();
+        for (double q : QUANTILES) {
+            json.value(q);
+        }
+        json.endArray();
+        json.name("reliabilityBins").value(RELIABILITY_BINS);
+        json.name("classes").beginArray();
+        for (int c = 0; c < m_classes.length; c++) {
+            writeClass(json, c);
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    private void writeClass(final JsonWriter json, final int c)
+            throws IOException {
+        long[] buckets = new long[BUCKETS];
+        long[] binCount = new long[RELIABILITY_BINS];
+        long[] binSum = new long[RELIABILITY_BINS];
+        long[] binPositives = new long[RELIABILITY_BINS];
+        long missing = 0;
+        long sum = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        for (Sketches s : m_sketches) {
+            for (int b = 0; b < BUCKETS; b++) {
+                buckets[b] += s.m_buckets[c][b];
+            }
+            for (int b = 0; b < RELIABILITY_BINS; b++) {
+                binCount[b] += s.m_binCount[c][b];
+                binSum[b] += s.m_binSum[c][b];
+                binPositives[b] += s.m_binPositives[c][b];
+            }
+            missing += s.m_missing[c];
+            sum += s.m_sum[c];
+            min = Math.min(min, s.m_min[c]);
+            max = Math.max(max, s.m_max[c]);
+        }
+        long count = 0;
+        for (long n : buckets) {
+            count += n;
+        }
+
+        json.beginObject();
+        json.name("class").value(m_classes[c]);
+        json.name("count").value(count);
+        json.name("missing").value(missing);
+        json.name("min").value(min);
+        json.name("max").value(max);
+        json.name("mean").value(count == 0 ? Double.NaN
+                : sum / FIXED_POINT / count);
+        json.name("quantiles").beginArray();
+        for (double q : QUANTILES) {
+            json.value(quantile(buckets, count, q, min, max));
+        }
+        json.endArray();
+        json.name("sketch").beginArray();
+        for (int b = 0; b < BUCKETS; b++) {
+            if (buckets[b] > 0) {
+                json.beginArray().value(b).value(buckets[b]).endArray();
+            }
+        }
+        json.endArray();
+        json.name("reliability").beginArray();
+        for (int b = 0; b < RELIABILITY_BINS; b++) {
+            long n = binCount[b];
+            json.beginObject();
+            json.name("count").value(n);
+            json.name("meanP").value(n == 0 ? Double.NaN
+                    : binSum[b] / FIXED_POINT / n);
+            json.name("positives").value(binPositives[b]);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+    }
+
+    /**
+     * @return the value of the bucket holding the q-quantile, within min
+     *         and max, NaN if there are no values
+     */
+    private static double quantile(final long[] buckets, final long count,
+            final double q, final double min, final double max) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        long rank = (long)(q * (count - 1));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets[b];
+            if (seen > rank) {
+                return Math.max(min, Math.min(max, value(b)));
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,201 @@
+package org.classilist.knime;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+import org.classilist.knime.ClassilistColumnPlan.Role;
+import org.classilist.knime.FileWriterSettings.ProbabilityQuantization;
+import org.knime.core.data.DataType;
+import org.knime.core.data.def.DoubleCell;
+
+/**
+ * Maps probabilities (clamped to [0, 1]) to 16 or 8 bit codes:
+ * <ul>
+ * <li>{@link ProbabilityQuantization#FLOAT16}: IEEE half precision, written
+ * to the CSV file as the shortest decimal that reads back as the same half
+ * value</li>
+ * <li>{@link ProbabilityQuantization#FIXED16}: <code>round(p * 65535)</code>,
+ * the scale 65535 is appended to the header (<code>P-class/65535</code>)</li>
+ * <li>{@link ProbabilityQuantization#FIXED8}: <code>round(p * n)</code> with
+ * the smallest scale n (at most 255) keeping the error within the bound, the
+ * scale is appended to the header</li>
+ * </ul>
+ * Quantizing doesn't change the order of the probabilities (ties aside).
+ */
+final class ProbabilityQuantizer {
+
+    /** largest scale of 8 bit codes. */
+    static final int MAX_FIXED8_SCALE = 255;
+
+    /** smallest error bound of 8 bit codes. */
+    static final double MIN_FIXED8_ERROR = 0.5 / MAX_FIXED8_SCALE;
+
+    /** default error bound of 8 bit codes. */
+    static final double DEFAULT_ERROR_BOUND = 0.002;
+
+    private static final int FIXED16_SCALE = 65535;
+
+    /** half precision 1.0, the largest code of a probability. */
+    private static final int HALF_ONE = 0x3c00;
+
+    private static final int DOUBLE_MANTISSA_BITS = 52;
+
+    private static final int HALF_MANTISSA_BITS = 10;
+
+    private static final int HALF_EXPONENT_BIAS = 15;
+
+    private final ProbabilityQuantization m_mode;
+
+    /** the fixed point scale, 0 for half precision. */
+    private final int m_scale;
+
+    private ProbabilityQuantizer(final ProbabilityQuantization mode,
+            final int scale) {
+        m_mode = mode;
+        m_scale = scale;
+    }
+
+    /**
+     * @param settings the writer settings
+     * @return the quantizer of the probability columns, null if they are
+     *         written with full precision
+     */
+    static ProbabilityQuantizer of(final FileWriterSettings settings) {
+        switch (settings.getProbabilityQuantization()) {
+            case FLOAT16:
+                return new ProbabilityQuantizer(ProbabilityQuantization.FLOAT16, 0);
+            case FIXED16:
+                return new ProbabilityQuantizer(ProbabilityQuantization.FIXED16,
+                        FIXED16_SCALE);
+            case FIXED8:
+                return new ProbabilityQuantizer(ProbabilityQuantization.FIXED8,
+                        fixed8Scale(settings.getProbabilityErrorBound()));
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param type the type of a column
+     * @param role the role of the column
+     * @return true if the values of the column are quantized (the double
+     *         probability columns)
+     */
+    static boolean appliesTo(final DataType type, final Role role) {
+        return role == Role.PROBABILITY && DoubleCell.TYPE.equals(type);
+    }
+
+    /**
+     * @param errorBound the largest absolute error allowed
+     * @return the smallest scale with a rounding error (half a step) within
+     *         the bound, may exceed {@link #MAX_FIXED8_SCALE}
+     */
+    static int fixed8Scale(final double errorBound) {
+        return (int)Math.min(Integer.MAX_VALUE,
+                Math.ceil(0.5 / errorBound - 1e-9));
+    }
+
+    /** @return the quantization mode */
+    ProbabilityQuantization getMode() {
+        return m_mode;
+    }
+
+    /** @return the fixed point scale (value = code / scale), 0 for half */
+    int getScale() {
+        return m_scale;
+    }
+
+    /** @return the number of bits of a code */
+    int getBitWidth() {
+        return m_mode == ProbabilityQuantization.FIXED8 ? 8 : 16;
+    }
+
+    /** @return appended to the header of the probability columns */
+    String headerSuffix() {
+        return m_scale > 0 ? "/" + m_scale : "";
+    }
+
+    /**
+     * @param p the probability, not NaN; clamped to [0, 1]
+     * @return the fixed point code or the half precision bits
+     */
+    int quantize(final double p) {
+        // also maps -0.0 to 0
+        double v = p > 0 ? (p < 1 ? p : 1) : 0;
+        if (m_scale > 0) {
+            return (int)Math.round(v * m_scale);
+        }
+        return toHalf(v);
+    }
+
+    /**
+     * @param code a half precision code of a probability
+     * @return the shortest decimal reading back as the same half value
+     */
+    static char[] halfDecimal(final int code) {
+        return HalfDecimals.TABLE[code];
+    }
+
+    /**
+     * Rounds to half precision (to nearest, ties to even).
+     *
+     * @param v a value in [0, 1]
+     * @return the half precision bits
+     */
+    static int toHalf(final double v) {
+        long bits = Double.doubleToRawLongBits(v);
+        int exponent = (int)(bits >>> DOUBLE_MANTISSA_BITS) - 1023;
+        if (exponent < 1 - HALF_EXPONENT_BIAS) {
+            // subnormal, exact scaling by 2^24; 1024 is the smallest normal
+            return (int)Math.rint(v * (1 << 24));
+        }
+        final int shift = DOUBLE_MANTISSA_BITS - HALF_MANTISSA_BITS;
+        long mantissa = bits & ((1L << DOUBLE_MANTISSA_BITS) - 1);
+        int half = ((exponent + HALF_EXPONENT_BIAS) << HALF_MANTISSA_BITS)
+                | (int)(mantissa >>> shift);
+        long rest = mantissa & ((1L << shift) - 1);
+        long halfway = 1L << (shift - 1);
+        if (rest > halfway || (rest == halfway && (half & 1) != 0)) {
+            half++; // may carry into the exponent
+        }
+        return half;
+    }
+
+    /**
+     * @param half half precision bits of a value in [0, 1]
+     * @return the value
+     */
+    static double halfToDouble(final int half) {
+        int exponent = half >>> HALF_MANTISSA_BITS;
+        int mantissa = half & ((1 << HALF_MANTISSA_BITS) - 1);
+        if (exponent == 0) {
+            return Math.scalb((double)mantissa, -24);
+        }
+        return Math.scalb((double)(mantissa | (1 << HALF_MANTISSA_BITS)),
+                exponent - HALF_EXPONENT_BIAS - HALF_MANTISSA_BITS);
+    }
+
+    /** The decimals of all half values in [0, 1], created on first use. */
+    private static final class HalfDecimals {
+
+        static final char[][] TABLE = new char[HALF_ONE + 1][];
+
+        static {
+            for (int h = 0; h <= HALF_ONE; h++) {
+                double v = halfToDouble(h);
+                BigDecimal d = new BigDecimal(v);
+                for (int digits = 1; digits <= 17; digits++) {
+                    BigDecimal rounded =
+                            d.round(new MathContext(digits, RoundingMode.HALF_EVEN));
+                    if (toHalf(rounded.doubleValue()) == h) {
+                        d = rounded;
+                        break;
+                    }
+                }
+                TABLE[h] = (d.signum() == 0 ? "0"
+                        : d.stripTrailingZeros().toPlainString()).toCharArray();
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.classilist.knime;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+
+/**
+ * Decides when the writer reports progress and checks for cancellation. The
+ * number of rows between two samples adapts to the row throughput so that
+ * samples are taken roughly every {@link #TARGET_NANOS}, for narrow and wide
+ * tables alike.
+ */
+final class ProgressSampler {
+
+    /** Aimed time between two samples. */
+    private static final long TARGET_NANOS = 50L * 1000 * 1000;
+
+    /** Upper bound for the number of rows between two samples. */
+    private static final int MAX_INTERVAL = 1 << 16;
+
+    private final long m_rowCount;
+
+    private int m_interval = 1;
+
+    private int m_countdown = 1;
+
+    private long m_lastSample = System.nanoTime();
+
+    /**
+     * @param rowCount the number of rows to write, or a value &lt;= 0 if
+     *            unknown
+     */
+    ProgressSampler(final long rowCount) {
+        m_rowCount = rowCount;
+    }
+
+    /**
+     * Counts one row and, if it is time for a sample, reports the progress
+     * and checks for cancellation.
+     *
+     * @param exec the monitor to report to
+     * @param rowIndex the index of the row about to be written
+     * @param row the row about to be written (only used for the message)
+     * @throws CanceledExecutionException if execution has been canceled
+     */
+    void rowStarted(final ExecutionMonitor exec, final long rowIndex,
+            final DataRow row) throws CanceledExecutionException {
+        if (--m_countdown > 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - m_lastSample;
+        m_lastSample = now;
+        if (elapsed < TARGET_NANOS / 2 && m_interval < MAX_INTERVAL) {
+            m_interval <<= 1;
+        } else if (elapsed > 2 * TARGET_NANOS && m_interval > 1) {
+            m_interval >>>= 1;
+        }
+        m_countdown = m_interval;
+
+        String rowKey = row.getKey().toString();
+        if (m_rowCount <= 0) {
+            exec.setMessage("Writing row " + (rowIndex + 1) + " (\"" + rowKey
+                    + "\")");
+        } else {
+            exec.setProgress(rowIndex / (double)m_rowCount, "Writing row "
+                    + (rowIndex + 1) + " (\"" + rowKey + "\") of " + m_rowCount);
+        }
+        // Check if execution was canceled !
+        exec.checkCanceled();
+    }
+}
@@ -0,0 +1,81 @@
+package org.classilist.knime;
+
+/**
+ * How the data of one column is quoted and whether the column separator is
+ * replaced in it. The policy is derived once per column from the quote mode
+ * of the writer settings, so the writer doesn't have to switch over the
+ * quote mode for every cell.
+ */
+enum QuotePolicy {
+    /** write the data as is. */
+    NONE(false, false, false),
+    /** replace the separator, no quotes. */
+    REPLACE(true, false, false),
+    /** always put quotes around the data. */
+    QUOTE(false, true, false),
+    /** replace the separator and put quotes around the data. */
+    REPLACE_QUOTE(true, true, false),
+    /** put quotes around the data if it contains the separator or equals
+     * the missing value pattern. */
+    QUOTE_IF_NEEDED(false, false, true),
+    /** replace the separator and quote if needed (the need is decided on
+     * the data before the replacement). */
+    REPLACE_QUOTE_IF_NEEDED(true, false, true);
+
+    private final boolean m_replaceSeparator;
+
+    private final boolean m_quote;
+
+    private final boolean m_quoteIfNeeded;
+
+    private QuotePolicy(final boolean replaceSeparator, final boolean quote,
+            final boolean quoteIfNeeded) {
+        m_replaceSeparator = replaceSeparator;
+        m_quote = quote;
+        m_quoteIfNeeded = quoteIfNeeded;
+    }
+
+    /** @return true if the column separator is replaced in the data */
+    boolean replaceSeparator() {
+        return m_replaceSeparator;
+    }
+
+    /** @return true if the data is always quoted */
+    boolean quote() {
+        return m_quote;
+    }
+
+    /** @return true if the data is quoted only if needed */
+    boolean quoteIfNeeded() {
+        return m_quoteIfNeeded;
+    }
+
+    /**
+     * Resolves the policy for a column, mirroring
+     * {@link Classilist#quoteString(String, boolean)}.
+     *
+     * @param settings the writer settings
+     * @param isNumerical true for columns compatible to double values
+     * @return the policy to apply to all cells of the column
+     */
+    static QuotePolicy of(final FileWriterSettings settings,
+            final boolean isNumerical) {
+        boolean replaceInStrings =
+                settings.replaceSeparatorInStrings() && !isNumerical;
+        switch (settings.getQuoteMode()) {
+        case ALWAYS:
+            return replaceInStrings ? REPLACE_QUOTE : QUOTE;
+        case IF_NEEDED:
+            return replaceInStrings ? REPLACE_QUOTE_IF_NEEDED
+                    : QUOTE_IF_NEEDED;
+        case REPLACE:
+            return REPLACE;
+        case STRINGS:
+        default:
+            if (isNumerical) {
+                return NONE;
+            }
+            return replaceInStrings ? REPLACE_QUOTE : QUOTE;
+        }
+    }
+}
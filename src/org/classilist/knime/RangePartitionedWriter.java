@@ -0,0 +1,387 @@
+package org.classilist.knime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.container.filter.TableFilter;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.util.FileUtil;
+
+/**
+ * Writes a {@link BufferedDataTable} by reading disjoint row ranges in
+ * parallel: every worker opens its own iterator over a range (a row range
+ * {@link TableFilter}, materializing only the exported columns), decodes and
+ * formats the rows and the calling thread writes the ranges in order.
+ *
+ * <p>The range currently written is streamed; ranges read ahead of it are
+ * kept in memory up to a budget and spilled to a temporary file beyond it,
+ * so the workers never wait for the output and the memory used doesn't
+ * depend on the table size. The output is identical to the serial writer.
+ */
+final class RangePartitionedWriter {
+
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(RangePartitionedWriter.class);
+
+    /** tables with fewer rows are written through a single iterator. */
+    static final long MIN_PARTITIONED_ROWS = 1 << 14;
+
+    /** ranges per worker, so a slow range doesn't idle the other workers. */
+    private static final int RANGES_PER_THREAD = 4;
+
+    /** characters all ranges not written yet keep in memory together. */
+    private static final long MEMORY_BUDGET_CHARS = 1L << 24;
+
+    /** size of the buffer spilled ranges are written and read through. */
+    private static final int SPILL_BLOCK_BYTES = 1 << 16;
+
+    private static final long WAIT_MILLIS = 100;
+
+    private final BatchFormatter m_batches;
+
+    /** the columns to materialize, null for all. */
+    private final int[] m_columns;
+
+    private final int m_parallelism;
+
+    private final AtomicLong m_rowsDone = new AtomicLong();
+
+    /** set when writing fails or is canceled, workers stop then. */
+    private volatile boolean m_aborted;
+
+    private String m_warning;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     * @param newLine the line ending to write
+     * @param parallelism the number of threads reading ranges
+     */
+    RangePartitionedWriter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings, final String newLine,
+            final int parallelism) {
+        m_batches = new BatchFormatter(plan, settings, newLine);
+        m_columns = plan.isProjected() ? plan.getExportedColumns() : null;
+        m_parallelism = parallelism;
+    }
+
+    /**
+     * Writes all rows of the table (not the header).
+     *
+     * @param table the table to write
+     * @param out the writer to write to
+     * @param exec the monitor for progress and cancellation
+     * @throws IOException if reading a spilled range or writing fails
+     * @throws CanceledExecutionException if the user canceled
+     * @throws InterruptedException if interrupted while waiting for a range
+     */
+    void write(final BufferedDataTable table, final Writer out,
+            final ExecutionMonitor exec) throws IOException,
+            CanceledExecutionException, InterruptedException {
+        final long rowCount = table.size();
+        final int rangeCount = (int)Math.max(1, Math.min(
+                (long)m_parallelism * RANGES_PER_THREAD,
+                rowCount / (MIN_PARTITIONED_ROWS / RANGES_PER_THREAD)));
+        final long rangeBudget = Math.max(
+                2L * BatchFormatter.TARGET_BATCH_CHARS,
+                MEMORY_BUDGET_CHARS / rangeCount);
+        final RangeOutput[] ranges = new RangeOutput[rangeCount];
+        for (int r = 0; r < rangeCount; r++) {
+            ranges[r] = new RangeOutput(rowCount * r / rangeCount,
+                    rowCount * (r + 1) / rangeCount, rangeBudget);
+        }
+
+        // the pool works through the ranges in order, the range written
+        // next is always being read or done
+        ExecutorService pool = Executors.newFixedThreadPool(m_parallelism,
+                WriterThreads.platform("Classilist-range-"));
+        boolean success = false;
+        try {
+            for (final RangeOutput range : ranges) {
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        range.read(table);
+                    }
+                });
+            }
+            for (RangeOutput range : ranges) {
+                range.writeTo(out, exec, rowCount);
+                if (m_warning == null) {
+                    m_warning = range.m_warning;
+                }
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                m_aborted = true;
+            }
+            pool.shutdownNow();
+            awaitUninterruptibly(pool);
+            for (RangeOutput range : ranges) {
+                range.deleteSpill();
+            }
+        }
+    }
+
+    /**
+     * @return the first warning raised while formatting (in row order), or
+     *         null
+     */
+    String getWarning() {
+        return m_warning;
+    }
+
+    private static void awaitUninterruptibly(final ExecutorService pool) {
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The formatted rows of one range: chunks in memory while they fit into
+     * the budget, the rest of the range in a spill file.
+     */
+    private final class RangeOutput {
+
+        private final long m_from;
+
+        /** exclusive. */
+        private final long m_to;
+
+        private final long m_budget;
+
+        /** chunks in row order, all before the spilled ones. */
+        private final ArrayDeque<RowBuffer> m_chunks =
+                new ArrayDeque<RowBuffer>();
+
+        private long m_bufferedChars;
+
+        /** written by the worker only, read after m_done. */
+        private File m_spillFile;
+
+        private FileChannel m_spill;
+
+        private ByteBuffer m_spillBytes;
+
+        private boolean m_done;
+
+        private Throwable m_failure;
+
+        private String m_warning;
+
+        RangeOutput(final long from, final long to, final long budget) {
+            m_from = from;
+            m_to = to;
+            m_budget = budget;
+        }
+
+        /** Reads and formats the range, runs in a worker. */
+        void read(final BufferedDataTable table) {
+            Throwable failure = null;
+            try {
+                readRange(table);
+            } catch (Throwable t) {
+                failure = t;
+            } finally {
+                closeSpill();
+                synchronized (this) {
+                    m_done = true;
+                    m_failure = failure;
+                    notifyAll();
+                }
+            }
+        }
+
+        private void readRange(final BufferedDataTable table)
+                throws IOException {
+            if (m_from >= m_to || m_aborted) {
+                return;
+            }
+            RowFormatter formatter = m_batches.formatter();
+            RowBuffer chunk = m_batches.obtainBuffer();
+            int rows = 0;
+            long i = m_from;
+            TableFilter.Builder filter = new TableFilter.Builder()
+                    .withFromRowIndex(m_from).withToRowIndex(m_to - 1);
+            if (m_columns != null) {
+                // only decode the exported columns
+                filter.withMaterializeColumnIndices(m_columns);
+            }
+            try (CloseableRowIterator it = table.filter(filter.build())) {
+                while (it.hasNext()) {
+                    if (m_aborted) {
+                        return;
+                    }
+                    formatter.format(it.next(), i++, chunk);
+                    rows++;
+                    if (chunk.length() >= BatchFormatter.TARGET_BATCH_CHARS) {
+                        add(chunk, rows);
+                        chunk = m_batches.obtainBuffer();
+                        rows = 0;
+                    }
+                }
+            }
+            add(chunk, rows);
+        }
+
+        /** Hands a formatted chunk to the writing thread or spills it. */
+        private void add(final RowBuffer chunk, final int rows)
+                throws IOException {
+            m_rowsDone.addAndGet(rows);
+            String warning = chunk.takeWarning();
+            synchronized (this) {
+                if (m_warning == null) {
+                    m_warning = warning;
+                }
+                // once spilling, the rest of the range goes to the file too
+                if (m_spill == null
+                        && m_bufferedChars + chunk.length() <= m_budget) {
+                    m_chunks.add(chunk);
+                    m_bufferedChars += chunk.length();
+                    notifyAll();
+                    return;
+                }
+            }
+            spill(chunk);
+            m_batches.recycle(chunk);
+        }
+
+        private void spill(final RowBuffer chunk) throws IOException {
+            if (m_spill == null) {
+                m_spillFile = FileUtil.createTempFile("classilist-range", ".tmp");
+                m_spill = FileChannel.open(m_spillFile.toPath(),
+                        StandardOpenOption.WRITE);
+                m_spillBytes = ByteBuffer.allocateDirect(SPILL_BLOCK_BYTES)
+                        .order(ByteOrder.nativeOrder());
+            }
+            final char[] chars = chunk.chars();
+            final int length = chunk.length();
+            int off = 0;
+            while (off < length) {
+                int n = Math.min(length - off, SPILL_BLOCK_BYTES / 2);
+                m_spillBytes.clear();
+                m_spillBytes.asCharBuffer().put(chars, off, n);
+                m_spillBytes.limit(2 * n);
+                while (m_spillBytes.hasRemaining()) {
+                    m_spill.write(m_spillBytes);
+                }
+                off += n;
+            }
+        }
+
+        private void closeSpill() {
+            if (m_spill != null) {
+                try {
+                    m_spill.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Closing spill file failed: "
+                            + e.getMessage(), e);
+                }
+            }
+        }
+
+        /**
+         * Writes the range, waiting for the worker as needed. Called by the
+         * writing thread, in range order.
+         */
+        void writeTo(final Writer out, final ExecutionMonitor exec,
+                final long rowCount) throws IOException,
+                CanceledExecutionException, InterruptedException {
+            while (true) {
+                RowBuffer chunk;
+                boolean done;
+                synchronized (this) {
+                    if (m_chunks.isEmpty() && !m_done) {
+                        wait(WAIT_MILLIS);
+                    }
+                    chunk = m_chunks.poll();
+                    if (chunk != null) {
+                        m_bufferedChars -= chunk.length();
+                    }
+                    done = m_done && m_chunks.isEmpty();
+                }
+                if (chunk != null) {
+                    chunk.writeTo(out);
+                    m_batches.recycle(chunk);
+                }
+                // once per chunk or wait
+                long rowsDone = m_rowsDone.get();
+                exec.setProgress(rowsDone / (double)rowCount, "Writing row "
+                        + rowsDone + " of " + rowCount);
+                exec.checkCanceled();
+                if (done) {
+                    break;
+                }
+            }
+            Throwable failure;
+            synchronized (this) {
+                failure = m_failure;
+            }
+            if (failure instanceof IOException) {
+                throw (IOException)failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException)failure;
+            } else if (failure instanceof Error) {
+                throw (Error)failure;
+            } else if (failure != null) {
+                throw new IOException(failure.getMessage(), failure);
+            }
+            if (m_spillFile != null) {
+                copySpill(out);
+            }
+        }
+
+        /** Writes the spilled characters to the output. */
+        private void copySpill(final Writer out) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocateDirect(SPILL_BLOCK_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            char[] chars = new char[SPILL_BLOCK_BYTES / 2];
+            try (FileChannel in = FileChannel.open(m_spillFile.toPath(),
+                    StandardOpenOption.READ)) {
+                while (in.read(bytes) >= 0 || bytes.position() > 0) {
+                    bytes.flip();
+                    int n = bytes.remaining() / 2;
+                    bytes.asCharBuffer().get(chars, 0, n);
+                    bytes.position(2 * n);
+                    bytes.compact();
+                    out.write(chars, 0, n);
+                }
+            }
+        }
+
+        void deleteSpill() {
+            if (m_spillFile != null) {
+                try {
+                    Files.deleteIfExists(m_spillFile.toPath());
+                } catch (IOException e) {
+                    LOGGER.debug("Deleting spill file '" + m_spillFile
+                            + "' failed: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
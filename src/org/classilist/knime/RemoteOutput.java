@@ -0,0 +1,127 @@
+package org.classilist.knime;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+import org.knime.core.util.FileUtil;
+
+/**
+ * Opens the output stream for a target that is not a local path. Http(s)
+ * uploads are streamed in chunks instead of being buffered by the connection
+ * until the whole file is written; with the resumable upload they are sent
+ * in ranged chunks that are retried on their own.
+ */
+final class RemoteOutput {
+
+    /** size of the transfer chunks of a single request upload. */
+    private static final int STREAMING_CHUNK_SIZE = 1 << 16;
+
+    private static final String GZIP_ENCODING = "gzip";
+
+    private RemoteOutput() {
+    }
+
+    /**
+     * @param url the target URL
+     * @param settings the writer settings
+     * @return the stream to write the (uncompressed) output to, closing it
+     *         completes the upload
+     * @throws IOException if the connection can't be opened
+     */
+    static OutputStream open(final URL url, final FileWriterSettings settings)
+            throws IOException {
+        // a compressed file is uploaded as it is
+        final boolean encode = settings.compressUpload()
+                && !settings.compressOutput();
+        OutputStream out;
+        if (settings.useResumableUpload() && isHttp(url)) {
+            out = new ResumableUploadOutputStream(url,
+                    settings.getUploadChunkSize(), settings.getUploadRetries(),
+                    encode ? GZIP_ENCODING : null);
+        } else {
+            URLConnection connection = FileUtil.openOutputConnection(url, "PUT");
+            if (connection instanceof HttpURLConnection) {
+                HttpURLConnection http = (HttpURLConnection)connection;
+                http.setChunkedStreamingMode(STREAMING_CHUNK_SIZE);
+                if (encode) {
+                    http.setRequestProperty("Content-Encoding", GZIP_ENCODING);
+                }
+                out = new ResponseCheckingOutputStream(http);
+            } else {
+                out = connection.getOutputStream();
+            }
+        }
+        if (encode) {
+            out = new ParallelGzipOutputStream(out,
+                    settings.getCompressionLevel(),
+                    settings.getCompressionBlockSize(),
+                    settings.getParallelism());
+        }
+        return out;
+    }
+
+    private static boolean isHttp(final URL url) {
+        return "http".equalsIgnoreCase(url.getProtocol())
+                || "https".equalsIgnoreCase(url.getProtocol());
+    }
+
+    /**
+     * Request body of an http upload, fails on close if the server didn't
+     * accept the upload.
+     */
+    private static final class ResponseCheckingOutputStream
+            extends FilterOutputStream {
+
+        private final HttpURLConnection m_connection;
+
+        private boolean m_closed;
+
+        ResponseCheckingOutputStream(final HttpURLConnection connection)
+                throws IOException {
+            super(connection.getOutputStream());
+            m_connection = connection;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+                throws IOException {
+            out.write(b, off, len);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() throws IOException {
+            if (m_closed) {
+                return;
+            }
+            m_closed = true;
+            try {
+                out.close();
+                int code = m_connection.getResponseCode();
+                InputStream response = code < HttpURLConnection.HTTP_BAD_REQUEST
+                        ? m_connection.getInputStream()
+                        : m_connection.getErrorStream();
+                if (response != null) {
+                    response.close();
+                }
+                if (code / 100 != 2) {
+                    throw new IOException("Upload to '" + m_connection.getURL()
+                            + "' failed, server responded with " + code + " "
+                            + m_connection.getResponseMessage());
+                }
+            } finally {
+                m_connection.disconnect();
+            }
+        }
+    }
+}
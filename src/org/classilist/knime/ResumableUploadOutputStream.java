@@ -0,0 +1,294 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.knime.core.node.NodeLogger;
+import org.knime.core.util.FileUtil;
+
+/**
+ * Uploads the data with one HTTP PUT request per chunk, each carrying a
+ * <code>Content-Range</code> header (<code>bytes first-last/*</code>, the
+ * total length in the last one). Only the chunk currently uploaded is kept
+ * in memory. A chunk the server didn't acknowledge (2xx, or 308 Resume
+ * Incomplete with a <code>Range: bytes=0-N</code> header covering it) is sent
+ * again from the first byte the server doesn't have, with growing delays for
+ * failed requests, so a failed upload resumes after the last persisted byte
+ * instead of starting over.
+ */
+final class ResumableUploadOutputStream extends OutputStream {
+
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(ResumableUploadOutputStream.class);
+
+    /** Default number of bytes per request. */
+    static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    /** Smallest accepted number of bytes per request. */
+    static final int MIN_CHUNK_SIZE = 64 << 10;
+
+    /** Default number of retries of a chunk. */
+    static final int DEFAULT_RETRIES = 3;
+
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /** delay before the first retry, doubled for every further one. */
+    private static final long RETRY_DELAY_MILLIS = 500;
+
+    private final URL m_url;
+
+    private final String m_contentEncoding;
+
+    private final int m_retries;
+
+    private final byte[] m_chunk;
+
+    private int m_length;
+
+    /** number of bytes acknowledged by the server. */
+    private long m_offset;
+
+    private boolean m_closed;
+
+    /**
+     * @param url the http(s) URL to upload to
+     * @param chunkSize the number of bytes per request
+     * @param retries the number of times a chunk is sent again
+     * @param contentEncoding the content encoding of the data (e.g. "gzip"),
+     *            null if not encoded
+     */
+    ResumableUploadOutputStream(final URL url, final int chunkSize,
+            final int retries, final String contentEncoding) {
+        m_url = url;
+        m_chunk = new byte[Math.max(chunkSize, MIN_CHUNK_SIZE)];
+        m_retries = retries;
+        m_contentEncoding = contentEncoding;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int b) throws IOException {
+        ensureOpen();
+        m_chunk[m_length++] = (byte)b;
+        if (m_length == m_chunk.length) {
+            upload(false);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+        ensureOpen();
+        int pos = off;
+        final int end = off + len;
+        while (pos < end) {
+            int n = Math.min(end - pos, m_chunk.length - m_length);
+            System.arraycopy(b, pos, m_chunk, m_length, n);
+            m_length += n;
+            pos += n;
+            if (m_length == m_chunk.length) {
+                upload(false);
+            }
+        }
+    }
+
+    /**
+     * Uploads the last chunk, which completes the upload.
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        m_closed = true;
+        upload(true);
+    }
+
+    /**
+     * @return the number of bytes the server acknowledged
+     */
+    long getAcknowledged() {
+        return m_offset;
+    }
+
+    /**
+     * Uploads the buffered chunk, retrying as configured. If the server
+     * persisted only the beginning of the chunk, the rest is sent again.
+     */
+    private void upload(final boolean last) throws IOException {
+        IOException failure = null;
+        int attempt = 0;
+        while (true) {
+            if (attempt > 0) {
+                LOGGER.info("Upload of bytes " + m_offset + "-"
+                        + (m_offset + m_length) + " to '" + m_url
+                        + "' failed (" + failure.getMessage()
+                        + "), retrying (" + attempt + "/" + m_retries + ").");
+                sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+            }
+            try {
+                long persisted = send(last);
+                if (persisted < 0) {
+                    // complete, or the whole chunk acknowledged
+                    m_offset += m_length;
+                    m_length = 0;
+                    return;
+                }
+                if (persisted < m_offset || persisted > m_offset + m_length) {
+                    throw new UploadRejectedException("Upload to '" + m_url
+                            + "' failed, the server has " + persisted
+                            + " bytes, expected " + m_offset + " to "
+                            + (m_offset + m_length) + ".");
+                }
+                int acknowledged = (int)(persisted - m_offset);
+                System.arraycopy(m_chunk, acknowledged, m_chunk, 0,
+                        m_length - acknowledged);
+                m_offset = persisted;
+                m_length -= acknowledged;
+                if (m_length == 0 && !last) {
+                    return;
+                }
+                if (acknowledged > 0) {
+                    // progress, the remainder gets all retries again
+                    attempt = 0;
+                    continue;
+                }
+                failure = new IOException("Server persisted none of bytes "
+                        + m_offset + "-" + (m_offset + m_length));
+            } catch (UploadRejectedException e) {
+                throw e;
+            } catch (IOException e) {
+                failure = e;
+            }
+            if (attempt++ == m_retries) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Sends the buffered chunk.
+     *
+     * @return the number of bytes the server persisted in total if it
+     *         answered 308 Resume Incomplete, -1 if it acknowledged the whole
+     *         chunk
+     */
+    private long send(final boolean last) throws IOException {
+        HttpURLConnection connection =
+                (HttpURLConnection)FileUtil.openOutputConnection(m_url, "PUT");
+        connection.setFixedLengthStreamingMode(m_length);
+        String total = last ? Long.toString(m_offset + m_length) : "*";
+        if (m_length == 0) {
+            connection.setRequestProperty("Content-Range", "bytes */" + total);
+        } else {
+            connection.setRequestProperty("Content-Range", "bytes " + m_offset
+                    + "-" + (m_offset + m_length - 1) + "/" + total);
+        }
+        if (m_contentEncoding != null) {
+            connection.setRequestProperty("Content-Encoding", m_contentEncoding);
+        }
+        try {
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(m_chunk, 0, m_length);
+            }
+            int code = connection.getResponseCode();
+            if (code / 100 == 2) {
+                discard(connection.getInputStream());
+                return -1;
+            }
+            if (code == HTTP_RESUME_INCOMPLETE) {
+                discard(connection.getInputStream());
+                return persistedBytes(connection.getHeaderField("Range"));
+            }
+            discard(connection.getErrorStream());
+            String message = "Server responded with " + code + " "
+                    + connection.getResponseMessage();
+            if (code >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                    || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    || code == HTTP_TOO_MANY_REQUESTS) {
+                throw new IOException(message);
+            }
+            throw new UploadRejectedException("Upload to '" + m_url
+                    + "' rejected. " + message);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @param range the Range header of a 308 response, "bytes=0-N", null if
+     *            the server has no bytes yet
+     * @return the number of bytes the server persisted, N + 1
+     * @throws IOException if the header can't be parsed
+     */
+    static long persistedBytes(final String range) throws IOException {
+        if (range == null) {
+            return 0;
+        }
+        String value = range.trim();
+        int dash = value.indexOf('-');
+        if (!value.startsWith("bytes=") || dash < 0) {
+            throw new IOException("Unexpected Range header '" + range + "'");
+        }
+        try {
+            if (Long.parseLong(value.substring("bytes=".length(), dash).trim()) != 0) {
+                throw new IOException("Unexpected Range header '" + range + "'");
+            }
+            return Long.parseLong(value.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected Range header '" + range + "'", e);
+        }
+    }
+
+    /** Reads and closes the response body, so the connection can be reused. */
+    private static void discard(final InputStream in) throws IOException {
+        if (in == null) {
+            return;
+        }
+        try {
+            byte[] buf = new byte[4096];
+            while (in.read(buf) >= 0) {
+                // skip
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void sleep(final long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to "
+                    + "retry the upload");
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (m_closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /** The server rejected a chunk, sending it again won't help. */
+    private static final class UploadRejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        UploadRejectedException(final String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Reusable character buffer the cell encoders write one or more rows into.
+ * Quoting, quote escaping and separator replacement are done while copying
+ * the cell into the buffer, no intermediate strings are created. The output
+ * is identical to the one of {@link Classilist#quoteString(String, boolean)}
+ * for all quote modes.
+ *
+ * <p>A buffer is not thread-safe, every writing thread uses its own.
+ */
+final class RowBuffer {
+
+    private static final char[] EMPTY = new char[0];
+
+    private final char[] m_separator;
+
+    private final char[] m_separatorReplacement;
+
+    private final char[] m_quoteBegin;
+
+    private final char[] m_quoteEnd;
+
+    private final char[] m_quoteReplacement;
+
+    private final char[] m_missing;
+
+    private final char[] m_newLine;
+
+    private char[] m_chars;
+
+    private int m_length;
+
+    /** source characters of the cell currently escaped. */
+    private char[] m_source = new char[64];
+
+    /** cell with replaced separators, input to the quote escaping. */
+    private char[] m_staged = new char[64];
+
+    private long m_rowIndex;
+
+    private String m_warning;
+
+    /**
+     * @param settings the writer settings, with null patterns replaced by
+     *            empty strings already
+     * @param newLine the line ending to write
+     * @param capacity the initial capacity in characters
+     */
+    RowBuffer(final FileWriterSettings settings, final String newLine,
+            final int capacity) {
+        m_separator = settings.getColSeparator().toCharArray();
+        m_separatorReplacement =
+                settings.getSeparatorReplacement().toCharArray();
+        m_quoteBegin = settings.getQuoteBegin().toCharArray();
+        m_quoteEnd = settings.getQuoteEnd().toCharArray();
+        m_quoteReplacement = settings.getQuoteReplacement().toCharArray();
+        m_missing = settings.getMissValuePattern().toCharArray();
+        m_newLine = newLine == null ? EMPTY : newLine.toCharArray();
+        m_chars = new char[Math.max(capacity, 16)];
+    }
+
+    /** @return the number of characters in the buffer */
+    int length() {
+        return m_length;
+    }
+
+    /** @return the backing array, valid up to {@link #length()} */
+    char[] chars() {
+        return m_chars;
+    }
+
+    /** Empties the buffer, the capacity is kept. */
+    void clear() {
+        m_length = 0;
+    }
+
+    /**
+     * Writes the content to the writer and empties the buffer.
+     *
+     * @param out the writer to write to
+     * @throws IOException if writing fails
+     */
+    void writeTo(final Writer out) throws IOException {
+        if (m_length > 0) {
+            out.write(m_chars, 0, m_length);
+            m_length = 0;
+        }
+    }
+
+    /**
+     * Sets the index of the row the following cells belong to. Only used in
+     * warnings.
+     */
+    void startRow(final long rowIndex) {
+        m_rowIndex = rowIndex;
+    }
+
+    /** Appends the column separator. */
+    void appendSeparator() {
+        append(m_separator, 0, m_separator.length);
+    }
+
+    /** Appends the missing value pattern (never quoted). */
+    void appendMissing() {
+        append(m_missing, 0, m_missing.length);
+    }
+
+    /** Appends the line ending. */
+    void appendNewLine() {
+        append(m_newLine, 0, m_newLine.length);
+    }
+
+    /** Appends a single character. */
+    void append(final char c) {
+        ensureCapacity(1);
+        m_chars[m_length++] = c;
+    }
+
+    /** Appends all characters of the string. */
+    void append(final String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        s.getChars(0, len, m_chars, m_length);
+        m_length += len;
+    }
+
+    /** Appends the characters from..to (exclusive) of the array. */
+    void append(final char[] src, final int from, final int to) {
+        int len = to - from;
+        ensureCapacity(len);
+        System.arraycopy(src, from, m_chars, m_length, len);
+        m_length += len;
+    }
+
+    /**
+     * Appends the data quoted according to the policy.
+     *
+     * @param data the data to append
+     * @param policy the quote policy of the column
+     */
+    void appendQuoted(final String data, final QuotePolicy policy) {
+        if (policy == QuotePolicy.NONE) {
+            append(data);
+            return;
+        }
+        int len = data.length();
+        ensureSourceCapacity(len);
+        data.getChars(0, len, m_source, 0);
+        appendQuotedSource(len, policy);
+    }
+
+    /**
+     * Appends the double, formatted with the shortest representation or
+     * rounded to the given number of fraction digits, with the decimal
+     * separator and quotes applied.
+     *
+     * @param value the value to append
+     * @param decimals the number of fraction digits, or -1 for the shortest
+     *            representation that reads back as the same double
+     * @param decimalSeparator the decimal separator to write instead of '.'
+     * @param policy the quote policy of the column
+     * @param column the column index, used in warnings
+     */
+    void appendDouble(final double value, final int decimals,
+            final char decimalSeparator, final QuotePolicy policy,
+            final int column) {
+        if (policy == QuotePolicy.NONE) {
+            ensureCapacity(DoubleFormatter.MAX_LENGTH);
+            int start = m_length;
+            m_length = formatDouble(value, decimals, m_chars, start);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_chars, start, m_length,
+                        decimalSeparator, column);
+            }
+        } else {
+            ensureSourceCapacity(DoubleFormatter.MAX_LENGTH);
+            int len = formatDouble(value, decimals, m_source, 0);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_source, 0, len, decimalSeparator,
+                        column);
+            }
+            appendQuotedSource(len, policy);
+        }
+    }
+
+    /**
+     * Appends the integer value with quotes applied. Integers have no
+     * decimal point, but (like in the string based writer) a decimal
+     * separator contained in the value raises a warning.
+     *
+     * @param value the value to append
+     * @param decimalSeparator the configured decimal separator
+     * @param policy the quote policy of the column
+     * @param column the column index, used in warnings
+     */
+    void appendLong(final long value, final char decimalSeparator,
+            final QuotePolicy policy, final int column) {
+        if (policy == QuotePolicy.NONE) {
+            ensureCapacity(DoubleFormatter.MAX_LENGTH);
+            int start = m_length;
+            m_length = DoubleFormatter.formatLong(value, m_chars, start);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_chars, start, m_length,
+                        decimalSeparator, column);
+            }
+        } else {
+            ensureSourceCapacity(DoubleFormatter.MAX_LENGTH);
+            int len = DoubleFormatter.formatLong(value, m_source, 0);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_source, 0, len, decimalSeparator,
+                        column);
+            }
+            appendQuotedSource(len, policy);
+        }
+    }
+
+    /**
+     * Appends an already formatted number (with '.' as decimal point), with
+     * the decimal separator and quotes applied.
+     *
+     * @param number the characters of the number
+     * @param decimalSeparator the decimal separator to write instead of '.'
+     * @param policy the quote policy of the column
+     * @param column the column index, used in warnings
+     */
+    void appendNumber(final char[] number, final char decimalSeparator,
+            final QuotePolicy policy, final int column) {
+        final int len = number.length;
+        if (policy == QuotePolicy.NONE) {
+            int start = m_length;
+            append(number, 0, len);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_chars, start, m_length,
+                        decimalSeparator, column);
+            }
+        } else {
+            ensureSourceCapacity(len);
+            System.arraycopy(number, 0, m_source, 0, len);
+            if (decimalSeparator != '.') {
+                replaceDecimalSeparator(m_source, 0, len, decimalSeparator,
+                        column);
+            }
+            appendQuotedSource(len, policy);
+        }
+    }
+
+    private static int formatDouble(final double value, final int decimals,
+            final char[] buf, final int pos) {
+        if (decimals < 0) {
+            return DoubleFormatter.format(value, buf, pos);
+        }
+        return DoubleFormatter.formatFixed(value, decimals, buf, pos);
+    }
+
+    /**
+     * Replaces the dot of the formatted number in buf[from..to) with the
+     * separator - unless the separator is contained in the number already,
+     * which raises a warning instead (see
+     * {@link Classilist#replaceDecimalSeparator(String, char)}).
+     */
+    private void replaceDecimalSeparator(final char[] buf, final int from,
+            final int to, final char separator, final int column) {
+        int dotIdx = -1;
+        for (int i = from; i < to; i++) {
+            if (buf[i] == separator) {
+                warnDecimalSeparator(separator, column);
+                return;
+            }
+            if (buf[i] == '.') {
+                dotIdx = i;
+            }
+        }
+        if (dotIdx >= 0) {
+            buf[dotIdx] = separator;
+        }
+    }
+
+    /**
+     * Appends the first len characters of the source array quoted according
+     * to the policy.
+     */
+    private void appendQuotedSource(final int len, final QuotePolicy policy) {
+        boolean quote = policy.quote();
+        if (policy.quoteIfNeeded()) {
+            // we need quotes if the data contains the separator, equals the
+            // missing value pattern.
+            if (m_separator.length > 0) {
+                quote = indexOf(m_source, 0, len, m_separator) >= 0;
+            } else {
+                quote = true;
+            }
+            quote |= len == m_missing.length
+                    && indexOf(m_source, 0, len, m_missing) == 0;
+        }
+        boolean replace = policy.replaceSeparator() && m_separator.length > 0
+                && indexOf(m_source, 0, len, m_separator) >= 0;
+        if (!quote) {
+            if (replace) {
+                appendReplaced(m_source, len, m_separator,
+                        m_separatorReplacement);
+            } else {
+                append(m_source, 0, len);
+            }
+            return;
+        }
+
+        char[] src = m_source;
+        int srcLen = len;
+        if (replace) {
+            // the quote end is searched in the data with replaced
+            // separators, stage that first
+            int mark = m_length;
+            appendReplaced(m_source, len, m_separator, m_separatorReplacement);
+            srcLen = m_length - mark;
+            if (m_staged.length < srcLen) {
+                m_staged = new char[Math.max(srcLen, 2 * m_staged.length)];
+            }
+            System.arraycopy(m_chars, mark, m_staged, 0, srcLen);
+            m_length = mark;
+            src = m_staged;
+        }
+        append(m_quoteBegin, 0, m_quoteBegin.length);
+        if (m_quoteEnd.length == 0) {
+            append(src, 0, srcLen);
+            return;
+        }
+        appendReplaced(src, srcLen, m_quoteEnd, m_quoteReplacement);
+        append(m_quoteEnd, 0, m_quoteEnd.length);
+    }
+
+    /**
+     * Appends the first len characters of src with all non-overlapping
+     * occurrences (searched left to right) of the pattern replaced.
+     */
+    private void appendReplaced(final char[] src, final int len,
+            final char[] pattern, final char[] replacement) {
+        int examined = 0; // index up to which the input is handled
+        int idx;
+        while ((idx = indexOf(src, examined, len, pattern)) >= 0) {
+            append(src, examined, idx);
+            append(replacement, 0, replacement.length);
+            examined = idx + pattern.length;
+        }
+        append(src, examined, len);
+    }
+
+    /**
+     * Remembers a warning that the decimal separator is contained in a value
+     * of the given column of the current row - unless there is a warning
+     * already.
+     */
+    void warnDecimalSeparator(final char separator, final int column) {
+        if (m_warning == null) {
+            m_warning = "Specified decimal separator ('" + separator + "') is"
+                + " contained in the numerical value. "
+                + "Not replacing decimal separator (e.g. "
+                + "in row #" + m_rowIndex + " column #" + column + ").";
+        }
+    }
+
+    /**
+     * Remembers a warning that a probability outside of [0, 1] was clamped
+     * before quantizing - unless there is a warning already.
+     */
+    void warnClamped(final double value, final int column) {
+        if (m_warning == null) {
+            m_warning = "Probability " + value + " is outside of [0, 1], "
+                + "quantized as " + (value < 0 ? "0" : "1") + " (e.g. in row #"
+                + m_rowIndex + " column #" + column + ").";
+        }
+    }
+
+    /** @return the first warning raised while writing into this buffer */
+    String getWarning() {
+        return m_warning;
+    }
+
+    /**
+     * @return the first warning raised while writing into this buffer; the
+     *         warning is cleared so the buffer can be reused
+     */
+    String takeWarning() {
+        String warning = m_warning;
+        m_warning = null;
+        return warning;
+    }
+
+    private void ensureSourceCapacity(final int length) {
+        if (m_source.length < length) {
+            m_source = new char[Math.max(length, 2 * m_source.length)];
+        }
+    }
+
+    private void ensureCapacity(final int additional) {
+        int required = m_length + additional;
+        if (required > m_chars.length) {
+            m_chars = Arrays.copyOf(m_chars,
+                    Math.max(required, 2 * m_chars.length));
+        }
+    }
+
+    /**
+     * @return the index of the first occurrence of the pattern in
+     *         src[from..to), or -1
+     */
+    private static int indexOf(final char[] src, final int from, final int to,
+            final char[] pattern) {
+        if (pattern.length == 0) {
+            return from <= to ? from : -1;
+        }
+        final char first = pattern[0];
+        final int last = to - pattern.length;
+        outer:
+        for (int i = from; i <= last; i++) {
+            if (src[i] != first) {
+                continue;
+            }
+            for (int j = 1; j < pattern.length; j++) {
+                if (src[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
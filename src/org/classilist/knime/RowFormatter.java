@@ -0,0 +1,183 @@
+package org.classilist.knime;
+
+import java.util.Arrays;
+
+import org.classilist.knime.CellEncoder.DoubleValueEncoder;
+import org.classilist.knime.ClassilistColumnPlan.Role;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+
+/**
+ * Formats complete rows into a {@link RowBuffer}: the row ID (if
+ * configured) and all cells, separated and terminated as configured. A
+ * formatter owns its encoders and is used by one thread only.
+ */
+final class RowFormatter {
+
+    private final int[] m_columns;
+
+    private final CellEncoder[] m_encoders;
+
+    private final QuotePolicy m_rowIdPolicy;
+
+    private final boolean m_writeRowID;
+
+    /** selects the probabilities in sparse output, null otherwise. */
+    private final TopKSelector m_topK;
+
+    private final DoubleValueEncoder m_probabilityEncoder;
+
+    private final QuotePolicy m_codePolicy;
+
+    private final char m_decimalSeparator;
+
+    /** the codes of the encoded labels, null if they are written as text. */
+    private final ClassDictionary m_dictionary;
+
+    /** the columns whose labels are written as codes. */
+    private final int[] m_labelColumns;
+
+    /** the first probability column, used in warnings. */
+    private final int m_probabilityColumn;
+
+    /** add the rows to the statistics of the plan. */
+    private final RowStatistics.Accumulator[] m_accumulators;
+
+    /** the accumulators that also get the text of the rows. */
+    private final RowStatistics.TextAccumulator[] m_textAccumulators;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings
+     */
+    RowFormatter(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings) {
+        if (settings.sparseProbabilities()) {
+            m_columns = TopKSelector.layout(plan);
+            m_topK = new TopKSelector(plan, settings);
+            m_probabilityColumn = plan.getProbabilityColumns()[0];
+            m_probabilityEncoder = CellEncoder.createProbability(
+                    m_probabilityColumn, settings);
+            m_codePolicy = QuotePolicy.of(settings, true);
+        } else {
+            m_columns = plan.getExportedColumns();
+            m_topK = null;
+            m_probabilityColumn = -1;
+            m_probabilityEncoder = null;
+            m_codePolicy = null;
+        }
+        m_decimalSeparator = settings.getDecimalSeparator();
+        m_encoders = plan.createEncoders(m_columns, settings);
+        m_dictionary = plan.getDictionary();
+        int labels = 0;
+        int[] labelColumns = new int[m_columns.length];
+        for (int c : m_columns) {
+            if (m_dictionary != null && c >= 0 && (plan.getRole(c) == Role.ACTUAL
+                    || plan.getRole(c) == Role.PREDICTED)) {
+                labelColumns[labels++] = c;
+            }
+        }
+        m_labelColumns = Arrays.copyOf(labelColumns, labels);
+        m_rowIdPolicy = QuotePolicy.of(settings, false);
+        m_writeRowID = settings.writeRowID();
+        RowStatistics[] statistics = plan.getStatistics();
+        m_accumulators = new RowStatistics.Accumulator[statistics.length];
+        int text = 0;
+        for (int i = 0; i < statistics.length; i++) {
+            m_accumulators[i] = statistics[i].newAccumulator();
+            if (m_accumulators[i] instanceof RowStatistics.TextAccumulator) {
+                text++;
+            }
+        }
+        m_textAccumulators = new RowStatistics.TextAccumulator[text];
+        text = 0;
+        for (RowStatistics.Accumulator accumulator : m_accumulators) {
+            if (accumulator instanceof RowStatistics.TextAccumulator) {
+                m_textAccumulators[text++] =
+                        (RowStatistics.TextAccumulator)accumulator;
+            }
+        }
+    }
+
+    /**
+     * @param row a row
+     * @return true if all labels of the row written as codes have a code, so
+     *         formatting the row adds none to the dictionary
+     */
+    boolean hasCodes(final DataRow row) {
+        for (int c : m_labelColumns) {
+            DataCell cell = row.getCell(c);
+            if (!cell.isMissing() && m_dictionary.find(cell.toString()) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the row, including the line ending.
+     *
+     * @param row the row to format
+     * @param rowIndex the index of the row (used in warnings)
+     * @param out the buffer to append to
+     */
+    void format(final DataRow row, final long rowIndex, final RowBuffer out) {
+        final int[] columns = m_columns;
+        final CellEncoder[] encoders = m_encoders;
+        final int start = out.length();
+        out.startRow(rowIndex);
+        // first, the row id
+        if (m_writeRowID) {
+            out.appendQuoted(row.getKey().getString(), m_rowIdPolicy);
+        }
+        // now all exported data cells
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0 || m_writeRowID) {
+                out.appendSeparator();
+            }
+            if (columns[i] == TopKSelector.SPARSE_COLUMNS) {
+                formatTopK(row, out);
+                continue;
+            }
+            DataCell colValue = row.getCell(columns[i]);
+            if (colValue.isMissing()) {
+                // never quote missing patterns.
+                out.appendMissing();
+            } else {
+                encoders[i].encode(colValue, out);
+            }
+        }
+        out.appendNewLine();
+        for (RowStatistics.Accumulator accumulator : m_accumulators) {
+            accumulator.add(row, rowIndex);
+        }
+        for (RowStatistics.TextAccumulator accumulator : m_textAccumulators) {
+            accumulator.addText(out.chars(), start, out.length(), rowIndex);
+        }
+    }
+
+    /**
+     * Appends the pairs of class code and probability and the residual.
+     */
+    private void formatTopK(final DataRow row, final RowBuffer out) {
+        final TopKSelector topK = m_topK;
+        final int count = topK.select(row);
+        for (int s = 0; s < topK.getSlots(); s++) {
+            if (s > 0) {
+                out.appendSeparator();
+            }
+            if (s < count) {
+                out.appendLong(topK.getCode(s), m_decimalSeparator,
+                        m_codePolicy, m_probabilityColumn);
+                out.appendSeparator();
+                m_probabilityEncoder.encode(topK.getValue(s), out);
+            } else {
+                out.appendMissing();
+                out.appendSeparator();
+                out.appendMissing();
+            }
+        }
+        out.appendSeparator();
+        m_probabilityEncoder.encode(topK.getResidual(), out);
+    }
+}
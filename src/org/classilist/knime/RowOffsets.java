@@ -0,0 +1,220 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.knime.core.data.DataRow;
+
+/**
+ * The byte offset of every n-th row in the CSV file, written next to it
+ * (<code>offsets.json</code>), so readers can seek to a row without parsing
+ * the rows before.
+ *
+ * <p>The formatters add up the encoded length of their rows per block of n
+ * rows, by row index, so the blocks of all formatters can be added up
+ * however the rows were split. The offset of the first row follows from the
+ * length of the file once it is written, see {@link #setFileLength(long)},
+ * which also takes care of the header, a byte order mark and rows the file
+ * had before. The length of a row is worked out from its characters as the
+ * writers encode them, which is possible for UTF-8, UTF-16 and single byte
+ * character sets, see {@link Encoding#of(Charset)}.
+ */
+final class RowOffsets implements RowStatistics {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "offsets.json";
+
+    /** the default number of rows per offset. */
+    static final int DEFAULT_INTERVAL = 1024;
+
+    /** How the characters of a row are encoded. */
+    enum Encoding {
+        /** one byte per character, a surrogate pair is one '?'. */
+        SINGLE_BYTE,
+        /** one to four bytes per character, unpaired surrogates are '?'. */
+        UTF_8,
+        /** two bytes per character (surrogates included). */
+        UTF_16;
+
+        /**
+         * @param charset the character set of the file
+         * @return its encoding, null if the length of a row can't be worked
+         *         out from its characters alone
+         */
+        static Encoding of(final Charset charset) {
+            if (StandardCharsets.UTF_8.equals(charset)) {
+                return UTF_8;
+            } else if (StandardCharsets.UTF_16.equals(charset)
+                    || StandardCharsets.UTF_16BE.equals(charset)
+                    || StandardCharsets.UTF_16LE.equals(charset)) {
+                return UTF_16;
+            } else if (charset.canEncode()
+                    && charset.newEncoder().maxBytesPerChar() == 1) {
+                return SINGLE_BYTE;
+            }
+            return null;
+        }
+
+        /** @return the number of bytes the characters from..to encode to */
+        long length(final char[] chars, final int from, final int to) {
+            switch (this) {
+            case UTF_16:
+                return 2L * (to - from);
+            case SINGLE_BYTE:
+                long n = to - from;
+                for (int i = from; i < to - 1; i++) {
+                    if (Character.isHighSurrogate(chars[i])
+                            && Character.isLowSurrogate(chars[i + 1])) {
+                        n--;
+                        i++;
+                    }
+                }
+                return n;
+            default:
+                return utf8Length(chars, from, to);
+            }
+        }
+
+        private static long utf8Length(final char[] chars, final int from,
+                final int to) {
+            long n = to - from;
+            for (int i = from; i < to; i++) {
+                char c = chars[i];
+                if (c < 0x80) {
+                    continue;
+                } else if (c < 0x800) {
+                    n++;
+                } else if (!Character.isSurrogate(c)) {
+                    n += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < to
+                        && Character.isLowSurrogate(chars[i + 1])) {
+                    // four bytes for both
+                    n += 2;
+                    i++;
+                }
+            }
+            return n;
+        }
+    }
+
+    private final int m_interval;
+
+    private final Encoding m_encoding;
+
+    /** the length of the file, -1 if not known yet. */
+    private long m_fileLength = -1;
+
+    /** the accumulators of all formatters, guarded by this. */
+    private final List<Blocks> m_blocks = new ArrayList<Blocks>();
+
+    /**
+     * @param interval the number of rows per offset, at least 1
+     * @param encoding how the rows are encoded
+     */
+    RowOffsets(final int interval, final Encoding encoding) {
+        m_interval = interval;
+        m_encoding = encoding;
+    }
+
+    /**
+     * @param fileLength the length of the written file in bytes
+     */
+    synchronized void setFileLength(final long fileLength) {
+        m_fileLength = fileLength;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Blocks newAccumulator() {
+        Blocks blocks = new Blocks();
+        m_blocks.add(blocks);
+        return blocks;
+    }
+
+    /** The bytes per block of the rows of one thread. */
+    final class Blocks implements TextAccumulator {
+
+        private long[] m_bytes = new long[16];
+
+        /** the number of rows up to the last one seen. */
+        private long m_rows;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            // the text is added
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addText(final char[] chars, final int from, final int to,
+                final long rowIndex) {
+            long block = rowIndex / m_interval;
+            if (block >= m_bytes.length) {
+                m_bytes = Arrays.copyOf(m_bytes, (int)Math.min(
+                        Math.max(2L * m_bytes.length, block + 1),
+                        Integer.MAX_VALUE - 8));
+            }
+            m_bytes[(int)block] += m_encoding.length(chars, from, to);
+            m_rows = Math.max(m_rows, rowIndex + 1);
+        }
+    }
+
+    /**
+     * Writes the number of rows per offset, the number of rows, the length
+     * of the file and the offsets of the rows 0, n, 2n, ... The last offset
+     * is followed by the file length, the end of the last block.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        long rows = 0;
+        for (Blocks blocks : m_blocks) {
+            rows = Math.max(rows, blocks.m_rows);
+        }
+        int count = (int)((rows + m_interval - 1) / m_interval);
+        long[] bytes = new long[count];
+        long total = 0;
+        for (Blocks blocks : m_blocks) {
+            for (int b = 0; b < Math.min(count, blocks.m_bytes.length); b++) {
+                bytes[b] += blocks.m_bytes[b];
+                total += blocks.m_bytes[b];
+            }
+        }
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("interval").value(m_interval);
+        json.name("rows").value(rows);
+        json.name("length").value(m_fileLength);
+        json.name("offsets").beginArray();
+        // the rows are at the end of the file
+        long offset = m_fileLength - total;
+        for (int b = 0; b < count; b++) {
+            json.value(offset);
+            offset += bytes[b];
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
@@ -0,0 +1,434 @@
+package org.classilist.knime;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers the queries of the frontend on an exported CSV file from the
+ * files written next to it, so the frontend fetches only the rows it shows:
+ * <ul>
+ * <li><code>rows</code>: the rows from index <code>from</code> on</li>
+ * <li><code>cell</code>: the rows of a cell of the confusion matrix
+ * (<code>actual</code>, <code>predicted</code>) from <code>cells.json</code>,
+ * see {@link CellIndex}</li>
+ * <li><code>scores</code>: the rows whose probability of class
+ * <code>class</code> is between <code>min</code> and <code>max</code>
+ * (inclusive), compared as float</li>
+ * </ul>
+ * The rows are found with the offsets of every n-th row
+ * (<code>offsets.json</code>, see {@link RowOffsets}) and the lengths and
+ * probabilities of all rows (<code>rows.bin</code>, see {@link RowStore}).
+ *
+ * <p>All queries take the row index <code>from</code> to start at (default
+ * 0) and the most rows to answer with, <code>count</code> (default
+ * {@link #DEFAULT_COUNT}). The answer is the rows as index and text (without
+ * line ending) and the index to continue from, <code>next</code>, -1 at the
+ * end. A score query reads at most {@link #MAX_SCAN} records, so it may
+ * answer with fewer rows than asked for and still continue.
+ */
+final class RowQueries {
+
+    /** the number of rows answered if not asked otherwise. */
+    static final int DEFAULT_COUNT = 100;
+
+    /** the most rows answered. */
+    static final int MAX_COUNT = 10000;
+
+    /** the most records read by one score query. */
+    static final int MAX_SCAN = 1 << 20;
+
+    /** the records read at a time by a score query. */
+    private static final int SCAN_RECORDS = 4096;
+
+    /** the exports by CSV file, guarded by this. */
+    private final Map<Path, Export> m_exports = new HashMap<Path, Export>();
+
+    /**
+     * @param query the name of the query
+     * @param csv the CSV file queried
+     * @param parameters the parameters of the query
+     * @return the answer as JSON in UTF-8
+     * @throws IllegalArgumentException for an unknown query or invalid
+     *             parameters
+     * @throws FileNotFoundException if the file or its index does not exist
+     *             or the index is out of date
+     * @throws IOException if reading fails
+     */
+    byte[] answer(final String query, final Path csv,
+            final Map<String, String> parameters) throws IOException {
+        Export export = export(csv);
+        long from = parameter(parameters, "from", 0, 0, Long.MAX_VALUE);
+        int count = (int)parameter(parameters, "count", DEFAULT_COUNT, 0,
+                MAX_COUNT);
+        long[] rows = new long[count];
+        int n = 0;
+        long next;
+        long total = -1;
+        if ("rows".equals(query)) {
+            while (n < count && from + n < export.m_rows) {
+                rows[n] = from + n;
+                n++;
+            }
+            next = from + n < export.m_rows ? from + n : -1;
+            total = export.m_rows;
+        } else if ("cell".equals(query)) {
+            CellIndex.Bitmap bitmap = export.cell(
+                    required(parameters, "actual"),
+                    required(parameters, "predicted"));
+            next = -1;
+            if (bitmap != null) {
+                next = bitmap.next(from);
+                while (n < count && next >= 0) {
+                    rows[n++] = next;
+                    next = bitmap.next(next + 1);
+                }
+                total = bitmap.cardinality();
+            } else {
+                total = 0;
+            }
+        } else if ("scores".equals(query)) {
+            int c = export.classIndex(required(parameters, "class"));
+            float min = (float)number(parameters, "min", 0);
+            float max = (float)number(parameters, "max", 1);
+            long[] continuation = new long[1];
+            n = export.scan(c, min, max, from, rows, continuation);
+            next = continuation[0];
+        } else {
+            throw new IllegalArgumentException("Unknown query: " + query);
+        }
+        StringWriter out = new StringWriter();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        if (total >= 0) {
+            json.name("total").value(total);
+        }
+        json.name("rows").beginArray();
+        export.write(rows, n, json);
+        json.endArray();
+        json.name("next").value(next);
+        json.endObject();
+        return out.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** @return the export of the file, read again if it changed */
+    private synchronized Export export(final Path csv) throws IOException {
+        Export export = m_exports.get(csv);
+        if (export == null || !export.isCurrent()) {
+            export = new Export(csv);
+            m_exports.put(csv, export);
+        }
+        return export;
+    }
+
+    private static String required(final Map<String, String> parameters,
+            final String name) {
+        String value = parameters.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    private static long parameter(final Map<String, String> parameters,
+            final String name, final long defaultValue, final long min,
+            final long max) {
+        String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Math.max(min, Math.min(max, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not an integer: " + name);
+        }
+    }
+
+    private static double number(final Map<String, String> parameters,
+            final String name, final double defaultValue) {
+        String value = parameters.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + name);
+        }
+    }
+
+    /** @return the JSON object in the file */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readJson(final Path file)
+            throws IOException {
+        Object json;
+        try {
+            json = JsonReader.parse(new String(Files.readAllBytes(file),
+                    StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+        if (!(json instanceof Map)) {
+            throw new IOException("Not a JSON object: " + file);
+        }
+        return (Map<String, Object>)json;
+    }
+
+    private static long longValue(final Map<String, Object> json,
+            final String name) throws IOException {
+        Object value = json.get(name);
+        if (!(value instanceof Long)) {
+            throw new IOException("Missing number: " + name);
+        }
+        return (Long)value;
+    }
+
+    /** The index of one CSV file, read from the files next to it. */
+    private static final class Export {
+
+        private final Path m_csv;
+
+        private final Path m_records;
+
+        private final Path m_cells;
+
+        /** the modification times of the files read. */
+        private final FileTime[] m_modified;
+
+        private final long m_length;
+
+        private final long m_rows;
+
+        private final int m_interval;
+
+        private final long[] m_offsets;
+
+        private final int m_recordBytes;
+
+        private final Charset m_charset;
+
+        private final List<Object> m_classes;
+
+        /** the bitmaps of the cells, read when first asked, guarded by this. */
+        private Map<String, String> m_cellBitmaps;
+
+        private FileTime m_cellsModified;
+
+        Export(final Path csv) throws IOException {
+            Path folder = csv.toAbsolutePath().getParent();
+            Path offsetsFile = folder.resolve(RowOffsets.FILE_NAME);
+            Path storeFile = folder.resolve(RowStore.FILE_NAME);
+            m_csv = csv;
+            m_records = folder.resolve(RowStore.DATA_FILE_NAME);
+            m_cells = folder.resolve(CellIndex.FILE_NAME);
+            try {
+                m_modified = new FileTime[]{
+                    Files.getLastModifiedTime(csv),
+                    Files.getLastModifiedTime(offsetsFile),
+                    Files.getLastModifiedTime(storeFile),
+                    Files.getLastModifiedTime(m_records)};
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException("No index: "
+                        + e.getFile());
+            }
+            Map<String, Object> offsets = readJson(offsetsFile);
+            Map<String, Object> store = readJson(storeFile);
+            m_length = longValue(offsets, "length");
+            m_rows = longValue(store, "rows");
+            m_interval = (int)longValue(offsets, "interval");
+            m_recordBytes = (int)longValue(store, "record");
+            Object list = offsets.get("offsets");
+            Object classes = store.get("classes");
+            if (!(list instanceof List) || !(classes instanceof List)
+                    || !(store.get("charset") instanceof String)) {
+                throw new IOException("Invalid index of " + csv);
+            }
+            m_offsets = new long[((List<?>)list).size()];
+            for (int b = 0; b < m_offsets.length; b++) {
+                m_offsets[b] = (Long)((List<?>)list).get(b);
+            }
+            m_charset = Charset.forName((String)store.get("charset"));
+            @SuppressWarnings("unchecked")
+            List<Object> names = (List<Object>)classes;
+            m_classes = names;
+            if (Files.size(csv) != m_length
+                    || longValue(offsets, "rows") != m_rows
+                    || Files.size(m_records) < m_rows * m_recordBytes) {
+                throw new FileNotFoundException("The index of " + csv
+                        + " is out of date");
+            }
+        }
+
+        /** @return false if a file changed since it was read */
+        boolean isCurrent() {
+            try {
+                Path folder = m_csv.toAbsolutePath().getParent();
+                return m_modified[0].equals(Files.getLastModifiedTime(m_csv))
+                        && m_modified[1].equals(Files.getLastModifiedTime(
+                                folder.resolve(RowOffsets.FILE_NAME)))
+                        && m_modified[2].equals(Files.getLastModifiedTime(
+                                folder.resolve(RowStore.FILE_NAME)))
+                        && m_modified[3].equals(
+                                Files.getLastModifiedTime(m_records));
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /** @return the index of the first class of the name */
+        int classIndex(final String name) {
+            int c = m_classes.indexOf(name);
+            if (c < 0) {
+                throw new IllegalArgumentException("Unknown class: " + name);
+            }
+            return c;
+        }
+
+        /** @return the bitmap of the cell, null if it has no rows */
+        synchronized CellIndex.Bitmap cell(final String actual,
+                final String predicted) throws IOException {
+            FileTime modified;
+            try {
+                modified = Files.getLastModifiedTime(m_cells);
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException("No index: " + m_cells);
+            }
+            if (m_cellBitmaps == null || !modified.equals(m_cellsModified)) {
+                Map<String, String> bitmaps = new HashMap<String, String>();
+                Map<String, Object> index = readJson(m_cells);
+                Object cells = index.get("cells");
+                if (!(cells instanceof List)) {
+                    throw new IOException("Invalid index: " + m_cells);
+                }
+                // left from an execution not writing it, or appended to
+                if (!(index.get("rows") instanceof Long)
+                        || (Long)index.get("rows") != m_rows) {
+                    throw new FileNotFoundException("The index " + m_cells
+                            + " is out of date");
+                }
+                for (Object cell : (List<?>)cells) {
+                    Map<?, ?> c = (Map<?, ?>)cell;
+                    bitmaps.put(c.get("actual") + "\u0000"
+                            + c.get("predicted"), (String)c.get("bitmap"));
+                }
+                m_cellBitmaps = bitmaps;
+                m_cellsModified = modified;
+            }
+            String bitmap = m_cellBitmaps.get(actual + "\u0000" + predicted);
+            return bitmap == null ? null : CellIndex.Bitmap.deserialize(
+                    Base64.getDecoder().decode(bitmap));
+        }
+
+        /**
+         * Finds the rows with a probability of the class within min..max.
+         *
+         * @param rows the array to fill with the rows found
+         * @param next to set to the row to continue from, -1 at the end
+         * @return the number of rows found
+         */
+        int scan(final int c, final float min, final float max,
+                final long from, final long[] rows, final long[] next)
+                throws IOException {
+            int n = 0;
+            long row = from;
+            long end = Math.min(m_rows, from + MAX_SCAN);
+            ByteBuffer buffer = ByteBuffer.allocate(
+                    SCAN_RECORDS * m_recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+            try (FileChannel data = FileChannel.open(m_records,
+                    StandardOpenOption.READ)) {
+                while (n < rows.length && row < end) {
+                    int count = (int)Math.min(SCAN_RECORDS, end - row);
+                    buffer.clear().limit(count * m_recordBytes);
+                    read(data, buffer, row * m_recordBytes);
+                    int r = 0;
+                    for (; r < count && n < rows.length; r++) {
+                        float p = buffer.getFloat(r * m_recordBytes + 4 + 4 * c);
+                        if (p >= min && p <= max) {
+                            rows[n++] = row + r;
+                        }
+                    }
+                    row += r;
+                }
+            }
+            next[0] = row < m_rows ? row : -1;
+            return n;
+        }
+
+        /**
+         * Writes the index and text of the first n rows, in ascending order.
+         */
+        void write(final long[] rows, final int n, final JsonWriter json)
+                throws IOException {
+            long block = -1;
+            long[] starts = new long[m_interval + 1];
+            ByteBuffer lengths = ByteBuffer.allocate(m_interval * m_recordBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            try (FileChannel records = FileChannel.open(m_records,
+                    StandardOpenOption.READ);
+                    FileChannel csv = FileChannel.open(m_csv,
+                            StandardOpenOption.READ)) {
+                for (int i = 0; i < n; i++) {
+                    long row = rows[i];
+                    if (row / m_interval != block) {
+                        // the starts of the rows of the block
+                        block = row / m_interval;
+                        int count = (int)Math.min(m_interval,
+                                m_rows - block * m_interval);
+                        lengths.clear().limit(count * m_recordBytes);
+                        read(records, lengths,
+                                block * m_interval * m_recordBytes);
+                        starts[0] = m_offsets[(int)block];
+                        for (int r = 0; r < count; r++) {
+                            starts[r + 1] = starts[r]
+                                    + lengths.getInt(r * m_recordBytes);
+                        }
+                    }
+                    int r = (int)(row - block * m_interval);
+                    ByteBuffer text = ByteBuffer.allocate(
+                            (int)(starts[r + 1] - starts[r]));
+                    read(csv, text, starts[r]);
+                    text.flip();
+                    String line = m_charset.decode(text).toString();
+                    int end = line.length();
+                    while (end > 0 && (line.charAt(end - 1) == '\n'
+                            || line.charAt(end - 1) == '\r')) {
+                        end--;
+                    }
+                    json.beginObject();
+                    json.name("index").value(row);
+                    json.name("text").value(line.substring(0, end));
+                    json.endObject();
+                }
+            }
+        }
+
+        /** Fills the buffer from the position of the channel. */
+        private static void read(final FileChannel channel,
+                final ByteBuffer buffer, final long position)
+                throws IOException {
+            long p = position;
+            while (buffer.hasRemaining()) {
+                int n = channel.read(buffer, p);
+                if (n < 0) {
+                    throw new FileNotFoundException(
+                            "The index is out of date");
+                }
+                p += n;
+            }
+        }
+    }
+}
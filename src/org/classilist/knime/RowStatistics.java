@@ -0,0 +1,57 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import org.knime.core.data.DataRow;
+
+/**
+ * Statistics gathered while the rows are formatted and written as JSON into
+ * the folder of the output file. Every formatter adds its rows to its own
+ * {@link Accumulator}; the statistics add up the accumulators when they are
+ * written, so the result does not depend on how the rows were split.
+ */
+interface RowStatistics {
+
+    /**
+     * @return the name of the file in the folder of the output file, null
+     *         if the statistics are not written to a file
+     */
+    String getFileName();
+
+    /**
+     * @return a new accumulator for one formatter, included in
+     *         {@link #write(Writer)}
+     */
+    Accumulator newAccumulator();
+
+    /**
+     * Writes the statistics of all accumulated rows.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    void write(Writer out) throws IOException;
+
+    /** Adds the rows of one formatter, used by one thread only. */
+    interface Accumulator {
+
+        /**
+         * @param row a written row
+         * @param rowIndex the index of the row in the table
+         */
+        void add(DataRow row, long rowIndex);
+    }
+
+    /** An accumulator that also gets the text of the rows. */
+    interface TextAccumulator extends Accumulator {
+
+        /**
+         * @param chars the characters of the formatted row
+         * @param from the first character of the row
+         * @param to the end of the row, after its line ending
+         * @param rowIndex the index of the row in the table
+         */
+        void addText(char[] chars, int from, int to, long rowIndex);
+    }
+}
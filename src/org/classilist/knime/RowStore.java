@@ -0,0 +1,228 @@
+package org.classilist.knime;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+
+/**
+ * A binary record per row, written next to the CSV file
+ * (<code>rows.bin</code>) while the rows are formatted, so the rows can be
+ * looked up and filtered without reading the CSV file, see
+ * {@link RowQueries}. The record of row i is at i times the record length;
+ * it holds the length of the row in the CSV file in bytes and the
+ * probability of every class as float (NaN if missing), little endian.
+ * Together with the offsets of every n-th row, see {@link RowOffsets}, the
+ * lengths give the position of every row in the CSV file.
+ *
+ * <p>The description of the records is the JSON file of the statistics
+ * (<code>rows.json</code>): the number of rows, the record length, the
+ * character set of the CSV file and the classes of the probabilities.
+ *
+ * <p>The records are open from the constructor until they are written or
+ * the store is closed.
+ */
+final class RowStore implements RowStatistics, Closeable {
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "rows.json";
+
+    /** The name of the records next to the CSV file. */
+    static final String DATA_FILE_NAME = "rows.bin";
+
+    /** the records a formatter buffers before writing them. */
+    private static final int BUFFER_RECORDS = 4096;
+
+    private final Path m_dataFile;
+
+    private final FileChannel m_data;
+
+    private final Charset m_charset;
+
+    private final RowOffsets.Encoding m_encoding;
+
+    private final String[] m_classes;
+
+    /** the probability columns, indexed like the classes. */
+    private final int[] m_columns;
+
+    private final int m_recordBytes;
+
+    /** the accumulators of all formatters, guarded by this. */
+    private final List<Records> m_records = new ArrayList<Records>();
+
+    /**
+     * Creates the store and truncates the records of a previous one. Not
+     * used when rows are appended to the CSV file, the records would start
+     * with the first appended row.
+     *
+     * @param plan the column plan of the table
+     * @param dataFile the file of the records
+     * @param charset the character set of the CSV file
+     * @param encoding how the rows are encoded
+     * @throws IOException if the file can't be opened
+     */
+    RowStore(final ClassilistColumnPlan plan, final Path dataFile,
+            final Charset charset, final RowOffsets.Encoding encoding)
+            throws IOException {
+        m_columns = plan.getProbabilityColumns();
+        m_classes = new String[m_columns.length];
+        for (int c = 0; c < m_columns.length; c++) {
+            m_classes[c] = plan.getClassName(m_columns[c]);
+        }
+        m_recordBytes = 4 + 4 * m_columns.length;
+        m_charset = charset;
+        m_encoding = encoding;
+        m_dataFile = dataFile;
+        m_data = FileChannel.open(dataFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * @return the file of the records
+     */
+    Path getDataFile() {
+        return m_dataFile;
+    }
+
+    /**
+     * Closes the records without writing the remaining ones, if the table
+     * could not be written. Does nothing if they are written already.
+     */
+    @Override
+    public void close() throws IOException {
+        m_data.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Records newAccumulator() {
+        Records records = new Records();
+        m_records.add(records);
+        return records;
+    }
+
+    /**
+     * The records of the rows of one thread, buffered while their indices
+     * are consecutive and written at their position.
+     */
+    final class Records implements TextAccumulator {
+
+        private final ByteBuffer m_buffer = ByteBuffer.allocate(
+                BUFFER_RECORDS * m_recordBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        /** the index of the first buffered row. */
+        private long m_first;
+
+        /** the number of rows up to the last one seen. */
+        private long m_rows;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            int buffered = m_buffer.position() / m_recordBytes;
+            if (buffered == BUFFER_RECORDS
+                    || (buffered > 0 && rowIndex != m_first + buffered)) {
+                flush();
+                buffered = 0;
+            }
+            if (buffered == 0) {
+                m_first = rowIndex;
+            }
+            // the length follows with the text
+            m_buffer.putInt(0);
+            for (int column : m_columns) {
+                DataCell cell = row.getCell(column);
+                m_buffer.putFloat(cell.isMissing() ? Float.NaN
+                        : (float)((DoubleValue)cell).getDoubleValue());
+            }
+            m_rows = Math.max(m_rows, rowIndex + 1);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void addText(final char[] chars, final int from, final int to,
+                final long rowIndex) {
+            m_buffer.putInt(m_buffer.position() - m_recordBytes,
+                    (int)Math.min(m_encoding.length(chars, from, to),
+                            Integer.MAX_VALUE));
+        }
+
+        /** Writes the buffered records. */
+        private void flush() {
+            m_buffer.flip();
+            long position = m_first * m_recordBytes;
+            try {
+                while (m_buffer.hasRemaining()) {
+                    position += m_data.write(m_buffer, position);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            m_buffer.clear();
+        }
+    }
+
+    /**
+     * Writes the remaining records and their description: the number of
+     * rows, the bytes per record, the character set of the CSV file and the
+     * classes of the probabilities in the order of the records.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        long rows = 0;
+        try {
+            for (Records records : m_records) {
+                if (records.m_buffer.position() > 0) {
+                    records.flush();
+                }
+                rows = Math.max(rows, records.m_rows);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            m_data.close();
+        }
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("file").value(DATA_FILE_NAME);
+        json.name("rows").value(rows);
+        json.name("record").value(m_recordBytes);
+        json.name("charset").value(m_charset.name());
+        json.name("classes").beginArray();
+        for (String name : m_classes) {
+            json.value(name);
+        }
+        json.endArray();
+        json.endObject();
+    }
+}
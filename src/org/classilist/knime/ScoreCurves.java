@@ -0,0 +1,663 @@
+package org.classilist.knime;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.node.NodeLogger;
+import org.knime.core.util.FileUtil;
+
+/**
+ * ROC and precision-recall curve and their areas of every probability
+ * column, written next to the CSV file (<code>curves.json</code>).
+ *
+ * <p>The scores are kept off the heap: every row is stored as one int key
+ * per class, the bits of the probability as float shifted left by one with
+ * the lowest bit set if the row is of that class. Keys of non-negative
+ * floats sort like the floats. The keys are collected in direct buffers
+ * up to half the memory budget and spilled to a temporary file beyond it.
+ * When written, the keys of one class at a time are radix sorted in two
+ * direct buffers taking the other half, allocated once for all classes; if
+ * the keys of a class do not fit into them they are sorted in runs that
+ * are spilled and merged.
+ *
+ * <p>The curves have about {@link #MAX_POINTS} points, taken at
+ * thresholds evenly spaced by rank, the areas are exact (ties count half).
+ * Rows with missing actual class and missing or NaN probabilities are
+ * left out, probabilities outside [0, 1] count as 0 or 1.
+ */
+final class ScoreCurves implements RowStatistics {
+
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(ScoreCurves.class);
+
+    /** The name of the file next to the CSV file. */
+    static final String FILE_NAME = "curves.json";
+
+    /** default memory budget in MB. */
+    static final int DEFAULT_MEMORY_MB = 256;
+
+    /** the number of points of a curve, besides the ends. */
+    static final int MAX_POINTS = 200;
+
+    /** the largest size of the chunks of keys. */
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    /** the fewest keys sorted in one run. */
+    private static final int MIN_RUN_LENGTH = 1 << 16;
+
+    /** the size of the buffers reading sorted runs. */
+    private static final int RUN_BLOCK_BYTES = 1 << 16;
+
+    /** the key of a left out score. */
+    private static final int NO_SCORE = -1;
+
+    private final String[] m_classes;
+
+    /** the probability columns, indexed like the classes. */
+    private final int[] m_columns;
+
+    /** the index of the class by name, not modified. */
+    private final Map<String, Integer> m_classIndex =
+            new HashMap<String, Integer>();
+
+    private final int m_actualColumn;
+
+    /** the bytes of the keys of one row. */
+    private final int m_recordBytes;
+
+    /** bytes of keys kept in memory, and of the buffers sorting them. */
+    private final long m_budget;
+
+    /** the bytes of a chunk, a fraction of the budget. */
+    private final int m_chunkBytes;
+
+    // the following are guarded by this
+
+    private final List<Keys> m_accumulators = new ArrayList<Keys>();
+
+    /** the full chunks kept in memory, flipped. */
+    private final List<ByteBuffer> m_chunks = new ArrayList<ByteBuffer>();
+
+    private long m_memory;
+
+    private File m_spillFile;
+
+    private FileChannel m_spill;
+
+    /** the lengths of the chunks in the spill file, in file order. */
+    private final List<Integer> m_spilled = new ArrayList<Integer>();
+
+    /**
+     * @param plan the column plan of the table
+     * @param budget the bytes of memory (off the heap) for the keys
+     */
+    ScoreCurves(final ClassilistColumnPlan plan, final long budget) {
+        m_columns = plan.getProbabilityColumns();
+        m_classes = new String[m_columns.length];
+        for (int c = 0; c < m_columns.length; c++) {
+            m_classes[c] = plan.getClassName(m_columns[c]);
+            if (!m_classIndex.containsKey(m_classes[c])) {
+                m_classIndex.put(m_classes[c], c);
+            }
+        }
+        int actual = -1;
+        for (int c = 0; c < plan.getNumColumns(); c++) {
+            if (plan.getRole(c) == ClassilistColumnPlan.Role.ACTUAL) {
+                actual = c;
+            }
+        }
+        m_actualColumn = actual;
+        m_recordBytes = 4 * m_columns.length;
+        m_budget = budget;
+        int records = (int)Math.max(1, Math.min(CHUNK_BYTES, budget / 8) / m_recordBytes);
+        m_chunkBytes = records * m_recordBytes;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getFileName() {
+        return FILE_NAME;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized Keys newAccumulator() {
+        Keys keys = new Keys();
+        m_accumulators.add(keys);
+        return keys;
+    }
+
+    private ByteBuffer newChunk() {
+        return ByteBuffer.allocateDirect(m_chunkBytes)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Keeps a full chunk in memory or spills it.
+     *
+     * @return the chunk to continue with
+     */
+    private synchronized ByteBuffer store(final ByteBuffer chunk)
+            throws IOException {
+        chunk.flip();
+        // the other half is for sorting
+        if (m_memory + chunk.capacity() <= m_budget / 2) {
+            m_chunks.add(chunk);
+            m_memory += chunk.capacity();
+            return newChunk();
+        }
+        if (m_spill == null) {
+            m_spillFile = FileUtil.createTempFile("classilist-scores", ".tmp");
+            m_spill = FileChannel.open(m_spillFile.toPath(),
+                    StandardOpenOption.WRITE, StandardOpenOption.READ);
+        }
+        m_spilled.add(chunk.remaining());
+        while (chunk.hasRemaining()) {
+            m_spill.write(chunk);
+        }
+        chunk.clear();
+        return chunk;
+    }
+
+    /** The keys of the rows of one thread. */
+    final class Keys implements Accumulator {
+
+        private ByteBuffer m_chunk = newChunk();
+
+        /** per class the number of scores and of scores of the class. */
+        private final long[] m_count = new long[m_classes.length];
+
+        private final long[] m_positives = new long[m_classes.length];
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void add(final DataRow row, final long rowIndex) {
+            if (m_chunk.remaining() < m_recordBytes) {
+                try {
+                    m_chunk = store(m_chunk);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            DataCell actual = row.getCell(m_actualColumn);
+            int truth = -1;
+            if (!actual.isMissing()) {
+                Integer c = m_classIndex.get(actual.toString());
+                truth = c == null ? m_columns.length : c;
+            }
+            for (int c = 0; c < m_columns.length; c++) {
+                DataCell cell = row.getCell(m_columns[c]);
+                double p = truth < 0 || cell.isMissing()
+                        || !(cell instanceof DoubleValue) ? Double.NaN
+                        : ((DoubleValue)cell).getDoubleValue();
+                if (Double.isNaN(p)) {
+                    m_chunk.putInt(NO_SCORE);
+                    continue;
+                }
+                // also maps -0.0 to 0
+                p = p > 0 ? (p < 1 ? p : 1) : 0;
+                int key = Float.floatToIntBits((float)p) << 1;
+                if (truth == c) {
+                    key |= 1;
+                    m_positives[c]++;
+                }
+                m_chunk.putInt(key);
+                m_count[c]++;
+            }
+        }
+    }
+
+    /**
+     * Writes, per class, the number of rows of the class and of others, the
+     * area under the ROC curve, the average precision and the curves:
+     * <code>thresholds</code> in descending order (null for the start
+     * above all scores), the points of the ROC curve (false and true
+     * positive rate) and of the precision-recall curve at them. Undefined
+     * values are null.
+     *
+     * @param out the writer of the file
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void write(final Writer out) throws IOException {
+        try {
+            for (Keys keys : m_accumulators) {
+                keys.m_chunk.flip();
+                m_chunks.add(keys.m_chunk);
+            }
+            long[] counts = new long[m_classes.length];
+            long[] positives = new long[m_classes.length];
+            long maxCount = 0;
+            for (int c = 0; c < m_classes.length; c++) {
+                for (Keys keys : m_accumulators) {
+                    counts[c] += keys.m_count[c];
+                    positives[c] += keys.m_positives[c];
+                }
+                maxCount = Math.max(maxCount, counts[c]);
+            }
+            // two buffers of ints, for the keys and for sorting them, sized
+            // for the largest class and used by all
+            int runLength = (int)Math.min(maxCount, Math.min(Integer.MAX_VALUE / 4,
+                    Math.max(MIN_RUN_LENGTH, m_budget / 16)));
+            ByteBuffer keys = ByteBuffer.allocateDirect(4 * runLength)
+                    .order(ByteOrder.nativeOrder());
+            ByteBuffer temp = ByteBuffer.allocateDirect(4 * runLength)
+                    .order(ByteOrder.nativeOrder());
+            ByteBuffer spillChunk = m_spilled.isEmpty() ? null : newChunk();
+            JsonWriter json = new JsonWriter(out);
+            json.beginObject();
+            json.name("maxPoints").value(MAX_POINTS);
+            json.name("classes").beginArray();
+            for (int c = 0; c < m_classes.length; c++) {
+                Curve curve = new Curve(positives[c], counts[c] - positives[c]);
+                sort(new KeyReader(c, spillChunk), counts[c], keys, temp, curve);
+                curve.write(json, m_classes[c]);
+            }
+            json.endArray();
+            json.endObject();
+        } finally {
+            m_chunks.clear();
+            m_accumulators.clear();
+            deleteSpill();
+        }
+    }
+
+    /**
+     * Hands the keys of a class to the curve in ascending order.
+     *
+     * @param reader the reader of the keys of the class
+     * @param count the number of keys of the class
+     * @param keys the buffer of the keys, at least one run long
+     * @param temp the buffer sorting them, as long
+     * @param curve the curve of the class
+     */
+    private static void sort(final KeyReader reader, final long count,
+            final ByteBuffer keys, final ByteBuffer temp, final Curve curve)
+            throws IOException {
+        if (count == 0) {
+            return;
+        }
+        final int runLength = keys.capacity() / 4;
+        if (count <= runLength) {
+            int n = reader.read(keys, runLength);
+            radixSort(keys, temp, n);
+            for (int i = 0; i < n; i++) {
+                curve.add(keys.getInt(4 * i));
+            }
+            return;
+        }
+        // spill sorted runs and merge them
+        File runFile = FileUtil.createTempFile("classilist-runs", ".tmp");
+        try (FileChannel runs = FileChannel.open(runFile.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.READ)) {
+            List<long[]> bounds = new ArrayList<long[]>();
+            long position = 0;
+            int n;
+            while ((n = reader.read(keys, runLength)) > 0) {
+                radixSort(keys, temp, n);
+                keys.limit(4 * n).position(0);
+                while (keys.hasRemaining()) {
+                    runs.write(keys);
+                }
+                keys.clear();
+                bounds.add(new long[]{position, position + 4L * n});
+                position += 4L * n;
+            }
+            merge(runs, bounds, curve);
+        } finally {
+            Files.deleteIfExists(runFile.toPath());
+        }
+    }
+
+    /**
+     * Sorts the first n keys (non-negative ints) by their two 16 bit
+     * halves, lowest first.
+     */
+    private static void radixSort(final ByteBuffer keys, final ByteBuffer temp,
+            final int n) {
+        int[] counts = new int[1 << 16];
+        for (int shift = 0; shift < 32; shift += 16) {
+            ByteBuffer from = shift == 0 ? keys : temp;
+            ByteBuffer to = shift == 0 ? temp : keys;
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(from.getInt(4 * i) >>> shift) & 0xffff]++;
+            }
+            int start = 0;
+            for (int d = 0; d < counts.length; d++) {
+                int k = counts[d];
+                counts[d] = start;
+                start += k;
+            }
+            for (int i = 0; i < n; i++) {
+                int key = from.getInt(4 * i);
+                to.putInt(4 * counts[(key >>> shift) & 0xffff]++, key);
+            }
+        }
+    }
+
+    /** Merges the sorted runs into the curve. */
+    private static void merge(final FileChannel runs,
+            final List<long[]> bounds, final Curve curve) throws IOException {
+        final int count = bounds.size();
+        ByteBuffer[] blocks = new ByteBuffer[count];
+        int[] heap = new int[count];
+        int[] heads = new int[count];
+        int size = 0;
+        for (int r = 0; r < count; r++) {
+            blocks[r] = ByteBuffer.allocateDirect(RUN_BLOCK_BYTES)
+                    .order(ByteOrder.nativeOrder());
+            blocks[r].limit(0);
+            if (next(runs, bounds.get(r), blocks[r])) {
+                heads[r] = blocks[r].getInt();
+                heap[size++] = r;
+                siftUp(heap, heads, size - 1);
+            }
+        }
+        while (size > 0) {
+            int r = heap[0];
+            curve.add(heads[r]);
+            if (next(runs, bounds.get(r), blocks[r])) {
+                heads[r] = blocks[r].getInt();
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, heads, size);
+        }
+    }
+
+    /**
+     * @return true if the block has another key, read from the run if
+     *         needed
+     */
+    private static boolean next(final FileChannel runs, final long[] bound,
+            final ByteBuffer block) throws IOException {
+        if (block.hasRemaining()) {
+            return true;
+        }
+        if (bound[0] >= bound[1]) {
+            return false;
+        }
+        block.clear();
+        block.limit((int)Math.min(block.capacity(), bound[1] - bound[0]));
+        while (block.hasRemaining()) {
+            if (runs.read(block, bound[0] + block.position()) < 0) {
+                throw new IOException("Sorted run ended early");
+            }
+        }
+        bound[0] += block.limit();
+        block.flip();
+        return true;
+    }
+
+    private static void siftUp(final int[] heap, final int[] heads, int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (heads[heap[parent]] <= heads[heap[i]]) {
+                return;
+            }
+            swap(heap, i, parent);
+            i = parent;
+        }
+    }
+
+    private static void siftDown(final int[] heap, final int[] heads,
+            final int size) {
+        int i = 0;
+        while (true) {
+            int least = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                if (heads[heap[child]] < heads[heap[least]]) {
+                    least = child;
+                }
+            }
+            if (least == i) {
+                return;
+            }
+            swap(heap, i, least);
+            i = least;
+        }
+    }
+
+    private static void swap(final int[] heap, final int i, final int j) {
+        int t = heap[i];
+        heap[i] = heap[j];
+        heap[j] = t;
+    }
+
+    private void deleteSpill() {
+        if (m_spill != null) {
+            try {
+                m_spill.close();
+                Files.deleteIfExists(m_spillFile.toPath());
+            } catch (IOException e) {
+                LOGGER.debug("Deleting spill file '" + m_spillFile
+                        + "' failed: " + e.getMessage(), e);
+            }
+            m_spill = null;
+        }
+        m_spilled.clear();
+    }
+
+    /**
+     * Reads the keys of one class from the chunks in memory and then from
+     * the spill file.
+     */
+    private final class KeyReader {
+
+        private final int m_offset;
+
+        private int m_chunk;
+
+        /** the position in the current chunk. */
+        private int m_position;
+
+        /** the chunk read from the spill file, shared by all classes. */
+        private final ByteBuffer m_spillChunk;
+
+        private long m_spillPosition;
+
+        /**
+         * @param c the index of the class
+         * @param spillChunk a chunk to read spilled chunks into, null if
+         *            there are none
+         */
+        KeyReader(final int c, final ByteBuffer spillChunk) {
+            m_offset = 4 * c;
+            m_position = m_offset;
+            m_spillChunk = spillChunk;
+            if (spillChunk != null) {
+                spillChunk.limit(0);
+            }
+        }
+
+        /**
+         * Reads up to max keys (not the left out ones) to the start of the
+         * buffer.
+         *
+         * @return the number of keys read
+         */
+        int read(final ByteBuffer keys, final int max) throws IOException {
+            int n = 0;
+            final int chunks = m_chunks.size() + m_spilled.size();
+            while (n < max && m_chunk < chunks) {
+                ByteBuffer chunk = chunk(m_chunk);
+                final int limit = chunk.limit();
+                while (n < max && m_position < limit) {
+                    int key = chunk.getInt(m_position);
+                    m_position += m_recordBytes;
+                    if (key != NO_SCORE) {
+                        keys.putInt(4 * n++, key);
+                    }
+                }
+                if (m_position >= limit) {
+                    m_chunk++;
+                    m_position = m_offset;
+                    if (m_chunk > m_chunks.size()) {
+                        m_spillPosition += limit;
+                        m_spillChunk.limit(0);
+                    }
+                }
+            }
+            return n;
+        }
+
+        /** @return the chunk, read from the spill file if needed */
+        private ByteBuffer chunk(final int index) throws IOException {
+            if (index < m_chunks.size()) {
+                return m_chunks.get(index);
+            }
+            if (m_spillChunk.limit() == 0) {
+                int length = m_spilled.get(index - m_chunks.size());
+                m_spillChunk.clear().limit(length);
+                while (m_spillChunk.hasRemaining()) {
+                    if (m_spill.read(m_spillChunk, m_spillPosition
+                            + m_spillChunk.position()) < 0) {
+                        throw new IOException("Spill file ended early");
+                    }
+                }
+                m_spillChunk.flip();
+            }
+            return m_spillChunk;
+        }
+    }
+
+    /**
+     * Builds the curves of one class from its keys in ascending order:
+     * groups of equal scores are closed when the next score starts.
+     */
+    private static final class Curve {
+
+        private final long m_positives;
+
+        private final long m_negatives;
+
+        private final long m_step;
+
+        /** the score (key without class bit) of the open group, -1 first. */
+        private int m_score = -1;
+
+        private long m_groupPositives;
+
+        private long m_groupNegatives;
+
+        /** keys of lower scores. */
+        private long m_positivesBelow;
+
+        private long m_negativesBelow;
+
+        private long m_nextPoint;
+
+        /** twice the area under the ROC curve, in counts. */
+        private double m_area;
+
+        private double m_precisionSum;
+
+        /** the points in ascending order of threshold. */
+        private final List<double[]> m_points = new ArrayList<double[]>();
+
+        Curve(final long positives, final long negatives) {
+            m_positives = positives;
+            m_negatives = negatives;
+            m_step = Math.max(1, (positives + negatives) / MAX_POINTS);
+        }
+
+        void add(final int key) {
+            int score = key >>> 1;
+            if (score != m_score) {
+                if (m_score >= 0) {
+                    closeGroup(false);
+                }
+                m_score = score;
+            }
+            if ((key & 1) != 0) {
+                m_groupPositives++;
+            } else {
+                m_groupNegatives++;
+            }
+        }
+
+        /**
+         * @param last true for the group of the highest score, which is
+         *            always a point of the curves
+         */
+        private void closeGroup(final boolean last) {
+            // the rows at or above the score
+            long tp = m_positives - m_positivesBelow;
+            long fp = m_negatives - m_negativesBelow;
+            m_area += m_groupNegatives * (2.0 * tp - m_groupPositives);
+            if (m_groupPositives > 0) {
+                m_precisionSum += m_groupPositives * (double)tp / (tp + fp);
+            }
+            long below = m_positivesBelow + m_negativesBelow;
+            if (below >= m_nextPoint || last) {
+                m_points.add(new double[]{Float.intBitsToFloat(m_score), tp,
+                        fp});
+                m_nextPoint = below + m_step;
+            }
+            m_positivesBelow += m_groupPositives;
+            m_negativesBelow += m_groupNegatives;
+            m_groupPositives = 0;
+            m_groupNegatives = 0;
+        }
+
+        void write(final JsonWriter json, final String name)
+                throws IOException {
+            if (m_score >= 0) {
+                closeGroup(true);
+                m_score = -1;
+            }
+            // the start above all scores
+            m_points.add(new double[]{Double.NaN, 0, 0});
+            final double p = m_positives;
+            final double n = m_negatives;
+            json.beginObject();
+            json.name("class").value(name);
+            json.name("positives").value(m_positives);
+            json.name("negatives").value(m_negatives);
+            json.name("rocAuc").value(m_area / (2 * p * n));
+            json.name("averagePrecision").value(m_precisionSum / p);
+            json.name("thresholds").beginArray();
+            for (int i = m_points.size() - 1; i >= 0; i--) {
+                json.value(m_points.get(i)[0]);
+            }
+            json.endArray();
+            json.name("roc").beginArray();
+            for (int i = m_points.size() - 1; i >= 0; i--) {
+                double[] point = m_points.get(i);
+                json.beginArray().value(point[2] / n).value(point[1] / p)
+                        .endArray();
+            }
+            json.endArray();
+            json.name("pr").beginArray();
+            for (int i = m_points.size() - 1; i >= 0; i--) {
+                double[] point = m_points.get(i);
+                json.beginArray().value(point[1] / p)
+                        .value(point[1] / (point[1] + point[2])).endArray();
+            }
+            json.endArray();
+            json.endObject();
+        }
+    }
+}
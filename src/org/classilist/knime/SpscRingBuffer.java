@@ -0,0 +1,68 @@
+package org.classilist.knime;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue for exactly one producer and one consumer thread.
+ * The methods never block; callers wait (and check for cancellation)
+ * themselves when the queue is full or empty.
+ *
+ * @param <E> the type of the elements
+ */
+final class SpscRingBuffer<E> {
+
+    private final Object[] m_elements;
+
+    private final int m_mask;
+
+    /** index of the next element to take, written by the consumer only. */
+    private final AtomicLong m_head = new AtomicLong();
+
+    /** index of the next free slot, written by the producer only. */
+    private final AtomicLong m_tail = new AtomicLong();
+
+    /**
+     * @param capacity the minimum capacity, rounded up to a power of two
+     */
+    SpscRingBuffer(final int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        m_elements = new Object[size];
+        m_mask = size - 1;
+    }
+
+    /**
+     * Adds the element, producer thread only.
+     *
+     * @param element the element, not null
+     * @return false if the queue is full
+     */
+    boolean offer(final E element) {
+        final long tail = m_tail.get();
+        if (tail - m_head.get() == m_elements.length) {
+            return false;
+        }
+        m_elements[(int)tail & m_mask] = element;
+        // publishes the element to the consumer
+        m_tail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Removes the oldest element, consumer thread only.
+     *
+     * @return the element or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    E poll() {
+        final long head = m_head.get();
+        if (head == m_tail.get()) {
+            return null;
+        }
+        final int index = (int)head & m_mask;
+        E element = (E)m_elements[index];
+        m_elements[index] = null;
+        // hands the slot back to the producer
+        m_head.lazySet(head + 1);
+        return element;
+    }
+}
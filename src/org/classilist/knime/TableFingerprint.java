@@ -0,0 +1,330 @@
+package org.classilist.knime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DoubleValue;
+import org.knime.core.data.LongValue;
+import org.knime.core.data.container.CloseableRowIterator;
+import org.knime.core.data.container.filter.TableFilter;
+import org.knime.core.node.BufferedDataTable;
+import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.InvalidSettingsException;
+import org.knime.core.node.NodeSettings;
+import org.knime.core.node.NodeSettingsRO;
+
+/**
+ * A 64-bit fingerprint of the written rows, gathered while they are
+ * formatted: the row key and the exported cells of every row are hashed
+ * (FNV-1a), mixed with the row index and summed, so the fingerprint does not
+ * depend on how the rows were split. Together with the hash of the settings
+ * and the columns ({@link #settingsHash}) it tells whether the output of an
+ * execution would be the same as the last one, see {@link Snapshot}. Nothing
+ * is written to a file.
+ */
+final class TableFingerprint implements RowStatistics {
+
+    /** the name of the file in the node internals. */
+    static final String INTERNALS_FILE_NAME = "fingerprint.xml";
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /** hashed for a missing cell. */
+    private static final long MISSING = 0x6d697373696e67L;
+
+    private final int[] m_columns;
+
+    private final AtomicLong m_sum = new AtomicLong();
+
+    private final AtomicLong m_rows = new AtomicLong();
+
+    /**
+     * @param plan the column plan of the written columns
+     */
+    TableFingerprint(final ClassilistColumnPlan plan) {
+        m_columns = plan.getExportedColumns();
+    }
+
+    /**
+     * @return null, the fingerprint is kept in the node internals
+     */
+    @Override
+    public String getFileName() {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Accumulator newAccumulator() {
+        return new Accumulator() {
+
+            @Override
+            public void add(final DataRow row, final long rowIndex) {
+                m_sum.addAndGet(hash(row, rowIndex));
+                m_rows.incrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Not called, the statistics have no file.
+     */
+    @Override
+    public void write(final Writer out) {
+        // kept in the node internals
+    }
+
+    /** @return the fingerprint of the rows added so far */
+    long getValue() {
+        return m_sum.get();
+    }
+
+    /** @return the number of rows added so far */
+    long getRows() {
+        return m_rows.get();
+    }
+
+    /**
+     * Reads the table once more and adds all rows, as written.
+     *
+     * @param data the table
+     * @param exec to check for cancellation
+     * @throws CanceledExecutionException if canceled
+     */
+    void addAll(final BufferedDataTable data, final ExecutionMonitor exec)
+            throws CanceledExecutionException {
+        Accumulator accumulator = newAccumulator();
+        long rowIndex = 0;
+        try (CloseableRowIterator it = data.filter(
+                TableFilter.materializeCols(m_columns))) {
+            while (it.hasNext()) {
+                accumulator.add(it.next(), rowIndex++);
+                if ((rowIndex & 0x3ff) == 0) {
+                    exec.checkCanceled();
+                }
+            }
+        }
+    }
+
+    private long hash(final DataRow row, final long rowIndex) {
+        long h = hash(FNV_OFFSET, row.getKey().getString());
+        for (int c : m_columns) {
+            DataCell cell = row.getCell(c);
+            if (cell.isMissing()) {
+                h = hash(h, MISSING);
+            } else if (cell instanceof LongValue) {
+                h = hash(h, ((LongValue)cell).getLongValue());
+            } else if (cell instanceof DoubleValue) {
+                h = hash(h, Double.doubleToLongBits(
+                        ((DoubleValue)cell).getDoubleValue()));
+            } else {
+                h = hash(h, cell.toString());
+            }
+        }
+        return mix(h + mix(rowIndex));
+    }
+
+    private static long hash(final long h, final String s) {
+        long hash = h;
+        for (int i = 0; i < s.length(); i++) {
+            hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+        }
+        // ends the string, so "ab","c" differs from "a","bc"
+        return (hash ^ 0xffff) * FNV_PRIME;
+    }
+
+    private static long hash(final long h, final long value) {
+        long hash = h;
+        for (int b = 0; b < 64; b += 8) {
+            hash = (hash ^ ((value >>> b) & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** The finalizer of MurmurHash3, spreads all bits. */
+    private static long mix(final long h) {
+        long x = h;
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        x *= 0xc4ceb9fe1a85ec53L;
+        x ^= x >>> 33;
+        return x;
+    }
+
+    /**
+     * @param settings the settings of the node
+     * @param spec the spec of the input table
+     * @return the hash of the settings and the names and types of the
+     *         columns
+     * @throws IOException if the settings cannot be serialized
+     */
+    static long settingsHash(final FileWriterNodeSettings settings,
+            final DataTableSpec spec) throws IOException {
+        NodeSettings saved = new NodeSettings("fingerprint");
+        settings.saveSettingsTo(saved);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        saved.saveToXML(bytes);
+        long h = FNV_OFFSET;
+        for (byte b : bytes.toByteArray()) {
+            h = (h ^ (b & 0xff)) * FNV_PRIME;
+        }
+        for (int c = 0; c < spec.getNumColumns(); c++) {
+            h = hash(h, spec.getColumnSpec(c).getName());
+            h = hash(h, spec.getColumnSpec(c).getType().toString());
+        }
+        return mix(h);
+    }
+
+    /**
+     * The fingerprint of the last written rows with the size and
+     * modification time every written file (the CSV file first, then the
+     * Arrow file, the class dictionary and the statistics) had then, saved
+     * in the node internals.
+     */
+    static final class Snapshot {
+
+        private final String[] m_files;
+
+        private final long[] m_sizes;
+
+        private final long[] m_modified;
+
+        private final long m_settings;
+
+        private final long m_rows;
+
+        private final long m_value;
+
+        /**
+         * @param files the written files
+         * @param settings the hash of the settings, see
+         *            {@link TableFingerprint#settingsHash}
+         * @param fingerprint the fingerprint of the written rows
+         * @throws IOException if a file cannot be read
+         */
+        Snapshot(final List<Path> files, final long settings,
+                final TableFingerprint fingerprint) throws IOException {
+            m_files = new String[files.size()];
+            m_sizes = new long[files.size()];
+            m_modified = new long[files.size()];
+            for (int i = 0; i < m_files.length; i++) {
+                Path file = files.get(i);
+                m_files[i] = file.toAbsolutePath().toString();
+                m_sizes[i] = Files.size(file);
+                m_modified[i] = Files.getLastModifiedTime(file).toMillis();
+            }
+            m_settings = settings;
+            m_rows = fingerprint.getRows();
+            m_value = fingerprint.getValue();
+        }
+
+        private Snapshot(final NodeSettingsRO settings)
+                throws InvalidSettingsException {
+            m_files = settings.getStringArray("files");
+            m_sizes = settings.getLongArray("sizes");
+            m_modified = settings.getLongArray("modified");
+            if (m_sizes.length != m_files.length
+                    || m_modified.length != m_files.length) {
+                throw new InvalidSettingsException("Incomplete snapshot");
+            }
+            m_settings = settings.getLong("settings");
+            m_rows = settings.getLong("rows");
+            m_value = settings.getLong("fingerprint");
+        }
+
+        /**
+         * @param files the files to write
+         * @param settings the hash of the settings
+         * @param rows the number of rows to write
+         * @return true if all files are still as written and the settings
+         *         and number of rows are the same, so the rows are worth
+         *         comparing
+         */
+        boolean matches(final List<Path> files, final long settings,
+                final long rows) {
+            if (m_settings != settings || m_rows != rows
+                    || files.size() != m_files.length) {
+                return false;
+            }
+            try {
+                for (int i = 0; i < m_files.length; i++) {
+                    Path file = files.get(i);
+                    if (!m_files[i].equals(file.toAbsolutePath().toString())
+                            || Files.size(file) != m_sizes[i]
+                            || Files.getLastModifiedTime(file).toMillis()
+                                    != m_modified[i]) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IOException e) {
+                // deleted
+                return false;
+            }
+        }
+
+        /**
+         * @param fingerprint the fingerprint of the rows to write
+         * @return true if they are the rows written
+         */
+        boolean matches(final TableFingerprint fingerprint) {
+            return fingerprint.getRows() == m_rows
+                    && fingerprint.getValue() == m_value;
+        }
+
+        /**
+         * @param dir the node internals directory
+         * @throws IOException if writing fails
+         */
+        void save(final File dir) throws IOException {
+            NodeSettings settings = new NodeSettings("fingerprint");
+            settings.addStringArray("files", m_files);
+            settings.addLongArray("sizes", m_sizes);
+            settings.addLongArray("modified", m_modified);
+            settings.addLong("settings", m_settings);
+            settings.addLong("rows", m_rows);
+            settings.addLong("fingerprint", m_value);
+            try (OutputStream out = new FileOutputStream(
+                    new File(dir, INTERNALS_FILE_NAME))) {
+                settings.saveToXML(out);
+            }
+        }
+
+        /**
+         * @param dir the node internals directory
+         * @return the saved snapshot, null if there is none (or it is of
+         *         an older version)
+         * @throws IOException if reading fails
+         */
+        static Snapshot load(final File dir) throws IOException {
+            File file = new File(dir, INTERNALS_FILE_NAME);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (InputStream in = new FileInputStream(file)) {
+                return new Snapshot(NodeSettings.loadFromXML(in));
+            } catch (InvalidSettingsException e) {
+                return null;
+            }
+        }
+    }
+}
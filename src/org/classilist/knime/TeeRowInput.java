@@ -0,0 +1,62 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.node.streamable.RowInput;
+
+/**
+ * Row input that also hands every polled row to an {@link ArrowIpcWriter},
+ * so a streamed input is written to both outputs in one pass. Must be polled
+ * by a single thread. Failures of the Arrow output are thrown as
+ * {@link UncheckedIOException}.
+ */
+final class TeeRowInput extends RowInput {
+
+    private final RowInput m_input;
+
+    private final ArrowIpcWriter m_arrow;
+
+    /**
+     * @param input the input to read
+     * @param arrow the writer every row is added to
+     */
+    TeeRowInput(final RowInput input, final ArrowIpcWriter arrow) {
+        m_input = input;
+        m_arrow = arrow;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataTableSpec getDataTableSpec() {
+        return m_input.getDataTableSpec();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DataRow poll() throws InterruptedException {
+        DataRow row = m_input.poll();
+        if (row != null) {
+            try {
+                m_arrow.addRow(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() {
+        m_input.close();
+    }
+}
@@ -0,0 +1,160 @@
+package org.classilist.knime;
+
+import java.util.Arrays;
+
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DoubleValue;
+
+/**
+ * Selects the K largest class probabilities of a row (those at least the
+ * threshold) in descending order and sums up the others as residual mass.
+ * Sparse output writes, in place of the probability columns, K pairs of class
+ * code and probability followed by the residual:
+ * <code>Top1-class, Top1-P, ..., TopK-class, TopK-P, Residual-P</code>. The
+ * class codes index the {@link ClassDictionary}, unused pairs are missing.
+ * A selector is used by one thread only.
+ */
+final class TopKSelector {
+
+    /** default number of probabilities per row. */
+    static final int DEFAULT_K = 5;
+
+    /** marks the position of the sparse columns in {@link #layout}. */
+    static final int SPARSE_COLUMNS = -1;
+
+    /** the probability columns, indexed by class code. */
+    private final int[] m_columns;
+
+    private final double m_threshold;
+
+    /** codes and values of the selected classes, largest value first. */
+    private final int[] m_codes;
+
+    private final double[] m_values;
+
+    private double m_residual;
+
+    /**
+     * @param plan the column plan of the table
+     * @param settings the writer settings (K and threshold)
+     */
+    TopKSelector(final ClassilistColumnPlan plan,
+            final FileWriterSettings settings) {
+        m_columns = plan.getProbabilityColumns();
+        m_threshold = settings.getProbabilityThreshold();
+        int slots = Math.min(settings.getProbabilityTopK(), m_columns.length);
+        m_codes = new int[slots];
+        m_values = new double[slots];
+    }
+
+    /**
+     * @param plan the column plan of the table
+     * @return the exported columns with the probability columns replaced by
+     *         one {@link #SPARSE_COLUMNS} at the position of the first
+     */
+    static int[] layout(final ClassilistColumnPlan plan) {
+        int[] exported = plan.getExportedColumns();
+        int[] layout = new int[exported.length];
+        int count = 0;
+        boolean placed = false;
+        for (int c : exported) {
+            if (plan.getRole(c) != ClassilistColumnPlan.Role.PROBABILITY) {
+                layout[count++] = c;
+            } else if (!placed) {
+                layout[count++] = SPARSE_COLUMNS;
+                placed = true;
+            }
+        }
+        return Arrays.copyOf(layout, count);
+    }
+
+    /**
+     * @param slots the number of probabilities per row
+     * @param probabilitySuffix appended to the probability headers
+     * @return the headers of the sparse columns
+     */
+    static String[] headers(final int slots, final String probabilitySuffix) {
+        String[] headers = new String[2 * slots + 1];
+        for (int s = 0; s < slots; s++) {
+            headers[2 * s] = "Top" + (s + 1) + "-class";
+            headers[2 * s + 1] = "Top" + (s + 1) + "-P" + probabilitySuffix;
+        }
+        headers[2 * slots] = "Residual-P" + probabilitySuffix;
+        return headers;
+    }
+
+    /** @return the number of probabilities per row (K, at most the classes) */
+    int getSlots() {
+        return m_codes.length;
+    }
+
+    /**
+     * Selects the largest probabilities of the row. Missing and NaN
+     * probabilities are ignored, of equal ones the first class is taken.
+     *
+     * @param row the row
+     * @return the number of selected classes, at most {@link #getSlots()}
+     */
+    int select(final DataRow row) {
+        final int[] codes = m_codes;
+        final double[] values = m_values;
+        final int slots = codes.length;
+        int count = 0;
+        double residual = 0;
+        for (int code = 0; code < m_columns.length; code++) {
+            DataCell cell = row.getCell(m_columns[code]);
+            if (cell.isMissing() || !(cell instanceof DoubleValue)) {
+                continue;
+            }
+            double value = ((DoubleValue)cell).getDoubleValue();
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            if (value < m_threshold) {
+                residual += value;
+                continue;
+            }
+            if (count < slots) {
+                count++;
+            } else if (value > values[slots - 1]) {
+                residual += values[slots - 1]; // drops out
+            } else {
+                residual += value;
+                continue;
+            }
+            // insert, keeping the order
+            int j = count - 1;
+            while (j > 0 && values[j - 1] < value) {
+                values[j] = values[j - 1];
+                codes[j] = codes[j - 1];
+                j--;
+            }
+            values[j] = value;
+            codes[j] = code;
+        }
+        m_residual = residual;
+        return count;
+    }
+
+    /**
+     * @param slot the rank, less than the count of the last {@link #select}
+     * @return the class code
+     */
+    int getCode(final int slot) {
+        return m_codes[slot];
+    }
+
+    /**
+     * @param slot the rank, less than the count of the last {@link #select}
+     * @return the probability
+     */
+    double getValue(final int slot) {
+        return m_values[slot];
+    }
+
+    /** @return the sum of the probabilities not selected in the last row */
+    double getResidual() {
+        return m_residual;
+    }
+}
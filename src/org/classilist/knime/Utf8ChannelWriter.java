@@ -0,0 +1,219 @@
+package org.classilist.knime;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer that encodes characters itself into a large direct byte buffer and
+ * writes that to a channel, skipping the JDK charset encoder and the copies
+ * of the stream stack. Supports UTF-8 and US-ASCII only; characters that
+ * can't be encoded are written as '?', like the JDK encoders do.
+ *
+ * <p>Not thread-safe.
+ */
+final class Utf8ChannelWriter extends Writer {
+
+    /** Default size of the byte buffer. */
+    static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    /** Smallest accepted size of the byte buffer. */
+    static final int MIN_BUFFER_SIZE = 1 << 12;
+
+    private static final byte REPLACEMENT = '?';
+
+    private final WritableByteChannel m_channel;
+
+    private final boolean m_ascii;
+
+    private final ByteBuffer m_buffer;
+
+    /** high surrogate at the end of the last write, 0 if none. */
+    private char m_pendingHigh;
+
+    private long m_position;
+
+    private boolean m_closed;
+
+    /**
+     * @param channel the channel to write to, closed with this writer
+     * @param charset UTF-8 or US-ASCII
+     * @param bufferSize size of the direct byte buffer in bytes
+     */
+    Utf8ChannelWriter(final WritableByteChannel channel, final Charset charset,
+            final int bufferSize) {
+        if (!supports(charset)) {
+            throw new IllegalArgumentException(
+                    "Unsupported character set: " + charset);
+        }
+        m_channel = channel;
+        m_ascii = StandardCharsets.US_ASCII.equals(charset);
+        m_buffer = ByteBuffer.allocateDirect(
+                Math.max(bufferSize, MIN_BUFFER_SIZE));
+    }
+
+    /**
+     * @param charset the character set to write
+     * @return true if this writer can encode the character set
+     */
+    static boolean supports(final Charset charset) {
+        return StandardCharsets.UTF_8.equals(charset)
+                || StandardCharsets.US_ASCII.equals(charset);
+    }
+
+    /**
+     * @return the number of bytes encoded so far (including the ones still
+     *         buffered)
+     */
+    long position() {
+        return m_position + m_buffer.position();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final char[] cbuf, final int off, final int len)
+            throws IOException {
+        ensureOpen();
+        final ByteBuffer buf = m_buffer;
+        final int end = off + len;
+        int i = off;
+        if (m_pendingHigh != 0 && i < end) {
+            char high = m_pendingHigh;
+            m_pendingHigh = 0;
+            if (Character.isLowSurrogate(cbuf[i])) {
+                encodeSupplementary(Character.toCodePoint(high, cbuf[i]));
+                i++;
+            } else {
+                put(REPLACEMENT);
+            }
+        }
+        while (i < end) {
+            // ASCII run, the common case
+            if (buf.remaining() < 4) {
+                drain();
+            }
+            int room = Math.min(end - i, buf.remaining() - 3);
+            int runEnd = i + room;
+            char c;
+            while (i < runEnd && (c = cbuf[i]) < 0x80) {
+                buf.put((byte)c);
+                i++;
+            }
+            if (i == runEnd) {
+                continue;
+            }
+            c = cbuf[i++];
+            if (Character.isHighSurrogate(c)) {
+                if (i == end) {
+                    // the low surrogate may come with the next write
+                    m_pendingHigh = c;
+                } else if (Character.isLowSurrogate(cbuf[i])) {
+                    encodeSupplementary(Character.toCodePoint(c, cbuf[i]));
+                    i++;
+                } else {
+                    buf.put(REPLACEMENT);
+                }
+            } else if (m_ascii || Character.isLowSurrogate(c)) {
+                buf.put(REPLACEMENT);
+            } else if (c < 0x800) {
+                buf.put((byte)(0xC0 | (c >> 6)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            } else {
+                buf.put((byte)(0xE0 | (c >> 12)));
+                buf.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buf.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final String str, final int off, final int len)
+            throws IOException {
+        char[] chars = new char[len];
+        str.getChars(off, off + len, chars, 0);
+        write(chars, 0, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final int c) throws IOException {
+        write(new char[] {(char)c}, 0, 1);
+    }
+
+    /**
+     * Writes the buffered bytes to the channel. The channel itself is not
+     * forced to the device.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        drain();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        if (m_closed) {
+            return;
+        }
+        try {
+            if (m_pendingHigh != 0) {
+                m_pendingHigh = 0;
+                put(REPLACEMENT);
+            }
+            drain();
+        } finally {
+            m_closed = true;
+            m_channel.close();
+        }
+    }
+
+    private void encodeSupplementary(final int codePoint) throws IOException {
+        if (m_buffer.remaining() < 4) {
+            drain();
+        }
+        if (m_ascii) {
+            // a surrogate pair is a single unmappable character
+            m_buffer.put(REPLACEMENT);
+            return;
+        }
+        m_buffer.put((byte)(0xF0 | (codePoint >> 18)));
+        m_buffer.put((byte)(0x80 | ((codePoint >> 12) & 0x3F)));
+        m_buffer.put((byte)(0x80 | ((codePoint >> 6) & 0x3F)));
+        m_buffer.put((byte)(0x80 | (codePoint & 0x3F)));
+    }
+
+    private void put(final byte b) throws IOException {
+        if (!m_buffer.hasRemaining()) {
+            drain();
+        }
+        m_buffer.put(b);
+    }
+
+    private void drain() throws IOException {
+        m_buffer.flip();
+        m_position += m_buffer.remaining();
+        while (m_buffer.hasRemaining()) {
+            m_channel.write(m_buffer);
+        }
+        m_buffer.clear();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (m_closed) {
+            throw new IOException("Writer closed");
+        }
+    }
+}
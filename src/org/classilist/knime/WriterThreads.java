@@ -0,0 +1,66 @@
+package org.classilist.knime;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.knime.core.node.NodeLogger;
+
+/**
+ * Thread factories of the writer's worker threads.
+ */
+final class WriterThreads {
+
+    private static final NodeLogger LOGGER =
+            NodeLogger.getLogger(WriterThreads.class);
+
+    private static final ThreadFactory VIRTUAL =
+            createVirtual("Classilist-pipeline-");
+
+    private WriterThreads() {
+        // utility class
+    }
+
+    /**
+     * @param prefix the prefix of the thread names
+     * @return a factory for daemon platform threads, for CPU bound work
+     */
+    static ThreadFactory platform(final String prefix) {
+        final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = defaultFactory.newThread(r);
+                thread.setName(prefix + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * @return a factory for virtual threads if the JVM has them (since Java
+     *         21), otherwise for daemon platform threads
+     */
+    static ThreadFactory virtualIfAvailable() {
+        return VIRTUAL != null ? VIRTUAL : platform("Classilist-pipeline-");
+    }
+
+    /** Looks up Thread.ofVirtual() by reflection, null if not available. */
+    private static ThreadFactory createVirtual(final String prefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                    .invoke(builder, prefix, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory)factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOGGER.debug("Virtual threads not available, using platform "
+                    + "threads instead.");
+            return null;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.classilist.knime.CellIndex.Bitmap;
+import org.junit.Test;
+
+/**
+ * Tests the Roaring bitmaps of {@link CellIndex}.
+ */
+public class CellIndexTest {
+
+    private static Bitmap bitmap(final Iterable<Long> values) {
+        Bitmap bitmap = new Bitmap();
+        for (long v : values) {
+            bitmap.add((int)v);
+        }
+        return bitmap;
+    }
+
+    private static void assertValues(final TreeSet<Long> expected, final Bitmap bitmap) {
+        assertEquals(expected.size(), bitmap.cardinality());
+        TreeSet<Long> actual = new TreeSet<Long>();
+        for (long v = bitmap.next(0); v >= 0; v = bitmap.next(v + 1)) {
+            actual.add(v);
+        }
+        assertEquals(expected, actual);
+    }
+
+    /** Sparse values, a dense container and long runs, added out of order. */
+    private static TreeSet<Long> values(final long seed) {
+        Random random = new Random(seed);
+        TreeSet<Long> values = new TreeSet<Long>();
+        for (int i = 0; i < 3000; i++) {
+            values.add((long)random.nextInt(1 << 22));
+        }
+        for (int i = 0; i < 2 * CellIndex.MAX_ARRAY; i++) {
+            values.add((5L << 16) + random.nextInt(1 << 16));
+        }
+        for (long v = 9L << 16; v < (11L << 16) + 17; v++) {
+            values.add(v);
+        }
+        values.add(0xFFFFFFFFL);
+        return values;
+    }
+
+    @Test
+    public void testRoundTrip() {
+        for (long seed = 0; seed < 5; seed++) {
+            TreeSet<Long> values = values(seed);
+            Bitmap bitmap = bitmap(values.descendingSet());
+            assertValues(values, bitmap);
+            assertValues(values, Bitmap.deserialize(bitmap.serialize()));
+        }
+    }
+
+    @Test
+    public void testOr() {
+        TreeSet<Long> first = values(1);
+        TreeSet<Long> second = values(2);
+        Bitmap bitmap = bitmap(first);
+        bitmap.or(bitmap(second));
+        first.addAll(second);
+        assertValues(first, bitmap);
+        assertValues(first, Bitmap.deserialize(bitmap.serialize()));
+    }
+
+    @Test
+    public void testNext() {
+        Bitmap bitmap = new Bitmap();
+        bitmap.add(3);
+        bitmap.add(70000);
+        assertEquals(3, bitmap.next(-1));
+        assertEquals(70000, bitmap.next(4));
+        assertEquals(-1, bitmap.next(70001));
+        assertEquals(-1, bitmap.next(1L << 32));
+        assertEquals(-1, new Bitmap().next(0));
+    }
+
+    @Test
+    public void testPortableFormat() {
+        Bitmap single = new Bitmap();
+        single.add(0);
+        // cookie without runs, 1 container, key 0 with 1 value, its offset,
+        // the value
+        assertArrayEquals(new byte[] {0x3A, 0x30, 0, 0, 1, 0, 0, 0, 0, 0, 0, 0,
+            16, 0, 0, 0, 0, 0}, single.serialize());
+
+        Bitmap run = new Bitmap();
+        for (int v = 0; v < 10; v++) {
+            run.add(v);
+        }
+        // cookie with runs and 1 container, the run flags, key 0 with 10
+        // values, 1 run from 0 with length 9
+        assertArrayEquals(new byte[] {0x3B, 0x30, 0, 0, 1, 0, 0, 9, 0, 1, 0, 0,
+            0, 9, 0}, run.serialize());
+        assertValues(new TreeSet<Long>(Arrays.asList(0L, 1L, 2L, 3L,
+            4L, 5L, 6L, 7L, 8L, 9L)), Bitmap.deserialize(run.serialize()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotABitmap() {
+        Bitmap.deserialize(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() {
+        byte[] bytes = bitmap(values(3)).serialize();
+        Bitmap.deserialize(Arrays.copyOf(bytes, bytes.length / 2));
+    }
+}
@@ -0,0 +1,326 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.classilist.knime.ClassilistColumnPlan.Role;
+import org.classilist.knime.FileWriterSettings.ProbabilityQuantization;
+import org.classilist.knime.FileWriterSettings.quoteMode;
+import org.junit.Test;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTable;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.RowIterator;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.IntCell;
+import org.knime.core.data.def.StringCell;
+import org.knime.core.node.ExecutionMonitor;
+import org.knime.core.node.streamable.DataTableRowInput;
+import org.knime.core.node.streamable.RowInput;
+
+/**
+ * Compares the quoting of {@link RowBuffer} and the cell encoders with
+ * {@link Classilist#quoteString(String, boolean)}, and the files written
+ * with one thread with the ones of the parallel and pipelined writers.
+ */
+public class ClassilistTest {
+
+    private static final String[] SEPARATORS = {",", ";", "||", "\t", ""};
+
+    /** quote begin, quote end and quote replacement. */
+    private static final String[][] QUOTES = {
+        {"\"", "\"", "\"\""},
+        {"'", "'", "\\'"},
+        {"<<", ">>", ">>>"},
+        {"'", "", ""},
+        {"", "", ""},
+    };
+
+    private static final String[] DATA = {
+        "", "plain", "a,b", ",", "a;b;", "x||y|", "||||", "|",
+        "say \"hi\"", "\"", "\"\"", "it's", "'", "<<a>>b>>", ">>", ">",
+        "NA", "1.5", "-2,5", "tab\there", "line\nbreak", "\u00fcml\u00e4ut",
+    };
+
+    private static final double[] DOUBLES = {
+        0.0, -0.0, 0.5, -3.25, 0.1, 1.0E-5, 1234567.125, 1.0E7, 42.0,
+        Double.NaN, Double.POSITIVE_INFINITY,
+    };
+
+    /** All combinations of the quoting settings. */
+    private static List<FileWriterSettings> allSettings() {
+        List<FileWriterSettings> all = new ArrayList<FileWriterSettings>();
+        for (quoteMode mode : quoteMode.values()) {
+            for (boolean replaceInStrings : new boolean[]{false, true}) {
+                for (String separator : SEPARATORS) {
+                    for (String[] quotes : QUOTES) {
+                        for (String missing : new String[]{"", "NA"}) {
+                            FileWriterSettings settings = new FileWriterSettings();
+                            settings.setQuoteMode(mode);
+                            settings.setReplaceSeparatorInStrings(replaceInStrings);
+                            settings.setColSeparator(separator);
+                            settings.setSeparatorReplacement(missing.isEmpty() ? "_" : "");
+                            settings.setQuoteBegin(quotes[0]);
+                            settings.setQuoteEnd(quotes[1]);
+                            settings.setQuoteReplacement(quotes[2]);
+                            settings.setMissValuePattern(missing);
+                            all.add(settings);
+                        }
+                    }
+                }
+            }
+        }
+        return all;
+    }
+
+    private static String describe(final FileWriterSettings settings, final String data) {
+        return settings.getQuoteMode() + " replace=" + settings.replaceSeparatorInStrings()
+            + " sep=[" + settings.getColSeparator() + "] quotes=[" + settings.getQuoteBegin()
+            + "][" + settings.getQuoteEnd() + "][" + settings.getQuoteReplacement()
+            + "] missing=[" + settings.getMissValuePattern() + "] decimal="
+            + settings.getDecimalSeparator() + " data=[" + data + "]";
+    }
+
+    private static String take(final RowBuffer buffer) {
+        String text = new String(buffer.chars(), 0, buffer.length());
+        buffer.clear();
+        return text;
+    }
+
+    @Test
+    public void testQuotedLikeQuoteString() {
+        for (FileWriterSettings settings : allSettings()) {
+            Classilist writer = new Classilist(new StringWriter(), settings);
+            RowBuffer buffer = new RowBuffer(settings, "\n", 16);
+            for (boolean isNumerical : new boolean[]{false, true}) {
+                QuotePolicy policy = QuotePolicy.of(settings, isNumerical);
+                for (String data : DATA) {
+                    buffer.appendQuoted(data, policy);
+                    assertEquals(describe(settings, data) + " numerical=" + isNumerical,
+                        writer.quoteString(data, isNumerical), take(buffer));
+                }
+            }
+        }
+    }
+
+    /**
+     * Repeated values come from the cache, unique values turn it off, the
+     * output stays the same.
+     */
+    @Test
+    public void testCachedTextLikeQuoteString() {
+        for (FileWriterSettings settings : allSettings()) {
+            Classilist writer = new Classilist(new StringWriter(), settings);
+            RowBuffer buffer = new RowBuffer(settings, "\n", 16);
+            CellEncoder encoder =
+                    CellEncoder.create(StringCell.TYPE, Role.FEATURE, 0, settings, null);
+            for (int i = 0; i < 3 * 4096; i++) {
+                String data = i >= 4096 && i < 2 * 4096 ? "v" + i + DATA[i % DATA.length]
+                        : DATA[i % DATA.length];
+                encoder.encode(new StringCell(data), buffer);
+                assertEquals(describe(settings, data), writer.quoteString(data, false),
+                    take(buffer));
+            }
+        }
+    }
+
+    /** The numbers as the string based writer wrote the cell's string. */
+    @Test
+    public void testNumbersLikeQuoteString() {
+        for (FileWriterSettings settings : allSettings()) {
+            for (char decimal : new char[]{'.', ',', 'E'}) {
+                settings.setDecimalSeparator(decimal);
+                Classilist writer = new Classilist(new StringWriter(), settings);
+                RowBuffer buffer = new RowBuffer(settings, "\n", 16);
+                CellEncoder doubles =
+                        CellEncoder.create(DoubleCell.TYPE, Role.FEATURE, 0, settings, null);
+                CellEncoder ints =
+                        CellEncoder.create(IntCell.TYPE, Role.FEATURE, 1, settings, null);
+                List<DataCell> cells = new ArrayList<DataCell>();
+                for (double value : DOUBLES) {
+                    cells.add(new DoubleCell(value));
+                }
+                for (int value : new int[]{0, -17, 1000000, Integer.MIN_VALUE}) {
+                    cells.add(new IntCell(value));
+                }
+                for (DataCell cell : cells) {
+                    String expected = cell.toString();
+                    if (decimal != '.' && expected.indexOf(decimal) < 0) {
+                        expected = Classilist.replaceDecimalSeparator(expected, decimal);
+                    }
+                    expected = writer.quoteString(expected, true);
+                    (cell instanceof DoubleCell ? doubles : ints).encode(cell, buffer);
+                    assertEquals(describe(settings, cell.toString()), expected, take(buffer));
+                }
+            }
+        }
+    }
+
+    private static DataTableSpec spec() {
+        return new DataTableSpec(
+            new DataColumnSpecCreator("x", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("n", IntCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("note", StringCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("class", StringCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("P (class=a)", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("P (class=b)", DoubleCell.TYPE).createSpec(),
+            new DataColumnSpecCreator("Prediction (class)", StringCell.TYPE).createSpec());
+    }
+
+    /**
+     * Rows with quotes and separators in the strings, missing cells and
+     * labels without probability column, some of them first seen late.
+     */
+    private static List<DataRow> rows(final int count, final long seed) {
+        Random random = new Random(seed);
+        String[] labels = {"a", "b", "c", "d,e", "\"f\""};
+        List<DataRow> rows = new ArrayList<DataRow>();
+        for (int i = 0; i < count; i++) {
+            DataCell[] cells = new DataCell[7];
+            cells[0] = new DoubleCell(random.nextInt(10) == 0 ? random.nextInt(100)
+                    : random.nextGaussian());
+            cells[1] = new IntCell(random.nextInt(2000) - 1000);
+            int note = random.nextInt(DATA.length + 2);
+            if (note == DATA.length) {
+                cells[2] = DataType.getMissingCell();
+            } else if (note > DATA.length) {
+                cells[2] = new StringCell("note " + i);
+            } else {
+                cells[2] = new StringCell(DATA[note]);
+            }
+            String label = i > count / 2 && random.nextInt(50) == 0 ? "late" + random.nextInt(9)
+                    : labels[random.nextInt(labels.length)];
+            cells[3] = random.nextInt(100) == 0 ? DataType.getMissingCell() : new StringCell(label);
+            double p = random.nextDouble();
+            cells[4] = random.nextInt(100) == 0 ? DataType.getMissingCell() : new DoubleCell(p);
+            cells[5] = new DoubleCell(1 - p);
+            cells[6] = new StringCell(p < 0.5 ? "b" : labels[random.nextInt(labels.length)]);
+            rows.add(new DefaultRow("Row" + i, cells));
+        }
+        return rows;
+    }
+
+    private static DataTable table(final DataTableSpec spec, final List<DataRow> rows) {
+        return new DataTable() {
+            @Override
+            public DataTableSpec getDataTableSpec() {
+                return spec;
+            }
+
+            @Override
+            public RowIterator iterator() {
+                final Iterator<DataRow> it = rows.iterator();
+                return new RowIterator() {
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public DataRow next() {
+                        return it.next();
+                    }
+                };
+            }
+        };
+    }
+
+    /** The rows as streamed by an upstream node. */
+    private static RowInput streamed(final DataTableSpec spec, final List<DataRow> rows) {
+        final Iterator<DataRow> it = rows.iterator();
+        return new RowInput() {
+            @Override
+            public DataTableSpec getDataTableSpec() {
+                return spec;
+            }
+
+            @Override
+            public DataRow poll() {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+
+    private static FileWriterSettings settings(final quoteMode mode, final String separator,
+            final char decimal, final boolean encodeLabels,
+            final ProbabilityQuantization quantization, final int parallelism,
+            final boolean pipelined) {
+        FileWriterSettings settings = new FileWriterSettings();
+        settings.setQuoteMode(mode);
+        settings.setColSeparator(separator);
+        settings.setReplaceSeparatorInStrings(true);
+        settings.setSeparatorReplacement("_");
+        settings.setQuoteReplacement("\"\"");
+        settings.setMissValuePattern("NA");
+        settings.setDecimalSeparator(decimal);
+        settings.setWriteRowID(true);
+        settings.setEncodeLabels(encodeLabels);
+        settings.setProbabilityQuantization(quantization);
+        settings.setParallelism(parallelism);
+        settings.setPipelinedOutput(pipelined);
+        return settings;
+    }
+
+    private static String write(final FileWriterSettings settings, final RowInput input)
+            throws Exception {
+        StringWriter out = new StringWriter();
+        Classilist writer = new Classilist(out, settings);
+        writer.write(input, new ExecutionMonitor());
+        writer.close();
+        return out.toString();
+    }
+
+    /**
+     * The parallel and the pipelined writers write the same characters as
+     * one thread, also with the label codes assigned while writing.
+     */
+    @Test
+    public void testParallelLikeSerial() throws Exception {
+        DataTableSpec spec = spec();
+        List<DataRow> rows = rows(30000, 3);
+        Object[][] cases = {
+            {quoteMode.IF_NEEDED, ",", '.', false, ProbabilityQuantization.NONE},
+            {quoteMode.ALWAYS, ";", ',', false, ProbabilityQuantization.NONE},
+            {quoteMode.STRINGS, ",", '.', true, ProbabilityQuantization.NONE},
+            {quoteMode.REPLACE, "||", ',', true, ProbabilityQuantization.FIXED16},
+            {quoteMode.STRINGS, "\t", 'E', false, ProbabilityQuantization.FLOAT16},
+        };
+        for (Object[] c : cases) {
+            quoteMode mode = (quoteMode)c[0];
+            String separator = (String)c[1];
+            char decimal = (Character)c[2];
+            boolean encode = (Boolean)c[3];
+            ProbabilityQuantization quantization = (ProbabilityQuantization)c[4];
+            String serial = write(settings(mode, separator, decimal, encode, quantization, 1, false),
+                new DataTableRowInput(table(spec, rows)));
+            assertTrue(serial.length() > rows.size() * 20);
+            for (int parallelism : new int[]{2, 4}) {
+                String message = mode + " " + separator + " " + decimal + " " + encode + " "
+                    + quantization + " x" + parallelism;
+                assertEquals(message, serial,
+                    write(settings(mode, separator, decimal, encode, quantization, parallelism,
+                        false), new DataTableRowInput(table(spec, rows))));
+                assertEquals(message + " pipelined", serial,
+                    write(settings(mode, separator, decimal, encode, quantization, parallelism,
+                        true), streamed(spec, rows)));
+            }
+            assertEquals(serial, write(settings(mode, separator, decimal, encode, quantization,
+                1, true), streamed(spec, rows)));
+        }
+    }
+}
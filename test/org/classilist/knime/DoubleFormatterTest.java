@@ -0,0 +1,102 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests the shortest and fixed formatting of {@link DoubleFormatter}.
+ */
+public class DoubleFormatterTest {
+
+    private static String format(final double value) {
+        char[] buf = new char[DoubleFormatter.MAX_LENGTH];
+        return new String(buf, 0, DoubleFormatter.format(value, buf, 0));
+    }
+
+    private static String formatFixed(final double value, final int decimals) {
+        char[] buf = new char[DoubleFormatter.MAX_LENGTH];
+        return new String(buf, 0, DoubleFormatter.formatFixed(value, decimals, buf, 0));
+    }
+
+    private static String formatLong(final long value) {
+        char[] buf = new char[DoubleFormatter.MAX_LENGTH];
+        return new String(buf, 0, DoubleFormatter.formatLong(value, buf, 0));
+    }
+
+    @Test
+    public void testLayoutOfDoubleToString() {
+        assertEquals("0.0", format(0.0));
+        assertEquals("-0.0", format(-0.0));
+        assertEquals("1.0", format(1.0));
+        assertEquals("0.5", format(0.5));
+        assertEquals("0.001", format(0.001));
+        assertEquals("1.0E-4", format(0.0001));
+        assertEquals("9999999.0", format(9999999.0));
+        assertEquals("1.0E7", format(1.0E7));
+        assertEquals("1.2345E-10", format(1.2345E-10));
+        assertEquals("-3.14159", format(-3.14159));
+        assertEquals("NaN", format(Double.NaN));
+        assertEquals("Infinity", format(Double.POSITIVE_INFINITY));
+        assertEquals("-Infinity", format(Double.NEGATIVE_INFINITY));
+        assertEquals("4.9E-324", format(Double.MIN_VALUE));
+        assertEquals("1.7976931348623157E308", format(Double.MAX_VALUE));
+    }
+
+    @Test
+    public void testShortestDigits() {
+        // Double.toString of Java 18 and older prints 1.9999999999999998E23
+        // and 9.999999999999999E22
+        assertEquals("2.0E23", format(2.0E23));
+        assertEquals("1.0E23", format(1.0E23));
+        assertEquals("0.002", format(2.0E-3));
+        assertEquals("0.1", format(0.1));
+        assertEquals("0.30000000000000004", format(0.1 + 0.2));
+    }
+
+    @Test
+    public void testRoundTrip() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value)) {
+                continue;
+            }
+            String text = format(value);
+            assertEquals(text, Double.doubleToLongBits(value),
+                Double.doubleToLongBits(Double.parseDouble(text)));
+            assertTrue(text, text.length() <= Double.toString(value).length());
+        }
+        for (int i = 0; i < 100000; i++) {
+            double value = random.nextDouble();
+            assertEquals(value, Double.parseDouble(format(value)), 0.0);
+        }
+    }
+
+    @Test
+    public void testFixed() {
+        assertEquals("0.0", formatFixed(0.0, 3));
+        assertEquals("0.125", formatFixed(0.125, 3));
+        assertEquals("0.13", formatFixed(0.125, 2));
+        assertEquals("0.5", formatFixed(0.5, 4));
+        assertEquals("0.007", formatFixed(0.0071, 3));
+        assertEquals("1.0", formatFixed(0.9999, 3));
+        assertEquals("-2.5", formatFixed(-2.5, 1));
+        assertEquals("0.0", formatFixed(-0.0001, 2));
+        assertEquals("3.0", formatFixed(3.0, 0));
+        assertEquals("1.0E300", formatFixed(1.0E300, 2));
+        assertEquals("NaN", formatFixed(Double.NaN, 2));
+    }
+
+    @Test
+    public void testLong() {
+        assertEquals("0", formatLong(0));
+        assertEquals("-17", formatLong(-17));
+        assertEquals("1000000", formatLong(1000000));
+        assertEquals(Long.toString(Long.MAX_VALUE), formatLong(Long.MAX_VALUE));
+        assertEquals(Long.toString(Long.MIN_VALUE), formatLong(Long.MIN_VALUE));
+    }
+}
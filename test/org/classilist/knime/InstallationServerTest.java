@@ -0,0 +1,196 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Sends raw requests to an {@link InstallationServer} of a temporary
+ * directory.
+ */
+public class InstallationServerTest {
+
+    private static final String CONTENT = "a,b\n1,2\n3,4\n";
+
+    private Path m_root;
+
+    private InstallationServer m_server;
+
+    private String m_host;
+
+    @Before
+    public void start() throws IOException {
+        m_root = Files.createTempDirectory("classilist");
+        Files.createDirectory(m_root.resolve("data"));
+        Files.write(m_root.resolve("data/out.csv"),
+            CONTENT.getBytes(StandardCharsets.US_ASCII));
+        m_server = new InstallationServer(m_root, 0, new LiveFeed());
+        m_host = "127.0.0.1:" + m_server.getPort();
+    }
+
+    @After
+    public void stop() throws IOException {
+        m_server.close();
+        Files.delete(m_root.resolve("data/out.csv"));
+        Files.delete(m_root.resolve("data"));
+        Files.delete(m_root);
+    }
+
+    /**
+     * @return the response to the request with the headers, read until the
+     *         server closes the connection
+     */
+    private String get(final String path, final String headers) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                m_server.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\n" + headers
+                + "Connection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                response.write(buf, 0, n);
+            }
+            return new String(response.toByteArray(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static String status(final String response) {
+        return response.substring(0, response.indexOf("\r\n"));
+    }
+
+    private static String header(final String response, final String name) {
+        for (String line : response.substring(0, response.indexOf("\r\n\r\n")).split("\r\n")) {
+            if (line.startsWith(name + ": ")) {
+                return line.substring(name.length() + 2);
+            }
+        }
+        return null;
+    }
+
+    private static String body(final String response) {
+        return response.substring(response.indexOf("\r\n\r\n") + 4);
+    }
+
+    @Test
+    public void testFile() throws IOException {
+        String response = get("/data/out.csv", "Host: " + m_host + "\r\n");
+        assertEquals("HTTP/1.1 200 OK", status(response));
+        assertEquals("text/csv", header(response, "Content-Type"));
+        assertEquals(CONTENT, body(response));
+        response = get("/data/out.csv", "Host: localhost:" + m_server.getPort() + "\r\n");
+        assertEquals("HTTP/1.1 200 OK", status(response));
+        assertEquals("HTTP/1.1 404 Not Found", status(get("/data/missing.csv",
+            "Host: " + m_host + "\r\n")));
+        assertEquals("HTTP/1.1 404 Not Found", status(get("/data/%2e%2e/%2e%2e/etc/passwd",
+            "Host: " + m_host + "\r\n")));
+    }
+
+    @Test
+    public void testForeignHostIsForbidden() throws IOException {
+        // a page of another origin resolving its name to the loopback address
+        assertEquals("HTTP/1.1 403 Forbidden", status(get("/data/out.csv",
+            "Host: attacker.example:" + m_server.getPort() + "\r\n")));
+        assertEquals("HTTP/1.1 403 Forbidden", status(get("/api/live",
+            "Host: attacker.example\r\n")));
+        assertEquals("HTTP/1.1 403 Forbidden", status(get("/data/out.csv",
+            "Host: 127.0.0.1:1\r\n")));
+        assertEquals("HTTP/1.1 403 Forbidden", status(get("/data/out.csv", "")));
+    }
+
+    @Test
+    public void testRangeAndETag() throws IOException {
+        String host = "Host: " + m_host + "\r\n";
+        String response = get("/data/out.csv", host + "Range: bytes=4-6\r\n");
+        assertEquals("HTTP/1.1 206 Partial Content", status(response));
+        assertEquals("bytes 4-6/" + CONTENT.length(), header(response, "Content-Range"));
+        assertEquals("1,2", body(response));
+
+        response = get("/data/out.csv", host + "Range: bytes=-4\r\n");
+        assertEquals("3,4\n", body(response));
+
+        response = get("/data/out.csv", host + "Range: bytes=100-\r\n");
+        assertEquals("HTTP/1.1 416 Range Not Satisfiable", status(response));
+
+        String etag = header(get("/data/out.csv", host), "ETag");
+        response = get("/data/out.csv", host + "If-None-Match: " + etag + "\r\n");
+        assertEquals("HTTP/1.1 304 Not Modified", status(response));
+        assertEquals("", body(response));
+
+        // a stale If-Range gets the whole file
+        response = get("/data/out.csv", host + "Range: bytes=4-6\r\nIf-Range: \"0-0\"\r\n");
+        assertEquals("HTTP/1.1 200 OK", status(response));
+        assertEquals(CONTENT, body(response));
+    }
+
+    @Test
+    public void testLiveStreamsAreCapped() throws IOException {
+        Socket[] streams = new Socket[InstallationServer.MAX_LIVE_STREAMS];
+        try {
+            for (int i = 0; i < streams.length; i++) {
+                streams[i] = new Socket(InetAddress.getLoopbackAddress(), m_server.getPort());
+                streams[i].getOutputStream().write(("GET /api/live HTTP/1.1\r\nHost: "
+                    + m_host + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                // the stream is open once its head arrives
+                byte[] head = new byte[15];
+                int n = 0;
+                while (n < head.length) {
+                    n += streams[i].getInputStream().read(head, n, head.length - n);
+                }
+                assertEquals("HTTP/1.1 200 OK", new String(head, StandardCharsets.ISO_8859_1));
+            }
+            String response = get("/api/live", "Host: " + m_host + "\r\n");
+            assertEquals("HTTP/1.1 503 Service Unavailable", status(response));
+            // other requests are still answered
+            assertEquals("HTTP/1.1 200 OK", status(get("/data/out.csv",
+                "Host: " + m_host + "\r\n")));
+        } finally {
+            for (Socket stream : streams) {
+                if (stream != null) {
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testParseRange() {
+        assertArrayEquals(new long[] {0, 9}, InstallationServer.parseRange("bytes=0-9", 100));
+        assertArrayEquals(new long[] {90, 99}, InstallationServer.parseRange("bytes=90-", 100));
+        assertArrayEquals(new long[] {90, 99}, InstallationServer.parseRange("bytes=90-200", 100));
+        assertArrayEquals(new long[] {0, 99}, InstallationServer.parseRange("bytes=-200", 100));
+        assertArrayEquals(new long[0], InstallationServer.parseRange("bytes=0-1,5-6", 100));
+        assertArrayEquals(new long[0], InstallationServer.parseRange("bytes=5-1", 100));
+        assertArrayEquals(new long[0], InstallationServer.parseRange("items=0-1", 100));
+        assertNull(InstallationServer.parseRange("bytes=100-", 100));
+        assertNull(InstallationServer.parseRange("bytes=-0", 100));
+    }
+
+    @Test
+    public void testIsLocalHost() {
+        int port = m_server.getPort();
+        assertTrue(m_server.isLocalHost("127.0.0.1:" + port));
+        assertTrue(m_server.isLocalHost("LOCALHOST:" + port));
+        assertEquals(false, m_server.isLocalHost("127.0.0.1"));
+        assertEquals(false, m_server.isLocalHost("localhost.example:" + port));
+        assertEquals(false, m_server.isLocalHost(null));
+    }
+}
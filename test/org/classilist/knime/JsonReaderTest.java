@@ -0,0 +1,68 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Reads JSON written by {@link JsonWriter} back with {@link JsonReader}.
+ */
+public class JsonReaderTest {
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        String text = "quote \" backslash \\ tab \t line\n control \u0001 caf\u00e9 \ud83c\udf3c";
+        StringWriter out = new StringWriter();
+        new JsonWriter(out).beginObject()
+            .name("text").value(text)
+            .name("long").value(-1234567890123L)
+            .name("double").value(0.125)
+            .name("nan").value(Double.NaN)
+            .name("flag").value(true)
+            .name("empty").beginArray().endArray()
+            .name("nested").beginArray().value(1).beginObject().name("a").value(false)
+            .endObject().endArray()
+            .endObject();
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> json = (Map<String, Object>)JsonReader.parse(out.toString());
+        assertEquals(Arrays.asList("text", "long", "double", "nan", "flag", "empty", "nested"),
+            Arrays.asList(json.keySet().toArray()));
+        assertEquals(text, json.get("text"));
+        assertEquals(Long.valueOf(-1234567890123L), json.get("long"));
+        assertEquals(Double.valueOf(0.125), json.get("double"));
+        assertNull(json.get("nan"));
+        assertEquals(Boolean.TRUE, json.get("flag"));
+        assertEquals(Arrays.asList(), json.get("empty"));
+        List<?> nested = (List<?>)json.get("nested");
+        assertEquals(Long.valueOf(1), nested.get(0));
+        assertEquals(Boolean.FALSE, ((Map<?, ?>)nested.get(1)).get("a"));
+    }
+
+    @Test
+    public void testEscapesAndSpace() {
+        assertEquals(Arrays.asList("\u00e9/x", 1.5e3, null),
+            JsonReader.parse(" [ \"\\u00e9\\/x\" ,\n 1.5e3 , null ] "));
+    }
+
+    @Test
+    public void testInvalid() {
+        for (String invalid : new String[] {"", "[1,", "{\"a\" 1}", "\"open", "[1] 2",
+            "tru", "\"\\u12\"", "{1:2}"}) {
+            try {
+                JsonReader.parse(invalid);
+                fail(invalid);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
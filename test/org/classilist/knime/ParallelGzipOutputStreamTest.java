@@ -0,0 +1,100 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests that {@link ParallelGzipOutputStream} writes valid gzip files.
+ */
+public class ParallelGzipOutputStreamTest {
+
+    private static byte[] gunzip(final byte[] gzip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(gzip))) {
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Rows of text, compressible like the written tables. */
+    private static byte[] rows(final int count) {
+        Random random = new Random(count);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            text.append("Row").append(i).append(',').append(random.nextDouble())
+                .append(",Iris-setosa,").append(random.nextInt(100)).append('\n');
+        }
+        return text.toString().getBytes();
+    }
+
+    private static byte[] compress(final byte[] data, final int threads,
+            final int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out,
+                ParallelGzipOutputStream.DEFAULT_LEVEL,
+                ParallelGzipOutputStream.MIN_BLOCK_SIZE, threads)) {
+            for (int pos = 0; pos < data.length; pos += chunk) {
+                gzip.write(data, pos, Math.min(chunk, data.length - pos));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte[] data = rows(20000);
+        for (int threads : new int[] {1, 4}) {
+            for (int chunk : new int[] {1000, 100000, data.length}) {
+                assertArrayEquals(data, gunzip(compress(data, threads, chunk)));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertEquals(0, gunzip(compress(new byte[0], 2, 1)).length);
+    }
+
+    @Test
+    public void testChannelAndSingleBytes() throws IOException {
+        byte[] data = rows(5000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(out,
+                1, ParallelGzipOutputStream.MIN_BLOCK_SIZE, 3)) {
+            gzip.write(data[0]);
+            ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 2);
+            while (buffer.hasRemaining()) {
+                gzip.write(buffer);
+            }
+            gzip.write(data[data.length - 1]);
+        }
+        assertArrayEquals(data, gunzip(out.toByteArray()));
+    }
+
+    @Test
+    public void testAppendedMembers() throws IOException {
+        byte[] first = rows(3000);
+        byte[] second = rows(4000);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write(compress(first, 2, 4096));
+        file.write(compress(second, 2, 4096));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(first);
+        expected.write(second);
+        assertArrayEquals(expected.toByteArray(), gunzip(file.toByteArray()));
+    }
+}
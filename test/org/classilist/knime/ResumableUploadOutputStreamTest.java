@@ -0,0 +1,228 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Uploads with {@link ResumableUploadOutputStream} to a local stand-in of a
+ * resumable upload server, which fails or persists only part of chunks as
+ * scripted by the tests.
+ */
+public class ResumableUploadOutputStreamTest {
+
+    private static final int CHUNK = ResumableUploadOutputStream.MIN_CHUNK_SIZE;
+
+    /** How the server answers one request. */
+    private static final int STORE = -1;
+
+    private static final int FAIL = -2;
+
+    private static final int REJECT = -3;
+
+    private HttpServer m_server;
+
+    private URL m_url;
+
+    /** the bytes the server persisted. */
+    private final ByteArrayOutputStream m_stored = new ByteArrayOutputStream();
+
+    /** the answers of the next requests, STORE when empty; a number &ge; 0
+     * persists only that many bytes of the request. */
+    private final Deque<Integer> m_script = new ArrayDeque<Integer>();
+
+    /** the Content-Range headers of all requests. */
+    private final List<String> m_ranges = new ArrayList<String>();
+
+    private boolean m_complete;
+
+    @Before
+    public void startServer() throws IOException {
+        m_server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        m_server.createContext("/upload", this::handle);
+        m_server.start();
+        m_url = new URL("http://127.0.0.1:" + m_server.getAddress().getPort()
+            + "/upload");
+    }
+
+    @After
+    public void stopServer() {
+        m_server.stop(0);
+    }
+
+    private synchronized void handle(final HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        String range = exchange.getRequestHeaders().getFirst("Content-Range");
+        m_ranges.add(range);
+        Integer answer = m_script.poll();
+        int action = answer == null ? STORE : answer;
+        if (action == FAIL || action == REJECT) {
+            respond(exchange, action == FAIL ? 503 : 403, null);
+            return;
+        }
+        // "bytes first-last/total" or "bytes */total"
+        String[] parts = range.substring("bytes ".length()).split("/");
+        if (!parts[0].equals("*")
+                && Long.parseLong(parts[0].split("-")[0]) != m_stored.size()) {
+            respond(exchange, 400, null);
+            return;
+        }
+        m_stored.write(body, 0, action == STORE ? body.length : action);
+        if (!parts[1].equals("*") && Long.parseLong(parts[1]) == m_stored.size()) {
+            m_complete = true;
+            respond(exchange, 200, null);
+        } else {
+            respond(exchange, 308, m_stored.size() == 0 ? null
+                : "bytes=0-" + (m_stored.size() - 1));
+        }
+    }
+
+    private static void respond(final HttpExchange exchange, final int code,
+            final String range) throws IOException {
+        if (range != null) {
+            exchange.getResponseHeaders().add("Range", range);
+        }
+        exchange.sendResponseHeaders(code, -1);
+        exchange.close();
+    }
+
+    private static byte[] readAll(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) >= 0) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] data(final int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private ResumableUploadOutputStream upload(final byte[] data, final int retries)
+            throws IOException {
+        ResumableUploadOutputStream out =
+                new ResumableUploadOutputStream(m_url, CHUNK, retries, null);
+        try {
+            out.write(data, 0, data.length / 3);
+            out.write(data, data.length / 3, data.length - data.length / 3);
+        } finally {
+            out.close();
+        }
+        return out;
+    }
+
+    @Test
+    public void testChunks() throws IOException {
+        byte[] data = data(3 * CHUNK + 100);
+        ResumableUploadOutputStream out = upload(data, 0);
+        assertArrayEquals(data, m_stored.toByteArray());
+        assertTrue(m_complete);
+        assertEquals(data.length, out.getAcknowledged());
+        assertEquals("bytes 0-" + (CHUNK - 1) + "/*", m_ranges.get(0));
+        assertEquals("bytes " + 3 * CHUNK + "-" + (data.length - 1) + "/"
+            + data.length, m_ranges.get(3));
+        assertEquals(4, m_ranges.size());
+    }
+
+    @Test
+    public void testRetryFailedChunk() throws IOException {
+        m_script.add(STORE);
+        m_script.add(FAIL);
+        byte[] data = data(2 * CHUNK + 10);
+        upload(data, 1);
+        assertArrayEquals(data, m_stored.toByteArray());
+        assertEquals(m_ranges.get(1), m_ranges.get(2));
+        assertEquals(4, m_ranges.size());
+    }
+
+    @Test
+    public void testResumePartialChunk() throws IOException {
+        m_script.add(STORE);
+        m_script.add(1000);
+        m_script.add(0);
+        byte[] data = data(2 * CHUNK + 10);
+        upload(data, 1);
+        assertArrayEquals(data, m_stored.toByteArray());
+        assertTrue(m_complete);
+        // the rest of the second chunk, sent twice as nothing was persisted
+        String rest = "bytes " + (CHUNK + 1000) + "-" + (2 * CHUNK - 1) + "/*";
+        assertEquals(rest, m_ranges.get(2));
+        assertEquals(rest, m_ranges.get(3));
+        assertEquals(5, m_ranges.size());
+    }
+
+    @Test
+    public void testResumePartialLastChunk() throws IOException {
+        m_script.add(CHUNK / 2);
+        byte[] data = data(CHUNK - 1);
+        upload(data, 0);
+        assertArrayEquals(data, m_stored.toByteArray());
+        assertTrue(m_complete);
+        assertEquals("bytes " + CHUNK / 2 + "-" + (CHUNK - 2) + "/" + (CHUNK - 1),
+            m_ranges.get(1));
+    }
+
+    @Test
+    public void testRetriesExhausted() {
+        m_script.add(FAIL);
+        m_script.add(FAIL);
+        try {
+            upload(data(10), 1);
+            fail("The upload must fail");
+        } catch (IOException e) {
+            assertEquals(2, m_ranges.size());
+        }
+    }
+
+    @Test
+    public void testRejectedIsNotRetried() {
+        m_script.add(REJECT);
+        try {
+            upload(data(10), 3);
+            fail("The upload must fail");
+        } catch (IOException e) {
+            assertEquals(1, m_ranges.size());
+        }
+    }
+
+    @Test
+    public void testPersistedBytes() throws IOException {
+        assertEquals(0, ResumableUploadOutputStream.persistedBytes(null));
+        assertEquals(1, ResumableUploadOutputStream.persistedBytes("bytes=0-0"));
+        assertEquals(524288,
+            ResumableUploadOutputStream.persistedBytes(" bytes=0-524287 "));
+        for (String invalid : new String[] {"0-10", "bytes=5-10", "bytes=0-x"}) {
+            try {
+                ResumableUploadOutputStream.persistedBytes(invalid);
+                fail(invalid);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.classilist.knime.RowOffsets.Encoding;
+import org.junit.Test;
+
+/**
+ * Tests that the offsets of {@link RowOffsets} are the byte positions of the
+ * rows in the encoded file.
+ */
+public class RowOffsetsTest {
+
+    private static final String[] TEXTS = {"setosa", "Iris-versicolor",
+        "caf\u00e9", "\u20ac 5", "\ud83c\udf3c", "broken \ud83c", "x"};
+
+    private static List<String> rows(final int count) {
+        List<String> rows = new ArrayList<String>();
+        for (int r = 0; r < count; r++) {
+            rows.add("Row" + r + "," + TEXTS[r % TEXTS.length] + ","
+                + TEXTS[(r * 3) % TEXTS.length] + "\n");
+        }
+        return rows;
+    }
+
+    /**
+     * Adds the rows alternately to two accumulators, as two formatters
+     * would, and checks the offsets against the encoded file.
+     */
+    private static void assertOffsets(final Charset charset, final int interval)
+            throws IOException {
+        List<String> rows = rows(100);
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        file.write("previous content\n".getBytes(charset));
+        List<Long> expected = new ArrayList<Long>();
+        for (int r = 0; r < rows.size(); r++) {
+            if (r % interval == 0) {
+                expected.add((long)file.size());
+            }
+            file.write(rows.get(r).getBytes(charset));
+        }
+
+        RowOffsets offsets = new RowOffsets(interval, Encoding.of(charset));
+        RowStatistics.TextAccumulator[] formatters = {offsets.newAccumulator(),
+            offsets.newAccumulator()};
+        for (int r = rows.size() - 1; r >= 0; r--) {
+            char[] chars = ("prefix" + rows.get(r)).toCharArray();
+            formatters[r % 2].addText(chars, "prefix".length(), chars.length, r);
+        }
+        offsets.setFileLength(file.size());
+        StringWriter json = new StringWriter();
+        offsets.write(json);
+
+        @SuppressWarnings("unchecked")
+        Map<String, Object> result = (Map<String, Object>)JsonReader.parse(json.toString());
+        assertEquals(Long.valueOf(interval), result.get("interval"));
+        assertEquals(Long.valueOf(rows.size()), result.get("rows"));
+        assertEquals(Long.valueOf(file.size()), result.get("length"));
+        assertEquals(charset + ", " + interval, expected, result.get("offsets"));
+    }
+
+    @Test
+    public void testOffsets() throws IOException {
+        for (Charset charset : Arrays.asList(StandardCharsets.UTF_8,
+                StandardCharsets.UTF_16LE, StandardCharsets.ISO_8859_1,
+                StandardCharsets.US_ASCII)) {
+            for (int interval : new int[] {1, 7, 100, 1000}) {
+                assertOffsets(charset, interval);
+            }
+        }
+    }
+
+    @Test
+    public void testNoRows() throws IOException {
+        RowOffsets offsets = new RowOffsets(RowOffsets.DEFAULT_INTERVAL, Encoding.UTF_8);
+        offsets.newAccumulator();
+        offsets.setFileLength(12);
+        StringWriter json = new StringWriter();
+        offsets.write(json);
+        assertEquals("{\"interval\":1024,\"rows\":0,\"length\":12,\"offsets\":[]}",
+            json.toString().replaceAll("\\s", ""));
+    }
+
+    @Test
+    public void testEncoding() {
+        assertEquals(Encoding.UTF_8, Encoding.of(StandardCharsets.UTF_8));
+        assertEquals(Encoding.UTF_16, Encoding.of(StandardCharsets.UTF_16BE));
+        assertEquals(Encoding.SINGLE_BYTE, Encoding.of(Charset.forName("windows-1252")));
+        assertNull(Encoding.of(Charset.forName("Shift_JIS")));
+    }
+}
@@ -0,0 +1,243 @@
+package org.classilist.knime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.knime.core.data.DataCell;
+import org.knime.core.data.DataColumnSpec;
+import org.knime.core.data.DataColumnSpecCreator;
+import org.knime.core.data.DataRow;
+import org.knime.core.data.DataTableSpec;
+import org.knime.core.data.DataType;
+import org.knime.core.data.def.DefaultRow;
+import org.knime.core.data.def.DoubleCell;
+import org.knime.core.data.def.StringCell;
+
+/**
+ * Compares the curves of {@link ScoreCurves} with the curves of the same
+ * scores sorted on the heap, with and without spilled keys and sorted runs.
+ */
+public class ScoreCurvesTest {
+
+    private static final String[] CLASSES = {"a", "b", "c"};
+
+    private static ClassilistColumnPlan plan() throws Exception {
+        List<DataColumnSpec> columns = new ArrayList<DataColumnSpec>();
+        columns.add(new DataColumnSpecCreator("x", DoubleCell.TYPE).createSpec());
+        columns.add(new DataColumnSpecCreator("class", StringCell.TYPE).createSpec());
+        for (String name : CLASSES) {
+            columns.add(new DataColumnSpecCreator("P (class=" + name + ")", DoubleCell.TYPE).createSpec());
+        }
+        columns.add(new DataColumnSpecCreator("Prediction (class)", StringCell.TYPE).createSpec());
+        return ClassilistColumnPlan.create(new DataTableSpec(columns.toArray(new DataColumnSpec[0])));
+    }
+
+    /**
+     * Rows with ties, missing and NaN probabilities, probabilities outside
+     * of [0, 1], missing classes and classes without probability column.
+     */
+    private static List<DataRow> rows(final int count, final long seed) {
+        Random random = new Random(seed);
+        List<DataRow> rows = new ArrayList<DataRow>();
+        for (int i = 0; i < count; i++) {
+            DataCell[] cells = new DataCell[CLASSES.length + 3];
+            cells[0] = new DoubleCell(random.nextDouble());
+            int truth = random.nextInt(CLASSES.length + 1);
+            if (random.nextInt(100) == 0) {
+                cells[1] = DataType.getMissingCell();
+            } else {
+                cells[1] = new StringCell(truth < CLASSES.length ? CLASSES[truth] : "other");
+            }
+            for (int c = 0; c < CLASSES.length; c++) {
+                int kind = random.nextInt(100);
+                if (kind == 0) {
+                    cells[2 + c] = DataType.getMissingCell();
+                } else if (kind == 1) {
+                    cells[2 + c] = new DoubleCell(Double.NaN);
+                } else if (kind == 2) {
+                    cells[2 + c] = new DoubleCell(random.nextBoolean() ? -0.25 : 1.5);
+                } else if (kind < 40) {
+                    // few distinct values, many ties
+                    cells[2 + c] = new DoubleCell(random.nextInt(20) / 19.0);
+                } else {
+                    double p = random.nextDouble();
+                    cells[2 + c] = new DoubleCell(c == truth ? Math.sqrt(p) : p * p);
+                }
+            }
+            cells[CLASSES.length + 2] = new StringCell(CLASSES[random.nextInt(CLASSES.length)]);
+            rows.add(new DefaultRow("Row" + i, cells));
+        }
+        return rows;
+    }
+
+    /** Adds the rows through two accumulators, as two formatters do. */
+    private static Map<?, ?> write(final List<DataRow> rows, final long budget) throws Exception {
+        ScoreCurves curves = new ScoreCurves(plan(), budget);
+        RowStatistics.Accumulator[] accumulators = {curves.newAccumulator(), curves.newAccumulator()};
+        for (int i = 0; i < rows.size(); i++) {
+            accumulators[(i / 1000) % 2].add(rows.get(i), i);
+        }
+        StringWriter out = new StringWriter();
+        curves.write(out);
+        return (Map<?, ?>)JsonReader.parse(out.toString());
+    }
+
+    /** The score and class of every row with a score, sorted on the heap. */
+    private static double[][] scores(final List<DataRow> rows, final int c) {
+        List<double[]> scores = new ArrayList<double[]>();
+        for (DataRow row : rows) {
+            DataCell actual = row.getCell(1);
+            DataCell cell = row.getCell(2 + c);
+            if (actual.isMissing() || cell.isMissing()) {
+                continue;
+            }
+            double p = ((DoubleCell)cell).getDoubleValue();
+            if (Double.isNaN(p)) {
+                continue;
+            }
+            p = Math.min(1, Math.max(0, p));
+            scores.add(new double[]{(float)p, actual.toString().equals(CLASSES[c]) ? 1 : 0});
+        }
+        double[][] sorted = scores.toArray(new double[0][]);
+        Arrays.sort(sorted, new Comparator<double[]>() {
+            @Override
+            public int compare(final double[] a, final double[] b) {
+                return Double.compare(a[0], b[0]);
+            }
+        });
+        return sorted;
+    }
+
+    private static void assertCurve(final double[][] scores, final Map<?, ?> curve) {
+        long positives = 0;
+        for (double[] s : scores) {
+            positives += (long)s[1];
+        }
+        long negatives = scores.length - positives;
+        assertEquals(positives, ((Number)curve.get("positives")).longValue());
+        assertEquals(negatives, ((Number)curve.get("negatives")).longValue());
+
+        // groups of equal scores, ascending
+        List<double[]> groups = new ArrayList<double[]>();
+        for (int i = 0; i < scores.length;) {
+            int j = i;
+            long groupPositives = 0;
+            while (j < scores.length && scores[j][0] == scores[i][0]) {
+                groupPositives += (long)scores[j++][1];
+            }
+            groups.add(new double[]{scores[i][0], groupPositives, j - i - groupPositives});
+            i = j;
+        }
+
+        // the pairs of a positive and a lower negative, ties count half
+        double pairs = 0;
+        long negativesBelow = 0;
+        for (double[] g : groups) {
+            pairs += g[1] * (negativesBelow + g[2] / 2);
+            negativesBelow += (long)g[2];
+        }
+        assertEquals(pairs / ((double)positives * negatives),
+            ((Number)curve.get("rocAuc")).doubleValue(), 1e-9);
+
+        // the precision at the score of every positive
+        double precisionSum = 0;
+        long tp = 0;
+        long fp = 0;
+        for (int i = groups.size() - 1; i >= 0; i--) {
+            double[] g = groups.get(i);
+            tp += (long)g[1];
+            fp += (long)g[2];
+            precisionSum += g[1] * tp / (tp + fp);
+        }
+        assertEquals(precisionSum / positives,
+            ((Number)curve.get("averagePrecision")).doubleValue(), 1e-9);
+
+        // the points at the thresholds evenly spaced by rank, highest first
+        long step = Math.max(1, scores.length / ScoreCurves.MAX_POINTS);
+        List<double[]> points = new ArrayList<double[]>();
+        long below = 0;
+        long nextPoint = 0;
+        for (int i = 0; i < groups.size(); i++) {
+            double[] g = groups.get(i);
+            if (below >= nextPoint || i == groups.size() - 1) {
+                points.add(0, new double[]{g[0], scores.length - below});
+                nextPoint = below + step;
+            }
+            below += (long)(g[1] + g[2]);
+        }
+        List<?> thresholds = (List<?>)curve.get("thresholds");
+        List<?> roc = (List<?>)curve.get("roc");
+        List<?> pr = (List<?>)curve.get("pr");
+        assertEquals(points.size() + 1, thresholds.size());
+        assertNull(thresholds.get(0));
+        assertEquals(Arrays.asList(0.0, 0.0), numbers(roc.get(0)));
+        for (int k = 0; k < points.size(); k++) {
+            double threshold = points.get(k)[0];
+            long truePositives = 0;
+            long atOrAbove = 0;
+            for (double[] s : scores) {
+                if (s[0] >= threshold) {
+                    truePositives += (long)s[1];
+                    atOrAbove++;
+                }
+            }
+            assertEquals(threshold, ((Number)thresholds.get(k + 1)).doubleValue(), 0.0);
+            assertEquals(Arrays.asList((double)(atOrAbove - truePositives) / negatives,
+                (double)truePositives / positives), numbers(roc.get(k + 1)));
+            assertEquals(Arrays.asList((double)truePositives / positives,
+                (double)truePositives / atOrAbove), numbers(pr.get(k + 1)));
+        }
+    }
+
+    private static List<Double> numbers(final Object pair) {
+        List<Double> numbers = new ArrayList<Double>();
+        for (Object n : (List<?>)pair) {
+            numbers.add(n == null ? null : ((Number)n).doubleValue());
+        }
+        return numbers;
+    }
+
+    private static void assertCurves(final List<DataRow> rows, final Map<?, ?> json) {
+        List<?> classes = (List<?>)json.get("classes");
+        assertEquals(CLASSES.length, classes.size());
+        for (int c = 0; c < CLASSES.length; c++) {
+            Map<?, ?> curve = (Map<?, ?>)classes.get(c);
+            assertEquals(CLASSES[c], curve.get("class"));
+            assertCurve(scores(rows, c), curve);
+        }
+    }
+
+    @Test
+    public void testInMemory() throws Exception {
+        List<DataRow> rows = rows(20000, 1);
+        assertCurves(rows, write(rows, 64L << 20));
+    }
+
+    /** Spills keys and sorts more than one run per class in 1 MB. */
+    @Test
+    public void testSpilledRuns() throws Exception {
+        List<DataRow> rows = rows(250000, 2);
+        assertCurves(rows, write(rows, 1L << 20));
+    }
+
+    @Test
+    public void testNoScores() throws Exception {
+        List<DataRow> rows = new ArrayList<DataRow>();
+        rows.add(new DefaultRow("Row0", new DoubleCell(0), DataType.getMissingCell(),
+            new DoubleCell(0.5), new DoubleCell(0.25), new DoubleCell(0.25), new StringCell("a")));
+        Map<?, ?> json = write(rows, 1L << 20);
+        for (Object curve : (List<?>)json.get("classes")) {
+            assertEquals(0L, ((Map<?, ?>)curve).get("positives"));
+            assertNull(((Map<?, ?>)curve).get("rocAuc"));
+        }
+    }
+}